@@ -0,0 +1,25 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+/**
+ * An interface that is used by ImagCDFVariable to pass a range of data to
+ * a client without copying it
+ * 
+ * @author smf
+ */
+public interface IMCDFDataRangeConsumer 
+{
+
+    /** receive a range of data - the array may be shared with the variable, so
+     * it must not be modified or kept
+     * @param data the array holding the data
+     * @param offset the index in the array of the first sample
+     * @param length the number of samples
+     */
+    public void accept (double data [], int offset, int length);
+    
+}
@@ -0,0 +1,39 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+/**
+ * An interface to a store that holds the data for an ImagCDFVariable in
+ * some form other than an array of doubles (e.g. a compact encoding or
+ * compressed). The store is filled when it is created and doesn't change
+ * after that, so it can be shared between a variable and its slices.
+ *
+ * @author smf
+ */
+public interface IMCDFDataStore
+{
+
+    /** get the number of samples in the store
+     * @return the number of samples */
+    public int getLength ();
+
+    /** get a single sample
+     * @param index the index of the sample
+     * @return the sample */
+    public double get (int index);
+
+    /** copy samples into an array
+     * @param from the index of the first sample
+     * @param dst the array to copy the samples into
+     * @param dst_pos the index in dst to copy the first sample to
+     * @param len the number of samples */
+    public void decode (int from, double dst [], int dst_pos, int len);
+
+    /** get the amount of memory used by the store
+     * @return the size in bytes */
+    public long getMemorySize ();
+
+}
@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+/**
+ * An interface to an open CDF file that allows the records in individual
+ * variables to be read on demand, rather than when the file is opened. This
+ * is implemented by the low level readers for each CDF library and is used by
+ * ImagCDF objects that have been read in lazy mode, in which case the reader
+ * stays open until the ImagCDF object is closed.
+ *
+ * @author smf
+ */
+public interface IMCDFRecordReader
+{
+
+    /** get the number of records in a variable without reading the records
+     * @param var_name the name of the variable
+     * @return the number of records
+     * @throws IMCDFException if there is an error */
+    public int getNRecords (String var_name)
+    throws IMCDFException;
+
+    /** read all the records from a data variable
+     * @param var_name the name of the variable
+     * @return the data
+     * @throws IMCDFException if there is an error */
+    public double [] readDataRecords (String var_name)
+    throws IMCDFException;
+
+    /** read all the records from a TT2000 time stamp variable
+     * @param var_name the name of the variable
+     * @return the time stamps
+     * @throws IMCDFException if there is an error */
+    public long [] readTimeStampRecords (String var_name)
+    throws IMCDFException;
+
+    /** read a range of records from a data variable
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the data
+     * @throws IMCDFException if there is an error */
+    public double [] readDataRecords (String var_name, int first_record, int n_records)
+    throws IMCDFException;
+
+    /** read a range of records from a TT2000 time stamp variable
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the time stamps
+     * @throws IMCDFException if there is an error */
+    public long [] readTimeStampRecords (String var_name, int first_record, int n_records)
+    throws IMCDFException;
+
+    /** read a range of records from a data variable into an array supplied by the
+     * caller, so that reading a file a block at a time doesn't need a new array
+     * for each block
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @param dst the array to read into
+     * @param dst_pos the index in dst to put the first record in
+     * @throws IMCDFException if there is an error, including fewer records than requested */
+    public void readDataRecords (String var_name, int first_record, int n_records, double dst [], int dst_pos)
+    throws IMCDFException;
+
+    /** read a range of records from a TT2000 time stamp variable into an array
+     * supplied by the caller
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @param dst the array to read into
+     * @param dst_pos the index in dst to put the first record in
+     * @throws IMCDFException if there is an error, including fewer records than requested */
+    public void readTimeStampRecords (String var_name, int first_record, int n_records, long dst [], int dst_pos)
+    throws IMCDFException;
+
+    /** close the CDF file - after this call no more records can be read
+     * @throws IMCDFException if there is an error */
+    public void close ()
+    throws IMCDFException;
+
+}
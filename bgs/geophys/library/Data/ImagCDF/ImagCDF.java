@@ -10,7 +10,7 @@ import java.util.List;
 
 /** the base class for ImagCDF implementations */
 public abstract class ImagCDF
-implements IMCDFWriteProgressListener
+implements IMCDFWriteProgressListener, AutoCloseable
 {
     
     /** constant value used to indicate missing data */
@@ -44,6 +44,9 @@ implements IMCDFWriteProgressListener
     protected String iaga_code;
     /** list of the geomagnetism elements in the CDF file, one character per element */
     protected String elements_recorded;
+    /** the elements held in this object when only some of the elements were
+     * selected when reading, null when all the elements recorded are held */
+    protected String elements_selected;
     /** the publication level (AKA data type) */
     protected IMCDFPublicationLevel pub_level;
     /** the date of publication */
@@ -87,6 +90,10 @@ implements IMCDFWriteProgressListener
     
     /** the time stamps for the field data and the temperature data */
     protected ImagCDFVariableTS time_stamps [];
+    
+    /** for data read in lazy mode, the open CDF file that variables are
+     * loaded from - null for other data or once the object has been closed */
+    protected IMCDFRecordReader lazy_reader;
 
     /** create a new empty ImagCDF object */
     protected ImagCDF ()
@@ -94,14 +101,407 @@ implements IMCDFWriteProgressListener
         write_progress_listeners = new ArrayList<> ();
     }
     
-     /** write this data to a CDF file - implementation is provided by sub-classes
+     /** write this data to a CDF file
      * @param cdf_file the CDF file to write into
      * @param compress true to compress the CDF file, FALSE not to compress
      * @param overwrite_existing true to overwrite any existing file, false to throw exception if file exists
      * @throws IMCDFException if there is an error, including user abort */
-    public abstract void write (File cdf_file, boolean compress, boolean overwrite_existing)
+    public void write (File cdf_file, boolean compress, boolean overwrite_existing)
+    throws IMCDFException
+    {
+        write (cdf_file, ImagCDFCompression.fromFlag (compress), overwrite_existing);
+    }
+
+     /** write this data to a CDF file - implementation is provided by sub-classes
+     * @param cdf_file the CDF file to write into
+     * @param compression the compression for the file - variables that have their
+     *        own compression set (see ImagCDFVariable.setWriteCompression()) use that instead
+     * @param overwrite_existing true to overwrite any existing file, false to throw exception if file exists
+     * @throws IMCDFException if there is an error, including user abort and compression
+     *         that the CDF library can't write */
+    public abstract void write (File cdf_file, ImagCDFCompression compression, boolean overwrite_existing)
     throws IMCDFException;
 
+    /** create a new, empty object of the same type as this one, used by slice()
+     * @return the new object */
+    protected abstract ImagCDF createEmpty ();
+    
+    /** create a new ImagCDF that holds the data from part of the time covered by
+     * this one. The variables and time stamps in the new object are views of the
+     * variables and time stamps in this object - data in memory is shared, not
+     * copied. The new object can be written to a file with write(). If this object
+     * was read in lazy mode, data that has not yet been loaded is loaded from the
+     * same file, so don't close this object until the slice has been used.
+     * @param start_date the start of the time range (inclusive), or null to start at the first sample
+     * @param end_date the end of the time range (exclusive), or null to end after the last sample
+     * @return the new ImagCDF
+     * @throws IMCDFException if the time stamps can't be read or a variable has no time stamps */
+    public ImagCDF slice (Date start_date, Date end_date)
+    throws IMCDFException
+    {
+        int count;
+        long start_tt2000, end_tt2000;
+        ImagCDFRecordRange ranges [];
+        ImagCDF slice;
+        
+        start_tt2000 = start_date == null ? Long.MIN_VALUE : ImagCDFTimeConverter.DateToTT2000 (start_date);
+        end_tt2000 = end_date == null ? Long.MAX_VALUE : ImagCDFTimeConverter.DateToTT2000 (end_date);
+        
+        slice = createEmpty ();
+        slice.format_description = format_description;
+        slice.format_version = format_version;
+        slice.title = title;
+        slice.iaga_code = iaga_code;
+        slice.elements_recorded = elements_recorded;
+        slice.elements_selected = elements_selected;
+        slice.pub_level = pub_level;
+        slice.pub_date = pub_date;
+        slice.observatory_name = observatory_name;
+        slice.latitude = latitude;
+        slice.longitude = longitude;
+        slice.elevation = elevation;
+        slice.institution = institution;
+        slice.vector_sens_orient = vector_sens_orient;
+        slice.standard_level = standard_level;
+        slice.standard_name = standard_name;
+        slice.standard_version = standard_version;
+        slice.partial_stand_desc = partial_stand_desc;
+        slice.source = source;
+        slice.terms_of_use = terms_of_use;
+        slice.unique_identifier = unique_identifier;
+        slice.parent_identifiers = parent_identifiers;
+        slice.reference_links = reference_links;
+        
+        // find the range of samples in each time stamp variable
+        ranges = new ImagCDFRecordRange [time_stamps.length];
+        slice.time_stamps = new ImagCDFVariableTS [time_stamps.length];
+        for (count=0; count<time_stamps.length; count++)
+        {
+            ranges [count] = time_stamps [count].findTimeRange (start_tt2000, end_tt2000);
+            slice.time_stamps [count] = time_stamps [count].slice (ranges [count].getFirstRecord(), ranges [count].getNRecords());
+        }
+        
+        // the data variables use the same range as their time stamps
+        slice.elements = new ImagCDFVariable [elements.length];
+        for (count=0; count<elements.length; count++)
+            slice.elements [count] = sliceVariable (elements [count], ranges);
+        slice.temperatures = new ImagCDFVariable [temperatures.length];
+        for (count=0; count<temperatures.length; count++)
+            slice.temperatures [count] = sliceVariable (temperatures [count], ranges);
+        
+        return slice;
+    }
+    
+    private ImagCDFVariable sliceVariable (ImagCDFVariable var, ImagCDFRecordRange ranges [])
+    throws IMCDFException
+    {
+        int count;
+        
+        for (count=0; count<time_stamps.length; count++)
+        {
+            if (time_stamps [count].getVarName().equals (var.getDepend0()))
+                return var.slice (ranges [count].getFirstRecord(), ranges [count].getNRecords());
+        }
+        throw new IMCDFException ("Missing time stamp data for element " + var.getElementRecorded());
+    }
+
+    /** check the values of the data and time stamps, as opposed to the metadata -
+     * see ImagCDFDataValidator
+     * @param max_errors_per_variable the number of offending samples to report for each variable
+     * @throws IMCDFException if any of the values are invalid - the exception holds
+     *         the list of errors */
+    public void validateData (int max_errors_per_variable)
+    throws IMCDFException
+    {
+        List<String> errors = new ArrayList<> ();
+        ImagCDFDataValidator.validate (elements, temperatures, time_stamps, max_errors_per_variable, errors);
+        if (! errors.isEmpty())
+            throw new IMCDFException (errors.get(0), errors);
+    }
+    
+    /** hold the data in all the variables in a compact encoding - see
+     * ImagCDFVariable.compact()
+     * @param encoding the way that samples are encoded
+     * @param resolution the resolution of the data, which must suit all the
+     *        variables (e.g. 0.0001 for files that hold D or I in degrees)
+     * @throws IMCDFException if any of the data could not be read from the CDF
+     *         file or can't be held at the resolution */
+    public void compact (ImagCDFCompactData.Encoding encoding, double resolution)
+    throws IMCDFException
+    {
+        List<String> errors = new ArrayList<> ();
+        compact (encoding, resolution, errors);
+        if (! errors.isEmpty())
+            throw new IMCDFException (errors.get(0), errors);
+    }
+    
+    /** hold the data in all the variables in a compact encoding
+     * @param encoding the way that samples are encoded
+     * @param resolution the resolution of the data
+     * @param accumulated_errors a list of error messages to add to if any of the
+     *        data could not be read from the CDF file or can't be held at the resolution */
+    protected void compact (ImagCDFCompactData.Encoding encoding, double resolution, List<String> accumulated_errors)
+    {
+        int count;
+        
+        for (count=0; count<elements.length; count++)
+        {
+            try { elements [count].compact (encoding, resolution); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+        for (count=0; count<temperatures.length; count++)
+        {
+            try { temperatures [count].compact (encoding, resolution); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+    }
+    
+    /** hold the data and time stamps in all the variables in compressed stores -
+     * see ImagCDFVariable.compress() and ImagCDFVariableTS.compress()
+     * @throws IMCDFException if any of the data could not be read from the CDF file */
+    public void compress ()
+    throws IMCDFException
+    {
+        List<String> errors = new ArrayList<> ();
+        compress (errors);
+        if (! errors.isEmpty())
+            throw new IMCDFException (errors.get(0), errors);
+    }
+    
+    /** hold the data and time stamps in all the variables in compressed stores
+     * @param accumulated_errors a list of error messages to add to if any of
+     *        the data could not be read from the CDF file */
+    protected void compress (List<String> accumulated_errors)
+    {
+        int count;
+        
+        for (count=0; count<elements.length; count++)
+        {
+            try { elements [count].compress (); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+        for (count=0; count<temperatures.length; count++)
+        {
+            try { temperatures [count].compress (); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+        for (count=0; count<time_stamps.length; count++)
+        {
+            try { time_stamps [count].compress (); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+    }
+    
+    /** charge the memory used when the data and time stamps of variables that
+     * were opened in lazy mode are loaded to a budget, which is shared by all
+     * the variables - once it is used up, loading data throws an IMCDFException
+     * @param budget the budget, or null for no budget */
+    protected void setLazyBudget (ImagCDFMemoryBudget budget)
+    {
+        int count;
+        
+        for (count=0; count<elements.length; count++)
+            elements [count].setLazyBudget (budget);
+        for (count=0; count<temperatures.length; count++)
+            temperatures [count].setLazyBudget (budget);
+        for (count=0; count<time_stamps.length; count++)
+            time_stamps [count].setLazyBudget (budget);
+    }
+    
+    /** read the data and time stamps for all the variables that were opened
+     * in lazy mode
+     * @param accumulated_errors a list of error messages to add to if any of
+     *        the data could not be read from the CDF file */
+    protected void loadData (List<String> accumulated_errors)
+    {
+        int count;
+        
+        for (count=0; count<elements.length; count++)
+        {
+            try { elements [count].loadData (); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+        for (count=0; count<temperatures.length; count++)
+        {
+            try { temperatures [count].loadData (); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+        for (count=0; count<time_stamps.length; count++)
+        {
+            if (time_stamps [count].isRegular() || time_stamps [count].isTimeStampsLoaded()) continue;
+            try { time_stamps [count].loadTimeStamps (); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+    }
+    
+    /** stop reading a file if the errors found so far mean that the
+     * error policy won't allow reading to continue
+     * @param error_policy the error policy that reading is using
+     * @param accumulated_errors the errors found so far
+     * @throws IMCDFException containing the errors if reading should stop */
+    protected static void checkErrorPolicy (ImagCDFReadOptions.ErrorPolicy error_policy, List<String> accumulated_errors)
+    throws IMCDFException
+    {
+        if (error_policy == ImagCDFReadOptions.ErrorPolicy.FAIL_FAST && ! accumulated_errors.isEmpty())
+            throw new IMCDFException (accumulated_errors.get(0), accumulated_errors);
+    }
+    
+    /** move the data and time stamps in all the variables out of the Java heap
+     * into direct buffers - see ImagCDFVariable.moveOffHeap()
+     * @throws IMCDFException if any of the data could not be read from the CDF file */
+    public void moveOffHeap ()
+    throws IMCDFException
+    {
+        List<String> errors = new ArrayList<> ();
+        moveOffHeap (errors);
+        if (! errors.isEmpty())
+            throw new IMCDFException (errors.get(0), errors);
+    }
+    
+    /** move the data and time stamps in all the variables out of the Java heap
+     * @param accumulated_errors a list of error messages to add to if any of
+     *        the data could not be read from the CDF file */
+    protected void moveOffHeap (List<String> accumulated_errors)
+    {
+        int count;
+        
+        for (count=0; count<elements.length; count++)
+        {
+            try { elements [count].moveOffHeap (); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+        for (count=0; count<temperatures.length; count++)
+        {
+            try { temperatures [count].moveOffHeap (); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+        for (count=0; count<time_stamps.length; count++)
+        {
+            try { time_stamps [count].moveOffHeap (); }
+            catch (IMCDFException e) { accumulated_errors.add (e.getMessage()); }
+        }
+    }
+    
+    /** close the CDF file that was left open when this object was read in lazy
+     * mode and release any data or time stamps that are held outside the Java
+     * heap. Variables whose data has not been loaded can't be loaded after this
+     * call. For other objects this does nothing.
+     * @throws IMCDFException if there is an error closing the file */
+    @Override
+    public void close ()
+    throws IMCDFException
+    {
+        int count;
+        IMCDFRecordReader reader;
+        
+        synchronized (this)
+        {
+            reader = lazy_reader;
+            lazy_reader = null;
+        }
+        if (elements != null)
+        {
+            for (count=0; count<elements.length; count++)
+                if (elements [count] != null) elements [count].close ();
+        }
+        if (temperatures != null)
+        {
+            for (count=0; count<temperatures.length; count++)
+                if (temperatures [count] != null) temperatures [count].close ();
+        }
+        if (time_stamps != null)
+        {
+            for (count=0; count<time_stamps.length; count++)
+                if (time_stamps [count] != null) time_stamps [count].close ();
+        }
+        if (reader != null) reader.close ();
+    }
+
+    /** find out whether any variable has its own compression set for writing
+     * @return true if at least one variable has its own compression */
+    protected boolean hasVariableWriteCompression ()
+    {
+        int count;
+
+        for (count=0; count<elements.length; count++)
+            if (elements[count].getWriteCompression() != null) return true;
+        for (count=0; count<temperatures.length; count++)
+            if (temperatures[count].getWriteCompression() != null) return true;
+        for (count=0; count<time_stamps.length; count++)
+            if (time_stamps[count].getWriteCompression() != null) return true;
+        return false;
+    }
+
+    /** get the names that the variables are given when they are written
+     * @return the names, in the order the variables are written (elements, temperatures, time stamps) */
+    protected String [] getWriteVarNames ()
+    {
+        int count, index;
+        String names [];
+
+        names = new String [elements.length + temperatures.length + time_stamps.length];
+        index = 0;
+        for (count=0; count<elements.length; count++)
+            names [index ++] = elements[count].getVariableType().getCDFFileVariableName(elements[count].getElementRecorded());
+        for (count=0; count<temperatures.length; count++)
+            names [index ++] = temperatures[count].getVariableType().getCDFFileVariableName(Integer.toString (count +1));
+        for (count=0; count<time_stamps.length; count++)
+            names [index ++] = time_stamps[count].getVarName();
+        return names;
+    }
+
+    /** work out the compression for each variable when the file is written,
+     * running the trials for AUTO compression
+     * @param compression the compression for the file
+     * @param pure_java true if the file is written with the pure Java CDF library
+     * @return the compression for each variable, in the order the variables are
+     *         written (elements, temperatures, time stamps) - never AUTO
+     * @throws IMCDFException if there is an error reading the data, or the
+     *         pure Java library can't write the compression */
+    protected ImagCDFCompression [] resolveWriteCompression (ImagCDFCompression compression, boolean pure_java)
+    throws IMCDFException
+    {
+        int count, index;
+        ImagCDFCompression resolved [], var_compression;
+
+        resolved = new ImagCDFCompression [elements.length + temperatures.length + time_stamps.length];
+        index = 0;
+        for (count=0; count<elements.length; count++)
+        {
+            var_compression = elements[count].getWriteCompression() == null ? compression : elements[count].getWriteCompression();
+            checkWriteCompression (var_compression, pure_java);
+            if (var_compression.isAuto()) var_compression = ImagCDFCompressionTuner.choose (elements[count], var_compression.getObjective(), pure_java);
+            resolved [index ++] = var_compression;
+        }
+        for (count=0; count<temperatures.length; count++)
+        {
+            var_compression = temperatures[count].getWriteCompression() == null ? compression : temperatures[count].getWriteCompression();
+            checkWriteCompression (var_compression, pure_java);
+            if (var_compression.isAuto()) var_compression = ImagCDFCompressionTuner.choose (temperatures[count], var_compression.getObjective(), pure_java);
+            resolved [index ++] = var_compression;
+        }
+        for (count=0; count<time_stamps.length; count++)
+        {
+            var_compression = time_stamps[count].getWriteCompression() == null ? compression : time_stamps[count].getWriteCompression();
+            checkWriteCompression (var_compression, pure_java);
+            if (var_compression.isAuto()) var_compression = ImagCDFCompressionTuner.choose (time_stamps[count], var_compression.getObjective(), pure_java);
+            resolved [index ++] = var_compression;
+        }
+        return resolved;
+    }
+
+    /** check that a compression can be written
+     * @param compression the compression
+     * @param pure_java true if the file is written with the pure Java CDF library
+     * @throws IMCDFException if the compression can't be written */
+    protected static void checkWriteCompression (ImagCDFCompression compression, boolean pure_java)
+    throws IMCDFException
+    {
+        if (compression == null) throw new IMCDFException ("Missing compression setting");
+        if (pure_java && ! compression.isPureJavaSupported())
+            throw new IMCDFException ("The pure Java CDF library can't write " + compression + " compression");
+    }
+
     /** add a listener that receives notification of the progress of write operations
      * @param listener the listener */
     public void addWriteProgressListener (IMCDFWriteProgressListener listener)
@@ -158,6 +558,10 @@ implements IMCDFWriteProgressListener
     /** get the orientation of the data - also acts as a list of data arrays in the CDF file
      * @return the orientation */
     public String getElementsRecorded() { return elements_recorded; }
+    /** get the elements held in this object, in the same order as the data arrays - this is
+     * the same as getElementsRecorded() unless only some elements were selected when reading
+     * @return the elements held */
+    public String getElementsSelected() { return elements_selected == null ? elements_recorded : elements_selected; }
     /** get the publication level (AKA data "type")
      * @return the publication level */
     public IMCDFPublicationLevel getPublicationLevel() {  return pub_level; }
@@ -304,6 +708,18 @@ implements IMCDFWriteProgressListener
     /** get the number of temperature variables recorded in the data
      * @return the number of temperature variables */
     public int getNTemperatures () { return temperatures.length; }
+    
+    /** get the approximate amount of memory used to hold the data and time stamps,
+     * on or off the heap - see ImagCDFVariable.getMemoryFootprint()
+     * @return the size in bytes */
+    public long getMemoryFootprint ()
+    {
+        long n_bytes = 0l;
+        for (ImagCDFVariable var : elements) n_bytes += var.getMemoryFootprint();
+        for (ImagCDFVariable var : temperatures) n_bytes += var.getMemoryFootprint();
+        for (ImagCDFVariableTS ts : time_stamps) n_bytes += ts.getMemoryFootprint();
+        return n_bytes;
+    }
     /** get a temperature variable
      * @param index 0..N-1
      * @return the temperature variable */
@@ -359,7 +775,8 @@ implements IMCDFWriteProgressListener
                     vars[count].getDepend0().equals(time_stamps[count2].getVarName())) {
                     found = true;
                     if (time_stamps[count2] != null &&
-                        time_stamps[count2].time_stamps != null &&
+                        (time_stamps[count2].time_stamps != null || time_stamps[count2].off_heap_time_stamps != null ||
+                         time_stamps[count2].compressed_time_stamps != null || time_stamps[count2].lazy_reader != null || time_stamps[count2].regular) &&
                         vars[count].getDataLength() != time_stamps[count2].getNSamples())
                         accumulated_errors.add ("Time stamp variable '" + time_stamps[count2].var_name + 
                                                 "' and data variable '" + vars[count].var_name + "' have different lengths");
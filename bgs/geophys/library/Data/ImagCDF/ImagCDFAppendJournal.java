@@ -0,0 +1,278 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * A journal of the records appended to an ImagCDF file. An atomic append
+ * writer (see ImagCDFFactory.openAppendWriter()) doesn't touch the CDF file
+ * while records are being appended - each block of records is added to the
+ * end of the journal, a sidecar file next to the CDF file, so the cost of an
+ * append depends only on the number of records appended, not on the size of
+ * the CDF file. When the writer is closed the journal is replayed into the
+ * CDF file and then deleted.
+ *
+ * The journal is flushed after each block, so if the program stops before the
+ * journal has been replayed the records are not lost - the next append writer
+ * opened on the file replays the journal before it does anything else.
+ * Records are written by record number, so replaying a journal that was
+ * partly replayed before gives the same file. Each block has a checksum, so
+ * a block that was only partly written to the journal is ignored.
+ *
+ * THE IMCDF ROUTINES SHOULD NOT HAVE DEPENDENCIES ON OTHER LIBRARY ROUTINES -
+ * IT MUST BE POSSIBLE TO DISTRIBUTE THE IMCDF SOURCE CODE
+ *
+ * @author smf
+ */
+public class ImagCDFAppendJournal
+implements AutoCloseable
+{
+
+    /** somewhere to replay the records in a journal to */
+    public interface RecordWriter
+    {
+        /** write data to a data variable
+         * @param var_name the name of the variable
+         * @param rec_no the record to write the first sample to
+         * @param data the data
+         * @param offset the index in the data of the first sample
+         * @param length the number of samples
+         * @throws IMCDFException if there is an error */
+        public void writeData (String var_name, int rec_no, double data [], int offset, int length)
+        throws IMCDFException;
+        /** write time stamps to a time stamp variable
+         * @param ts_name the name of the variable
+         * @param rec_no the record to write the first time stamp to
+         * @param tt2000 the time stamps
+         * @param offset the index of the first time stamp
+         * @param length the number of time stamps
+         * @throws IMCDFException if there is an error */
+        public void writeTimeStamps (String ts_name, int rec_no, long tt2000 [], int offset, int length)
+        throws IMCDFException;
+    }
+
+    /** the extension added to the name of a CDF file to give the name of its journal */
+    public static final String JOURNAL_EXTENSION = ".journal";
+
+    // the first bytes in a journal file
+    private static final int MAGIC = 0x494d4a31;
+
+    // private member data
+    private final File journal_file;
+    private final FileOutputStream file_stream;
+    private final DataOutputStream out;
+    private long n_bytes;
+    private int n_blocks;
+
+    /** create a journal for a CDF file
+     * @param cdf_file the CDF file that records will be appended to
+     * @throws IMCDFException if there is already a journal for the file or the
+     *         journal could not be created */
+    public ImagCDFAppendJournal (File cdf_file)
+    throws IMCDFException
+    {
+        journal_file = getJournalFile (cdf_file);
+        if (journal_file.exists())
+            throw new IMCDFException ("Journal already exists for " + cdf_file.getName());
+        try
+        {
+            file_stream = new FileOutputStream (journal_file);
+            out = new DataOutputStream (new BufferedOutputStream (file_stream));
+            out.writeInt (MAGIC);
+            out.flush ();
+        }
+        catch (IOException e)
+        {
+            journal_file.delete ();
+            throw new IMCDFException ("Unable to create journal for " + cdf_file.getName(), e);
+        }
+        n_bytes = out.size();
+        n_blocks = 0;
+    }
+
+    /** get the journal file for a CDF file
+     * @param cdf_file the CDF file
+     * @return the journal file, which may not exist */
+    public static File getJournalFile (File cdf_file)
+    {
+        return new File (cdf_file.getAbsoluteFile().getParentFile(), cdf_file.getName() + JOURNAL_EXTENSION);
+    }
+
+    /** get the journal file
+     * @return the file */
+    public File getFile () { return journal_file; }
+    /** get the number of bytes written to the journal
+     * @return the number of bytes */
+    public long getNBytes () { return n_bytes; }
+    /** get the number of blocks of records written to the journal
+     * @return the number of blocks */
+    public int getNBlocks () { return n_blocks; }
+
+    /** add a block of records to the end of the journal
+     * @param ts_name the name of the time stamp variable
+     * @param var_names the names of the data variables that use the time stamps
+     * @param rec_no the record number of the first record
+     * @param tt2000 the TT2000 time stamps
+     * @param data the data, one array for each data variable
+     * @param offset the index in the arrays of the first record
+     * @param length the number of records
+     * @throws IMCDFException if there is an error writing */
+    public void append (String ts_name, String var_names [], int rec_no, long tt2000 [], double data [][], int offset, int length)
+    throws IMCDFException
+    {
+        int count, count2, start;
+        byte block [];
+        ByteArrayOutputStream block_stream;
+        DataOutputStream block_out;
+        CRC32 crc;
+
+        start = out.size();
+        try
+        {
+            // build the block, then write it with its length and checksum
+            block_stream = new ByteArrayOutputStream ();
+            block_out = new DataOutputStream (block_stream);
+            block_out.writeUTF (ts_name);
+            block_out.writeInt (rec_no);
+            block_out.writeInt (length);
+            block_out.writeInt (var_names.length);
+            for (count=0; count<length; count++)
+                block_out.writeLong (tt2000 [offset + count]);
+            for (count=0; count<var_names.length; count++)
+            {
+                block_out.writeUTF (var_names [count]);
+                for (count2=0; count2<length; count2++)
+                    block_out.writeDouble (data [count][offset + count2]);
+            }
+            block = block_stream.toByteArray ();
+            crc = new CRC32 ();
+            crc.update (block);
+            out.writeInt (block.length);
+            out.write (block);
+            out.writeLong (crc.getValue());
+            out.flush ();
+        }
+        catch (IOException e)
+        {
+            throw new IMCDFException ("Error writing to journal " + journal_file.getName(), e);
+        }
+        n_bytes += out.size() - start;
+        n_blocks ++;
+    }
+
+    /** make sure the journal is on the disk and close it - the journal file
+     * is not deleted
+     * @throws IMCDFException if there is an error */
+    @Override
+    public void close ()
+    throws IMCDFException
+    {
+        try
+        {
+            out.flush ();
+            file_stream.getFD().sync ();
+            out.close ();
+        }
+        catch (IOException e)
+        {
+            throw new IMCDFException ("Error closing journal " + journal_file.getName(), e);
+        }
+    }
+
+    /** replay the records in a journal
+     * @param journal_file the journal
+     * @param writer where to write the records
+     * @return the number of blocks of records replayed
+     * @throws IMCDFException if the journal could not be read or there is an
+     *         error writing the records */
+    public static int replay (File journal_file, RecordWriter writer)
+    throws IMCDFException
+    {
+        int count, count2, n_blocks, rec_no, length, n_vars;
+        long tt2000 [];
+        byte block [];
+        String ts_name, var_names [];
+        double data [][];
+        DataInputStream in, block_in;
+        CRC32 crc;
+
+        n_blocks = 0;
+        try
+        {
+            in = new DataInputStream (new BufferedInputStream (new FileInputStream (journal_file)));
+        }
+        catch (IOException e)
+        {
+            throw new IMCDFException ("Unable to open journal " + journal_file.getName(), e);
+        }
+        try
+        {
+            if (in.readInt () != MAGIC)
+                throw new IMCDFException ("File " + journal_file.getName() + " is not an ImagCDF append journal");
+            while (true)
+            {
+                // read the whole block and check it before writing any of it - a
+                // block that was only partly written to the journal ends the journal
+                length = in.readInt ();
+                if (length <= 0 || length > journal_file.length()) break;
+                block = new byte [length];
+                in.readFully (block);
+                crc = new CRC32 ();
+                crc.update (block);
+                if (in.readLong () != crc.getValue()) break;
+
+                block_in = new DataInputStream (new ByteArrayInputStream (block));
+                ts_name = block_in.readUTF ();
+                rec_no = block_in.readInt ();
+                length = block_in.readInt ();
+                n_vars = block_in.readInt ();
+                tt2000 = new long [length];
+                for (count=0; count<length; count++)
+                    tt2000 [count] = block_in.readLong ();
+                var_names = new String [n_vars];
+                data = new double [n_vars][length];
+                for (count=0; count<n_vars; count++)
+                {
+                    var_names [count] = block_in.readUTF ();
+                    for (count2=0; count2<length; count2++)
+                        data [count][count2] = block_in.readDouble ();
+                }
+
+                for (count=0; count<n_vars; count++)
+                    writer.writeData (var_names [count], rec_no, data [count], 0, length);
+                writer.writeTimeStamps (ts_name, rec_no, tt2000, 0, length);
+                n_blocks ++;
+            }
+        }
+        catch (EOFException e)
+        {
+            // the end of the journal, or a block that was only partly written
+        }
+        catch (IOException e)
+        {
+            throw new IMCDFException ("Error reading journal " + journal_file.getName(), e);
+        }
+        finally
+        {
+            try { in.close (); }
+            catch (IOException e) { }
+        }
+        return n_blocks;
+    }
+
+}
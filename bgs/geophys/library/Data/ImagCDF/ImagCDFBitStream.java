@@ -0,0 +1,88 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.Arrays;
+
+/**
+ * A growable stream of bits, used by the compressed stores. Bits are
+ * written to the end of the stream and can be read from any position.
+ * Values are held most significant bit first.
+ *
+ * @author smf
+ */
+class ImagCDFBitStream
+{
+
+    // private member data
+    private long words [];
+    private long n_bits;
+
+    /** create an empty stream */
+    ImagCDFBitStream ()
+    {
+        words = new long [16];
+        n_bits = 0;
+    }
+
+    /** get the number of bits in the stream
+     * @return the number of bits */
+    long getNBits () { return n_bits; }
+
+    /** get the amount of memory used by the stream
+     * @return the size in bytes */
+    long getSizeBytes () { return (long) words.length * 8l; }
+
+    /** add bits to the end of the stream
+     * @param value the bits to add, in the least significant bits of value
+     * @param n the number of bits to add (0 to 64) */
+    void write (long value, int n)
+    {
+        int word, space;
+
+        if (n <= 0) return;
+        if (n < 64) value &= (1l << n) -1l;
+        word = (int) (n_bits >>> 6);
+        if (word +1 >= words.length)
+            words = Arrays.copyOf (words, words.length * 2);
+        space = 64 - (int) (n_bits & 63);
+        if (n <= space)
+            words [word] |= value << (space - n);
+        else
+        {
+            words [word] |= value >>> (n - space);
+            words [word +1] |= value << (64 - (n - space));
+        }
+        n_bits += n;
+    }
+
+    /** read bits from the stream
+     * @param position the index of the first bit to read
+     * @param n the number of bits to read (0 to 64)
+     * @return the bits, in the least significant bits of the value */
+    long read (long position, int n)
+    {
+        int word, bit, n1, n2;
+        long value;
+
+        if (n <= 0) return 0;
+        word = (int) (position >>> 6);
+        bit = (int) (position & 63);
+        if (bit + n <= 64)
+            return (words [word] << bit) >>> (64 - n);
+        n1 = 64 - bit;
+        n2 = n - n1;
+        value = (words [word] << bit) >>> bit;
+        return (value << n2) | (words [word +1] >>> (64 - n2));
+    }
+
+    /** release unused memory once the stream is complete */
+    void trim ()
+    {
+        words = Arrays.copyOf (words, (int) ((n_bits + 63) >>> 6) +1);
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+/**
+ * A compact in-memory store for the data in a variable. Observatory data is
+ * reported to a fixed resolution (e.g. 0.01nT or 0.0001 degrees), so each
+ * sample can be held in 32 bits rather than 64, either as a float or as an
+ * integer count of the resolution. Samples are checked as they are stored -
+ * a sample that is not a multiple of the resolution (to within rounding
+ * error) or is too large for the encoding is rejected. Stored samples are
+ * returned as the nearest double to the sample rounded to the resolution.
+ *
+ * The variable's fill value and ImagCDF.MISSING_DATA_VALUE are stored using
+ * reserved values, so they are always returned exactly.
+ *
+ * @author smf
+ */
+public class ImagCDFCompactData
+implements IMCDFDataStore
+{
+
+    /** the ways that samples can be encoded */
+    public enum Encoding
+    {
+        /** 32 bit floating point - 24 bits of precision, which holds values
+         * up to about 167,000nT at a resolution of 0.01nT */
+        FLOAT32,
+        /** 32 bit integer count of the resolution - holds values up to about
+         * 21,000,000nT at a resolution of 0.01nT */
+        SCALED_INT32
+    }
+
+    // reserved values for the fill value and the missing data value
+    private static final int INT_FILL = Integer.MIN_VALUE;
+    private static final int INT_MISSING = Integer.MIN_VALUE +1;
+    private static final float FLOAT_FILL = Float.NaN;
+    private static final float FLOAT_MISSING = Float.NEGATIVE_INFINITY;
+
+    // the largest difference (in units of the resolution) between a sample and
+    // its rounded value that is treated as rounding error
+    private static final double ROUNDING_TOLERANCE = 1.0e-6;
+
+    // private member data
+    private final Encoding encoding;
+    private final double resolution;
+    private final double scale;
+    private final double fill_val;
+    private final float float_values [];
+    private final int int_values [];
+
+    /** create an empty compact store
+     * @param encoding the way that samples are encoded
+     * @param resolution the resolution of the data (e.g. 0.01 for data reported to 0.01nT)
+     * @param fill_val the variable's fill value
+     * @param length the number of samples that the store will hold */
+    public ImagCDFCompactData (Encoding encoding, double resolution, double fill_val, int length)
+    {
+        if (! (resolution > 0.0) || Double.isInfinite (resolution))
+            throw new IllegalArgumentException ("Invalid resolution: " + resolution);
+        this.encoding = encoding;
+        this.resolution = resolution;
+        this.fill_val = fill_val;
+
+        // use a whole number scale where possible so that decoding is a
+        // single, correctly rounded division (e.g. 1234567 / 100.0 is the
+        // nearest double to 12345.67)
+        if (Math.abs ((1.0 / resolution) - Math.rint (1.0 / resolution)) < ROUNDING_TOLERANCE)
+            scale = Math.rint (1.0 / resolution);
+        else
+            scale = 1.0 / resolution;
+
+        switch (encoding)
+        {
+            case FLOAT32:
+                float_values = new float [length];
+                int_values = null;
+                break;
+            default:
+                float_values = null;
+                int_values = new int [length];
+                break;
+        }
+    }
+
+    /** get the way that samples are encoded
+     * @return the encoding */
+    public Encoding getEncoding () { return encoding; }
+    /** get the resolution of the data
+     * @return the resolution */
+    public double getResolution () { return resolution; }
+    /** get the number of samples in the store
+     * @return the number of samples */
+    @Override
+    public int getLength () { return encoding == Encoding.FLOAT32 ? float_values.length : int_values.length; }
+    /** get the amount of memory used by the encoded samples
+     * @return the size in bytes */
+    @Override
+    public long getMemorySize () { return (long) getLength() * 4l; }
+
+    /** store samples
+     * @param src the samples to store
+     * @param src_pos the index in src of the first sample
+     * @param dst_pos the index in the store to put the first sample
+     * @param len the number of samples
+     * @throws IMCDFException if a sample can't be held at the resolution of the store */
+    public void encode (double src [], int src_pos, int dst_pos, int len)
+    throws IMCDFException
+    {
+        int count;
+        double value, steps;
+
+        if (src_pos < 0 || dst_pos < 0 || len < 0 || src_pos + len > src.length || dst_pos + len > getLength())
+            throw new IndexOutOfBoundsException ("Compact data range out of bounds: " + dst_pos + ", " + len);
+        for (count=0; count<len; count++)
+        {
+            value = src [src_pos + count];
+            if (value == fill_val || (Double.isNaN (value) && Double.isNaN (fill_val)))
+            {
+                if (int_values == null) float_values [dst_pos + count] = FLOAT_FILL;
+                else int_values [dst_pos + count] = INT_FILL;
+            }
+            else if (value == ImagCDF.MISSING_DATA_VALUE)
+            {
+                if (int_values == null) float_values [dst_pos + count] = FLOAT_MISSING;
+                else int_values [dst_pos + count] = INT_MISSING;
+            }
+            else
+            {
+                steps = Math.rint (value * scale);
+                if (Double.isNaN (value) || Double.isInfinite (value) || Math.abs ((value * scale) - steps) > ROUNDING_TOLERANCE)
+                    throw new IMCDFException ("Data sample " + (src_pos + count) + " (" + value + ") is not a multiple of the resolution " + resolution);
+                if (int_values == null)
+                {
+                    float_values [dst_pos + count] = (float) value;
+                    if (Math.rint (float_values [dst_pos + count] * scale) != steps)
+                        throw new IMCDFException ("Data sample " + (src_pos + count) + " (" + value + ") is too large to hold as a float at the resolution " + resolution);
+                }
+                else
+                {
+                    if (steps <= INT_MISSING || steps > Integer.MAX_VALUE)
+                        throw new IMCDFException ("Data sample " + (src_pos + count) + " (" + value + ") is too large to hold as an integer at the resolution " + resolution);
+                    int_values [dst_pos + count] = (int) steps;
+                }
+            }
+        }
+    }
+
+    /** get a sample
+     * @param index the index of the sample
+     * @return the sample, rounded to the resolution of the store */
+    @Override
+    public double get (int index)
+    {
+        float float_value;
+        int int_value;
+
+        if (int_values == null)
+        {
+            float_value = float_values [index];
+            if (Float.isNaN (float_value)) return fill_val;
+            if (float_value == FLOAT_MISSING) return ImagCDF.MISSING_DATA_VALUE;
+            return Math.rint (float_value * scale) / scale;
+        }
+        int_value = int_values [index];
+        if (int_value == INT_FILL) return fill_val;
+        if (int_value == INT_MISSING) return ImagCDF.MISSING_DATA_VALUE;
+        return int_value / scale;
+    }
+
+    /** get samples
+     * @param from the index of the first sample
+     * @param dst the array to copy the samples into
+     * @param dst_pos the index in dst to copy the first sample to
+     * @param len the number of samples */
+    @Override
+    public void decode (int from, double dst [], int dst_pos, int len)
+    {
+        int count;
+
+        if (from < 0 || dst_pos < 0 || len < 0 || from + len > getLength() || dst_pos + len > dst.length)
+            throw new IndexOutOfBoundsException ("Compact data range out of bounds: " + from + ", " + len);
+        for (count=0; count<len; count++)
+            dst [dst_pos + count] = get (from + count);
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+/**
+ * A compressed in-memory store for the data in a variable, using the XOR
+ * encoding from Facebook's Gorilla time series database. Each sample is
+ * XORed with the one before it - slowly varying data gives results with
+ * many leading and trailing zero bits, and only the bits in between are
+ * stored. Compression is lossless - the exact bits of each sample are kept.
+ *
+ * The samples are compressed in blocks, each of which starts with an
+ * uncompressed sample. An index to the start of each block allows a sample
+ * to be found by decompressing no more than one block.
+ *
+ * The store is filled by calling append() until it holds the number of
+ * samples given when it was created.
+ *
+ * @author smf
+ */
+public class ImagCDFCompressedData
+implements IMCDFDataStore
+{
+
+    /** the number of samples in each compressed block */
+    public static final int BLOCK_SIZE = 256;
+
+    // private member data
+    private final int length;
+    private final long block_start [];
+    private final ImagCDFBitStream bits;
+    private int n_appended;
+
+    // the state of the encoder
+    private long prev_value;
+    private int prev_leading;
+    private int prev_trailing;
+
+    /** create an empty compressed store
+     * @param length the number of samples that the store will hold */
+    public ImagCDFCompressedData (int length)
+    {
+        this.length = length;
+        this.block_start = new long [(length + BLOCK_SIZE -1) / BLOCK_SIZE];
+        this.bits = new ImagCDFBitStream ();
+        this.n_appended = 0;
+    }
+
+    /** get the number of samples in the store
+     * @return the number of samples */
+    @Override
+    public int getLength () { return length; }
+
+    /** get the amount of memory used by the compressed samples and the block index
+     * @return the size in bytes */
+    public long getCompressedSize () { return bits.getSizeBytes() + ((long) block_start.length * 8l); }
+    /** get the amount of memory used by the store
+     * @return the size in bytes */
+    @Override
+    public long getMemorySize () { return getCompressedSize(); }
+
+    /** add samples to the end of the store
+     * @param src the samples to add
+     * @param src_pos the index in src of the first sample
+     * @param len the number of samples */
+    public void append (double src [], int src_pos, int len)
+    {
+        int count, leading, trailing, meaningful;
+        long value, xor;
+
+        if (src_pos < 0 || len < 0 || src_pos + len > src.length || n_appended + len > length)
+            throw new IndexOutOfBoundsException ("Compressed data range out of bounds: " + n_appended + ", " + len);
+        for (count=0; count<len; count++)
+        {
+            value = Double.doubleToRawLongBits (src [src_pos + count]);
+            if (n_appended % BLOCK_SIZE == 0)
+            {
+                // start a new block with the uncompressed sample
+                block_start [n_appended / BLOCK_SIZE] = bits.getNBits();
+                bits.write (value, 64);
+                prev_leading = -1;
+                prev_trailing = 0;
+            }
+            else
+            {
+                xor = value ^ prev_value;
+                if (xor == 0)
+                    bits.write (0, 1);
+                else
+                {
+                    leading = Math.min (Long.numberOfLeadingZeros (xor), 31);
+                    trailing = Long.numberOfTrailingZeros (xor);
+                    if (prev_leading >= 0 && leading >= prev_leading && trailing >= prev_trailing)
+                    {
+                        // the meaningful bits fit in the previous window
+                        bits.write (2, 2);
+                        bits.write (xor >>> prev_trailing, 64 - prev_leading - prev_trailing);
+                    }
+                    else
+                    {
+                        meaningful = 64 - leading - trailing;
+                        bits.write (3, 2);
+                        bits.write (leading, 5);
+                        bits.write (meaningful -1, 6);
+                        bits.write (xor >>> trailing, meaningful);
+                        prev_leading = leading;
+                        prev_trailing = trailing;
+                    }
+                }
+            }
+            prev_value = value;
+            n_appended ++;
+        }
+        if (n_appended == length) bits.trim ();
+    }
+
+    /** get a single sample
+     * @param index the index of the sample
+     * @return the sample */
+    @Override
+    public double get (int index)
+    {
+        double value [] = new double [1];
+        decode (index, value, 0, 1);
+        return value [0];
+    }
+
+    /** copy samples into an array, decompressing one block at a time
+     * @param from the index of the first sample
+     * @param dst the array to copy the samples into
+     * @param dst_pos the index in dst to copy the first sample to
+     * @param len the number of samples */
+    @Override
+    public void decode (int from, double dst [], int dst_pos, int len)
+    {
+        int block, skip, n;
+
+        if (from < 0 || dst_pos < 0 || len < 0 || from + len > n_appended || dst_pos + len > dst.length)
+            throw new IndexOutOfBoundsException ("Compressed data range out of bounds: " + from + ", " + len);
+        while (len > 0)
+        {
+            block = from / BLOCK_SIZE;
+            skip = from - (block * BLOCK_SIZE);
+            n = Math.min (len, BLOCK_SIZE - skip);
+            decodeBlock (block, skip, dst, dst_pos, n);
+            from += n;
+            dst_pos += n;
+            len -= n;
+        }
+    }
+
+    /** decompress part of a block
+     * @param block the block number
+     * @param skip the number of samples at the start of the block to skip
+     * @param dst the array to copy the samples into
+     * @param dst_pos the index in dst to copy the first sample to
+     * @param n the number of samples to copy */
+    private void decodeBlock (int block, int skip, double dst [], int dst_pos, int n)
+    {
+        int count, leading, trailing, meaningful;
+        long position, value;
+
+        position = block_start [block];
+        value = bits.read (position, 64);
+        position += 64;
+        leading = 0;
+        trailing = 0;
+        for (count=0; count<skip + n; count++)
+        {
+            if (count > 0)
+            {
+                if (bits.read (position, 1) != 0)
+                {
+                    if (bits.read (position +1, 1) != 0)
+                    {
+                        leading = (int) bits.read (position +2, 5);
+                        meaningful = (int) bits.read (position +7, 6) +1;
+                        trailing = 64 - leading - meaningful;
+                        position += 13;
+                    }
+                    else
+                    {
+                        meaningful = 64 - leading - trailing;
+                        position += 2;
+                    }
+                    value ^= bits.read (position, meaningful) << trailing;
+                    position += meaningful;
+                }
+                else
+                    position ++;
+            }
+            if (count >= skip)
+                dst [dst_pos + count - skip] = Double.longBitsToDouble (value);
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+/**
+ * A compressed in-memory store for TT2000 time stamps, using the
+ * delta-of-delta encoding from Facebook's Gorilla time series database.
+ * The difference between each step and the step before it is stored
+ * using a variable number of bits - for regularly spaced time stamps this
+ * is zero, which is stored as a single bit. Compression is lossless.
+ *
+ * The time stamps are compressed in blocks, each of which starts with an
+ * uncompressed time stamp and step. An index to the start of each block
+ * allows a time stamp to be found by decompressing no more than one block.
+ *
+ * The store is filled by calling append() until it holds the number of
+ * time stamps given when it was created.
+ *
+ * @author smf
+ */
+public class ImagCDFCompressedTimeStamps
+{
+
+    /** the number of time stamps in each compressed block */
+    public static final int BLOCK_SIZE = 256;
+
+    // private member data
+    private final int length;
+    private final long block_start [];
+    private final ImagCDFBitStream bits;
+    private int n_appended;
+
+    // the state of the encoder
+    private long prev_value;
+    private long prev_delta;
+
+    /** create an empty compressed store
+     * @param length the number of time stamps that the store will hold */
+    public ImagCDFCompressedTimeStamps (int length)
+    {
+        this.length = length;
+        this.block_start = new long [(length + BLOCK_SIZE -1) / BLOCK_SIZE];
+        this.bits = new ImagCDFBitStream ();
+        this.n_appended = 0;
+    }
+
+    /** get the number of time stamps in the store
+     * @return the number of time stamps */
+    public int getLength () { return length; }
+
+    /** get the amount of memory used by the compressed time stamps and the block index
+     * @return the size in bytes */
+    public long getCompressedSize () { return bits.getSizeBytes() + ((long) block_start.length * 8l); }
+
+    /** add time stamps to the end of the store
+     * @param src the time stamps to add
+     * @param src_pos the index in src of the first time stamp
+     * @param len the number of time stamps */
+    public void append (long src [], int src_pos, int len)
+    {
+        int count, offset;
+        long value, delta, dod;
+
+        if (src_pos < 0 || len < 0 || src_pos + len > src.length || n_appended + len > length)
+            throw new IndexOutOfBoundsException ("Compressed time stamp range out of bounds: " + n_appended + ", " + len);
+        for (count=0; count<len; count++)
+        {
+            value = src [src_pos + count];
+            offset = n_appended % BLOCK_SIZE;
+            if (offset == 0)
+            {
+                // start a new block with the uncompressed time stamp
+                block_start [n_appended / BLOCK_SIZE] = bits.getNBits();
+                bits.write (value, 64);
+            }
+            else
+            {
+                // the arithmetic may overflow for unusual values (e.g. missing time
+                // stamps), but the decoder overflows in the same way
+                delta = value - prev_value;
+                if (offset == 1)
+                    bits.write (delta, 64);
+                else
+                {
+                    dod = delta - prev_delta;
+                    if (dod == 0)
+                        bits.write (0, 1);
+                    else if (dod >= -63 && dod <= 64)
+                    {
+                        bits.write (2, 2);
+                        bits.write (dod + 63, 7);
+                    }
+                    else if (dod >= -255 && dod <= 256)
+                    {
+                        bits.write (6, 3);
+                        bits.write (dod + 255, 9);
+                    }
+                    else if (dod >= -2047 && dod <= 2048)
+                    {
+                        bits.write (14, 4);
+                        bits.write (dod + 2047, 12);
+                    }
+                    else
+                    {
+                        bits.write (15, 4);
+                        bits.write (dod, 64);
+                    }
+                }
+                prev_delta = delta;
+            }
+            prev_value = value;
+            n_appended ++;
+        }
+        if (n_appended == length) bits.trim ();
+    }
+
+    /** get a single time stamp
+     * @param index the index of the time stamp
+     * @return the TT2000 time stamp */
+    public long get (int index)
+    {
+        long value [] = new long [1];
+        decode (index, value, 0, 1);
+        return value [0];
+    }
+
+    /** copy time stamps into an array, decompressing one block at a time
+     * @param from the index of the first time stamp
+     * @param dst the array to copy the time stamps into
+     * @param dst_pos the index in dst to copy the first time stamp to
+     * @param len the number of time stamps */
+    public void decode (int from, long dst [], int dst_pos, int len)
+    {
+        int block, skip, n;
+
+        if (from < 0 || dst_pos < 0 || len < 0 || from + len > n_appended || dst_pos + len > dst.length)
+            throw new IndexOutOfBoundsException ("Compressed time stamp range out of bounds: " + from + ", " + len);
+        while (len > 0)
+        {
+            block = from / BLOCK_SIZE;
+            skip = from - (block * BLOCK_SIZE);
+            n = Math.min (len, BLOCK_SIZE - skip);
+            decodeBlock (block, skip, dst, dst_pos, n);
+            from += n;
+            dst_pos += n;
+            len -= n;
+        }
+    }
+
+    /** decompress part of a block
+     * @param block the block number
+     * @param skip the number of time stamps at the start of the block to skip
+     * @param dst the array to copy the time stamps into
+     * @param dst_pos the index in dst to copy the first time stamp to
+     * @param n the number of time stamps to copy */
+    private void decodeBlock (int block, int skip, long dst [], int dst_pos, int n)
+    {
+        int count;
+        long position, value, delta;
+
+        position = block_start [block];
+        value = bits.read (position, 64);
+        position += 64;
+        delta = 0;
+        for (count=0; count<skip + n; count++)
+        {
+            if (count == 1)
+            {
+                delta = bits.read (position, 64);
+                position += 64;
+                value += delta;
+            }
+            else if (count > 1)
+            {
+                if (bits.read (position, 1) == 0)
+                    position ++;
+                else if (bits.read (position +1, 1) == 0)
+                {
+                    delta += bits.read (position +2, 7) - 63;
+                    position += 9;
+                }
+                else if (bits.read (position +2, 1) == 0)
+                {
+                    delta += bits.read (position +3, 9) - 255;
+                    position += 12;
+                }
+                else if (bits.read (position +3, 1) == 0)
+                {
+                    delta += bits.read (position +4, 12) - 2047;
+                    position += 16;
+                }
+                else
+                {
+                    delta += bits.read (position +4, 64);
+                    position += 68;
+                }
+                value += delta;
+            }
+            if (count >= skip)
+                dst [dst_pos + count - skip] = value;
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.Objects;
+
+/**
+ * The compression applied when an ImagCDF file, or a variable in it, is
+ * written. Objects of this class are immutable. The pure Java CDF library
+ * only supports GZIP compression at its own fixed level, which is the zlib
+ * default (DEFAULT_GZIP_LEVEL) - asking it for any other level is an error.
+ * The native CDF library supports all the codecs and GZIP levels 1 to 9. AUTO compression
+ * is resolved separately for each variable when the file is written, by
+ * trial-compressing samples of the variable (see ImagCDFCompressionTuner).
+ *
+ * @author smf
+ */
+public class ImagCDFCompression
+{
+
+    /** the compression algorithms */
+    public enum Codec
+    {
+        /** no compression */
+        NONE,
+        /** run length encoding of zeros (native library only) */
+        RLE,
+        /** Huffman encoding (native library only) */
+        HUFFMAN,
+        /** adaptive Huffman encoding (native library only) */
+        ADAPTIVE_HUFFMAN,
+        /** GZIP, with a level from 1 (fastest) to 9 (smallest) */
+        GZIP,
+        /** choose the compression for each variable when it is written */
+        AUTO
+    }
+
+    /** what AUTO compression tries to achieve */
+    public enum Objective
+    {
+        /** the smallest file, whatever the time taken */
+        SMALLEST_FILE,
+        /** the shortest time to compress and write the data */
+        FASTEST_WRITE,
+        /** the fastest compression that gives a file close to the smallest size */
+        BALANCED
+    }
+
+    /** no compression */
+    public static final ImagCDFCompression NONE = new ImagCDFCompression (Codec.NONE, 0, null);
+    /** the GZIP level used when a file is written with compression switched on */
+    public static final int DEFAULT_GZIP_LEVEL = 6;
+    /** the compression used when a file is written with compression switched on */
+    public static final ImagCDFCompression DEFAULT = new ImagCDFCompression (Codec.GZIP, DEFAULT_GZIP_LEVEL, null);
+
+    // private member data
+    private final Codec codec;
+    private final int level;
+    private final Objective objective;
+
+    private ImagCDFCompression (Codec codec, int level, Objective objective)
+    {
+        this.codec = codec;
+        this.level = level;
+        this.objective = objective;
+    }
+
+    /** get the compression that corresponds to the on/off flag used by the original write methods
+     * @param compress true for the default compression, false for none
+     * @return the compression */
+    public static ImagCDFCompression fromFlag (boolean compress)
+    {
+        return compress ? DEFAULT : NONE;
+    }
+
+    /** get GZIP compression at a given level
+     * @param level the level, from 1 (fastest) to 9 (smallest)
+     * @return the compression
+     * @throws IllegalArgumentException if the level is out of range */
+    public static ImagCDFCompression gzip (int level)
+    {
+        if (level < 1 || level > 9) throw new IllegalArgumentException ("GZIP level must be between 1 and 9: " + level);
+        return new ImagCDFCompression (Codec.GZIP, level, null);
+    }
+
+    /** get compression that uses a codec without a level - GZIP uses the
+     * default level and AUTO uses the BALANCED objective
+     * @param codec the codec
+     * @return the compression */
+    public static ImagCDFCompression of (Codec codec)
+    {
+        switch (Objects.requireNonNull (codec, "codec"))
+        {
+            case NONE: return NONE;
+            case GZIP: return DEFAULT;
+            case AUTO: return auto (Objective.BALANCED);
+        }
+        return new ImagCDFCompression (codec, 0, null);
+    }
+
+    /** get compression that is chosen for each variable when it is written
+     * @param objective what the choice should try to achieve
+     * @return the compression */
+    public static ImagCDFCompression auto (Objective objective)
+    {
+        return new ImagCDFCompression (Codec.AUTO, 0, Objects.requireNonNull (objective, "objective"));
+    }
+
+    public Codec getCodec () { return codec; }
+    /** get the GZIP level
+     * @return the level, or 0 for codecs other than GZIP */
+    public int getLevel () { return level; }
+    /** get the objective for AUTO compression
+     * @return the objective, or null for codecs other than AUTO */
+    public Objective getObjective () { return objective; }
+    public boolean isAuto () { return codec == Codec.AUTO; }
+    public boolean isCompressed () { return codec != Codec.NONE; }
+
+    /** find out whether the pure Java CDF library can write this compression -
+     * it can't choose the GZIP level, so GZIP is only supported at DEFAULT_GZIP_LEVEL
+     * @return true if it can */
+    public boolean isPureJavaSupported ()
+    {
+        if (codec == Codec.GZIP) return level == DEFAULT_GZIP_LEVEL;
+        return codec == Codec.NONE || codec == Codec.AUTO;
+    }
+
+    @Override
+    public boolean equals (Object o)
+    {
+        ImagCDFCompression other;
+
+        if (! (o instanceof ImagCDFCompression)) return false;
+        other = (ImagCDFCompression) o;
+        return codec == other.codec && level == other.level && objective == other.objective;
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return Objects.hash (codec, level, objective);
+    }
+
+    @Override
+    public String toString ()
+    {
+        switch (codec)
+        {
+            case GZIP: return "GZIP level " + level;
+            case AUTO: return "AUTO (" + objective + ")";
+        }
+        return codec.toString ();
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Chooses the compression for a variable when AUTO compression is used.
+ * Blocks of samples are taken from across the variable and compressed with
+ * each candidate codec, measuring the compressed size and the time taken.
+ * The candidates are no compression and GZIP (levels 1 to 9 for the native
+ * library, the library's own level for the pure Java library). The trials
+ * use java.util.zip, which implements the same deflate algorithm as the CDF
+ * libraries. RLE and Huffman are not tried - there is no Java implementation
+ * to time, and they rarely beat GZIP on floating point data.
+ *
+ * THE IMCDF ROUTINES SHOULD NOT HAVE DEPENDENCIES ON OTHER LIBRARY ROUTINES -
+ * IT MUST BE POSSIBLE TO DISTRIBUTE THE IMCDF SOURCE CODE
+ *
+ * @author smf
+ */
+public class ImagCDFCompressionTuner
+{
+
+    /** the number of blocks of samples taken from each variable */
+    public static final int SAMPLE_BLOCKS = 8;
+    /** the number of samples in each block */
+    public static final int SAMPLE_BLOCK_SIZE = 4096;
+    /** the speed at which compressed data is assumed to be written to storage,
+     * used to trade compression time against size for FASTEST_WRITE */
+    public static final double ASSUMED_WRITE_BYTES_PER_SECOND = 100.0e6;
+    /** for BALANCED, how much bigger than the smallest result (as a fraction)
+     * the chosen compression may be */
+    public static final double BALANCED_SIZE_TOLERANCE = 0.1;
+
+    /** the result of trial-compressing a sample with one candidate */
+    public static class Trial
+    {
+        private final ImagCDFCompression compression;
+        private final double ratio;
+        private final double nanos_per_byte;
+        /** create the result of a trial
+         * @param compression the compression that was tried
+         * @param ratio the compressed size as a fraction of the uncompressed size
+         * @param nanos_per_byte the time taken, in nanoseconds per uncompressed byte */
+        public Trial (ImagCDFCompression compression, double ratio, double nanos_per_byte)
+        {
+            this.compression = compression;
+            this.ratio = ratio;
+            this.nanos_per_byte = nanos_per_byte;
+        }
+        /** @return the compression that was tried */
+        public ImagCDFCompression getCompression () { return compression; }
+        /** @return the compressed size as a fraction of the uncompressed size */
+        public double getRatio () { return ratio; }
+        /** @return the time taken to compress the sample, in nanoseconds per uncompressed byte */
+        public double getNanosPerByte () { return nanos_per_byte; }
+    }
+
+    /** choose the compression for a data variable
+     * @param var the variable
+     * @param objective what the choice should achieve
+     * @param pure_java true if the file is written with the pure Java CDF library
+     * @return the chosen compression (never AUTO)
+     * @throws IMCDFException if there is an error reading the samples */
+    public static ImagCDFCompression choose (ImagCDFVariable var, ImagCDFCompression.Objective objective, boolean pure_java)
+    throws IMCDFException
+    {
+        int count, n_samples, from [], n;
+        double block [];
+        ByteBuffer sample;
+
+        from = sampleBlocks (var.getDataLength());
+        n_samples = 0;
+        for (count=0; count<from.length; count++)
+            n_samples += Math.min (SAMPLE_BLOCK_SIZE, var.getDataLength() - from [count]);
+        sample = ByteBuffer.allocate (n_samples * 8).order (ByteOrder.LITTLE_ENDIAN);
+        block = new double [SAMPLE_BLOCK_SIZE];
+        for (count=0; count<from.length; count++)
+        {
+            n = Math.min (SAMPLE_BLOCK_SIZE, var.getDataLength() - from [count]);
+            var.copyInto (block, 0, from [count], n);
+            sample.asDoubleBuffer().put (block, 0, n);
+            sample.position (sample.position() + (n * 8));
+        }
+        return choose (trial (sample.array(), pure_java), objective);
+    }
+
+    /** choose the compression for a time stamp variable
+     * @param ts the time stamps
+     * @param objective what the choice should achieve
+     * @param pure_java true if the file is written with the pure Java CDF library
+     * @return the chosen compression (never AUTO)
+     * @throws IMCDFException if there is an error reading the samples */
+    public static ImagCDFCompression choose (ImagCDFVariableTS ts, ImagCDFCompression.Objective objective, boolean pure_java)
+    throws IMCDFException
+    {
+        int count, n_samples, from [], n;
+        long block [];
+        ByteBuffer sample;
+
+        from = sampleBlocks (ts.getNSamples());
+        n_samples = 0;
+        for (count=0; count<from.length; count++)
+            n_samples += Math.min (SAMPLE_BLOCK_SIZE, ts.getNSamples() - from [count]);
+        sample = ByteBuffer.allocate (n_samples * 8).order (ByteOrder.LITTLE_ENDIAN);
+        block = new long [SAMPLE_BLOCK_SIZE];
+        for (count=0; count<from.length; count++)
+        {
+            n = Math.min (SAMPLE_BLOCK_SIZE, ts.getNSamples() - from [count]);
+            ts.copyTT2000 (block, from [count], n);
+            sample.asLongBuffer().put (block, 0, n);
+            sample.position (sample.position() + (n * 8));
+        }
+        return choose (trial (sample.array(), pure_java), objective);
+    }
+
+    /** compress a sample with each candidate
+     * @param sample the uncompressed bytes
+     * @param pure_java true if the file is written with the pure Java CDF library
+     * @return the results, one for each candidate, starting with no compression */
+    public static List<Trial> trial (byte sample [], boolean pure_java)
+    {
+        int level;
+        List<Trial> trials;
+
+        trials = new ArrayList<> ();
+        trials.add (new Trial (ImagCDFCompression.NONE, 1.0, 0.0));
+        if (sample.length <= 0) return trials;
+        if (pure_java)
+            trials.add (trialGZip (sample, ImagCDFCompression.DEFAULT));
+        else
+        {
+            for (level=1; level<=9; level++)
+                trials.add (trialGZip (sample, ImagCDFCompression.gzip (level)));
+        }
+        return trials;
+    }
+
+    /** choose between the results of a set of trials
+     * @param trials the results
+     * @param objective what the choice should achieve
+     * @return the chosen compression */
+    public static ImagCDFCompression choose (List<Trial> trials, ImagCDFCompression.Objective objective)
+    {
+        double smallest;
+        Trial best;
+
+        best = null;
+        switch (objective)
+        {
+            case SMALLEST_FILE:
+                for (Trial trial : trials)
+                {
+                    if (best == null || trial.getRatio() < best.getRatio() ||
+                        (trial.getRatio() == best.getRatio() && trial.getNanosPerByte() < best.getNanosPerByte()))
+                        best = trial;
+                }
+                break;
+            case FASTEST_WRITE:
+                for (Trial trial : trials)
+                {
+                    if (best == null || writeCost (trial) < writeCost (best)) best = trial;
+                }
+                break;
+            case BALANCED:
+                smallest = Double.MAX_VALUE;
+                for (Trial trial : trials) smallest = Math.min (smallest, trial.getRatio());
+                for (Trial trial : trials)
+                {
+                    if (trial.getRatio() <= smallest * (1.0 + BALANCED_SIZE_TOLERANCE) &&
+                        (best == null || trial.getNanosPerByte() < best.getNanosPerByte()))
+                        best = trial;
+                }
+                break;
+        }
+        return best == null ? ImagCDFCompression.NONE : best.getCompression();
+    }
+
+    /** the estimated time to compress and write one byte of data */
+    private static double writeCost (Trial trial)
+    {
+        return trial.getNanosPerByte() + ((trial.getRatio() * 1.0e9) / ASSUMED_WRITE_BYTES_PER_SECOND);
+    }
+
+    /** work out where to take the sample blocks from, spread evenly across the variable */
+    private static int [] sampleBlocks (int length)
+    {
+        int count, n_blocks, blocks [];
+
+        n_blocks = Math.min (SAMPLE_BLOCKS, (length + SAMPLE_BLOCK_SIZE - 1) / SAMPLE_BLOCK_SIZE);
+        blocks = new int [n_blocks];
+        for (count=0; count<n_blocks; count++)
+        {
+            if (n_blocks <= 1) blocks [count] = 0;
+            else blocks [count] = (int) (((long) (length - SAMPLE_BLOCK_SIZE) * count) / (n_blocks - 1));
+        }
+        return blocks;
+    }
+
+    /** compress a sample with GZIP, timing the better of two runs to reduce the effect of warm-up */
+    private static Trial trialGZip (byte sample [], ImagCDFCompression compression)
+    {
+        int run, size;
+        long start, nanos;
+        byte buffer [];
+        Deflater deflater;
+
+        buffer = new byte [sample.length + 1024];
+        deflater = new Deflater (compression.getLevel());
+        try
+        {
+            size = 0;
+            nanos = Long.MAX_VALUE;
+            for (run=0; run<2; run++)
+            {
+                deflater.reset ();
+                start = System.nanoTime ();
+                deflater.setInput (sample);
+                deflater.finish ();
+                size = 0;
+                while (! deflater.finished ())
+                    size += deflater.deflate (buffer);
+                nanos = Math.min (nanos, System.nanoTime () - start);
+            }
+        }
+        finally
+        {
+            deflater.end ();
+        }
+        return new Trial (compression, (double) size / (double) sample.length, (double) nanos / (double) sample.length);
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks the values in an ImagCDF object, as opposed to its metadata:
+ * each data sample must be missing (see ImagCDFMissingDataMap) or lie between
+ * the variable's VALIDMIN and VALIDMAX, and each set of time stamps must be
+ * strictly increasing. The variables are divided into chunks, which are
+ * checked in parallel using the common fork-join pool. Errors are reported
+ * for the first few offending samples in each variable, followed by a count
+ * of the rest.
+ *
+ * @author smf
+ */
+public class ImagCDFDataValidator
+{
+
+    /** the default number of offending samples reported for each variable */
+    public static final int DEFAULT_MAX_ERRORS_PER_VARIABLE = 10;
+    /** the number of samples in each chunk */
+    public static final int CHUNK_SIZE = 65536;
+
+    /** check the values in a set of variables
+     * @param elements the geomagnetic data, may be null
+     * @param temperatures the temperature data, may be null
+     * @param time_stamps the time stamps, may be null
+     * @param max_errors_per_variable the number of offending samples to report for each variable
+     * @param accumulated_errors a list of error messages to add to */
+    public static void validate (ImagCDFVariable elements [], ImagCDFVariable temperatures [],
+                                 ImagCDFVariableTS time_stamps [], int max_errors_per_variable,
+                                 List<String> accumulated_errors)
+    {
+        int count, n_errors;
+        ChunkResult result;
+        List<ImagCDFVariable> data_vars;
+        List<List<ChunkTask>> var_tasks;
+        List<ChunkTask> tasks;
+
+        // start a task for each chunk of each variable
+        data_vars = new ArrayList<> ();
+        if (elements != null) for (ImagCDFVariable var : elements) if (var != null) data_vars.add (var);
+        if (temperatures != null) for (ImagCDFVariable var : temperatures) if (var != null) data_vars.add (var);
+        var_tasks = new ArrayList<> ();
+        for (ImagCDFVariable var : data_vars)
+        {
+            tasks = new ArrayList<> ();
+            for (count=0; count<var.getDataLength(); count+=CHUNK_SIZE)
+                tasks.add (new DataChunkTask (var, count, Math.min (CHUNK_SIZE, var.getDataLength() - count), max_errors_per_variable));
+            var_tasks.add (tasks);
+        }
+        if (time_stamps != null)
+        {
+            for (ImagCDFVariableTS ts : time_stamps)
+            {
+                tasks = new ArrayList<> ();
+                if (ts != null && ! ts.isRegular())
+                {
+                    for (count=0; count<ts.getNSamples(); count+=CHUNK_SIZE)
+                        tasks.add (new TimeStampChunkTask (ts, count, Math.min (CHUNK_SIZE, ts.getNSamples() - count), max_errors_per_variable));
+                }
+                var_tasks.add (tasks);
+            }
+        }
+        for (List<ChunkTask> list : var_tasks)
+        {
+            for (ChunkTask task : list) task.fork ();
+        }
+
+        // collect the results in order, so the messages are always the same
+        for (List<ChunkTask> list : var_tasks)
+        {
+            n_errors = 0;
+            for (ChunkTask task : list)
+            {
+                result = task.join ();
+                for (String message : result.messages)
+                {
+                    if (n_errors < max_errors_per_variable) accumulated_errors.add (message);
+                    n_errors ++;
+                }
+                n_errors += result.n_unreported;
+            }
+            if (n_errors > max_errors_per_variable && ! list.isEmpty())
+                accumulated_errors.add (list.get(0).getVariableDescription() + ": " + (n_errors - max_errors_per_variable) + " more invalid values not reported");
+        }
+    }
+
+    /** the errors found in a chunk */
+    private static class ChunkResult
+    {
+        private final List<String> messages = new ArrayList<> ();
+        private int n_unreported = 0;
+        private void add (String message, int max_errors)
+        {
+            if (messages.size() < max_errors) messages.add (message);
+            else n_unreported ++;
+        }
+    }
+
+    /** a task that checks a chunk of a variable */
+    private static abstract class ChunkTask extends RecursiveTask<ChunkResult>
+    {
+        private static final long serialVersionUID = 1L;
+        protected final int from;
+        protected final int len;
+        protected final int max_errors;
+        protected ChunkTask (int from, int len, int max_errors)
+        {
+            this.from = from;
+            this.len = len;
+            this.max_errors = max_errors;
+        }
+        /** get a description of the variable, for error messages */
+        protected abstract String getVariableDescription ();
+    }
+
+    /** check that samples are missing or between VALIDMIN and VALIDMAX */
+    private static class DataChunkTask extends ChunkTask
+    {
+        private static final long serialVersionUID = 1L;
+        private final ImagCDFVariable var;
+        private DataChunkTask (ImagCDFVariable var, int from, int len, int max_errors)
+        {
+            super (from, len, max_errors);
+            this.var = var;
+        }
+        @Override
+        protected String getVariableDescription ()
+        {
+            return "Data array '" + var.getFieldName() + "'";
+        }
+        @Override
+        protected ChunkResult compute ()
+        {
+            final ChunkResult result = new ChunkResult ();
+            final double fill_val = var.getFillValue() == null ? Double.NaN : var.getFillValue();
+            final double valid_min = var.getValidMinimum() == null ? Double.NEGATIVE_INFINITY : var.getValidMinimum();
+            final double valid_max = var.getValidMaximum() == null ? Double.POSITIVE_INFINITY : var.getValidMaximum();
+            final int position [] = new int [] {from};
+            try
+            {
+                var.forRange (from, len, (data, offset, length) ->
+                {
+                    int count;
+                    double value;
+                    for (count=offset; count<offset + length; count++)
+                    {
+                        value = data [count];
+                        if (! (value != value || value == ImagCDF.MISSING_DATA_VALUE || value == fill_val) &&
+                            (value < valid_min || value > valid_max))
+                            result.add (getVariableDescription() + " sample " + (position [0] + count - offset) + " (" + value + ") is outside the valid range " +
+                                        var.getValidMinimum() + " to " + var.getValidMaximum() + " and is not the fill value", max_errors);
+                    }
+                    position [0] += length;
+                });
+            }
+            catch (IMCDFException e)
+            {
+                result.messages.add (getVariableDescription() + ": error reading data: " + e.getMessage());
+            }
+            return result;
+        }
+    }
+
+    /** check that time stamps are strictly increasing - each chunk also checks
+     * its first time stamp against the last time stamp of the chunk before */
+    private static class TimeStampChunkTask extends ChunkTask
+    {
+        private static final long serialVersionUID = 1L;
+        private final ImagCDFVariableTS ts;
+        private TimeStampChunkTask (ImagCDFVariableTS ts, int from, int len, int max_errors)
+        {
+            super (from, len, max_errors);
+            this.ts = ts;
+        }
+        @Override
+        protected String getVariableDescription ()
+        {
+            return "Time stamp variable '" + ts.getVarName() + "'";
+        }
+        @Override
+        protected ChunkResult compute ()
+        {
+            int count, start;
+            long tt2000 [];
+            ChunkResult result;
+
+            result = new ChunkResult ();
+            start = from > 0 ? from -1 : from;
+            tt2000 = new long [len + (from - start)];
+            try
+            {
+                ts.copyTT2000 (tt2000, start, tt2000.length);
+                for (count=1; count<tt2000.length; count++)
+                {
+                    if (tt2000 [count] <= tt2000 [count -1])
+                        result.add (getVariableDescription() + " is not strictly increasing at index " + (start + count), max_errors);
+                }
+            }
+            catch (IMCDFException e)
+            {
+                result.messages.add (getVariableDescription() + ": error reading time stamps: " + e.getMessage());
+            }
+            return result;
+        }
+    }
+
+}
@@ -7,10 +7,13 @@ package bgs.geophys.library.Data.ImagCDF;
 
 import bgs.geophys.library.Data.ImagCDF.Impl_JNI.ImagCDFInfo_JNI;
 import bgs.geophys.library.Data.ImagCDF.Impl_JNI.ImagCDFLowLevel_JNI;
+import bgs.geophys.library.Data.ImagCDF.Impl_JNI.ImagCDFStreamWriter_JNI;
 import bgs.geophys.library.Data.ImagCDF.Impl_JNI.ImagCDFVariableTS_JNI;
 import bgs.geophys.library.Data.ImagCDF.Impl_JNI.ImagCDFVariable_JNI;
 import bgs.geophys.library.Data.ImagCDF.Impl_JNI.ImagCDF_JNI;
+import bgs.geophys.library.Data.ImagCDF.Impl_Mapped.ImagCDF_Mapped;
 import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDFInfo_PureJava;
+import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDFLowLevelReader_PureJava;
 import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDFVariableTS_PureJava;
 import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDFVariable_PureJava;
 import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDF_PureJava;
@@ -217,6 +220,10 @@ public class ImagCDFFactory {
                                             expected_last_leap_sec.get (GregorianCalendar.DAY_OF_MONTH));
                 init_warnings.add (msg);
             }
+            
+            /* the time converter has its own copy of the leap seconds table, which must not be older than the library's */
+            if (last_leap_sec.getTimeInMillis() > ImagCDFTimeConverter.getLastLeapSecondTableDate().getTime())
+                init_warnings.add ("CDF leap second table has leap seconds that are not in ImagCDFTimeConverter's table");
         }
         
         // set up the CDF information object that will allow users to understand what happened during initialisation
@@ -268,11 +275,225 @@ public class ImagCDFFactory {
     public static ImagCDF readImagCDF (File file, boolean headersOnly)
     throws IMCDFException
     {
+        return readImagCDF (file, headersOnly, false);
+    }
+    
+    /** read an ImagCDF file
+     * @param file the CDF file
+     * @param headersOnly only read the global attributes, not the data or variable attributes
+     * @param lazy read the metadata, but leave the data for each variable to be read from
+     *             the file the first time it is used. The file is kept open, so the
+     *             returned object must be closed when it is no longer needed
+     *             (e.g. with try-with-resources)
+     * @return the contents of the CDF file
+     * @throws IMCDFException if there is an error */
+    public static ImagCDF readImagCDF (File file, boolean headersOnly, boolean lazy)
+    throws IMCDFException
+    {
+        checkInitErrors ();
+        if (cdf_library_info.getLibraryType() == ImagCDFLibraryType.JNI)
+            return new ImagCDF_JNI (file, headersOnly, lazy);
+        else
+            return new ImagCDF_PureJava (file, headersOnly, lazy);
+    }
+    
+    /** read some of the variables from an ImagCDF file - variables that are not
+     * selected (and time stamps that are only used by unselected variables) are
+     * not read from the file
+     * @param file the CDF file
+     * @param element_selection the codes of the geomagnetic elements to read (e.g. "XYZ"),
+     *                          or null to read all elements
+     * @param include_temperatures true to read temperature variables, false to ignore them
+     * @return the contents of the CDF file - getElementsRecorded() gives the elements
+     *         recorded in the file and getElementsSelected() the elements read
+     * @throws IMCDFException if there is an error, including selecting an element that 
+     *         is not in the file */
+    public static ImagCDF readImagCDF (File file, String element_selection, boolean include_temperatures)
+    throws IMCDFException
+    {
+        return readImagCDF (file, new ImagCDFReadOptions (false, element_selection, include_temperatures));
+    }
+    
+    /** read the data in a time range from an ImagCDF file - the time stamps in
+     * the file are searched to find the records in the range and only those
+     * records are read from the file
+     * @param file the CDF file
+     * @param start_date the start of the time range (inclusive) or null to read
+     *                   from the beginning of the file
+     * @param end_date the end of the time range (exclusive) or null to read to
+     *                 the end of the file
+     * @return the contents of the CDF file in the time range
+     * @throws IMCDFException if there is an error */
+    public static ImagCDF readImagCDF (File file, Date start_date, Date end_date)
+    throws IMCDFException
+    {
+        ImagCDFReadOptions options = new ImagCDFReadOptions ();
+        options.setTimeRange (start_date, end_date);
+        return readImagCDF (file, options);
+    }
+    
+    /** read an ImagCDF file
+     * @param file the CDF file
+     * @param options options that control which variables are read and how
+     * @return the contents of the CDF file
+     * @throws IMCDFException if there is an error, including a file that is
+     *         over the memory budget in the options */
+    public static ImagCDF readImagCDF (File file, ImagCDFReadOptions options)
+    throws IMCDFException
+    {
+        ImagCDF imag_cdf;
+        ImagCDFReadOptions read_options;
+        
         checkInitErrors ();
+        read_options = applyMemoryBudget (file, options);
+        if (cdf_library_info.getLibraryType() == ImagCDFLibraryType.JNI)
+            imag_cdf = new ImagCDF_JNI (file, false, read_options);
+        else
+            imag_cdf = new ImagCDF_PureJava (file, false, read_options);
+        
+        // a file that is over budget has been opened in lazy mode - keep to the
+        // budget as its variables are loaded
+        if (read_options != options)
+            imag_cdf.setLazyBudget (new ImagCDFMemoryBudget (options.getMemoryBudget()));
+        return imag_cdf;
+    }
+    
+    /** estimate the memory needed to read an ImagCDF file - compare this with
+     * ImagCDF.getMemoryFootprint() once the file has been read
+     * @param file the CDF file
+     * @param options the options that the file would be read with - if a time
+     *        range is set, the time stamps in the file are searched to find the
+     *        number of records in the range
+     * @return the estimated size in bytes
+     * @throws IMCDFException if there was an initialisation error or an
+     *         error searching the time stamps */
+    public static long estimateReadFootprint (File file, ImagCDFReadOptions options)
+    throws IMCDFException
+    {
+        ImagCDFInfo info;
+        IMCDFRecordReader reader;
+        
+        info = getImagCDFInfo (file);
+        if (! options.isTimeRangeSet()) return info.estimateReadFootprint (options);
         if (cdf_library_info.getLibraryType() == ImagCDFLibraryType.JNI)
-            return new ImagCDF_JNI (file, headersOnly);
+            reader = new ImagCDFLowLevel_JNI (file, ImagCDFLowLevel_JNI.CDFOpenType.CDFOpen, ImagCDFLowLevel_JNI.CDFCompressType.None);
         else
-            return new ImagCDF_PureJava (file, headersOnly);
+            reader = new ImagCDFLowLevelReader_PureJava (file);
+        try
+        {
+            return info.estimateReadFootprint (options, reader);
+        }
+        finally
+        {
+            reader.close ();
+        }
+    }
+    
+    /** check the estimated memory needed to read a file against the memory
+     * budget in a set of read options
+     * @param file the CDF file
+     * @param options the read options
+     * @return the options to read the file with - lazy options if the file is
+     *         over budget and should be streamed, in which case the caller must
+     *         apply the budget to the variables as they are loaded
+     * @throws IMCDFException if the file is over budget and shouldn't be streamed */
+    private static ImagCDFReadOptions applyMemoryBudget (File file, ImagCDFReadOptions options)
+    throws IMCDFException
+    {
+        long estimate;
+        ImagCDFReadOptions lazy_options;
+        
+        if (options.getMemoryBudget() <= 0l || options.isLazy()) return options;
+        estimate = estimateReadFootprint (file, options);
+        if (estimate <= options.getMemoryBudget()) return options;
+        if (! options.isStreamOverBudget())
+            throw new IMCDFException ("Reading " + file.getName() + " needs an estimated " + estimate +
+                                      " bytes, which is more than the memory budget of " + options.getMemoryBudget() + " bytes");
+        lazy_options = new ImagCDFReadOptions (options);
+        lazy_options.setLazy (true);
+        return lazy_options;
+    }
+    
+    /** open a cursor that makes a single pass through the records in an ImagCDF
+     * file, a block at a time - the memory used doesn't depend on the length of the file
+     * @param file the CDF file
+     * @param element_selection the geomagnetic elements to read (e.g. "XYZ") or null
+     *        for all elements - the selected elements must share the same time stamps
+     * @param block_size the maximum number of records in each block
+     * @return the cursor, which must be closed after use
+     * @throws IMCDFException if there is an error */
+    public static ImagCDFRecordCursor openRecordCursor (File file, String element_selection, int block_size)
+    throws IMCDFException
+    {
+        checkInitErrors ();
+        if (cdf_library_info.getLibraryType() == ImagCDFLibraryType.JNI)
+            return ImagCDF_JNI.openRecordCursor (file, element_selection, block_size);
+        else
+            return ImagCDF_PureJava.openRecordCursor (file, element_selection, block_size);
+    }
+    
+    /** create an ImagCDF file that is written a block of records at a time - the
+     * records are written as they are appended, so the memory used doesn't depend
+     * on the length of the file. This needs the native CDF library: the pure Java
+     * library holds the whole file in memory until it is closed, so it can't stream
+     * records and an exception is thrown - use ImagCDF.write() instead
+     * @param file the CDF file to write into
+     * @param header the metadata for the file, created with createImagCDF() -
+     *        any data in the header is ignored
+     * @param compress true to compress the CDF file, FALSE not to compress
+     * @param overwrite_existing true to overwrite any existing file, false to throw exception if file exists
+     * @return the writer, which must be closed to finish the file
+     * @throws IMCDFException if there is an error, including faulty metadata and
+     *         a header created for the pure Java library */
+    public static ImagCDFStreamWriter openStreamWriter (File file, ImagCDF header, boolean compress, boolean overwrite_existing)
+    throws IMCDFException
+    {
+        checkInitErrors ();
+        if (header instanceof ImagCDF_JNI)
+            return new ImagCDFStreamWriter_JNI (file, (ImagCDF_JNI) header, compress, overwrite_existing);
+        else if (header instanceof ImagCDF_PureJava)
+            throw new IMCDFException ("The pure Java CDF library can't stream records to a file, as it holds the whole file in memory until it is written - use the native CDF library, or ImagCDF.write()");
+        throw new IMCDFException ("Header must be created with createImagCDF()");
+    }
+    
+    /** open an existing ImagCDF file to add records to the end of its data and
+     * time stamp variables - records are added with the writer's append() methods
+     * and must follow the records already in the file. The existing records are not
+     * rewritten and the file keeps its compression. This needs the native CDF library:
+     * the pure Java library can't add to a file, so an exception is thrown
+     * @param file the CDF file
+     * @param atomic true to write the records to a journal next to the file (see
+     *        ImagCDFAppendJournal), which is added to the file when the writer is
+     *        closed, so readers don't see the records until then - each append costs
+     *        the same whatever the size of the file, but readers that open the file
+     *        while the journal is being added to it may see some of the records.
+     *        False to append to the file in place, so readers may see records (and
+     *        partly written records) as they are appended
+     * @return the writer, which must be closed to finish the file
+     * @throws IMCDFException if there is an error, including use of the pure Java library */
+    public static ImagCDFStreamWriter openAppendWriter (File file, boolean atomic)
+    throws IMCDFException
+    {
+        checkInitErrors ();
+        if (cdf_library_info.getLibraryType() != ImagCDFLibraryType.JNI)
+            throw new IMCDFException ("The pure Java CDF library can't append records to an existing file - use the native CDF library");
+        return new ImagCDFStreamWriter_JNI (file, atomic);
+    }
+    
+    /** read an uncompressed ImagCDF file by mapping it into memory - the data
+     * is not copied onto the heap, but is available as buffers that are views of
+     * the file (see ImagCDFVariable_Mapped and ImagCDFVariableTS_Mapped). This
+     * doesn't use either CDF library to read the file, so works whichever library
+     * has been selected. The file is kept open, so the returned object must be
+     * closed when it is no longer needed
+     * @param file the CDF file
+     * @param options options that control which variables are read
+     * @return the contents of the CDF file
+     * @throws IMCDFException if there is an error, including a compressed file */
+    public static ImagCDF_Mapped readImagCDFMapped (File file, ImagCDFReadOptions options)
+    throws IMCDFException
+    {
+        return new ImagCDF_Mapped (file, false, options);
     }
     
     /** create an ImagCDF object from data and metadata (prior to writing to a file)
@@ -326,6 +547,55 @@ public class ImagCDFFactory {
                                          elements, temperatures, time_stamps);
     }
     
+    /** create an ImagCDF object from data and metadata (prior to writing to a file), optionally
+     * checking the data values as well as the metadata
+     * @param iaga_code IAGA code of the observatory
+     * @param pub_level the amount of editing done on the data
+     * @param pub_date the date the data was published
+     * @param observatory_name Full name of the observatory
+     * @param latitude Geographic latitude of the observing position
+     * @param longitude Geographic longitude of the observing position
+     * @param elevation Height of the observing position above sea level
+     * @param institution name of the institution
+     * @param vector_sens_orient the orientation of the vector sensor (which may differ 
+     *                           from that of the elements reported in the data)
+     * @param standard_level describes whether the data conforms to a standard
+     * @param standard_name name for the standard
+     * @param standard_version version of the standard
+     * @param partial_stand_desc description of the parts of the standard that are applicable to this data
+     * @param source set to one of "institute", "intermagnet" or "wdc"
+     * @param unique_identifier an identifier such as a DOI
+     * @param parent_identifiers the unique identifiers of any parent data sets
+     * @param reference_links URLs of relevance, e.g. www.intermagnet.org
+     * @param elements the geomagnetic data - depend_0 values must be set to the correct time stamp name
+     * @param temperatures the temperature data (may be null) - depend_0 values must be set to the correct time stamp name
+     * @param time_stamps the time stamps for the elements and temperature - there must be at least
+     *                    one entry for every unique "depend_0" entry in the elements and temperatures
+     * @param validate_data true to check the data values (see ImagCDFDataValidator)
+     * @return the CDF data ready for writing
+     * @throws IMCDFException if the vector data elements don't have the same sample period or start date,
+     *         or validate_data is set and the data contains invalid values */
+    public static ImagCDF createImagCDF (String iaga_code, IMCDFPublicationLevel pub_level,
+                                         Date pub_date, String observatory_name, 
+                                         double latitude, double longitude, double elevation, 
+                                         String institution, String vector_sens_orient,
+                                         IMCDFStandardLevel standard_level, IMCDFStandardName standard_name,
+                                         String standard_version, String partial_stand_desc,
+                                         String source, String unique_identifier, String parent_identifiers [],
+                                         URL reference_links [], ImagCDFVariable elements [], 
+                                         ImagCDFVariable temperatures [], ImagCDFVariableTS time_stamps [],
+                                         boolean validate_data)
+    throws IMCDFException
+    {
+        ImagCDF imag_cdf = createImagCDF (iaga_code, pub_level, pub_date, observatory_name, 
+                                          latitude, longitude, elevation, institution, vector_sens_orient,
+                                          standard_level, standard_name, standard_version, partial_stand_desc,
+                                          source, unique_identifier, parent_identifiers, reference_links,
+                                          elements, temperatures, time_stamps);
+        if (validate_data) imag_cdf.validateData (ImagCDFDataValidator.DEFAULT_MAX_ERRORS_PER_VARIABLE);
+        return imag_cdf;
+    }
+    
     /** create an ImagCDFVariable from data and metadata for subsequent writing to a file
      * @param variable_type the type of variable - geomagnetic element or temperature
      * @param field_nam set the "Geomagnetic Field Element " and a number or
@@ -4,6 +4,11 @@
  */
 package bgs.geophys.library.Data.ImagCDF;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * A class, separate from the other Imag CDF classes, that gives information
  * about a CDF file's contents. The class should be overridden with a sub-class
@@ -46,4 +51,95 @@ public class ImagCDFInfo {
     public CDFVariableInfo getCDFVar (int index) { return cdf_var_info[index]; }
     public String getElementsRecorded () { return elements_recorded; }
     
+    /** find information on a variable
+     * @param var_name the name of the variable
+     * @return the information or null if the variable isn't in the file */
+    public CDFVariableInfo findCDFVar (String var_name) {
+        for (CDFVariableInfo var_info : cdf_var_info) {
+            if (var_info.getVarName().equals (var_name)) return var_info;
+        }
+        return null;
+    }
+    
+    /** estimate the memory needed to read the data and time stamps from the file
+     * into memory - the estimate is for the whole of each variable that would
+     * be read, without taking any time range in the options into account
+     * @param options the options that the file would be read with
+     * @return the estimated size in bytes */
+    public long estimateReadFootprint (ImagCDFReadOptions options) {
+        return sumReadFootprint (options, new HashMap<> ());
+    }
+    
+    /** estimate the memory needed to read the data and time stamps from the file
+     * into memory, allowing for any time range in the options
+     * @param options the options that the file would be read with
+     * @param reader the open CDF file, used to find the records in the time range
+     *        in the options, or null to estimate for the whole of each variable
+     * @return the estimated size in bytes
+     * @throws IMCDFException if there is an error searching the time stamps */
+    public long estimateReadFootprint (ImagCDFReadOptions options, IMCDFRecordReader reader)
+    throws IMCDFException {
+        // when reading a time range, find the number of records in the range
+        // for each time stamp variable that would be read
+        Map<String, Integer> ts_lengths = new HashMap<> ();
+        if (reader != null && options.isTimeRangeSet()) {
+            long start_tt2000 = Long.MIN_VALUE;
+            long end_tt2000 = Long.MAX_VALUE;
+            if (options.getStartDate() != null) start_tt2000 = ImagCDFTimeConverter.DateToTT2000 (options.getStartDate());
+            if (options.getEndDate() != null) end_tt2000 = ImagCDFTimeConverter.DateToTT2000 (options.getEndDate());
+            for (String var_name : getReadVarNames (options)) {
+                CDFVariableInfo var_info = findCDFVar (var_name);
+                if (var_info == null) continue;
+                String depend_0 = var_info.getDepend0();
+                if (depend_0 != null && findCDFVar (depend_0) != null && ! ts_lengths.containsKey (depend_0))
+                    ts_lengths.put (depend_0, ImagCDFRecordRange.findTimeRange (reader, depend_0, start_tt2000, end_tt2000).getNRecords());
+            }
+        }
+        return sumReadFootprint (options, ts_lengths);
+    }
+    
+    /** add up the size of the data that would be read and of the time stamps it uses
+     * @param options the options that the file would be read with
+     * @param ts_lengths the number of records that would be read from time stamp
+     *        variables in a time range - variables that aren't in the map are read in full
+     * @return the estimated size in bytes */
+    private long sumReadFootprint (ImagCDFReadOptions options, Map<String, Integer> ts_lengths) {
+        long data_sample_size = options.isCompact() ? 4l : 8l;
+        long n_bytes = 0l;
+        List<String> ts_names = new ArrayList<> ();
+        for (String var_name : getReadVarNames (options)) {
+            CDFVariableInfo var_info = findCDFVar (var_name);
+            if (var_info == null) continue;
+            int data_length = Math.max (0, var_info.getDataLength());
+            String depend_0 = var_info.getDepend0();
+            if (depend_0 != null && ts_lengths.containsKey (depend_0))
+                data_length = Math.min (data_length, ts_lengths.get (depend_0));
+            n_bytes += (long) data_length * data_sample_size;
+            if (depend_0 != null && depend_0.length() > 0 && ! ts_names.contains (depend_0)) {
+                ts_names.add (depend_0);
+                CDFVariableInfo ts_info = findCDFVar (depend_0);
+                if (ts_info != null) n_bytes += (long) ts_lengths.getOrDefault (depend_0, Math.max (0, ts_info.getDataLength())) * 8l;
+            }
+        }
+        return n_bytes;
+    }
+    
+    /** work out which data variables would be read
+     * @param options the options that the file would be read with
+     * @return the names of the variables */
+    private List<String> getReadVarNames (ImagCDFReadOptions options) {
+        List<String> var_names = new ArrayList<> ();
+        IMCDFVariableType field_var_type = new IMCDFVariableType (IMCDFVariableType.VariableTypeCode.GeomagneticFieldElement);
+        if (elements_recorded != null) {
+            for (int count=0; count<elements_recorded.length(); count++) {
+                String suffix = elements_recorded.substring (count, count +1);
+                if (options.isElementSelected (suffix)) var_names.add (field_var_type.getCDFFileVariableName (suffix));
+            }
+        }
+        IMCDFVariableType temperature_var_type = new IMCDFVariableType (IMCDFVariableType.VariableTypeCode.Temperature);
+        for (int count=1; options.isIncludeTemperatures() && findCDFVar (temperature_var_type.getCDFFileVariableName (Integer.toString (count))) != null; count++)
+            var_names.add (temperature_var_type.getCDFFileVariableName (Integer.toString (count)));
+        return var_names;
+    }
+    
 }
@@ -0,0 +1,64 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+/**
+ * A memory budget shared by the variables of an ImagCDF object that was read
+ * in lazy mode because it was estimated to need more memory than the budget in
+ * its read options (see ImagCDFReadOptions.setMemoryBudget()). Each variable
+ * reserves the memory for its data from the budget before it loads the data
+ * from the file, so the budget is still enforced once the file is open. Data
+ * that is worked through a range at a time (e.g. with ImagCDFVariable.copyInto()
+ * or ImagCDFVariableTS.copyTT2000()) isn't loaded, so doesn't use the budget.
+ *
+ * THE IMCDF ROUTINES SHOULD NOT HAVE DEPENDENCIES ON OTHER LIBRARY ROUTINES -
+ * IT MUST BE POSSIBLE TO DISTRIBUTE THE IMCDF SOURCE CODE
+ *
+ * @author smf
+ */
+public class ImagCDFMemoryBudget
+{
+
+    // private member data
+    private final long budget;
+    private long used;
+
+    /** create a memory budget
+     * @param budget the budget in bytes */
+    public ImagCDFMemoryBudget (long budget)
+    {
+        this.budget = budget;
+        this.used = 0l;
+    }
+
+    /** get the size of the budget
+     * @return the budget in bytes */
+    public long getBudget () { return budget; }
+    /** get the amount of the budget that has been reserved
+     * @return the amount in bytes */
+    public synchronized long getUsed () { return used; }
+
+    /** reserve memory from the budget
+     * @param n_bytes the amount of memory needed
+     * @param what a description of what the memory is for, used in the error message
+     * @throws IMCDFException if there isn't enough of the budget left */
+    public synchronized void reserve (long n_bytes, String what)
+    throws IMCDFException
+    {
+        if (used + n_bytes > budget)
+            throw new IMCDFException ("Loading " + what + " needs " + n_bytes + " bytes, which would take the memory used to " +
+                                      (used + n_bytes) + " bytes, more than the memory budget of " + budget + " bytes");
+        used += n_bytes;
+    }
+
+    /** return memory to the budget, e.g. when loading data that memory was reserved for fails
+     * @param n_bytes the amount of memory */
+    public synchronized void release (long n_bytes)
+    {
+        used = Math.max (0l, used - n_bytes);
+    }
+
+}
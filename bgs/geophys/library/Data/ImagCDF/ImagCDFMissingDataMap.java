@@ -0,0 +1,140 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A map of the missing samples in a variable, held as one bit per sample.
+ * A sample is missing if it is equal to the variable's fill value or to
+ * ImagCDF.MISSING_DATA_VALUE, or is NaN. The map is built once (see
+ * ImagCDFVariable.getMissingDataMap()), so that code that needs to count,
+ * skip or mask missing samples doesn't have to compare every sample - the
+ * search methods work through the map a word (64 samples) at a time.
+ *
+ * @author smf
+ */
+public class ImagCDFMissingDataMap
+{
+
+    // private member data - a set bit marks a missing sample
+    private final BitSet missing;
+    private final int length;
+    private final int missing_count;
+
+    /** create a map from a set of bits
+     * @param missing the bits, set for each missing sample - the set must
+     *        not be changed after the map has been created
+     * @param length the number of samples */
+    public ImagCDFMissingDataMap (BitSet missing, int length)
+    {
+        this.missing = missing;
+        this.length = length;
+        this.missing_count = missing.cardinality();
+    }
+
+    /** test whether a sample value is missing
+     * @param value the sample
+     * @param fill_val the variable's fill value, may be null
+     * @return true if the sample is missing */
+    public static boolean isMissingValue (double value, Double fill_val)
+    {
+        if (Double.isNaN (value)) return true;
+        if (value == ImagCDF.MISSING_DATA_VALUE) return true;
+        return fill_val != null && value == fill_val;
+    }
+
+    /** get the number of samples covered by the map
+     * @return the number of samples */
+    public int getLength () { return length; }
+    /** get the number of missing samples
+     * @return the number of missing samples */
+    public int getMissingCount () { return missing_count; }
+    /** get the number of samples that aren't missing
+     * @return the number of samples present */
+    public int getPresentCount () { return length - missing_count; }
+
+    /** test whether a sample is missing
+     * @param index the index of the sample
+     * @return true if the sample is missing */
+    public boolean isMissing (int index)
+    {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException ("Sample index out of range: " + index);
+        return missing.get (index);
+    }
+
+    /** find the next missing sample
+     * @param from the index to start searching at (inclusive)
+     * @return the index of the next missing sample or -1 if there are no more */
+    public int nextMissing (int from)
+    {
+        int index;
+
+        if (from < 0) from = 0;
+        if (from >= length) return -1;
+        index = missing.nextSetBit (from);
+        return index < 0 || index >= length ? -1 : index;
+    }
+
+    /** find the next sample that isn't missing
+     * @param from the index to start searching at (inclusive)
+     * @return the index of the next sample present or -1 if there are no more */
+    public int nextPresent (int from)
+    {
+        int index;
+
+        if (from < 0) from = 0;
+        if (from >= length) return -1;
+        index = missing.nextClearBit (from);
+        return index >= length ? -1 : index;
+    }
+
+    /** get the runs of consecutive missing samples
+     * @return the runs, in order */
+    public List<ImagCDFRecordRange> getMissingRuns ()
+    {
+        return getRuns (true);
+    }
+
+    /** get the runs of consecutive samples that aren't missing
+     * @return the runs, in order */
+    public List<ImagCDFRecordRange> getPresentRuns ()
+    {
+        return getRuns (false);
+    }
+
+    /** get a map of part of the samples
+     * @param offset the index of the first sample
+     * @param len the number of samples
+     * @return the new map */
+    public ImagCDFMissingDataMap slice (int offset, int len)
+    {
+        if (offset < 0 || len < 0 || offset + len > length)
+            throw new IndexOutOfBoundsException ("Missing data map slice out of range: " + offset + ", " + len);
+        return new ImagCDFMissingDataMap (missing.get (offset, offset + len), len);
+    }
+
+    private List<ImagCDFRecordRange> getRuns (boolean find_missing)
+    {
+        int start, end;
+        List<ImagCDFRecordRange> runs;
+
+        runs = new ArrayList<> ();
+        start = find_missing ? nextMissing (0) : nextPresent (0);
+        while (start >= 0)
+        {
+            end = find_missing ? nextPresent (start) : nextMissing (start);
+            if (end < 0) end = length;
+            runs.add (new ImagCDFRecordRange (start, end - start));
+            start = find_missing ? nextMissing (end) : nextPresent (end);
+        }
+        return runs;
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A class that holds options that control how an ImagCDF file is read
+ * into memory. The default options read all the variables in the file
+ * into memory when the file is opened.
+ *
+ * @author smf
+ */
+public class ImagCDFReadOptions
+{
+
+    /** what to do when errors are found while reading a file */
+    public enum ErrorPolicy {
+        /** read the whole file, then report all the errors found */
+        ACCUMULATE,
+        /** stop reading at the first error - the global metadata is checked
+         * as a whole, then each variable as it is read */
+        FAIL_FAST,
+        /** read and check the metadata for all the variables before any data
+         * is read - if there are errors in the metadata no data is read */
+        HEADERS_THEN_DATA
+    }
+
+    // private member data
+    private boolean lazy;
+    private String element_selection;
+    private boolean include_temperatures;
+    private Date start_date;
+    private Date end_date;
+    private boolean off_heap;
+    private ImagCDFCompactData.Encoding compact_encoding;
+    private double compact_resolution;
+    private boolean compressed;
+    private boolean validate_data;
+    private int max_validation_errors;
+    private ErrorPolicy error_policy;
+    private long memory_budget;
+    private boolean stream_over_budget;
+
+    /** create options that read the complete file into memory */
+    public ImagCDFReadOptions ()
+    {
+        this (false, null, true);
+    }
+
+    /** create options for reading an ImagCDF file
+     * @param lazy true to read each variable the first time its data is used
+     * @param element_selection the codes of the geomagnetic elements to read (e.g. "XYZ"),
+     *                          or null to read all elements
+     * @param include_temperatures true to read temperature variables, false to ignore them */
+    public ImagCDFReadOptions (boolean lazy, String element_selection, boolean include_temperatures)
+    {
+        this.lazy = lazy;
+        this.element_selection = element_selection;
+        this.include_temperatures = include_temperatures;
+        this.start_date = null;
+        this.end_date = null;
+        this.off_heap = false;
+        this.compact_encoding = null;
+        this.compact_resolution = 0.0;
+        this.compressed = false;
+        this.validate_data = false;
+        this.max_validation_errors = ImagCDFDataValidator.DEFAULT_MAX_ERRORS_PER_VARIABLE;
+        this.error_policy = ErrorPolicy.ACCUMULATE;
+        this.memory_budget = 0l;
+        this.stream_over_budget = false;
+    }
+
+    /** create a copy of a set of options
+     * @param source the options to copy */
+    public ImagCDFReadOptions (ImagCDFReadOptions source)
+    {
+        this.lazy = source.lazy;
+        this.element_selection = source.element_selection;
+        this.include_temperatures = source.include_temperatures;
+        this.start_date = source.start_date;
+        this.end_date = source.end_date;
+        this.off_heap = source.off_heap;
+        this.compact_encoding = source.compact_encoding;
+        this.compact_resolution = source.compact_resolution;
+        this.compressed = source.compressed;
+        this.validate_data = source.validate_data;
+        this.max_validation_errors = source.max_validation_errors;
+        this.error_policy = source.error_policy;
+        this.memory_budget = source.memory_budget;
+        this.stream_over_budget = source.stream_over_budget;
+    }
+
+    /** find out whether variables are read the first time their data is used
+     * @return true for lazy reading, false to read all data when the file is opened */
+    public boolean isLazy () { return lazy; }
+    /** get the codes of the geomagnetic elements that will be read
+     * @return the element codes (e.g. "XYZ") or null if all elements will be read */
+    public String getElementSelection () { return element_selection; }
+    /** find out whether temperature variables will be read
+     * @return true if temperatures will be read */
+    public boolean isIncludeTemperatures () { return include_temperatures; }
+    /** get the start of the time range that will be read
+     * @return the start date (inclusive) or null if reading starts at the beginning of the file */
+    public Date getStartDate () { return start_date; }
+    /** get the end of the time range that will be read
+     * @return the end date (exclusive) or null if reading continues to the end of the file */
+    public Date getEndDate () { return end_date; }
+    /** find out whether reading is restricted to a time range
+     * @return true if only part of the data in the file will be read */
+    public boolean isTimeRangeSet () { return start_date != null || end_date != null; }
+    /** find out whether data will be stored outside the Java heap
+     * @return true for off-heap storage */
+    public boolean isOffHeap () { return off_heap; }
+    /** get the compact encoding that data will be held in
+     * @return the encoding or null if data will be held as doubles */
+    public ImagCDFCompactData.Encoding getCompactEncoding () { return compact_encoding; }
+    /** get the resolution that compact data will be held at
+     * @return the resolution or 0 if data will be held as doubles */
+    public double getCompactResolution () { return compact_resolution; }
+    /** find out whether data will be held in a compact encoding
+     * @return true for compact data */
+    public boolean isCompact () { return compact_encoding != null; }
+    /** find out whether data and time stamps will be held in compressed stores
+     * @return true for compressed data */
+    public boolean isCompressed () { return compressed; }
+    /** find out whether the data values will be checked when the file is read
+     * @return true if the data values will be checked */
+    public boolean isValidateData () { return validate_data; }
+    /** get the number of invalid samples reported for each variable
+     * @return the number of errors */
+    public int getMaxValidationErrors () { return max_validation_errors; }
+    /** get what happens when errors are found while reading
+     * @return the error policy */
+    public ErrorPolicy getErrorPolicy () { return error_policy; }
+    /** get the most memory that reading a file may use
+     * @return the budget in bytes or 0 for no budget */
+    public long getMemoryBudget () { return memory_budget; }
+    /** find out whether files that are over the memory budget will be read in lazy mode
+     * @return true to read in lazy mode, false to refuse to read the file */
+    public boolean isStreamOverBudget () { return stream_over_budget; }
+
+    /** set whether variables are read the first time their data is used. When
+     * this is set the CDF file is kept open until the ImagCDF object is closed
+     * @param lazy true for lazy reading, false to read all data when the file is opened */
+    public void setLazy (boolean lazy) { this.lazy = lazy; }
+    /** set the geomagnetic elements to read - other elements in the file are ignored.
+     * ImagCDF.getElementsRecorded() still gives all the elements in the file, while
+     * ImagCDF.getElementsSelected() gives the elements that were read
+     * @param element_selection the element codes (e.g. "XYZ") or null to read all elements */
+    public void setElementSelection (String element_selection) { this.element_selection = element_selection; }
+    /** set whether temperature variables will be read
+     * @param include_temperatures true to read temperatures, false to ignore them */
+    public void setIncludeTemperatures (boolean include_temperatures) { this.include_temperatures = include_temperatures; }
+    /** set whether data and time stamps are stored outside the Java heap, in
+     * direct buffers. The data is read from the file a block at a time straight
+     * into the buffers, so it is never all on the heap. Off-heap storage is
+     * released when the ImagCDF object is closed. Has no effect for lazy reading,
+     * or for the memory mapped implementation, which already keeps its data
+     * outside the heap in the mapped file.
+     * @param off_heap true to store data off the heap */
+    public void setOffHeap (boolean off_heap) { this.off_heap = off_heap; }
+    /** set the data (but not the time stamps) to be held in a compact encoding,
+     * using 32 bits per sample instead of 64 - see ImagCDFVariable.compact().
+     * The data is read from the file a block at a time straight into the compact
+     * store. Reading fails with an error if any of the data can't be held at the
+     * resolution. Compact data stays on the heap, even when off-heap storage is set.
+     * Has no effect for lazy reading, or for the memory mapped implementation,
+     * which doesn't hold its data on the heap.
+     * @param encoding the way that samples are encoded, or null to hold data as doubles
+     * @param resolution the resolution of the data, which must suit all the variables
+     *        (e.g. 0.0001 for files that hold D or I in degrees) */
+    public void setCompact (ImagCDFCompactData.Encoding encoding, double resolution)
+    {
+        if (encoding != null && (! (resolution > 0.0) || Double.isInfinite (resolution)))
+            throw new IllegalArgumentException ("Invalid resolution: " + resolution);
+        this.compact_encoding = encoding;
+        this.compact_resolution = encoding == null ? 0.0 : resolution;
+    }
+    /** set the data and time stamps to be held in compressed stores - see
+     * ImagCDFVariable.compress() and ImagCDFVariableTS.compress(). The data is
+     * read from the file a block at a time straight into the stores. If compact
+     * data is also set, the data is rounded to the compact resolution and then
+     * compressed. Compressed data stays on the heap, even when off-heap storage
+     * is set. Has no effect for lazy reading, or for the memory mapped
+     * implementation, which doesn't hold its data on the heap.
+     * @param compressed true to compress the data */
+    public void setCompressed (boolean compressed) { this.compressed = compressed; }
+    /** set whether the data values are checked when the file is read - see
+     * ImagCDFDataValidator. This reads all the data, even for lazy reading.
+     * Invalid values are reported in the same way as errors in the metadata
+     * @param validate_data true to check the data values
+     * @param max_validation_errors the number of invalid samples to report for each variable */
+    public void setValidateData (boolean validate_data, int max_validation_errors)
+    {
+        this.validate_data = validate_data;
+        this.max_validation_errors = max_validation_errors;
+    }
+    /** set what happens when errors are found while reading. Whatever the
+     * policy, the errors are reported in a single IMCDFException
+     * @param error_policy the error policy */
+    public void setErrorPolicy (ErrorPolicy error_policy)
+    {
+        if (error_policy == null)
+            throw new IllegalArgumentException ("Missing error policy");
+        this.error_policy = error_policy;
+    }
+    /** set the most memory that reading a file may use. Before the file is
+     * read, the memory needed is estimated (see ImagCDFFactory.estimateReadFootprint()),
+     * allowing for any time range. If the estimate is over the budget the file is
+     * either not read, or is read in lazy mode, so that the data stays in the file
+     * and can be worked through a range at a time (e.g. with ImagCDFVariable.copyInto()
+     * or ImagCDFFactory.openRecordCursor()). In lazy mode the budget is still
+     * enforced: loading a variable's data (e.g. with ImagCDFVariable.getData())
+     * throws an IMCDFException if it would take the memory used over the budget.
+     * The budget is applied by ImagCDFFactory.readImagCDF() and isn't used when
+     * lazy reading is asked for in these options
+     * @param memory_budget the budget in bytes or 0 for no budget
+     * @param stream_over_budget true to read files that are over the budget in
+     *        lazy mode, false to refuse to read them */
+    public void setMemoryBudget (long memory_budget, boolean stream_over_budget)
+    {
+        this.memory_budget = memory_budget;
+        this.stream_over_budget = stream_over_budget;
+    }
+    /** set the time range to read - only the records in this range are read
+     * from the file. The time stamps in the file are searched to find the
+     * records, so the rest of the data is never read
+     * @param start_date the start date (inclusive) or null to read from the beginning of the file
+     * @param end_date the end date (exclusive) or null to read to the end of the file */
+    public void setTimeRange (Date start_date, Date end_date)
+    {
+        if (start_date != null && end_date != null && end_date.before(start_date))
+            throw new IllegalArgumentException ("End of time range is before start");
+        this.start_date = start_date;
+        this.end_date = end_date;
+    }
+
+    /** find out whether a geomagnetic element has been selected for reading
+     * @param element_code the single character element code
+     * @return true if the element should be read */
+    public boolean isElementSelected (String element_code)
+    {
+        if (element_selection == null) return true;
+        return element_selection.toUpperCase().contains (element_code.toUpperCase());
+    }
+
+    /** work out which elements to read from a file
+     * @param elements_recorded the elements in the file, from the "ElementsRecorded" attribute
+     * @param accumulated_errors a list of error messages to add to if any of
+     *        the selected elements are not in the file
+     * @return the elements to read, in the order that they are recorded in the file */
+    public String selectElements (String elements_recorded, List<String> accumulated_errors)
+    {
+        int count;
+        String selected, code;
+
+        if (element_selection == null) return elements_recorded;
+
+        selected = "";
+        for (count=0; count<elements_recorded.length(); count++)
+        {
+            code = elements_recorded.substring (count, count +1);
+            if (isElementSelected (code)) selected += code;
+        }
+        for (count=0; count<element_selection.length(); count++)
+        {
+            code = element_selection.substring (count, count +1);
+            if (! elements_recorded.toUpperCase().contains (code.toUpperCase()))
+                accumulated_errors.add ("Selected element '" + code + "' is not recorded in the file");
+        }
+        return selected;
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+/**
+ * A cursor that makes a single forward pass through the records in an ImagCDF
+ * file, a block at a time. Each block holds the TT2000 time stamps and the data
+ * for each selected element, in columns. The same arrays are reused for every
+ * block, so the memory used doesn't depend on the length of the file. Use it
+ * like this:
+ *
+ *      try (ImagCDFRecordCursor cursor = ImagCDFFactory.openRecordCursor (file, "XYZ", 3600))
+ *      {
+ *          while (cursor.next ())
+ *          {
+ *              long tt2000 [] = cursor.getTimeStamps ();
+ *              double x [] = cursor.getData (0);
+ *              for (int count=0; count<cursor.getBlockLength(); count++) ...
+ *          }
+ *      }
+ *
+ * The cursor owns the CDF file that it reads and closes it when the cursor is closed.
+ *
+ * @author smf
+ */
+public class ImagCDFRecordCursor
+implements AutoCloseable
+{
+
+    // private member data
+    private IMCDFRecordReader reader;
+    private final String ts_var_name;
+    private final String data_var_names [];
+    private final String element_codes;
+    private final int n_records;
+    private final long time_stamps [];
+    private final double data [][];
+    private int next_record;
+    private int block_first_record;
+    private int block_length;
+
+    /** create a cursor on an open CDF file
+     * @param reader the CDF file, which will be closed when the cursor is closed
+     * @param ts_var_name the name of the time stamp variable shared by the data variables
+     * @param element_codes the element codes for the data variables, one character per variable
+     * @param data_var_names the names of the data variables
+     * @param block_size the maximum number of records in each block
+     * @throws IMCDFException if the variables can't be read or have different lengths */
+    public ImagCDFRecordCursor (IMCDFRecordReader reader, String ts_var_name, String element_codes,
+                                String data_var_names [], int block_size)
+    throws IMCDFException
+    {
+        int count;
+
+        if (block_size <= 0) throw new IllegalArgumentException ("Block size must be positive");
+        if (element_codes.length() != data_var_names.length)
+            throw new IllegalArgumentException ("Number of element codes and data variables must match");
+
+        this.reader = reader;
+        this.ts_var_name = ts_var_name;
+        this.data_var_names = data_var_names;
+        this.element_codes = element_codes;
+
+        n_records = reader.getNRecords (ts_var_name);
+        for (count=0; count<data_var_names.length; count++)
+        {
+            if (reader.getNRecords (data_var_names [count]) != n_records)
+                throw new IMCDFException ("Time stamp variable '" + ts_var_name +
+                                          "' and data variable '" + data_var_names [count] + "' have different lengths");
+        }
+
+        // there's no point having buffers larger than the file
+        block_size = Math.max (1, Math.min (block_size, n_records));
+        time_stamps = new long [block_size];
+        data = new double [data_var_names.length][block_size];
+        next_record = 0;
+        block_first_record = 0;
+        block_length = 0;
+    }
+
+    /** move to the next block of records
+     * @return true if a block was read, false if there are no more records
+     * @throws IMCDFException if there is an error reading the file */
+    public boolean next ()
+    throws IMCDFException
+    {
+        int count;
+
+        if (reader == null) throw new IMCDFException ("Cursor has been closed");
+        if (next_record >= n_records)
+        {
+            block_length = 0;
+            return false;
+        }
+
+        block_length = Math.min (time_stamps.length, n_records - next_record);
+        reader.readTimeStampRecords (ts_var_name, next_record, block_length, time_stamps, 0);
+        for (count=0; count<data_var_names.length; count++)
+            reader.readDataRecords (data_var_names [count], next_record, block_length, data [count], 0);
+        block_first_record = next_record;
+        next_record += block_length;
+        return true;
+    }
+
+    /** get the number of records in the current block - the arrays returned by
+     * getTimeStamps() and getData() may be longer than this
+     * @return the number of records, zero before next() is called or after the last block */
+    public int getBlockLength () { return block_length; }
+    /** get the number of the first record in the current block
+     * @return the record number (zero based) */
+    public int getBlockFirstRecord () { return block_first_record; }
+    /** get the number of records in the file
+     * @return the number of records */
+    public int getNRecords () { return n_records; }
+    /** get the elements that the cursor reads
+     * @return the element codes, in the same order as the data indexes */
+    public String getElementCodes () { return element_codes; }
+    /** get the TT2000 time stamps for the current block - the array is reused
+     * for each block, so copy any values that need to be kept
+     * @return the time stamps */
+    public long [] getTimeStamps () { return time_stamps; }
+    /** get the data for an element in the current block - the array is reused
+     * for each block, so copy any values that need to be kept
+     * @param index the index of the element in getElementCodes()
+     * @return the data */
+    public double [] getData (int index) { return data [index]; }
+
+    /** close the cursor and the CDF file that it reads
+     * @throws IMCDFException if there is an error closing the file */
+    @Override
+    public void close ()
+    throws IMCDFException
+    {
+        IMCDFRecordReader old_reader = reader;
+        reader = null;
+        if (old_reader != null) old_reader.close ();
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+/**
+ * A class that describes a contiguous range of records in a CDF variable,
+ * used to read part of a variable from a file
+ *
+ * @author smf
+ */
+public class ImagCDFRecordRange
+{
+
+    // private member data
+    private final int first_record;
+    private final int n_records;
+
+    /** create a record range
+     * @param first_record the first record in the range (zero based)
+     * @param n_records the number of records in the range */
+    public ImagCDFRecordRange (int first_record, int n_records)
+    {
+        if (first_record < 0 || n_records < 0) throw new IllegalArgumentException ("Record range must not be negative");
+        this.first_record = first_record;
+        this.n_records = n_records;
+    }
+
+    /** get the first record in the range
+     * @return the record number (zero based) */
+    public int getFirstRecord () { return first_record; }
+    /** get the number of records in the range
+     * @return the number of records */
+    public int getNRecords () { return n_records; }
+
+    /** find the records in a time stamp variable that lie within a time range.
+     * The time stamps are searched in the file using a binary search, so only
+     * a small number of time stamps are read - the time stamps must be in
+     * ascending order
+     * @param reader the open CDF file
+     * @param ts_var_name the name of the time stamp variable
+     * @param start_tt2000 the start of the time range (inclusive) as a TT2000 value
+     * @param end_tt2000 the end of the time range (exclusive) as a TT2000 value
+     * @return the range of records, which may be empty
+     * @throws IMCDFException if there is an error reading the time stamps */
+    public static ImagCDFRecordRange findTimeRange (IMCDFRecordReader reader, String ts_var_name,
+                                                    long start_tt2000, long end_tt2000)
+    throws IMCDFException
+    {
+        int n_records, first, last;
+
+        n_records = reader.getNRecords (ts_var_name);
+        first = findFirstRecordNotBefore (reader, ts_var_name, n_records, start_tt2000);
+        last = findFirstRecordNotBefore (reader, ts_var_name, n_records, end_tt2000);
+        if (last < first) last = first;
+        return new ImagCDFRecordRange (first, last - first);
+    }
+
+    /** binary search a time stamp variable for the first record whose time
+     * stamp is at or after the given time
+     * @return the record number, or n_records if all records are before the time */
+    private static int findFirstRecordNotBefore (IMCDFRecordReader reader, String ts_var_name,
+                                                 int n_records, long tt2000)
+    throws IMCDFException
+    {
+        int low, high, mid;
+
+        low = 0;
+        high = n_records;
+        while (low < high)
+        {
+            mid = (low + high) >>> 1;
+            if (reader.readTimeStampRecords (ts_var_name, mid, 1) [0] < tt2000) low = mid +1;
+            else high = mid;
+        }
+        return low;
+    }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A writer that creates an ImagCDF file a block of records at a time, so
+ * that the data doesn't all have to be held in memory before it is written.
+ * The metadata comes from a header - an ImagCDF object whose variables give
+ * the attributes that are written when the writer is opened. Any data in
+ * the header is ignored (its variables would normally be empty).
+ *
+ * The data variables (geomagnetic elements, then temperatures, in the order
+ * they are in the header) are grouped by the time stamp variable that they
+ * use (their DEPEND_0 attribute). Records are added to a group with append(),
+ * which writes the time stamps and a value for each variable in the group.
+ * The file must be closed to finish it.
+ *
+ * A writer can also add records to the end of an existing file (see
+ * ImagCDFFactory.openAppendWriter()), in which case the header is the
+ * existing file and new records must follow the records already in it.
+ * An atomic append writer journals the records (see ImagCDFAppendJournal)
+ * and only adds them to the file when it is closed.
+ *
+ * Stream writers need the native CDF library, which writes records to the
+ * file as they are appended. The pure Java library builds the whole file in
+ * memory and only writes it when it is closed, so it can't be used to stream
+ * records - ImagCDFFactory refuses to create a stream writer for it.
+ *
+ * Implementations are provided by sub-classes - use
+ * ImagCDFFactory.openStreamWriter() to create a writer.
+ *
+ * @author smf
+ */
+public abstract class ImagCDFStreamWriter
+implements AutoCloseable
+{
+
+    // the data variables from the header and their suffixes
+    private final ImagCDFVariable data_vars [];
+    private final String data_var_suffixes [];
+    // the time stamp variable names and, for each one, the indexes
+    // of the data variables that use it
+    private final String ts_names [];
+    private final int ts_var_indexes [][];
+    // the number of records written and the last time stamp in each group
+    private final int n_records [];
+    private final long last_tt2000 [];
+    // the journal that records are written to, or null to write them to the file
+    private ImagCDFAppendJournal journal;
+    private boolean closed;
+
+    /** create a writer from a header
+     * @param header the metadata for the file
+     * @throws IMCDFException if the metadata in the header is faulty */
+    protected ImagCDFStreamWriter (ImagCDF header)
+    throws IMCDFException
+    {
+        int count, count2;
+        String depend_0;
+        List<String> errors, names;
+        List<List<Integer>> indexes;
+
+        errors = new ArrayList<> ();
+        header.checkMetadata (errors);
+        if (! errors.isEmpty())
+            throw new IMCDFException (errors.get(0), errors);
+
+        data_vars = new ImagCDFVariable [header.getNElements() + header.getNTemperatures()];
+        data_var_suffixes = new String [data_vars.length];
+        for (count=0; count<header.getNElements(); count++)
+        {
+            data_vars [count] = header.getElement (count);
+            data_var_suffixes [count] = header.getElement(count).getElementRecorded();
+        }
+        for (count=0; count<header.getNTemperatures(); count++)
+        {
+            data_vars [header.getNElements() + count] = header.getTemperature (count);
+            data_var_suffixes [header.getNElements() + count] = Integer.toString (count +1);
+        }
+
+        names = new ArrayList<> ();
+        indexes = new ArrayList<> ();
+        for (count=0; count<data_vars.length; count++)
+        {
+            depend_0 = data_vars [count].getDepend0();
+            if (depend_0 == null)
+                throw new IMCDFException ("Data array '" + data_vars [count].getFieldName() + "' has no time stamp variable");
+            if (! names.contains (depend_0))
+            {
+                names.add (depend_0);
+                indexes.add (new ArrayList<> ());
+            }
+            indexes.get (names.indexOf (depend_0)).add (count);
+        }
+        ts_names = names.toArray (new String [names.size()]);
+        ts_var_indexes = new int [ts_names.length][];
+        for (count=0; count<ts_names.length; count++)
+        {
+            ts_var_indexes [count] = new int [indexes.get(count).size()];
+            for (count2=0; count2<ts_var_indexes [count].length; count2++)
+                ts_var_indexes [count][count2] = indexes.get(count).get(count2);
+        }
+        n_records = new int [ts_names.length];
+        last_tt2000 = new long [ts_names.length];
+        journal = null;
+        closed = false;
+    }
+
+    /** get the number of data variables (elements and temperatures)
+     * @return the number of data variables */
+    public int getNDataVariables () { return data_vars.length; }
+    /** get a data variable from the header
+     * @param index 0..N-1
+     * @return the variable */
+    public ImagCDFVariable getDataVariable (int index) { return data_vars [index]; }
+    /** get the suffix used to name a data variable in the CDF file
+     * @param index 0..N-1
+     * @return the suffix (the element code or temperature number) */
+    public String getDataVariableSuffix (int index) { return data_var_suffixes [index]; }
+    /** get the number of time stamp variables, each of which has its own group of data variables
+     * @return the number of time stamp variables */
+    public int getNTimeStampVariables () { return ts_names.length; }
+    /** get the name of a time stamp variable
+     * @param ts_index 0..N-1
+     * @return the name */
+    public String getTimeStampVarName (int ts_index) { return ts_names [ts_index]; }
+    /** get the data variables that use a time stamp variable - this is the
+     * order in which their data is passed to append()
+     * @param ts_index 0..N-1
+     * @return the indexes of the data variables */
+    public int [] getDataVariableIndexes (int ts_index) { return ts_var_indexes [ts_index].clone(); }
+    /** find a time stamp variable
+     * @param ts_name the name of the time stamp variable
+     * @return the index of the variable or -1 if it isn't used by the header */
+    public int findTimeStampVariable (String ts_name)
+    {
+        int count;
+
+        for (count=0; count<ts_names.length; count++)
+        {
+            if (ts_names [count].equals (ts_name)) return count;
+        }
+        return -1;
+    }
+    /** get the number of records written to a time stamp variable and its data variables
+     * @param ts_index 0..N-1
+     * @return the number of records */
+    public int getNRecords (int ts_index) { return n_records [ts_index]; }
+
+    /** add records to a file whose data variables all use the same time stamps
+     * @param tt2000 the TT2000 time stamps
+     * @param data the data, one array for each data variable - each array must
+     *        be at least as long as the time stamps
+     * @throws IMCDFException if the data variables don't all use the same time
+     *         stamps, the records are faulty or there is an error writing */
+    public void append (long tt2000 [], double data [][])
+    throws IMCDFException
+    {
+        if (ts_names.length != 1)
+            throw new IMCDFException ("Data variables use " + ts_names.length + " time stamp variables, the time stamp variable must be specified");
+        append (0, tt2000, data, 0, tt2000.length);
+    }
+
+    /** add records to a time stamp variable and the data variables that use it
+     * @param ts_index the time stamp variable 0..N-1
+     * @param tt2000 the TT2000 time stamps, which must be strictly increasing and
+     *        later than any time stamps already written
+     * @param data the data, one array for each data variable that uses the time
+     *        stamps, in the order given by getDataVariableIndexes()
+     * @param offset the index in the arrays of the first record
+     * @param length the number of records
+     * @throws IMCDFException if the writer has been closed, the records are faulty
+     *         or there is an error writing */
+    public synchronized void append (int ts_index, long tt2000 [], double data [][], int offset, int length)
+    throws IMCDFException
+    {
+        int count;
+        String var_names [];
+
+        if (closed)
+            throw new IMCDFException ("Stream writer has been closed");
+        if (ts_index < 0 || ts_index >= ts_names.length)
+            throw new IMCDFException ("Invalid time stamp variable index: " + ts_index);
+        if (offset < 0 || length < 0 || offset + length > tt2000.length)
+            throw new IMCDFException ("Record range out of bounds for time stamp variable '" + ts_names [ts_index] + "': " + offset + ", " + length);
+        if (data.length != ts_var_indexes [ts_index].length)
+            throw new IMCDFException ("Time stamp variable '" + ts_names [ts_index] + "' is used by " + ts_var_indexes [ts_index].length +
+                                      " data variables, but data for " + data.length + " was given");
+        for (count=0; count<data.length; count++)
+        {
+            if (data [count] == null || offset + length > data [count].length)
+                throw new IMCDFException ("Not enough records for data array '" + data_vars [ts_var_indexes [ts_index][count]].getFieldName() + "'");
+        }
+        for (count=0; count<length; count++)
+        {
+            if ((count > 0 || n_records [ts_index] > 0) &&
+                tt2000 [offset + count] <= (count > 0 ? tt2000 [offset + count -1] : last_tt2000 [ts_index]))
+                throw new IMCDFException ("Time stamp variable '" + ts_names [ts_index] + "' is not strictly increasing at index " + (n_records [ts_index] + count));
+        }
+        if (length == 0) return;
+
+        if (journal != null)
+        {
+            var_names = new String [data.length];
+            for (count=0; count<data.length; count++)
+                var_names [count] = data_vars [ts_var_indexes [ts_index][count]].getVarName();
+            journal.append (ts_names [ts_index], var_names, n_records [ts_index], tt2000, data, offset, length);
+        }
+        else
+        {
+            for (count=0; count<data.length; count++)
+                writeData (ts_var_indexes [ts_index][count], n_records [ts_index], data [count], offset, length);
+            writeTimeStamps (ts_index, n_records [ts_index], tt2000, offset, length);
+        }
+        n_records [ts_index] += length;
+        last_tt2000 [ts_index] = tt2000 [offset + length -1];
+    }
+
+    /** set the number of records already in the file and the last time stamp in
+     * each group, for a writer that appends to an existing file
+     * @param existing the contents of the existing file - the data needn't be
+     *        loaded, as only the last time stamp in each group is read
+     * @throws IMCDFException if a time stamp variable is missing or the data
+     *         variables in a group have a different number of records to their time stamps */
+    protected void setExistingRecords (ImagCDF existing)
+    throws IMCDFException
+    {
+        int count, count2;
+        long last [];
+        ImagCDFVariableTS ts;
+
+        last = new long [1];
+        for (count=0; count<ts_names.length; count++)
+        {
+            ts = existing.findTimeStamps (data_vars [ts_var_indexes [count][0]]);
+            if (ts == null)
+                throw new IMCDFException ("Missing time stamp variable '" + ts_names [count] + "'");
+            for (count2=0; count2<ts_var_indexes [count].length; count2++)
+            {
+                if (data_vars [ts_var_indexes [count][count2]].getDataLength() != ts.getNSamples())
+                    throw new IMCDFException ("Data array '" + data_vars [ts_var_indexes [count][count2]].getFieldName() +
+                                              "' has a different number of records to time stamp variable '" + ts_names [count] + "'");
+            }
+            n_records [count] = ts.getNSamples();
+            if (n_records [count] > 0)
+            {
+                ts.copyTT2000 (last, n_records [count] -1, 1);
+                last_tt2000 [count] = last [0];
+            }
+        }
+    }
+
+    /** write appended records to a journal instead of the file, for a writer
+     * that appends to an existing file atomically - the journal is replayed into
+     * the file and deleted when the writer is closed
+     * @param journal the journal */
+    protected void setJournal (ImagCDFAppendJournal journal)
+    {
+        this.journal = journal;
+    }
+
+    /** finish the file - after this no more records can be added. If records
+     * were journalled, they are written to the file now - if there is an error
+     * the journal is kept, to be replayed by the next append writer opened on the file
+     * @throws IMCDFException if there is an error finishing the file */
+    @Override
+    public synchronized void close ()
+    throws IMCDFException
+    {
+        if (closed) return;
+        closed = true;
+        if (journal != null)
+        {
+            try
+            {
+                journal.close ();
+                ImagCDFAppendJournal.replay (journal.getFile(), new JournalReplayer ());
+            }
+            catch (IMCDFException e)
+            {
+                try { closeFile (); }
+                catch (IMCDFException e2) { }
+                throw e;
+            }
+        }
+        closeFile ();
+        if (journal != null) journal.getFile().delete ();
+    }
+
+    /** write data to a data variable - implementation is provided by sub-classes
+     * @param var_index the data variable 0..N-1
+     * @param rec_no the record to write the first sample to
+     * @param data the data
+     * @param offset the index in the data of the first sample
+     * @param length the number of samples
+     * @throws IMCDFException if there is an error */
+    protected abstract void writeData (int var_index, int rec_no, double data [], int offset, int length)
+    throws IMCDFException;
+
+    /** write time stamps to a time stamp variable - implementation is provided by sub-classes
+     * @param ts_index the time stamp variable 0..N-1
+     * @param rec_no the record to write the first time stamp to
+     * @param tt2000 the time stamps
+     * @param offset the index of the first time stamp
+     * @param length the number of time stamps
+     * @throws IMCDFException if there is an error */
+    protected abstract void writeTimeStamps (int ts_index, int rec_no, long tt2000 [], int offset, int length)
+    throws IMCDFException;
+
+    /** finish the file - implementation is provided by sub-classes
+     * @throws IMCDFException if there is an error */
+    protected abstract void closeFile ()
+    throws IMCDFException;
+
+    /** writes the records in the journal to the file, finding the variables by name */
+    private class JournalReplayer implements ImagCDFAppendJournal.RecordWriter
+    {
+        @Override
+        public void writeData (String var_name, int rec_no, double data [], int offset, int length)
+        throws IMCDFException
+        {
+            int count;
+
+            for (count=0; count<data_vars.length; count++)
+            {
+                if (var_name.equals (data_vars [count].getVarName()))
+                {
+                    ImagCDFStreamWriter.this.writeData (count, rec_no, data, offset, length);
+                    return;
+                }
+            }
+            throw new IMCDFException ("Journal contains records for unknown data array '" + var_name + "'");
+        }
+        @Override
+        public void writeTimeStamps (String ts_name, int rec_no, long tt2000 [], int offset, int length)
+        throws IMCDFException
+        {
+            int ts_index;
+
+            ts_index = findTimeStampVariable (ts_name);
+            if (ts_index < 0)
+                throw new IMCDFException ("Journal contains records for unknown time stamp variable '" + ts_name + "'");
+            ImagCDFStreamWriter.this.writeTimeStamps (ts_index, rec_no, tt2000, offset, length);
+        }
+    }
+
+}
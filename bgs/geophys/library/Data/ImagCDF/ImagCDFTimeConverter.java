@@ -0,0 +1,385 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import gov.nasa.gsfc.spdf.cdfj.TimeUtil;
+import java.util.Date;
+
+/**
+ * Conversion between CDF TT2000 time stamps and Java dates (milliseconds since
+ * 1970, UTC) using a table of leap seconds held in this class. From 1972
+ * onwards the difference between TT2000 and UTC only changes when a leap second
+ * is inserted, so each conversion is a table lookup and an addition. Dates before
+ * 1972, when the difference between TAI and UTC was not a whole number of seconds,
+ * are passed to the CDF library.
+ *
+ * The batch methods convert a whole array in one loop, only searching the
+ * table when a value falls outside the leap second interval of the previous
+ * value. The class has no mutable state, so it is safe to use from many
+ * threads at once.
+ *
+ * This table is correct for leap seconds up to the end of 2016. If leap seconds
+ * are inserted after this date, add them to the end of the table - ImagCDFFactory
+ * warns if the CDF library knows of a later leap second than this class.
+ *
+ * @author smf
+ */
+public class ImagCDFTimeConverter
+{
+
+    /** the UTC date in milliseconds since 1970 of 2000-01-01 12:00:00 TT, the
+     * TT2000 epoch - this is 11:58:55.816 UTC, when TAI-UTC was 32 seconds */
+    private static final long J2000_UTC_MILLIS = 946727935816l;
+
+    /** the dates (year, month, day) when TAI-UTC changed and the new value in seconds */
+    private static final int LEAP_SECOND_TABLE [][] =
+    {
+        {1972, 1, 1, 10}, {1972, 7, 1, 11}, {1973, 1, 1, 12}, {1974, 1, 1, 13},
+        {1975, 1, 1, 14}, {1976, 1, 1, 15}, {1977, 1, 1, 16}, {1978, 1, 1, 17},
+        {1979, 1, 1, 18}, {1980, 1, 1, 19}, {1981, 7, 1, 20}, {1982, 7, 1, 21},
+        {1983, 7, 1, 22}, {1985, 7, 1, 23}, {1988, 1, 1, 24}, {1990, 1, 1, 25},
+        {1991, 1, 1, 26}, {1992, 7, 1, 27}, {1993, 7, 1, 28}, {1994, 7, 1, 29},
+        {1996, 1, 1, 30}, {1997, 7, 1, 31}, {1999, 1, 1, 32}, {2006, 1, 1, 33},
+        {2009, 1, 1, 34}, {2012, 7, 1, 35}, {2015, 7, 1, 36}, {2017, 1, 1, 37}
+    };
+
+    // the leap second table converted for lookups - for interval 'n', from
+    // leap_utc_millis[n] (or leap_tt2000[n]) until the next entry,
+    // TT2000 = (UTC millis * 1000000) + leap_offset[n]
+    private static final long leap_utc_millis [];
+    private static final long leap_tt2000 [];
+    private static final long leap_offset [];
+
+    // limits outside which the table isn't used (the upper limits
+    // prevent overflow in the arithmetic)
+    private static final long MAX_UTC_MILLIS = Long.MAX_VALUE / 1000000l;
+    private static final long MAX_TT2000;
+
+    static
+    {
+        int count;
+
+        leap_utc_millis = new long [LEAP_SECOND_TABLE.length];
+        leap_tt2000 = new long [LEAP_SECOND_TABLE.length];
+        leap_offset = new long [LEAP_SECOND_TABLE.length];
+        for (count=0; count<LEAP_SECOND_TABLE.length; count++)
+        {
+            leap_utc_millis [count] = daysSince1970 (LEAP_SECOND_TABLE [count][0], LEAP_SECOND_TABLE [count][1],
+                                                     LEAP_SECOND_TABLE [count][2]) * 86400000l;
+            leap_offset [count] = ((LEAP_SECOND_TABLE [count][3] - 32) * 1000000000l) - (J2000_UTC_MILLIS * 1000000l);
+            leap_tt2000 [count] = (leap_utc_millis [count] * 1000000l) + leap_offset [count];
+        }
+        MAX_TT2000 = Long.MAX_VALUE + leap_offset [leap_offset.length -1];
+    }
+
+    /** only static methods, so no need for construction */
+    private ImagCDFTimeConverter () { }
+
+    /** get the date when the most recent leap second in this class's table came into effect
+     * @return the date (midnight following the leap second) */
+    public static Date getLastLeapSecondTableDate ()
+    {
+        return new Date (leap_utc_millis [leap_utc_millis.length -1]);
+    }
+
+    /** find out whether a date is covered by the leap second table - dates that
+     * are not are converted by the CDF library
+     * @param utc_millis the date in milliseconds since 1970 (UTC)
+     * @return true if the date is in the table */
+    public static boolean isInLeapSecondTable (long utc_millis)
+    {
+        return findUTCInterval (utc_millis) >= 0;
+    }
+
+    /** find out whether a TT2000 time stamp is covered by the leap second table -
+     * time stamps that are not are converted by the CDF library
+     * @param tt2000 the TT2000 time stamp
+     * @return true if the time stamp is in the table */
+    public static boolean isTT2000InLeapSecondTable (long tt2000)
+    {
+        return findTT2000Interval (tt2000) >= 0;
+    }
+
+    /** convert a date in the leap second table to a TT2000 time stamp, without
+     * using the CDF library
+     * @param utc_millis the date in milliseconds since 1970 (UTC)
+     * @return the TT2000 time stamp
+     * @throws IllegalArgumentException if the date isn't in the table - check with isInLeapSecondTable() */
+    public static long tableDateToTT2000 (long utc_millis)
+    {
+        int index;
+
+        index = findUTCInterval (utc_millis);
+        if (index < 0) throw new IllegalArgumentException ("Date is outside the leap second table: " + utc_millis);
+        return (utc_millis * 1000000l) + leap_offset [index];
+    }
+
+    /** convert a TT2000 time stamp in the leap second table to milliseconds
+     * since 1970 (UTC), without using the CDF library
+     * @param tt2000 the TT2000 time stamp
+     * @return the date in milliseconds since 1970 (UTC)
+     * @throws IllegalArgumentException if the time stamp isn't in the table - check with isTT2000InLeapSecondTable() */
+    public static long tableTT2000ToEpochMillis (long tt2000)
+    {
+        int index;
+
+        index = findTT2000Interval (tt2000);
+        if (index < 0) throw new IllegalArgumentException ("Time stamp is outside the leap second table: " + tt2000);
+        return intervalTT2000ToEpochMillis (tt2000, index);
+    }
+
+    /** convert a date to a TT2000 time stamp
+     * @param date the date
+     * @return the TT2000 time stamp
+     * @throws IMCDFException if the CDF library fails to convert a date before 1972 */
+    public static long DateToTT2000 (Date date)
+    throws IMCDFException
+    {
+        return DateToTT2000 (date.getTime());
+    }
+
+    /** convert a date to a TT2000 time stamp
+     * @param utc_millis the date in milliseconds since 1970 (UTC)
+     * @return the TT2000 time stamp
+     * @throws IMCDFException if the CDF library fails to convert a date before 1972 */
+    public static long DateToTT2000 (long utc_millis)
+    throws IMCDFException
+    {
+        int index;
+
+        index = findUTCInterval (utc_millis);
+        if (index < 0) return libraryDateToTT2000 (utc_millis);
+        return (utc_millis * 1000000l) + leap_offset [index];
+    }
+
+    /** convert a TT2000 time stamp to a date
+     * @param tt2000 the TT2000 time stamp
+     * @return the date
+     * @throws IMCDFException if the CDF library fails to convert a time stamp before 1972 */
+    public static Date TT2000ToDate (long tt2000)
+    throws IMCDFException
+    {
+        return new Date (TT2000ToEpochMillis (tt2000));
+    }
+
+    /** convert a TT2000 time stamp to milliseconds since 1970 (UTC). A time
+     * stamp during a leap second (23:59:60) is given as a repeat of 23:59:59,
+     * since Java dates can't represent leap seconds
+     * @param tt2000 the TT2000 time stamp
+     * @return the date in milliseconds since 1970 (UTC)
+     * @throws IMCDFException if the CDF library fails to convert a time stamp before 1972 */
+    public static long TT2000ToEpochMillis (long tt2000)
+    throws IMCDFException
+    {
+        int index;
+
+        index = findTT2000Interval (tt2000);
+        if (index < 0) return libraryTT2000ToEpochMillis (tt2000);
+        return intervalTT2000ToEpochMillis (tt2000, index);
+    }
+
+    /** convert a TT2000 time stamp to nanoseconds since 1970 (UTC), keeping
+     * the full resolution of the time stamp
+     * @param tt2000 the TT2000 time stamp
+     * @return the date in nanoseconds since 1970 (UTC)
+     * @throws IMCDFException if the CDF library fails to convert a time stamp before 1972 */
+    public static long TT2000ToEpochNanos (long tt2000)
+    throws IMCDFException
+    {
+        return (TT2000ToEpochMillis (tt2000) * 1000000l) + Math.floorMod (tt2000, 1000000l);
+    }
+
+    /** convert an array of dates to TT2000 time stamps - the source and
+     * destination may be the same array
+     * @param utc_millis the dates in milliseconds since 1970 (UTC)
+     * @param tt2000 the array to put the time stamps in
+     * @param len the number of values to convert
+     * @throws IMCDFException if the CDF library fails to convert a date before 1972 */
+    public static void DateToTT2000 (long utc_millis [], long tt2000 [], int len)
+    throws IMCDFException
+    {
+        int count, index;
+        long value, interval_start, interval_end;
+
+        index = -1;
+        interval_start = Long.MAX_VALUE;
+        interval_end = Long.MIN_VALUE;
+        for (count=0; count<len; count++)
+        {
+            value = utc_millis [count];
+            if (value < interval_start || value >= interval_end)
+            {
+                index = findUTCInterval (value);
+                if (index < 0)
+                {
+                    tt2000 [count] = libraryDateToTT2000 (value);
+                    interval_start = Long.MAX_VALUE;
+                    interval_end = Long.MIN_VALUE;
+                    continue;
+                }
+                interval_start = leap_utc_millis [index];
+                interval_end = (index +1 < leap_utc_millis.length) ? leap_utc_millis [index +1] : MAX_UTC_MILLIS;
+            }
+            tt2000 [count] = (value * 1000000l) + leap_offset [index];
+        }
+    }
+
+    /** convert an array of dates to TT2000 time stamps
+     * @param utc_millis the dates in milliseconds since 1970 (UTC)
+     * @return the TT2000 time stamps
+     * @throws IMCDFException if the CDF library fails to convert a date before 1972 */
+    public static long [] DateToTT2000 (long utc_millis [])
+    throws IMCDFException
+    {
+        long tt2000 [] = new long [utc_millis.length];
+        DateToTT2000 (utc_millis, tt2000, utc_millis.length);
+        return tt2000;
+    }
+
+    /** convert an array of TT2000 time stamps to milliseconds since 1970 (UTC) - the
+     * source and destination may be the same array
+     * @param tt2000 the TT2000 time stamps
+     * @param utc_millis the array to put the dates in
+     * @param len the number of values to convert
+     * @throws IMCDFException if the CDF library fails to convert a time stamp before 1972 */
+    public static void TT2000ToEpochMillis (long tt2000 [], long utc_millis [], int len)
+    throws IMCDFException
+    {
+        int count, index;
+        long value, interval_start, interval_end;
+
+        index = -1;
+        interval_start = Long.MAX_VALUE;
+        interval_end = Long.MIN_VALUE;
+        for (count=0; count<len; count++)
+        {
+            value = tt2000 [count];
+            if (value < interval_start || value >= interval_end)
+            {
+                index = findTT2000Interval (value);
+                if (index < 0)
+                {
+                    utc_millis [count] = libraryTT2000ToEpochMillis (value);
+                    interval_start = Long.MAX_VALUE;
+                    interval_end = Long.MIN_VALUE;
+                    continue;
+                }
+                // stop the interval one second before the next leap second ends, so
+                // that values during a leap second take the slow path below
+                interval_start = leap_tt2000 [index];
+                interval_end = (index +1 < leap_tt2000.length) ? leap_tt2000 [index +1] - 1000000000l : MAX_TT2000;
+                if (value >= interval_end)
+                {
+                    utc_millis [count] = intervalTT2000ToEpochMillis (value, index);
+                    interval_start = Long.MAX_VALUE;
+                    interval_end = Long.MIN_VALUE;
+                    continue;
+                }
+            }
+            utc_millis [count] = Math.floorDiv (value - leap_offset [index], 1000000l);
+        }
+    }
+
+    /** convert an array of TT2000 time stamps to milliseconds since 1970 (UTC)
+     * @param tt2000 the TT2000 time stamps
+     * @return the dates in milliseconds since 1970 (UTC)
+     * @throws IMCDFException if the CDF library fails to convert a time stamp before 1972 */
+    public static long [] TT2000ToEpochMillis (long tt2000 [])
+    throws IMCDFException
+    {
+        long utc_millis [] = new long [tt2000.length];
+        TT2000ToEpochMillis (tt2000, utc_millis, tt2000.length);
+        return utc_millis;
+    }
+
+    /** find the leap second interval that contains a UTC date
+     * @return the index in the table, or -1 if the table doesn't cover the date */
+    private static int findUTCInterval (long utc_millis)
+    {
+        if (utc_millis < leap_utc_millis [0] || utc_millis >= MAX_UTC_MILLIS) return -1;
+        return findInterval (leap_utc_millis, utc_millis);
+    }
+
+    /** find the leap second interval that contains a TT2000 time stamp
+     * @return the index in the table, or -1 if the table doesn't cover the time stamp */
+    private static int findTT2000Interval (long tt2000)
+    {
+        if (tt2000 < leap_tt2000 [0] || tt2000 >= MAX_TT2000) return -1;
+        return findInterval (leap_tt2000, tt2000);
+    }
+
+    /** binary search for the last entry in a table that is not after a value - the
+     * value must not be before the first entry */
+    private static int findInterval (long table [], long value)
+    {
+        int low, high, mid;
+
+        low = 0;
+        high = table.length -1;
+        while (low < high)
+        {
+            mid = (low + high + 1) >>> 1;
+            if (table [mid] <= value) low = mid;
+            else high = mid -1;
+        }
+        return low;
+    }
+
+    /** convert a TT2000 time stamp in a known interval, allowing for
+     * time stamps during the leap second at the end of the interval */
+    private static long intervalTT2000ToEpochMillis (long tt2000, int index)
+    {
+        long utc_millis;
+
+        utc_millis = Math.floorDiv (tt2000 - leap_offset [index], 1000000l);
+        if (index +1 < leap_utc_millis.length && utc_millis >= leap_utc_millis [index +1])
+            utc_millis -= 1000l;
+        return utc_millis;
+    }
+
+    /** get the number of days from 1970-01-01 to a date (month is 1 based) */
+    private static long daysSince1970 (int year, int month, int day)
+    {
+        long days;
+        int count;
+        int month_lengths [] = {31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+        days = 0;
+        for (count=1970; count<year; count++)
+            days += isLeapYear (count) ? 366 : 365;
+        for (count=1; count<month; count++)
+            days += (count == 2 && isLeapYear (year)) ? 29 : month_lengths [count -1];
+        return days + day -1;
+    }
+
+    private static boolean isLeapYear (int year)
+    {
+        return ((year % 4) == 0 && (year % 100) != 0) || (year % 400) == 0;
+    }
+
+    /** use the CDF library to convert a date outside the leap second table */
+    private static long libraryDateToTT2000 (long utc_millis)
+    throws IMCDFException
+    {
+        try {
+            return TimeUtil.tt2000(utc_millis);
+        } catch (Throwable ex) {
+            throw new IMCDFException (ex.getMessage());
+        }
+    }
+
+    /** convert a time stamp outside the leap second table - the CDF library
+     * doesn't convert in this direction, so convert ignoring leap seconds, then
+     * convert the result back to TT2000 to find the correction */
+    private static long libraryTT2000ToEpochMillis (long tt2000)
+    throws IMCDFException
+    {
+        long utc_millis = (tt2000 - TimeUtil.TT_JANUARY_1_1970) / 1000000;
+        long diff = libraryDateToTT2000 (utc_millis) - tt2000;
+        return utc_millis - (diff / 1000000);
+    }
+
+}
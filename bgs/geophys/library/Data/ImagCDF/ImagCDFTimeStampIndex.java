@@ -0,0 +1,338 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An index to an array of TT2000 time stamps, which allows the sample at or
+ * near a given time to be found without scanning the array. The time stamps
+ * are divided into segments, each of which has a constant step between samples,
+ * so finding a sample within a segment is a calculation. Finding the segment
+ * is a binary search, so for the usual case of a single regular segment each
+ * lookup takes constant time. Only the segments are held - the time stamp
+ * array isn't needed after the index has been built.
+ *
+ * A leap second adds one second to the TT2000 step between two samples, so
+ * it starts a new segment. The boundaries between segments are checked (in UTC,
+ * so that leap seconds are allowed for) to find gaps where samples are missing.
+ *
+ * @author smf
+ */
+public class ImagCDFTimeStampIndex
+{
+
+    /** a run of samples with a constant step between them */
+    public static class Segment
+    {
+        private final int first_index;
+        private final int n_samples;
+        private final long start_tt2000;
+        private final long step;
+        public Segment (int first_index, int n_samples, long start_tt2000, long step)
+        {
+            this.first_index = first_index;
+            this.n_samples = n_samples;
+            this.start_tt2000 = start_tt2000;
+            this.step = step;
+        }
+        /** @return the index of the first sample in the segment */
+        public int getFirstIndex () { return first_index; }
+        /** @return the number of samples in the segment */
+        public int getNSamples () { return n_samples; }
+        /** @return the TT2000 time stamp of the first sample */
+        public long getStartTT2000 () { return start_tt2000; }
+        /** @return the TT2000 time stamp of the last sample */
+        public long getEndTT2000 () { return start_tt2000 + (step * (n_samples -1)); }
+        /** @return the step between samples in nanoseconds, zero for a segment with one sample */
+        public long getStep () { return step; }
+    }
+
+    /** a place where samples are missing between two segments */
+    public static class Gap
+    {
+        private final int index_after;
+        private final long last_tt2000_before;
+        private final long first_tt2000_after;
+        private final long n_missing;
+        public Gap (int index_after, long last_tt2000_before, long first_tt2000_after, long n_missing)
+        {
+            this.index_after = index_after;
+            this.last_tt2000_before = last_tt2000_before;
+            this.first_tt2000_after = first_tt2000_after;
+            this.n_missing = n_missing;
+        }
+        /** @return the index of the first sample after the gap */
+        public int getIndexAfter () { return index_after; }
+        /** @return the TT2000 time stamp of the last sample before the gap */
+        public long getLastTT2000Before () { return last_tt2000_before; }
+        /** @return the TT2000 time stamp of the first sample after the gap */
+        public long getFirstTT2000After () { return first_tt2000_after; }
+        /** @return the number of samples missing, based on the step before the gap
+         *          (or after it if the sample before the gap is on its own) */
+        public long getNMissing () { return n_missing; }
+    }
+
+    // private member data - the segments are held in parallel arrays
+    private final int n_samples;
+    private final int n_segments;
+    private final int seg_first_index [];
+    private final int seg_n_samples [];
+    private final long seg_start_tt2000 [];
+    private final long seg_step [];
+    private final List<Gap> gaps;
+
+    /** build an index from an array of time stamps
+     * @param tt2000 the time stamps, which must be in ascending order
+     * @throws IMCDFException if the time stamps are not in ascending order */
+    public ImagCDFTimeStampIndex (long tt2000 [])
+    throws IMCDFException
+    {
+        this (tt2000, 0, tt2000.length);
+    }
+
+    /** build an index from part of an array of time stamps - the indexes
+     * used by the index are relative to 'from'
+     * @param tt2000 the time stamps, which must be in ascending order
+     * @param from the index of the first time stamp to use
+     * @param len the number of time stamps to use
+     * @throws IMCDFException if the time stamps are not in ascending order */
+    public ImagCDFTimeStampIndex (long tt2000 [], int from, int len)
+    throws IMCDFException
+    {
+        int count, first, last, n;
+        long step;
+        int first_index [], n_in_seg [];
+        long start [], steps [];
+
+        if (from < 0 || len < 0 || from + len > tt2000.length)
+            throw new IndexOutOfBoundsException ("Time stamp range out of bounds: " + from + ", " + len);
+        for (count=1; count<len; count++)
+        {
+            if (tt2000 [from + count] <= tt2000 [from + count -1])
+                throw new IMCDFException ("Time stamps not in ascending order at index " + count);
+        }
+
+        // divide the time stamps into segments - the arrays are grown as needed
+        first_index = new int [16];
+        n_in_seg = new int [16];
+        start = new long [16];
+        steps = new long [16];
+        n = 0;
+        first = 0;
+        while (first < len)
+        {
+            if (first +1 >= len)
+            {
+                last = first;
+                step = 0;
+            }
+            else
+            {
+                step = tt2000 [from + first +1] - tt2000 [from + first];
+                last = first +1;
+                while (last +1 < len && tt2000 [from + last +1] - tt2000 [from + last] == step) last ++;
+                // if a pair of samples doesn't continue, but a longer segment starts at
+                // the second sample, the first sample is on its own
+                if (last == first +1 && last +2 < len &&
+                    tt2000 [from + last +1] - tt2000 [from + last] == tt2000 [from + last +2] - tt2000 [from + last +1])
+                {
+                    last = first;
+                    step = 0;
+                }
+            }
+            if (n >= first_index.length)
+            {
+                first_index = Arrays.copyOf (first_index, n * 2);
+                n_in_seg = Arrays.copyOf (n_in_seg, n * 2);
+                start = Arrays.copyOf (start, n * 2);
+                steps = Arrays.copyOf (steps, n * 2);
+            }
+            first_index [n] = first;
+            n_in_seg [n] = last - first +1;
+            start [n] = tt2000 [from + first];
+            steps [n] = step;
+            n ++;
+            first = last +1;
+        }
+
+        this.n_samples = len;
+        this.n_segments = n;
+        this.seg_first_index = Arrays.copyOf (first_index, n);
+        this.seg_n_samples = Arrays.copyOf (n_in_seg, n);
+        this.seg_start_tt2000 = Arrays.copyOf (start, n);
+        this.seg_step = Arrays.copyOf (steps, n);
+        this.gaps = findGaps ();
+    }
+
+    /** get the number of time stamps in the index
+     * @return the number of time stamps */
+    public int getNSamples () { return n_samples; }
+    /** get the number of segments
+     * @return the number of segments */
+    public int getNSegments () { return n_segments; }
+    /** find out if all the time stamps are in one regular segment
+     * @return true if there is only one segment */
+    public boolean isRegular () { return n_segments <= 1; }
+
+    /** get a segment
+     * @param index the segment number (zero based)
+     * @return the segment */
+    public Segment getSegment (int index)
+    {
+        return new Segment (seg_first_index [index], seg_n_samples [index], seg_start_tt2000 [index], seg_step [index]);
+    }
+
+    /** get all the segments
+     * @return the segments, in time order */
+    public List<Segment> getSegments ()
+    {
+        int count;
+        List<Segment> segments;
+
+        segments = new ArrayList<> (n_segments);
+        for (count=0; count<n_segments; count++) segments.add (getSegment (count));
+        return segments;
+    }
+
+    /** get the gaps
+     * @return the gaps, in time order */
+    public List<Gap> getGaps () { return gaps; }
+
+    /** get the time stamp of a sample
+     * @param index the index of the sample
+     * @return the TT2000 time stamp */
+    public long getTT2000 (int index)
+    {
+        int segment;
+
+        if (index < 0 || index >= n_samples) throw new IndexOutOfBoundsException ("Time stamp index out of range: " + index);
+        segment = findSegmentByIndex (index);
+        return seg_start_tt2000 [segment] + (seg_step [segment] * (index - seg_first_index [segment]));
+    }
+
+    /** find the sample with a given time stamp
+     * @param tt2000 the time stamp to look for
+     * @return the index of the sample or -1 if there is no sample at this time */
+    public int indexOf (long tt2000)
+    {
+        int index = floor (tt2000);
+        if (index >= 0 && getTT2000 (index) == tt2000) return index;
+        return -1;
+    }
+
+    /** find the last sample at or before a time
+     * @param tt2000 the time
+     * @return the index of the sample or -1 if all samples are after the time */
+    public int floor (long tt2000)
+    {
+        int segment;
+        long offset;
+
+        segment = findSegmentByTime (tt2000);
+        if (segment < 0) return -1;
+        if (seg_step [segment] <= 0) return seg_first_index [segment];
+        // check against the end of the segment first - for a time far beyond the
+        // end, the difference from the start of the segment can overflow
+        if (tt2000 >= seg_start_tt2000 [segment] + (seg_step [segment] * (seg_n_samples [segment] -1)))
+            return seg_first_index [segment] + seg_n_samples [segment] -1;
+        offset = (tt2000 - seg_start_tt2000 [segment]) / seg_step [segment];
+        return seg_first_index [segment] + (int) offset;
+    }
+
+    /** find the first sample at or after a time
+     * @param tt2000 the time
+     * @return the index of the sample or -1 if all samples are before the time */
+    public int ceiling (long tt2000)
+    {
+        int index;
+
+        index = floor (tt2000);
+        if (index >= 0 && getTT2000 (index) == tt2000) return index;
+        index ++;
+        if (index >= n_samples) return -1;
+        return index;
+    }
+
+    /** find the sample nearest to a time - if the time is half way between
+     * two samples the earlier sample is used
+     * @param tt2000 the time
+     * @return the index of the sample or -1 if there are no samples */
+    public int nearest (long tt2000)
+    {
+        int before, after;
+
+        before = floor (tt2000);
+        after = ceiling (tt2000);
+        if (before < 0) return after;
+        if (after < 0) return before;
+        if (tt2000 - getTT2000 (before) <= getTT2000 (after) - tt2000) return before;
+        return after;
+    }
+
+    /** binary search for the last segment that starts at or before a time
+     * @return the segment number or -1 if the time is before the first segment */
+    private int findSegmentByTime (long tt2000)
+    {
+        int low, high, mid;
+
+        if (n_segments <= 0 || tt2000 < seg_start_tt2000 [0]) return -1;
+        low = 0;
+        high = n_segments -1;
+        while (low < high)
+        {
+            mid = (low + high + 1) >>> 1;
+            if (seg_start_tt2000 [mid] <= tt2000) low = mid;
+            else high = mid -1;
+        }
+        return low;
+    }
+
+    /** binary search for the segment that contains a sample */
+    private int findSegmentByIndex (int index)
+    {
+        int low, high, mid;
+
+        low = 0;
+        high = n_segments -1;
+        while (low < high)
+        {
+            mid = (low + high + 1) >>> 1;
+            if (seg_first_index [mid] <= index) low = mid;
+            else high = mid -1;
+        }
+        return low;
+    }
+
+    /** check the boundaries between segments for missing samples - a boundary
+     * where the step (in UTC) is the same as the step in the segment is caused by
+     * a leap second, not a gap */
+    private List<Gap> findGaps ()
+    throws IMCDFException
+    {
+        int count;
+        long last_before, first_after, step, utc_diff;
+        List<Gap> list;
+
+        list = new ArrayList<> ();
+        for (count=1; count<n_segments; count++)
+        {
+            last_before = seg_start_tt2000 [count -1] + (seg_step [count -1] * (seg_n_samples [count -1] -1));
+            first_after = seg_start_tt2000 [count];
+            step = seg_step [count -1] > 0 ? seg_step [count -1] : seg_step [count];
+            utc_diff = ImagCDFTimeConverter.TT2000ToEpochNanos (first_after) -
+                       ImagCDFTimeConverter.TT2000ToEpochNanos (last_before);
+            if (step <= 0)
+                list.add (new Gap (seg_first_index [count], last_before, first_after, 0));
+            else if (utc_diff > step)
+                list.add (new Gap (seg_first_index [count], last_before, first_after, ((utc_diff + (step / 2)) / step) -1));
+        }
+        return list;
+    }
+
+}
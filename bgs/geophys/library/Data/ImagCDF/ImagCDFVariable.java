@@ -1,13 +1,24 @@
 
 package bgs.geophys.library.Data.ImagCDF;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.DoubleConsumer;
 
 /** the base class for ImagCDFVariable implementations */
 public abstract class ImagCDFVariable
+implements AutoCloseable
 {
+    /** the number of samples copied at a time when moving data between stores
+     * or writing data that isn't held in an array */
+    protected static final int COPY_BLOCK_SIZE = 65536;
+    
     /** only allow creation by subclasses */
     protected ImagCDFVariable ()
     {
@@ -42,6 +53,32 @@ public abstract class ImagCDFVariable
     protected int data_offset;
     /** the length of the data */
     protected int data_length;
+    /** for variables read in lazy mode, the reader used to load the data when
+     * it is first needed - null once the data has been loaded */
+    protected IMCDFRecordReader lazy_reader;
+    /** for variables read in lazy mode, the records to load from the CDF
+     * file - null to load all the records */
+    protected ImagCDFRecordRange lazy_range;
+    /** for variables read in lazy mode, the memory budget that loading the
+     * data is charged to - null if there is no budget */
+    protected ImagCDFMemoryBudget lazy_budget;
+    /** data held outside the Java heap, used instead of the data array - null
+     * for data on the heap */
+    protected DoubleBuffer off_heap_data;
+    /** data held in a compact encoding or compressed, used instead of the
+     * data array - null for data that isn't held in a store */
+    protected IMCDFDataStore data_store;
+    /** index to the start of the data in the store */
+    protected int data_store_offset;
+    /** the map of missing samples, null until it is first asked for */
+    protected ImagCDFMissingDataMap missing_data_map;
+    /** summary statistics for the data, null until they are first asked for */
+    protected ImagCDFVariableStatistics statistics;
+    /** the compression used when this variable is written, null to use the file's compression */
+    protected ImagCDFCompression write_compression;
+    /** true once close() has released data held off the heap - the length of
+     * the data is kept, but the data can no longer be read */
+    protected boolean closed;
 
     /** add a listener for progress updates
      * @param listener the listener */
@@ -75,6 +112,13 @@ public abstract class ImagCDFVariable
     /** get the name of the variable in the CDF file
      * @return the variable name */
     public String getVarName () { return var_name; }
+    /** set the compression used when this variable is written, overriding the
+     * compression given for the file
+     * @param write_compression the compression, or null to use the file's compression */
+    public void setWriteCompression (ImagCDFCompression write_compression) { this.write_compression = write_compression; }
+    /** get the compression used when this variable is written
+     * @return the compression, or null if the file's compression is used */
+    public ImagCDFCompression getWriteCompression () { return write_compression; }
     /** get the type of variable
      * @return the variable type */
     public IMCDFVariableType getVariableType () { return variable_type; }
@@ -100,24 +144,481 @@ public abstract class ImagCDFVariable
      * @return the orientation */
     public String getElementRecorded () { return elem_rec; }
     
-    /** get the data for this variable
-     * @return the data */
+    /** get the data for this variable - for variables read in lazy mode the
+     * data is read from the CDF file the first time this is called
+     * @return the data
+     * @throws IllegalStateException if the data could not be loaded from the CDF file
+     *         (use loadData() to have this reported as an IMCDFException) */
     public double [] getData () 
     {
-        int count;
-        double data_subset [];
+        try
+        {
+            loadData ();
+        }
+        catch (IMCDFException e)
+        {
+            throw new IllegalStateException (e.getMessage(), e);
+        }
         
+        if (data == null)
+        {
+            // data that is off the heap or compact is copied into a new array
+            double heap_data [] = new double [data_length];
+            try
+            {
+                copyInto (heap_data, 0, 0, data_length);
+            }
+            catch (IMCDFException e)
+            {
+                throw new IllegalStateException (e.getMessage(), e);
+            }
+            return heap_data;
+        }
         if (data_offset == 0 && data_length == data.length)
             return data;
+        return Arrays.copyOfRange (data, data_offset, data_offset + data_length);
+    }
+    
+    /** get a read-only view of the data for this variable - no data is copied,
+     * except for compact or compressed data, which is decoded into a new buffer
+     * @return the data
+     * @throws IMCDFException if the data could not be loaded from the CDF file */
+    public DoubleBuffer asDoubleBuffer ()
+    throws IMCDFException
+    {
+        loadData ();
+        if (off_heap_data != null) return off_heap_data.asReadOnlyBuffer();
+        if (data_store != null) return DoubleBuffer.wrap (getData()).asReadOnlyBuffer();
+        return DoubleBuffer.wrap (data, data_offset, data_length).slice().asReadOnlyBuffer();
+    }
+    
+    /** get a single data sample
+     * @param index the index of the sample
+     * @return the sample
+     * @throws IMCDFException if the data could not be loaded from the CDF file */
+    public double get (int index)
+    throws IMCDFException
+    {
+        if (index < 0 || index >= data_length)
+            throw new IndexOutOfBoundsException ("Data index out of range: " + index);
+        loadData ();
+        if (off_heap_data != null) return off_heap_data.get (index);
+        if (data_store != null) return data_store.get (data_store_offset + index);
+        return data [data_offset + index];
+    }
+    
+    /** copy data into an array supplied by the caller. For variables read in
+     * lazy mode that haven't been loaded, only the requested samples are read
+     * from the file
+     * @param dst the array to copy into
+     * @param dst_pos the index in dst to copy the first sample to
+     * @param from the index of the first sample to copy
+     * @param len the number of samples to copy
+     * @throws IMCDFException if there was an error reading the data */
+    public void copyInto (double dst [], int dst_pos, int from, int len)
+    throws IMCDFException
+    {
+        DoubleBuffer buffer;
+        
+        if (from < 0 || len < 0 || from + len > data_length || dst_pos < 0 || dst_pos + len > dst.length)
+            throw new IndexOutOfBoundsException ("Data copy out of range: " + from + ", " + len);
+        synchronized (this)
+        {
+            checkNotClosed ();
+            if (off_heap_data != null)
+            {
+                buffer = off_heap_data.duplicate();
+                buffer.position (from);
+                buffer.get (dst, dst_pos, len);
+            }
+            else if (data_store != null)
+                data_store.decode (data_store_offset + from, dst, dst_pos, len);
+            else if (lazy_reader != null)
+                lazy_reader.readDataRecords (var_name, from + (lazy_range == null ? 0 : lazy_range.getFirstRecord()), len, dst, dst_pos);
+            else
+                System.arraycopy (data, data_offset + from, dst, dst_pos, len);
+        }
+    }
+    
+    /** pass each data sample in turn to a consumer
+     * @param consumer the consumer
+     * @throws IMCDFException if the data could not be loaded from the CDF file */
+    public void forEach (DoubleConsumer consumer)
+    throws IMCDFException
+    {
+        int count, index, n;
+        double block [];
+        
+        loadData ();
+        if (off_heap_data != null)
+        {
+            for (count=0; count<data_length; count++)
+                consumer.accept (off_heap_data.get (count));
+        }
+        else if (data_store != null)
+        {
+            // decode a block at a time, so that compressed blocks are only decompressed once
+            block = new double [Math.max (1, Math.min (COPY_BLOCK_SIZE, data_length))];
+            for (count=0; count<data_length; count+=n)
+            {
+                n = Math.min (block.length, data_length - count);
+                data_store.decode (data_store_offset + count, block, 0, n);
+                for (index=0; index<n; index++) consumer.accept (block [index]);
+            }
+        }
+        else
+        {
+            for (count=0; count<data_length; count++)
+                consumer.accept (data [data_offset + count]);
+        }
+    }
+    
+    /** pass a range of data samples to a consumer, without copying them - data
+     * that is off the heap, compact or compressed is passed in blocks, each copied to a
+     * temporary array, so the consumer may be called more than once
+     * @param from the index of the first sample
+     * @param len the number of samples
+     * @param consumer the consumer
+     * @throws IMCDFException if the data could not be loaded from the CDF file */
+    public void forRange (int from, int len, IMCDFDataRangeConsumer consumer)
+    throws IMCDFException
+    {
+        int count, n;
+        double block [];
+        
+        if (from < 0 || len < 0 || from + len > data_length)
+            throw new IndexOutOfBoundsException ("Data range out of range: " + from + ", " + len);
+        loadData ();
+        if (data != null)
+            consumer.accept (data, data_offset + from, len);
+        else
+        {
+            block = new double [Math.max (1, Math.min (COPY_BLOCK_SIZE, len))];
+            for (count=0; count<len; count+=n)
+            {
+                n = Math.min (block.length, len - count);
+                copyInto (block, 0, from + count, n);
+                consumer.accept (block, 0, n);
+            }
+        }
+    }
+    
+    /** get a map of the missing samples in this variable. The map is built the
+     * first time this is called, then kept - for variables read in lazy mode
+     * that haven't been loaded, the data is read a block at a time to build the
+     * map, but isn't kept
+     * @return the map
+     * @throws IMCDFException if the data could not be read from the CDF file */
+    public synchronized ImagCDFMissingDataMap getMissingDataMap ()
+    throws IMCDFException
+    {
+        int count, index, n;
+        double block [];
+        BitSet missing;
+        
+        checkNotClosed ();
+        if (missing_data_map != null) return missing_data_map;
+        missing = new BitSet (data_length);
+        block = new double [Math.max (1, Math.min (COPY_BLOCK_SIZE, data_length))];
+        for (count=0; count<data_length; count+=n)
+        {
+            n = Math.min (block.length, data_length - count);
+            copyInto (block, 0, count, n);
+            for (index=0; index<n; index++)
+            {
+                if (ImagCDFMissingDataMap.isMissingValue (block [index], fill_val)) missing.set (count + index);
+            }
+        }
+        missing_data_map = new ImagCDFMissingDataMap (missing, data_length);
+        return missing_data_map;
+    }
+    
+    /** get summary statistics for the data in this variable, calculated in a
+     * single pass. The statistics are calculated the first time this is called,
+     * then kept - for variables read in lazy mode that haven't been loaded, the
+     * data is read a block at a time, but isn't kept
+     * @return the statistics
+     * @throws IMCDFException if the data could not be read from the CDF file */
+    public synchronized ImagCDFVariableStatistics getStatistics ()
+    throws IMCDFException
+    {
+        checkNotClosed ();
+        if (statistics == null) statistics = ImagCDFVariableStatistics.calculate (this);
+        return statistics;
+    }
+    
+    /** move the data for this variable out of the Java heap into a direct
+     * buffer. Data that hasn't been loaded from the CDF file (lazy mode) is read
+     * a block at a time straight into the buffer, so it is never all on the heap.
+     * The accessors work as before, though getData() has to copy the data back
+     * onto the heap, so use the other accessors where possible. Compact or
+     * compressed data is already small, so it is left where it is.
+     * @throws IMCDFException if the data could not be read from the CDF file */
+    public synchronized void moveOffHeap ()
+    throws IMCDFException
+    {
+        int count, n;
+        double block [];
+        DoubleBuffer buffer;
+        
+        checkNotClosed ();
+        if (off_heap_data != null || data_store != null) return;
+        buffer = ByteBuffer.allocateDirect (data_length * 8).order (ByteOrder.nativeOrder()).asDoubleBuffer();
+        block = new double [Math.max (1, Math.min (COPY_BLOCK_SIZE, data_length))];
+        for (count=0; count<data_length; count+=n)
+        {
+            n = Math.min (block.length, data_length - count);
+            copyInto (block, 0, count, n);
+            buffer.put (block, 0, n);
+        }
+        buffer.rewind ();
+        off_heap_data = buffer;
+        data = null;
+        data_offset = 0;
+        lazy_reader = null;
+        lazy_range = null;
+    }
+    
+    /** find out whether the data for this variable is held outside the Java heap
+     * @return true if the data is off the heap */
+    public boolean isOffHeap () { return off_heap_data != null; }
+    
+    /** hold the data for this variable in a compact encoding, using 32 bits
+     * per sample instead of 64. Data that hasn't been loaded from the CDF file
+     * (lazy mode) is read a block at a time straight into the compact store.
+     * The accessors work as before, returning the data rounded to the resolution.
+     * The fill value and ImagCDF.MISSING_DATA_VALUE are returned exactly.
+     * @param encoding the way that samples are encoded
+     * @param resolution the resolution of the data (e.g. 0.01 for data reported to 0.01nT)
+     * @throws IMCDFException if the data could not be read from the CDF file or
+     *         a sample can't be held at the resolution - the data is left as it was */
+    public synchronized void compact (ImagCDFCompactData.Encoding encoding, double resolution)
+    throws IMCDFException
+    {
+        int count, n;
+        double block [];
+        ImagCDFCompactData store;
+        
+        checkNotClosed ();
+        store = new ImagCDFCompactData (encoding, resolution, fill_val == null ? ImagCDF.MISSING_DATA_VALUE : fill_val, data_length);
+        block = new double [Math.max (1, Math.min (COPY_BLOCK_SIZE, data_length))];
+        try
+        {
+            for (count=0; count<data_length; count+=n)
+            {
+                n = Math.min (block.length, data_length - count);
+                copyInto (block, 0, count, n);
+                store.encode (block, 0, count, n);
+            }
+        }
+        catch (IMCDFException e)
+        {
+            throw new IMCDFException ("Data for element " + elem_rec + ": " + e.getMessage(), e);
+        }
+        data_store = store;
+        data_store_offset = 0;
+        off_heap_data = null;
+        data = null;
+        data_offset = 0;
+        lazy_reader = null;
+        lazy_range = null;
+    }
+    
+    /** find out whether the data for this variable is held in a compact encoding
+     * @return true if the data is compact */
+    public boolean isCompact () { return data_store instanceof ImagCDFCompactData; }
+    
+    /** get the resolution of compact data
+     * @return the resolution or 0 if the data isn't compact */
+    public double getCompactResolution () { return isCompact() ? ((ImagCDFCompactData) data_store).getResolution() : 0.0; }
+    
+    /** hold the data for this variable in a compressed store (see
+     * ImagCDFCompressedData), which is lossless. Data that hasn't been loaded
+     * from the CDF file (lazy mode) is read a block at a time straight into the
+     * store. The accessors work as before, but random access to single samples
+     * is slower, as each sample has to be decompressed, so use copyInto(),
+     * forEach() or forRange() where possible.
+     * @throws IMCDFException if the data could not be read from the CDF file */
+    public synchronized void compress ()
+    throws IMCDFException
+    {
+        int count, n;
+        double block [];
+        ImagCDFCompressedData store;
         
-        data_subset = new double [data_length];
-        for (count=0; count<data_length; count++)
-            data_subset [count] = data [count + data_offset];
-        return data_subset;
+        checkNotClosed ();
+        if (isCompressed()) return;
+        store = new ImagCDFCompressedData (data_length);
+        block = new double [Math.max (1, Math.min (COPY_BLOCK_SIZE, data_length))];
+        for (count=0; count<data_length; count+=n)
+        {
+            n = Math.min (block.length, data_length - count);
+            copyInto (block, 0, count, n);
+            store.append (block, 0, n);
+        }
+        data_store = store;
+        data_store_offset = 0;
+        off_heap_data = null;
+        data = null;
+        data_offset = 0;
+        lazy_reader = null;
+        lazy_range = null;
+    }
+    
+    /** find out whether the data for this variable is compressed
+     * @return true if the data is compressed */
+    public boolean isCompressed () { return data_store instanceof ImagCDFCompressedData; }
+    
+    /** release data that is held outside the Java heap - after this call the
+     * variable is closed: getDataLength() still gives the length of the data, but
+     * the accessors throw an IllegalStateException. The memory is returned when the
+     * buffer is garbage collected, unless it is still used by a slice of this
+     * variable. For data on the heap this does nothing. */
+    @Override
+    public synchronized void close ()
+    {
+        if (off_heap_data != null)
+        {
+            off_heap_data = null;
+            data = null;
+            data_offset = 0;
+            missing_data_map = null;
+            statistics = null;
+            closed = true;
+        }
     }
+    
+    /** find out whether close() has released this variable's data
+     * @return true if the data can no longer be read */
+    public boolean isClosed () { return closed; }
+    
+    /** check that close() hasn't released this variable's data
+     * @throws IllegalStateException if the variable has been closed */
+    protected void checkNotClosed ()
+    {
+        if (closed) throw new IllegalStateException ("Data variable '" + var_name + "' has been closed");
+    }
+
     /** get the length of the data for this variable
      * @return the length of data */
     public int getDataLength () { return data_length; }
+    
+    /** for variables read in lazy mode, read the data from the CDF file if
+     * this has not already been done - for other variables this does nothing
+     * @throws IMCDFException if there was an error reading the data */
+    public synchronized void loadData ()
+    throws IMCDFException
+    {
+        double new_data [];
+        
+        checkNotClosed ();
+        if (lazy_reader == null) return;
+        if (lazy_budget != null) lazy_budget.reserve ((long) data_length * 8l, "data variable '" + var_name + "'");
+        try
+        {
+            if (lazy_range == null)
+                new_data = lazy_reader.readDataRecords (var_name);
+            else
+                new_data = lazy_reader.readDataRecords (var_name, lazy_range.getFirstRecord(), lazy_range.getNRecords());
+            if (new_data.length != data_length)
+                throw new IMCDFException ("Data variable '" + var_name + "' changed length while being read");
+        }
+        catch (IMCDFException | RuntimeException e)
+        {
+            if (lazy_budget != null) lazy_budget.release ((long) data_length * 8l);
+            throw e;
+        }
+        data = new_data;
+        data_offset = 0;
+        lazy_reader = null;
+    }
+    
+    /** charge the memory used when data read in lazy mode is loaded to a budget -
+     * once the budget is used up, loading data throws an IMCDFException
+     * @param lazy_budget the budget, or null for no budget */
+    protected void setLazyBudget (ImagCDFMemoryBudget lazy_budget) { this.lazy_budget = lazy_budget; }
+    
+    /** create a view of part of this variable's data, which can be written to
+     * a file in the same way as the original variable
+     * @param offset the index of the first sample in the view
+     * @param length the number of samples in the view
+     * @return the view */
+    public abstract ImagCDFVariable slice (int offset, int length);
+    
+    /** make this object a view of part of another variable. Data that is in
+     * memory is shared with the source, not copied. Data that has not yet been
+     * loaded from a file (lazy mode) will be loaded from the same file, so the
+     * source must not be closed until it is loaded.
+     * @param source the variable to take the view from
+     * @param offset the index of the first sample in the view
+     * @param length the number of samples in the view */
+    protected void setSlice (ImagCDFVariable source, int offset, int length)
+    {
+        source.checkNotClosed ();
+        if (offset < 0 || length < 0 || offset + length > source.getDataLength())
+            throw new IndexOutOfBoundsException ("Data slice out of range: " + offset + ", " + length);
+        variable_type = source.variable_type;
+        var_name = source.var_name;
+        field_nam = source.field_nam;
+        valid_min = source.valid_min;
+        valid_max = source.valid_max;
+        units = source.units;
+        fill_val = source.fill_val;
+        elem_rec = source.elem_rec;
+        depend_0 = source.depend_0;
+        write_compression = source.write_compression;
+        synchronized (source)
+        {
+            lazy_reader = source.lazy_reader;
+            lazy_budget = source.lazy_budget;
+            data_length = length;
+            missing_data_map = source.missing_data_map == null ? null : source.missing_data_map.slice (offset, length);
+            if (source.data_store != null)
+            {
+                data_store = source.data_store;
+                data_store_offset = source.data_store_offset + offset;
+                data = null;
+                data_offset = 0;
+            }
+            else if (source.off_heap_data != null)
+            {
+                DoubleBuffer buffer = source.off_heap_data.duplicate();
+                buffer.position (offset);
+                buffer.limit (offset + length);
+                off_heap_data = buffer.slice();
+                data = null;
+                data_offset = 0;
+            }
+            else if (lazy_reader != null)
+            {
+                data = null;
+                data_offset = 0;
+                lazy_range = new ImagCDFRecordRange ((source.lazy_range == null ? 0 : source.lazy_range.getFirstRecord()) + offset, length);
+            }
+            else
+            {
+                data = source.data;
+                data_offset = source.data_offset + offset;
+            }
+        }
+    }
+    
+    /** find out whether the data for this variable is in memory
+     * @return false if this variable was read in lazy mode and its data has not yet been loaded */
+    public boolean isDataLoaded () { return lazy_reader == null; }
+    
+    /** get the approximate amount of memory used to hold this variable's data,
+     * on or off the heap - data that is still in the CDF file (lazy mode) or in
+     * a memory mapped file isn't counted. A store shared with slices of this
+     * variable is counted in full
+     * @return the size in bytes */
+    public long getMemoryFootprint ()
+    {
+        if (off_heap_data != null) return (long) data_length * 8l;
+        if (data_store != null) return data_store.getMemorySize();
+        if (data != null && lazy_reader == null) return (long) data_length * 8l;
+        return 0l;
+    }
 
     /** return true if this variable is a geomagnetic vector data set
      * @return true or false */
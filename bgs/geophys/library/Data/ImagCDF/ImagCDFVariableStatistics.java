@@ -0,0 +1,285 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Summary statistics for the data in a variable, calculated in a single
+ * pass through the data. Samples that are missing (see ImagCDFMissingDataMap)
+ * and samples outside the variable's valid minimum and maximum are counted,
+ * but not used for the minimum, maximum, mean or standard deviation.
+ *
+ * The data is divided into chunks. The statistics for each chunk are
+ * calculated relative to the chunk's first sample, so the sums stay small
+ * and accurate, and the chunks are combined using the parallel algorithm of
+ * Chan, Golub and LeVeque. Large arrays are processed in parallel using the
+ * common fork-join pool.
+ *
+ * @author smf
+ */
+public class ImagCDFVariableStatistics
+{
+
+    /** the number of samples in each chunk */
+    public static final int CHUNK_SIZE = 65536;
+    /** arrays with at least this many samples are processed in parallel */
+    public static final int PARALLEL_THRESHOLD = CHUNK_SIZE * 4;
+
+    // private member data
+    private final int n_samples;
+    private final int n_missing;
+    private final int n_out_of_range;
+    private final int n_valid;
+    private final double minimum;
+    private final double maximum;
+    private final double mean;
+    private final double sum_sq_deviations;
+
+    /** create statistics from the accumulated values */
+    private ImagCDFVariableStatistics (Accumulator acc)
+    {
+        this.n_samples = (int) (acc.n_valid + acc.n_missing + acc.n_out_of_range);
+        this.n_missing = (int) acc.n_missing;
+        this.n_out_of_range = (int) acc.n_out_of_range;
+        this.n_valid = (int) acc.n_valid;
+        this.minimum = acc.n_valid > 0 ? acc.minimum : Double.NaN;
+        this.maximum = acc.n_valid > 0 ? acc.maximum : Double.NaN;
+        this.mean = acc.n_valid > 0 ? acc.mean : Double.NaN;
+        this.sum_sq_deviations = acc.m2;
+    }
+
+    /** calculate statistics for part of an array of data
+     * @param data the data
+     * @param offset the index of the first sample
+     * @param length the number of samples
+     * @param fill_val the variable's fill value, may be null
+     * @param valid_min the variable's valid minimum, may be null
+     * @param valid_max the variable's valid maximum, may be null
+     * @return the statistics */
+    public static ImagCDFVariableStatistics calculate (double data [], int offset, int length,
+                                                       Double fill_val, Double valid_min, Double valid_max)
+    {
+        Limits limits;
+        Accumulator acc;
+
+        if (offset < 0 || length < 0 || offset + length > data.length)
+            throw new IndexOutOfBoundsException ("Statistics range out of bounds: " + offset + ", " + length);
+        limits = new Limits (fill_val, valid_min, valid_max);
+        if (length >= PARALLEL_THRESHOLD)
+            acc = ForkJoinPool.commonPool().invoke (new ChunkTask (data, offset, length, limits));
+        else
+            acc = accumulateChunks (data, offset, length, limits);
+        return new ImagCDFVariableStatistics (acc);
+    }
+
+    /** calculate statistics for a variable, reading data that isn't held in
+     * an array a chunk at a time
+     * @param variable the variable
+     * @return the statistics
+     * @throws IMCDFException if the data could not be read from the CDF file */
+    public static ImagCDFVariableStatistics calculate (ImagCDFVariable variable)
+    throws IMCDFException
+    {
+        int count, n;
+        double chunk [];
+        Limits limits;
+        Accumulator acc;
+
+        if (variable.data != null && variable.isDataLoaded())
+            return calculate (variable.data, variable.data_offset, variable.data_length,
+                              variable.getFillValue(), variable.getValidMinimum(), variable.getValidMaximum());
+
+        limits = new Limits (variable.getFillValue(), variable.getValidMinimum(), variable.getValidMaximum());
+        acc = new Accumulator ();
+        chunk = new double [Math.max (1, Math.min (CHUNK_SIZE, variable.getDataLength()))];
+        for (count=0; count<variable.getDataLength(); count+=n)
+        {
+            n = Math.min (chunk.length, variable.getDataLength() - count);
+            variable.copyInto (chunk, 0, count, n);
+            acc.merge (accumulateChunk (chunk, 0, n, limits));
+        }
+        return new ImagCDFVariableStatistics (acc);
+    }
+
+    /** get the number of samples
+     * @return the number of samples */
+    public int getNSamples () { return n_samples; }
+    /** get the number of missing samples
+     * @return the number of missing samples */
+    public int getNMissing () { return n_missing; }
+    /** get the number of samples outside the valid minimum and maximum
+     * @return the number of samples out of range */
+    public int getNOutOfRange () { return n_out_of_range; }
+    /** get the number of samples used for the statistics
+     * @return the number of samples that aren't missing or out of range */
+    public int getNValid () { return n_valid; }
+    /** get the minimum value
+     * @return the minimum or NaN if there are no valid samples */
+    public double getMinimum () { return minimum; }
+    /** get the maximum value
+     * @return the maximum or NaN if there are no valid samples */
+    public double getMaximum () { return maximum; }
+    /** get the mean value
+     * @return the mean or NaN if there are no valid samples */
+    public double getMean () { return mean; }
+    /** get the sample standard deviation (using n-1)
+     * @return the standard deviation or NaN if there are fewer than 2 valid samples */
+    public double getStandardDeviation () { return n_valid > 1 ? Math.sqrt (sum_sq_deviations / (n_valid -1)) : Double.NaN; }
+    /** get the population standard deviation (using n)
+     * @return the standard deviation or NaN if there are no valid samples */
+    public double getPopulationStandardDeviation () { return n_valid > 0 ? Math.sqrt (sum_sq_deviations / n_valid) : Double.NaN; }
+
+    /** accumulate a range of samples one chunk at a time */
+    private static Accumulator accumulateChunks (double data [], int offset, int length, Limits limits)
+    {
+        int count, n;
+        Accumulator acc;
+
+        acc = new Accumulator ();
+        for (count=0; count<length; count+=n)
+        {
+            n = Math.min (CHUNK_SIZE, length - count);
+            acc.merge (accumulateChunk (data, offset + count, n, limits));
+        }
+        return acc;
+    }
+
+    /** accumulate a single chunk - the sums are taken relative to the first
+     * valid sample, so they stay small for slowly varying data */
+    private static Accumulator accumulateChunk (double data [], int offset, int length, Limits limits)
+    {
+        int count;
+        long n_valid, n_missing, n_out_of_range;
+        double value, shift, diff, sum, sum_sq, min, max;
+        Accumulator acc;
+
+        n_valid = n_missing = n_out_of_range = 0;
+        shift = sum = sum_sq = 0.0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+        for (count=offset; count<offset + length; count++)
+        {
+            value = data [count];
+            if (value != value || value == ImagCDF.MISSING_DATA_VALUE || value == limits.fill_val)
+                n_missing ++;
+            else if (value < limits.valid_min || value > limits.valid_max)
+                n_out_of_range ++;
+            else
+            {
+                if (n_valid == 0) shift = value;
+                diff = value - shift;
+                sum += diff;
+                sum_sq += diff * diff;
+                if (value < min) min = value;
+                if (value > max) max = value;
+                n_valid ++;
+            }
+        }
+
+        acc = new Accumulator ();
+        acc.n_valid = n_valid;
+        acc.n_missing = n_missing;
+        acc.n_out_of_range = n_out_of_range;
+        acc.minimum = min;
+        acc.maximum = max;
+        if (n_valid > 0)
+        {
+            acc.mean = shift + (sum / n_valid);
+            acc.m2 = Math.max (0.0, sum_sq - ((sum * sum) / n_valid));
+        }
+        return acc;
+    }
+
+    /** the variable's limits, as primitive values that are fast to compare */
+    private static class Limits
+    {
+        private final double fill_val;
+        private final double valid_min;
+        private final double valid_max;
+        private Limits (Double fill_val, Double valid_min, Double valid_max)
+        {
+            // NaN never compares equal, and NaN samples are already counted as missing
+            this.fill_val = fill_val == null ? Double.NaN : fill_val;
+            this.valid_min = valid_min == null ? Double.NEGATIVE_INFINITY : valid_min;
+            this.valid_max = valid_max == null ? Double.POSITIVE_INFINITY : valid_max;
+        }
+    }
+
+    /** partial statistics that can be combined */
+    private static class Accumulator
+    {
+        private long n_valid;
+        private long n_missing;
+        private long n_out_of_range;
+        private double minimum = Double.POSITIVE_INFINITY;
+        private double maximum = Double.NEGATIVE_INFINITY;
+        private double mean;
+        private double m2;
+
+        /** combine another set of partial statistics with this one */
+        private void merge (Accumulator other)
+        {
+            long n;
+            double delta;
+
+            n_missing += other.n_missing;
+            n_out_of_range += other.n_out_of_range;
+            if (other.n_valid == 0) return;
+            if (n_valid == 0)
+            {
+                n_valid = other.n_valid;
+                minimum = other.minimum;
+                maximum = other.maximum;
+                mean = other.mean;
+                m2 = other.m2;
+                return;
+            }
+            n = n_valid + other.n_valid;
+            delta = other.mean - mean;
+            mean += delta * ((double) other.n_valid / (double) n);
+            m2 += other.m2 + (delta * delta * ((double) n_valid * (double) other.n_valid / (double) n));
+            minimum = Math.min (minimum, other.minimum);
+            maximum = Math.max (maximum, other.maximum);
+            n_valid = n;
+        }
+    }
+
+    /** a fork-join task that splits an array until it is small enough to process directly */
+    private static class ChunkTask extends RecursiveTask<Accumulator>
+    {
+        private static final long serialVersionUID = 1L;
+        private final double data [];
+        private final int offset;
+        private final int length;
+        private final Limits limits;
+        private ChunkTask (double data [], int offset, int length, Limits limits)
+        {
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.limits = limits;
+        }
+        @Override
+        protected Accumulator compute ()
+        {
+            int half;
+            ChunkTask first;
+            Accumulator first_acc, second_acc;
+
+            if (length <= CHUNK_SIZE * 2) return accumulateChunks (data, offset, length, limits);
+            half = length / 2;
+            first = new ChunkTask (data, offset, half, limits);
+            first.fork ();
+            second_acc = new ChunkTask (data, offset + half, length - half, limits).compute ();
+            first_acc = first.join ();
+            first_acc.merge (second_acc);
+            return first_acc;
+        }
+    }
+
+}
@@ -1,24 +1,74 @@
 
 package bgs.geophys.library.Data.ImagCDF;
 
-import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDFLowLevelReader_PureJava;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
 
 /** the base class for ImagCDFVariableTS implementations */
 public abstract class ImagCDFVariableTS
+implements AutoCloseable
 {
+    /** the number of time stamps copied at a time when moving time stamps
+     * between stores or writing time stamps that aren't held in an array */
+    protected static final int COPY_BLOCK_SIZE = 65536;
+    
     // a list of listeners who will recieve "percent complete" notification during writing of data
     private final List<IMCDFWriteProgressListener> write_progress_listeners;
 
     /** the name of this variable */
     protected String var_name;
+    /** the compression used when this variable is written, null to use the file's compression */
+    protected ImagCDFCompression write_compression;
     /** the array of time stamps in CDF_TT2000 = nanoseconds since 20000101T000000Z */
     protected long time_stamps [];
+    /** index to the first time stamp in the array */
+    protected int time_stamps_offset;
+    /** the number of time stamps in the array that belong to this variable */
+    protected int time_stamps_length;
+    /** time stamps held outside the Java heap, used instead of the time stamp
+     * array - null for time stamps on the heap */
+    protected LongBuffer off_heap_time_stamps;
+    /** compressed time stamps, used instead of the time stamp array - null for
+     * time stamps that aren't compressed. time_stamps_offset is the index to the
+     * first time stamp in the store */
+    protected ImagCDFCompressedTimeStamps compressed_time_stamps;
     /** the sample period in seconds, set to -1 until calculated */
     protected double sample_period;
+    /** for time stamps read in lazy mode, the reader used to load the time stamps
+     * when they are first needed - null once the time stamps have been loaded */
+    protected IMCDFRecordReader lazy_reader;
+    /** for time stamps read in lazy mode, the number of time stamps in the CDF file */
+    protected int lazy_n_samples;
+    /** for time stamps read in lazy mode, the records to load from the CDF
+     * file - null to load all the records */
+    protected ImagCDFRecordRange lazy_range;
+    /** for time stamps read in lazy mode, the memory budget that loading the
+     * time stamps is charged to - null if there is no budget */
+    protected ImagCDFMemoryBudget lazy_budget;
+    /** true for regular time stamps that are calculated from the start date
+     * and sample period rather than being stored - false once the time stamps
+     * have been put in the array */
+    protected boolean regular;
+    /** for regular time stamps, the first time stamp in milliseconds since 1970 (UTC) */
+    protected long regular_start_millis;
+    /** for regular time stamps, the number of time stamps */
+    protected int regular_n_samples;
+    /** true once close() has released time stamps held off the heap - the number
+     * of time stamps is kept, but the time stamps can no longer be read */
+    protected boolean closed;
 
     /** create a new ImagCDFVariableTS */
     protected ImagCDFVariableTS ()
@@ -65,9 +115,20 @@ public abstract class ImagCDFVariableTS
         int count;
         Date dates [];
         
-        dates = new Date [time_stamps.length];
+        if (regular)
+        {
+            dates = new Date [regular_n_samples];
+            for (count=0; count<dates.length; count++)
+                dates [count] = new Date (regular_start_millis + getRegularOffsetMillis (count));
+            return dates;
+        }
+        
+        loadTimeStamps ();
+        long utc_millis [] = new long [time_stamps_length];
+        copyEpochMillis (utc_millis, 0, utc_millis.length);
+        dates = new Date [utc_millis.length];
         for (count=0; count<dates.length; count++)
-            dates [count] = ImagCDFLowLevelReader_PureJava.TT2000ToDate(time_stamps[count]);
+            dates [count] = new Date (utc_millis [count]);
         return dates;
     }
 
@@ -77,23 +138,35 @@ public abstract class ImagCDFVariableTS
     public double getSamplePeriod ()
     throws IMCDFException
     {
-        int count;
-        long diff, test_diff;
+        int count, start, n;
+        long diff, test_diff, previous;
+        long block [];
 
         if (sample_period > 0.0) return sample_period;
         
-        if (time_stamps.length < 2) throw new IMCDFException ("Not enough time stamps");
+        loadTimeStamps ();
+        if (time_stamps_length < 2) throw new IMCDFException ("Not enough time stamps");
         
-        // work through the time stamps checking that the difference between them is the same
-        diff = time_stamps [1] - time_stamps [0];
-        for (count=2; count<time_stamps.length; count++)
+        // work through the time stamps checking that the difference between them is the
+        // same - the time stamps are copied a block at a time, so that compressed time
+        // stamps are only decompressed once
+        diff = storedTT2000 (1) - storedTT2000 (0);
+        previous = storedTT2000 (1);
+        block = new long [Math.min (COPY_BLOCK_SIZE, time_stamps_length)];
+        for (start=2; start<time_stamps_length; start+=n)
         {
-            test_diff = time_stamps [count] - time_stamps [count -1];
-            if (test_diff != diff) 
-                // leap seconds could occasionally cause this difference to be one second more than expected
-                test_diff = (time_stamps [count] - time_stamps [count -1]) - 1000000000;
-            if (test_diff != diff) 
-                throw new IMCDFException ("Time difference not constant (1st = " + diff + "mS, " + make_ordinal_number(count) + " = " + test_diff + "mS)");
+            n = Math.min (block.length, time_stamps_length - start);
+            copyTT2000 (block, start, n);
+            for (count=start; count<start + n; count++)
+            {
+                test_diff = block [count - start] - previous;
+                if (test_diff != diff) 
+                    // leap seconds could occasionally cause this difference to be one second more than expected
+                    test_diff = (block [count - start] - previous) - 1000000000;
+                if (test_diff != diff) 
+                    throw new IMCDFException ("Time difference not constant (1st = " + diff + "mS, " + make_ordinal_number(count) + " = " + test_diff + "mS)");
+                previous = block [count - start];
+            }
         }
         sample_period = (double) diff / 1000000000.0;
         
@@ -103,13 +176,592 @@ public abstract class ImagCDFVariableTS
     /** get the name of this variable
      * @return the variable name */
     public String getVarName () { return var_name; }
+    /** set the compression used when this variable is written, overriding the
+     * compression given for the file
+     * @param write_compression the compression, or null to use the file's compression */
+    public void setWriteCompression (ImagCDFCompression write_compression) { this.write_compression = write_compression; }
+    /** get the compression used when this variable is written
+     * @return the compression, or null if the file's compression is used */
+    public ImagCDFCompression getWriteCompression () { return write_compression; }
     /** get the first time stamp
      * @return the time stamp
      * @throws IMCDFException if there was an error reading the time stamps */
-    public Date getStartDate () throws IMCDFException { return ImagCDFLowLevelReader_PureJava.TT2000ToDate(time_stamps [0]); }
+    public Date getStartDate () throws IMCDFException 
+    { 
+        if (regular) return new Date (regular_start_millis);
+        loadTimeStamps (); 
+        return ImagCDFTimeConverter.TT2000ToDate(storedTT2000 (0)); 
+    }
     /** get the number of time stamps
      * @return the number of time stamps */
-    public int getNSamples () { return time_stamps.length; }
+    public int getNSamples () 
+    { 
+        if (regular) return regular_n_samples;
+        if (lazy_reader != null) return lazy_n_samples; 
+        return time_stamps_length; 
+    }
+
+    /** for time stamps read in lazy mode, read the time stamps from the CDF file if
+     * this has not already been done - for regular time stamps, calculate the
+     * time stamps and store them in an array - for other time stamps this does nothing
+     * @throws IMCDFException if there was an error reading the time stamps */
+    public synchronized void loadTimeStamps ()
+    throws IMCDFException
+    {
+        long new_time_stamps [];
+        
+        checkNotClosed ();
+        if (regular)
+        {
+            new_time_stamps = new long [regular_n_samples];
+            calculateRegularTimeStamps (new_time_stamps, 0, regular_n_samples);
+            setTimeStamps (new_time_stamps);
+            regular = false;
+            return;
+        }
+        if (lazy_reader == null) return;
+        if (lazy_budget != null) lazy_budget.reserve ((long) lazy_n_samples * 8l, "time stamp variable '" + var_name + "'");
+        try
+        {
+            if (lazy_range == null)
+                new_time_stamps = lazy_reader.readTimeStampRecords (var_name);
+            else
+                new_time_stamps = lazy_reader.readTimeStampRecords (var_name, lazy_range.getFirstRecord(), lazy_range.getNRecords());
+            if (new_time_stamps.length != lazy_n_samples)
+                throw new IMCDFException ("Time stamp variable '" + var_name + "' changed length while being read");
+        }
+        catch (IMCDFException | RuntimeException e)
+        {
+            if (lazy_budget != null) lazy_budget.release ((long) lazy_n_samples * 8l);
+            throw e;
+        }
+        setTimeStamps (new_time_stamps);
+        lazy_reader = null;
+    }
+    
+    /** find out whether the time stamps are in memory
+     * @return false if this variable was read in lazy mode and its time stamps have not yet been loaded */
+    public boolean isTimeStampsLoaded () { return lazy_reader == null && ! regular; }
+    
+    /** find out whether these time stamps are calculated from a start date
+     * and sample period, rather than being stored in an array
+     * @return true for calculated time stamps */
+    public boolean isRegular () { return regular; }
+    
+    /** get a single TT2000 time stamp, without creating any objects (except
+     * when time stamps read in lazy mode are first loaded)
+     * @param index the index of the time stamp
+     * @return the TT2000 time stamp
+     * @throws IMCDFException if there was an error reading the time stamps */
+    public long getTT2000 (int index)
+    throws IMCDFException
+    {
+        if (index < 0 || index >= getNSamples())
+            throw new IndexOutOfBoundsException ("Time stamp index out of range: " + index);
+        if (regular) return getRegularTimeStamp (index);
+        loadTimeStamps ();
+        return storedTT2000 (index);
+    }
+    
+    /** copy TT2000 time stamps into an array supplied by the caller. For time
+     * stamps read in lazy mode that haven't been loaded, only the requested
+     * time stamps are read from the file
+     * @param dst the array to copy into, starting at dst[0]
+     * @param from the index of the first time stamp to copy
+     * @param len the number of time stamps to copy
+     * @throws IMCDFException if there was an error reading the time stamps */
+    public void copyTT2000 (long dst [], int from, int len)
+    throws IMCDFException
+    {
+        LongBuffer buffer;
+        
+        checkCopyRange (dst, from, len);
+        synchronized (this)
+        {
+            if (regular)
+                calculateRegularTimeStamps (dst, from, len);
+            else if (off_heap_time_stamps != null)
+            {
+                buffer = off_heap_time_stamps.duplicate();
+                buffer.position (from);
+                buffer.get (dst, 0, len);
+            }
+            else if (compressed_time_stamps != null)
+                compressed_time_stamps.decode (time_stamps_offset + from, dst, 0, len);
+            else if (lazy_reader != null)
+                lazy_reader.readTimeStampRecords (var_name, from + (lazy_range == null ? 0 : lazy_range.getFirstRecord()), len, dst, 0);
+            else
+                System.arraycopy (time_stamps, time_stamps_offset + from, dst, 0, len);
+        }
+    }
+    
+    /** copy time stamps into an array supplied by the caller, as milliseconds since
+     * 1970 (UTC) - the values that would be returned by Date.getTime()
+     * @param dst the array to copy into, starting at dst[0]
+     * @param from the index of the first time stamp to copy
+     * @param len the number of time stamps to copy
+     * @throws IMCDFException if there was an error reading or converting the time stamps */
+    public void copyEpochMillis (long dst [], int from, int len)
+    throws IMCDFException
+    {
+        int count;
+        
+        checkCopyRange (dst, from, len);
+        if (isRegular())
+        {
+            for (count=0; count<len; count++)
+                dst [count] = regular_start_millis + getRegularOffsetMillis (from + count);
+        }
+        else
+        {
+            copyTT2000 (dst, from, len);
+            ImagCDFTimeConverter.TT2000ToEpochMillis (dst, dst, len);
+        }
+    }
+    
+    /** copy time stamps into an array supplied by the caller, as nanoseconds since
+     * 1970 (UTC), keeping the full resolution of the TT2000 time stamps
+     * @param dst the array to copy into, starting at dst[0]
+     * @param from the index of the first time stamp to copy
+     * @param len the number of time stamps to copy
+     * @throws IMCDFException if there was an error reading or converting the time stamps */
+    public void copyEpochNanos (long dst [], int from, int len)
+    throws IMCDFException
+    {
+        int count;
+        
+        checkCopyRange (dst, from, len);
+        if (isRegular())
+        {
+            for (count=0; count<len; count++)
+                dst [count] = (regular_start_millis + getRegularOffsetMillis (from + count)) * 1000000l;
+        }
+        else
+        {
+            copyTT2000 (dst, from, len);
+            for (count=0; count<len; count++)
+                dst [count] = (TT2000ToEpochMillis (dst [count]) * 1000000l) + Math.floorMod (dst [count], 1000000l);
+        }
+    }
+    
+    /** get the TT2000 time stamps as a stream of primitive values
+     * @return the stream
+     * @throws IMCDFException if there was an error reading the time stamps */
+    public LongStream getTT2000Stream ()
+    throws IMCDFException
+    {
+        if (! isRegular())
+        {
+            loadTimeStamps ();
+            if (off_heap_time_stamps != null)
+            {
+                final LongBuffer buffer = off_heap_time_stamps;
+                return IntStream.range (0, time_stamps_length).mapToLong (index -> buffer.get (index));
+            }
+            if (compressed_time_stamps != null)
+            {
+                // decompress a block at a time as the stream is consumed
+                final ImagCDFCompressedTimeStamps store = compressed_time_stamps;
+                final int store_offset = time_stamps_offset;
+                final int n_samples = time_stamps_length;
+                PrimitiveIterator.OfLong iterator = new PrimitiveIterator.OfLong ()
+                {
+                    private final long block [] = new long [Math.min (COPY_BLOCK_SIZE, n_samples)];
+                    private int index = 0;
+                    @Override
+                    public boolean hasNext () { return index < n_samples; }
+                    @Override
+                    public long nextLong ()
+                    {
+                        if (index >= n_samples) throw new NoSuchElementException ();
+                        if (index % block.length == 0)
+                            store.decode (store_offset + index, block, 0, Math.min (block.length, n_samples - index));
+                        return block [index ++ % block.length];
+                    }
+                };
+                return StreamSupport.longStream (Spliterators.spliterator (iterator, n_samples, Spliterator.ORDERED | Spliterator.IMMUTABLE), false);
+            }
+            return Arrays.stream (time_stamps, time_stamps_offset, time_stamps_offset + time_stamps_length);
+        }
+        return IntStream.range (0, regular_n_samples).mapToLong (index -> 
+        {
+            try
+            {
+                return getRegularTimeStamp (index);
+            }
+            catch (IMCDFException e)
+            {
+                throw new IllegalStateException (e.getMessage(), e);
+            }
+        });
+    }
+    
+    /** build an index to the time stamps, which finds samples by time
+     * without scanning the time stamps and lists gaps in the data
+     * @return the index
+     * @throws IMCDFException if there was an error reading the time stamps or they
+     *         are not in ascending order */
+    public ImagCDFTimeStampIndex getTimeStampIndex ()
+    throws IMCDFException
+    {
+        long tt2000 [] = new long [getNSamples()];
+        copyTT2000 (tt2000, 0, tt2000.length);
+        return new ImagCDFTimeStampIndex (tt2000);
+    }
+    
+    /** convert a TT2000 time stamp to milliseconds since 1970 (UTC)
+     * @param tt2000 the TT2000 time stamp
+     * @return the date in milliseconds
+     * @throws IMCDFException if there is an error converting the time stamp */
+    protected long TT2000ToEpochMillis (long tt2000)
+    throws IMCDFException
+    {
+        return ImagCDFTimeConverter.TT2000ToEpochMillis (tt2000);
+    }
+    
+    /** convert a date to a TT2000 time stamp - sub-classes can override this
+     * to use their CDF library's conversion
+     * @param utc_millis the date in milliseconds since 1970 (UTC)
+     * @return the TT2000 time stamp
+     * @throws IMCDFException if there is an error converting the date */
+    protected long DateToTT2000 (long utc_millis)
+    throws IMCDFException
+    {
+        return ImagCDFTimeConverter.DateToTT2000 (utc_millis);
+    }
+    
+    /** set up regular time stamps, which are calculated rather than stored
+     * @param start_date the date/time stamp of the first sample
+     * @param samp_per the sample period (time between samples) in seconds
+     * @param n_samples the number of samples */
+    protected void setRegular (Date start_date, double samp_per, int n_samples)
+    {
+        setTimeStamps (null);
+        regular = true;
+        regular_start_millis = start_date.getTime();
+        regular_n_samples = n_samples;
+        sample_period = samp_per;
+    }
+    
+    /** charge the memory used when time stamps read in lazy mode are loaded to a
+     * budget - once the budget is used up, loading time stamps throws an IMCDFException
+     * @param lazy_budget the budget, or null for no budget */
+    protected void setLazyBudget (ImagCDFMemoryBudget lazy_budget) { this.lazy_budget = lazy_budget; }
+    
+    /** create a view of part of these time stamps, which can be written to
+     * a file in the same way as the original time stamps
+     * @param offset the index of the first time stamp in the view
+     * @param length the number of time stamps in the view
+     * @return the view */
+    public abstract ImagCDFVariableTS slice (int offset, int length);
+    
+    /** move the time stamps out of the Java heap into a direct buffer. Time
+     * stamps that haven't been loaded from the CDF file (lazy mode) are read a
+     * block at a time straight into the buffer, so they are never all on the heap.
+     * Regular time stamps are calculated rather than stored, so they are left
+     * as they are. The accessors work as before, though getTimeStamps() has to
+     * create an array on the heap, so use the other accessors where possible.
+     * Compressed time stamps are already small, so they are left where they are.
+     * @throws IMCDFException if the time stamps could not be read from the CDF file */
+    public synchronized void moveOffHeap ()
+    throws IMCDFException
+    {
+        int count, n, n_samples;
+        long block [];
+        LongBuffer buffer;
+        
+        checkNotClosed ();
+        if (regular || off_heap_time_stamps != null || compressed_time_stamps != null) return;
+        n_samples = getNSamples();
+        buffer = ByteBuffer.allocateDirect (n_samples * 8).order (ByteOrder.nativeOrder()).asLongBuffer();
+        block = new long [Math.max (1, Math.min (COPY_BLOCK_SIZE, n_samples))];
+        for (count=0; count<n_samples; count+=n)
+        {
+            n = Math.min (block.length, n_samples - count);
+            copyTT2000 (block, count, n);
+            buffer.put (block, 0, n);
+        }
+        buffer.rewind ();
+        setTimeStamps (null);
+        off_heap_time_stamps = buffer;
+        time_stamps_length = n_samples;
+        lazy_reader = null;
+        lazy_range = null;
+    }
+    
+    /** find out whether the time stamps are held outside the Java heap
+     * @return true if the time stamps are off the heap */
+    public boolean isOffHeap () { return off_heap_time_stamps != null; }
+    
+    /** hold the time stamps in a compressed store (see ImagCDFCompressedTimeStamps),
+     * which is lossless. Time stamps that haven't been loaded from the CDF file
+     * (lazy mode) are read a block at a time straight into the store. Regular
+     * time stamps are calculated rather than stored, so they are left as they
+     * are. The accessors work as before, but random access to single time stamps
+     * is slower, as each time stamp has to be decompressed, so use copyTT2000()
+     * where possible.
+     * @throws IMCDFException if the time stamps could not be read from the CDF file */
+    public synchronized void compress ()
+    throws IMCDFException
+    {
+        int count, n, n_samples;
+        long block [];
+        ImagCDFCompressedTimeStamps store;
+        
+        checkNotClosed ();
+        if (regular || compressed_time_stamps != null) return;
+        n_samples = getNSamples();
+        store = new ImagCDFCompressedTimeStamps (n_samples);
+        block = new long [Math.max (1, Math.min (COPY_BLOCK_SIZE, n_samples))];
+        for (count=0; count<n_samples; count+=n)
+        {
+            n = Math.min (block.length, n_samples - count);
+            copyTT2000 (block, count, n);
+            store.append (block, 0, n);
+        }
+        setTimeStamps (null);
+        compressed_time_stamps = store;
+        time_stamps_length = n_samples;
+        lazy_reader = null;
+        lazy_range = null;
+    }
+    
+    /** find out whether the time stamps are compressed
+     * @return true if the time stamps are compressed */
+    public boolean isCompressed () { return compressed_time_stamps != null; }
+    
+    /** get the approximate amount of memory used to hold the time stamps, on or
+     * off the heap - time stamps that are still in the CDF file (lazy mode), in a
+     * memory mapped file or calculated (regular time stamps) aren't counted
+     * @return the size in bytes */
+    public long getMemoryFootprint ()
+    {
+        if (compressed_time_stamps != null) return compressed_time_stamps.getCompressedSize();
+        if (off_heap_time_stamps != null || time_stamps != null) return (long) time_stamps_length * 8l;
+        return 0l;
+    }
+    
+    /** release time stamps that are held outside the Java heap - after this call
+     * the time stamps are closed: getNSamples() still gives the number of time
+     * stamps, but the accessors throw an IllegalStateException. The memory is
+     * returned when the buffer is garbage collected, unless it is still used by a
+     * slice of these time stamps. For time stamps on the heap this does nothing. */
+    @Override
+    public synchronized void close ()
+    {
+        if (off_heap_time_stamps != null)
+        {
+            off_heap_time_stamps = null;
+            time_stamps = null;
+            time_stamps_offset = 0;
+            closed = true;
+        }
+    }
+    
+    /** find out whether close() has released the time stamps
+     * @return true if the time stamps can no longer be read */
+    public boolean isClosed () { return closed; }
+    
+    /** check that close() hasn't released the time stamps
+     * @throws IllegalStateException if the time stamps have been closed */
+    protected void checkNotClosed ()
+    {
+        if (closed) throw new IllegalStateException ("Time stamp variable '" + var_name + "' has been closed");
+    }
+    
+    /** set the array of time stamps - all the time stamps in the array belong to this variable
+     * @param tt2000 the time stamps, may be null */
+    protected void setTimeStamps (long tt2000 [])
+    {
+        off_heap_time_stamps = null;
+        compressed_time_stamps = null;
+        time_stamps = tt2000;
+        time_stamps_offset = 0;
+        time_stamps_length = tt2000 == null ? 0 : tt2000.length;
+    }
+    
+    /** make this object a view of part of another set of time stamps. Time
+     * stamps that are in memory are shared with the source, not copied. Time
+     * stamps that have not yet been loaded from a file (lazy mode) will be loaded
+     * from the same file, so the source must not be closed until they are loaded.
+     * @param source the time stamps to take the view from
+     * @param offset the index of the first time stamp in the view
+     * @param length the number of time stamps in the view */
+    protected void setSlice (ImagCDFVariableTS source, int offset, int length)
+    {
+        source.checkNotClosed ();
+        if (offset < 0 || length < 0 || offset + length > source.getNSamples())
+            throw new IndexOutOfBoundsException ("Time stamp slice out of range: " + offset + ", " + length);
+        synchronized (source)
+        {
+            var_name = source.var_name;
+            write_compression = source.write_compression;
+            sample_period = source.sample_period;
+            regular = source.regular;
+            lazy_reader = source.lazy_reader;
+            lazy_budget = source.lazy_budget;
+            if (regular)
+            {
+                setTimeStamps (null);
+                regular_start_millis = source.regular_start_millis + source.getRegularOffsetMillis (offset);
+                regular_n_samples = length;
+            }
+            else if (lazy_reader != null)
+            {
+                setTimeStamps (null);
+                lazy_n_samples = length;
+                lazy_range = new ImagCDFRecordRange ((source.lazy_range == null ? 0 : source.lazy_range.getFirstRecord()) + offset, length);
+            }
+            else if (source.compressed_time_stamps != null)
+            {
+                setTimeStamps (null);
+                compressed_time_stamps = source.compressed_time_stamps;
+                time_stamps_offset = source.time_stamps_offset + offset;
+                time_stamps_length = length;
+            }
+            else if (source.off_heap_time_stamps != null)
+            {
+                LongBuffer buffer = source.off_heap_time_stamps.duplicate();
+                buffer.position (offset);
+                buffer.limit (offset + length);
+                setTimeStamps (null);
+                off_heap_time_stamps = buffer.slice();
+                time_stamps_length = length;
+            }
+            else
+            {
+                off_heap_time_stamps = null;
+                compressed_time_stamps = null;
+                time_stamps = source.time_stamps;
+                time_stamps_offset = source.time_stamps_offset + offset;
+                time_stamps_length = length;
+            }
+        }
+    }
+    
+    /** find the time stamps that lie within a time range, using a binary search
+     * that doesn't load time stamps (in lazy mode) or calculate them (for regular
+     * time stamps) - the time stamps must be in ascending order
+     * @param start_tt2000 the start of the time range (inclusive) as a TT2000 value
+     * @param end_tt2000 the end of the time range (exclusive) as a TT2000 value
+     * @return the range of time stamps (as indexes), which may be empty
+     * @throws IMCDFException if there was an error reading the time stamps */
+    public ImagCDFRecordRange findTimeRange (long start_tt2000, long end_tt2000)
+    throws IMCDFException
+    {
+        int first, last;
+        
+        first = findFirstIndexNotBefore (start_tt2000);
+        last = findFirstIndexNotBefore (end_tt2000);
+        if (last < first) last = first;
+        return new ImagCDFRecordRange (first, last - first);
+    }
+    
+    /** binary search for the first time stamp at or after the given time
+     * @return the index, or the number of time stamps if all are before the time */
+    private int findFirstIndexNotBefore (long tt2000)
+    throws IMCDFException
+    {
+        int low, high, mid;
+        long value [];
+        
+        value = new long [1];
+        low = 0;
+        high = getNSamples();
+        while (low < high)
+        {
+            mid = (low + high) >>> 1;
+            copyTT2000 (value, mid, 1);
+            if (value [0] < tt2000) low = mid +1;
+            else high = mid;
+        }
+        return low;
+    }
+    
+    /** get a stored time stamp from the array or the off-heap buffer - the
+     * time stamps must already be loaded */
+    private long storedTT2000 (int index)
+    {
+        if (off_heap_time_stamps != null) return off_heap_time_stamps.get (index);
+        if (compressed_time_stamps != null) return compressed_time_stamps.get (time_stamps_offset + index);
+        return time_stamps [time_stamps_offset + index];
+    }
+    
+    /** check the arguments to the copy methods */
+    private void checkCopyRange (long dst [], int from, int len)
+    {
+        checkNotClosed ();
+        if (from < 0 || len < 0 || from + len > getNSamples() || len > dst.length)
+            throw new IndexOutOfBoundsException ("Time stamp copy out of range: " + from + ", " + len);
+    }
+    
+    /** for regular time stamps, get the offset of a sample from the first sample
+     * @param index the index of the sample
+     * @return the offset in milliseconds */
+    protected long getRegularOffsetMillis (int index)
+    {
+        return (long) ((sample_period * 1000.0 * (double) index) + 0.5);
+    }
+    
+    /** for regular time stamps, calculate a single TT2000 time stamp
+     * @param index the index of the sample
+     * @return the TT2000 time stamp
+     * @throws IMCDFException if there is an error converting the date */
+    protected long getRegularTimeStamp (int index)
+    throws IMCDFException
+    {
+        return DateToTT2000 (regular_start_millis + getRegularOffsetMillis (index));
+    }
+    
+    /** for regular time stamps, calculate all the TT2000 time stamps. Leap seconds
+     * are rare, so the difference between TT2000 and UTC is found at the ends of the
+     * series - where it doesn't change, the time stamps in between are calculated
+     * directly, otherwise the series is split to find the leap second. This needs
+     * a few calls to the CDF library rather than one for every sample. */
+    private void calculateRegularTimeStamps (long dst [], int from, int len)
+    throws IMCDFException
+    {
+        if (len > 0)
+            calculateRegularTimeStamps (dst, from, from, from + len -1, 
+                                        getRegularTT2000Offset (from), getRegularTT2000Offset (from + len -1));
+    }
+    
+    private void calculateRegularTimeStamps (long dst [], int from, int first, int last, long first_offset, long last_offset)
+    throws IMCDFException
+    {
+        int count, mid;
+        long utc_millis;
+        
+        if (first_offset == last_offset)
+        {
+            for (count=first; count<=last; count++)
+            {
+                utc_millis = regular_start_millis + getRegularOffsetMillis (count);
+                dst [count - from] = (utc_millis * 1000000l) + first_offset;
+            }
+        }
+        else if (last - first <= 1)
+        {
+            dst [first - from] = getRegularTimeStamp (first);
+            dst [last - from] = getRegularTimeStamp (last);
+        }
+        else
+        {
+            mid = (first + last) >>> 1;
+            long mid_offset = getRegularTT2000Offset (mid);
+            calculateRegularTimeStamps (dst, from, first, mid, first_offset, mid_offset);
+            calculateRegularTimeStamps (dst, from, mid +1, last, getRegularTT2000Offset (mid +1), last_offset);
+        }
+    }
+    
+    /** get the difference between a regular time stamp in TT2000 and the
+     * same time in nanoseconds since 1970 (UTC) - this only changes at a leap second */
+    private long getRegularTT2000Offset (int index)
+    throws IMCDFException
+    {
+        long utc_millis = regular_start_millis + getRegularOffsetMillis (index);
+        return DateToTT2000 (utc_millis) - (utc_millis * 1000000l);
+    }
             
     /*****************************************************************************
      * make_ordinal_number
@@ -43,7 +43,7 @@ public class ImagCDFInfo_JNI extends ImagCDFInfo {
             
             int data_length;
             try {
-                data_length = (int) var.getNumAllocatedRecords();
+                data_length = (int) var.getNumWrittenRecords();
             } catch (CDFException e) {
                 data_length = -1;
             }
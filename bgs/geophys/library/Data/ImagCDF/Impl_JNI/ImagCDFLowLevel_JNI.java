@@ -6,7 +6,10 @@ package bgs.geophys.library.Data.ImagCDF.Impl_JNI;
 
 import bgs.geophys.library.Data.ImagCDF.IMCDFException;
 import bgs.geophys.library.Data.ImagCDF.IMCDFPrintEnum;
+import bgs.geophys.library.Data.ImagCDF.IMCDFRecordReader;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFCompression;
 import bgs.geophys.library.Data.ImagCDF.ImagCDFFactory;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFTimeConverter;
 import gsfc.nssdc.cdf.*;
 import gsfc.nssdc.cdf.util.CDFTT2000;
 import java.io.File;
@@ -26,9 +29,14 @@ import java.util.*;
  * call getAccumulatedErrors() to get the list if errors and check whether it
  * is empty of not.
  * 
+ * A file opened for reading can also be used (through the IMCDFRecordReader
+ * interface) to read variables on demand after the file's metadata has been
+ * read. In this case errors are thrown as exceptions, rather than being accumulated.
+ * 
  * @author smf
  */
 public class ImagCDFLowLevel_JNI 
+implements IMCDFRecordReader
 {
 
     /** CDF creation codes:
@@ -45,20 +53,38 @@ public class ImagCDFLowLevel_JNI
     /** an enumeration listing types of variable that can be created */
     public enum CDFVariableType {Double, TT2000}
     
+    /** the largest blocking factor (the number of records in a block) used for
+     * compressed variables. Each block of records is compressed separately and
+     * has to be decompressed in full to read any record in it, so the blocking
+     * factor sets the cost of reading a small range of records. 8192 records is
+     * 64 KiB uncompressed, twice the 32 KiB GZIP window. ImagCDFBlockingFactorBenchmark
+     * (in the test directory) compresses 8 days of one second data in blocks
+     * with java.util.zip at level 6 - the data compressed to:
+     *     4096 records:   21.0%,   94 us to decompress a block
+     *     8192 records:   20.5%,  186 us
+     *    16384 records:   20.2%,  439 us
+     *   262144 records:   19.9%, 5583 us
+     * and the time stamps to 48.9% for 8192 records and 48.8% for 262144.
+     * Uncompressed variables don't have their blocking factor set: their records
+     * are all allocated when the variable is created, so the library's default
+     * blocking factor only affects records appended to the file later */
+    public static final long MAX_COMPRESSED_BLOCKING_FACTOR = 8192;
+    
     // private member data for this class
     private CDF cdf;
     private List<String> accumulated_errors;
+    private Map<String, CDFCompressType> variable_compression;
+    private Map<String, Long> variable_records;
+    private Map<String, Long> allocated_records;
 
     // static initialisers - creation of formatting objects
     private static final SimpleDateFormat DATA_DATE_FORMAT;
     private static final TimeZone GMT_TIME_ZONE;
-    private static final GregorianCalendar GREGORIAN_CAL;
     static
     {
         DateFormatSymbols english_date_format_symbols;
         
         GMT_TIME_ZONE = TimeZone.getTimeZone("gmt");
-        GREGORIAN_CAL = new GregorianCalendar(GMT_TIME_ZONE);
 
         try { english_date_format_symbols = new DateFormatSymbols (Locale.UK); }
         catch (MissingResourceException e) { english_date_format_symbols = null; }
@@ -88,10 +114,12 @@ public class ImagCDFLowLevel_JNI
                                 CDFCompressType compress_type)
     throws IMCDFException
     {
-        long params [];
         File file;
 
         accumulated_errors = null;
+        variable_compression = new HashMap<> ();
+        variable_records = new HashMap<> ();
+        allocated_records = new HashMap<> ();
         try
         {
             switch (open_type)
@@ -111,58 +139,8 @@ public class ImagCDFLowLevel_JNI
                     break;
             }
 
-            params = new long [1];
-            switch (compress_type)
-            {
-                case RLE:
-                    params [0] = CDF.RLE_OF_ZEROs;
-                    cdf.setCompression(CDF.RLE_COMPRESSION, params);
-                    break;
-                case Huff:
-                    params [0] = CDF.OPTIMAL_ENCODING_TREES;
-                    cdf.setCompression(CDF.HUFF_COMPRESSION, params);
-                    break;
-                case AHuff:
-                    params [0] = CDF.OPTIMAL_ENCODING_TREES;
-                    cdf.setCompression(CDF.AHUFF_COMPRESSION, params);
-                    break;
-                case GZip1:
-                    params [0] = 1;
-                    cdf.setCompression(CDF.GZIP_COMPRESSION, params);
-                    break;
-                case GZip2:
-                    params [0] = 2;
-                    cdf.setCompression(CDF.GZIP_COMPRESSION, params);
-                    break;
-                case GZip3:
-                    params [0] = 3;
-                    cdf.setCompression(CDF.GZIP_COMPRESSION, params);
-                    break;
-                case GZip4:
-                    params [0] = 4;
-                    cdf.setCompression(CDF.GZIP_COMPRESSION, params);
-                    break;
-                case GZip5:
-                    params [0] = 5;
-                    cdf.setCompression(CDF.GZIP_COMPRESSION, params);
-                    break;
-                case GZip6:
-                    params [0] = 6;
-                    cdf.setCompression(CDF.GZIP_COMPRESSION, params);
-                    break;
-                case GZip7:
-                    params [0] = 7;
-                    cdf.setCompression(CDF.GZIP_COMPRESSION, params);
-                    break;
-                case GZip8:
-                    params [0] = 8;
-                    cdf.setCompression(CDF.GZIP_COMPRESSION, params);
-                    break;
-                case GZip9:
-                    params [0] = 9;
-                    cdf.setCompression(CDF.GZIP_COMPRESSION, params);
-                    break;
-            }
+            if (compress_type != CDFCompressType.None)
+                cdf.setCompression (getCompressionCode (compress_type), getCompressionParams (compress_type));
         }
         catch (CDFException e)
         {
@@ -182,10 +160,54 @@ public class ImagCDFLowLevel_JNI
         this (file.getAbsolutePath(), open_type, compress_type);
     }
 
+    /** convert compression settings to the type used by this class
+     * @param compression the compression settings, which must not be AUTO
+     * @return the compression type
+     * @throws IMCDFException if the compression is AUTO */
+    public static CDFCompressType getCompressType (ImagCDFCompression compression)
+    throws IMCDFException
+    {
+        switch (compression.getCodec())
+        {
+            case NONE: return CDFCompressType.None;
+            case RLE: return CDFCompressType.RLE;
+            case HUFFMAN: return CDFCompressType.Huff;
+            case ADAPTIVE_HUFFMAN: return CDFCompressType.AHuff;
+            case GZIP: return CDFCompressType.values() [CDFCompressType.GZip1.ordinal() + compression.getLevel() - 1];
+        }
+        throw new IMCDFException ("AUTO compression must be resolved before writing");
+    }
+
+    /** get the CDF library code for a type of compression */
+    private static long getCompressionCode (CDFCompressType compress_type)
+    {
+        switch (compress_type)
+        {
+            case None: return CDF.NO_COMPRESSION;
+            case RLE: return CDF.RLE_COMPRESSION;
+            case Huff: return CDF.HUFF_COMPRESSION;
+            case AHuff: return CDF.AHUFF_COMPRESSION;
+        }
+        return CDF.GZIP_COMPRESSION;
+    }
+
+    /** get the CDF library parameters for a type of compression */
+    private static long [] getCompressionParams (CDFCompressType compress_type)
+    {
+        switch (compress_type)
+        {
+            case None: return new long [] {0};
+            case RLE: return new long [] {CDF.RLE_OF_ZEROs};
+            case Huff: return new long [] {CDF.OPTIMAL_ENCODING_TREES};
+            case AHuff: return new long [] {CDF.OPTIMAL_ENCODING_TREES};
+        }
+        return new long [] {compress_type.ordinal() - CDFCompressType.GZip1.ordinal() + 1};
+    }
     
     /** close the CDF - you MUST call this after writing to the CDF otherwise it will be corrupt
      * @throws IMCDFException if there was an error with the CDF */
-    public void close ()
+    @Override
+    public synchronized void close ()
     throws IMCDFException
     {
         try
@@ -346,6 +368,84 @@ public class ImagCDFLowLevel_JNI
         }
     }
     
+    /** set the compression for a variable that hasn't been created yet - the
+     * compression is applied to the variable (rather than the whole file) when
+     * it is created
+     * @param name the name of the variable
+     * @param compress_type the type of compression */
+    public void setVariableCompression (String name, CDFCompressType compress_type)
+    {
+        variable_compression.put (name, compress_type);
+    }
+
+    /** set the number of records that will be written to a variable that hasn't
+     * been created yet - when the variable is created, an uncompressed variable has
+     * its records allocated, so the file doesn't grow a block at a time while it is
+     * written, and a compressed variable has its blocking factor set from the number
+     * of records (see MAX_COMPRESSED_BLOCKING_FACTOR).
+     * Exactly this number of records must then be written: allocated records that
+     * are never written aren't counted as records in the file (the CDF library
+     * only counts written records), but they take up space in it - use
+     * checkRecordsWritten() once the data has been written
+     * @param name the name of the variable
+     * @param n_records the number of records */
+    public void setVariableRecords (String name, long n_records)
+    {
+        variable_records.put (name, n_records);
+    }
+
+    /** check that all the records allocated by setVariableRecords() have been written
+     * @throws IMCDFException if the number of records written to any variable is
+     *         different to the number allocated */
+    public void checkRecordsWritten ()
+    throws IMCDFException
+    {
+        Map<String, Long> written_records;
+
+        written_records = new HashMap<> ();
+        try
+        {
+            for (String name : allocated_records.keySet())
+                written_records.put (name, cdf.getVariable (name).getNumWrittenRecords());
+        }
+        catch (CDFException e)
+        {
+            throw new IMCDFException (e);
+        }
+        checkRecordsWritten (allocated_records, written_records);
+    }
+
+    /** compare the number of records written to variables with the number allocated
+     * @param allocated_records the number of records allocated for each variable
+     * @param written_records the number of records written to each variable - a
+     *        variable that is missing had no records written
+     * @throws IMCDFException if the number of records written to any variable is
+     *         different to the number allocated - the exception lists all the variables */
+    public static void checkRecordsWritten (Map<String, Long> allocated_records, Map<String, Long> written_records)
+    throws IMCDFException
+    {
+        long n_written;
+        List<String> errors;
+
+        errors = new ArrayList<> ();
+        for (Map.Entry<String, Long> entry : allocated_records.entrySet())
+        {
+            n_written = written_records.containsKey (entry.getKey()) ? written_records.get (entry.getKey()) : 0l;
+            if (n_written != entry.getValue())
+                errors.add ("Variable " + entry.getKey() + ": " + n_written + " records written, but " + entry.getValue() + " records were allocated");
+        }
+        if (! errors.isEmpty())
+            throw new IMCDFException (errors.get(0), errors);
+    }
+
+    /** choose the blocking factor for a compressed variable
+     * @param n_records the number of records that will be written to the variable
+     * @return the blocking factor */
+    public static long getCompressedBlockingFactor (long n_records)
+    {
+        return Math.max (1, Math.min (n_records, MAX_COMPRESSED_BLOCKING_FACTOR));
+    }
+
     /** create a 0 dimensional data array in the CDF file
      * @param name the name of the variable
      * @param var_type the type of variable to create (Double or Long))
@@ -355,6 +455,9 @@ public class ImagCDFLowLevel_JNI
     throws IMCDFException
     {
         Variable var;
+        CDFCompressType compress_type;
+        Long n_records;
+        boolean compressed;
 
         try
         {
@@ -369,6 +472,26 @@ public class ImagCDFLowLevel_JNI
                 default:
                     throw new CDFException ("Unrecongnised data type");
             }
+            compress_type = variable_compression.get (name);
+            compressed = compress_type != null && compress_type != CDFCompressType.None;
+            if (compressed)
+                var.setCompression (getCompressionCode (compress_type), getCompressionParams (compress_type));
+            
+            // size the variable for the records that will be written to it - the CDF
+            // library can't allocate records for compressed variables (it returns
+            // CANNOT_ALLOCATE_RECORDS), as their size on disk isn't known until they
+            // are compressed, so compressed variables just get a blocking factor
+            n_records = variable_records.get (name);
+            if (n_records != null && n_records > 0)
+            {
+                if (compressed)
+                    var.setBlockingFactor (getCompressedBlockingFactor (n_records));
+                else
+                {
+                    var.allocateRecords (n_records);
+                    allocated_records.put (name, n_records);
+                }
+            }
         }
         catch (CDFException e)
         {
@@ -647,6 +770,143 @@ public class ImagCDFLowLevel_JNI
         return true;
     }
     
+    /** get the number of records in a variable without reading the records
+     * @param var_name the name of the variable
+     * @return the number of records
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized int getNRecords (String var_name)
+    throws IMCDFException
+    {
+        checkOpen ();
+        try
+        {
+            return (int) cdf.getVariable (var_name).getNumWrittenRecords();
+        }
+        catch (CDFException e)
+        {
+            throw new IMCDFException ("Error reading variable " + var_name, e);
+        }
+    }
+    
+    /** read all the records from a data variable
+     * @param var_name the name of the variable
+     * @return the data
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized double [] readDataRecords (String var_name)
+    throws IMCDFException
+    {
+        checkOpen ();
+        int n_errors = accumulated_errors.size();
+        double data [] = getDataArray (getVariable (var_name));
+        if (data == null) throwNewErrors (n_errors, "Error reading variable " + var_name);
+        return data;
+    }
+
+    /** read all the records from a TT2000 time stamp variable
+     * @param var_name the name of the variable
+     * @return the time stamps
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized long [] readTimeStampRecords (String var_name)
+    throws IMCDFException
+    {
+        checkOpen ();
+        int n_errors = accumulated_errors.size();
+        long time_stamps [] = getTimeStampArray (getVariable (var_name));
+        if (time_stamps == null) throwNewErrors (n_errors, "Error reading time stamp variable " + var_name);
+        return time_stamps;
+    }
+
+    /** read a range of records from a data variable
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the data
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized double [] readDataRecords (String var_name, int first_record, int n_records)
+    throws IMCDFException
+    {
+        checkOpen ();
+        int n_errors = accumulated_errors.size();
+        double data [] = getDataArray (getVariable (var_name), first_record, n_records);
+        if (data == null) throwNewErrors (n_errors, "Error reading variable " + var_name);
+        return data;
+    }
+
+    /** read a range of records from a TT2000 time stamp variable
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the time stamps
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized long [] readTimeStampRecords (String var_name, int first_record, int n_records)
+    throws IMCDFException
+    {
+        checkOpen ();
+        int n_errors = accumulated_errors.size();
+        long time_stamps [] = getTimeStampArray (getVariable (var_name), first_record, n_records);
+        if (time_stamps == null) throwNewErrors (n_errors, "Error reading time stamp variable " + var_name);
+        return time_stamps;
+    }
+    
+    /** read a range of records from a data variable into an array supplied by the
+     * caller - the CDF library returns a new array for the records, which is copied
+     * into the caller's array without any further conversion or allocation
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @param dst the array to read into
+     * @param dst_pos the index in dst to put the first record in
+     * @throws IMCDFException if there is an error, including fewer records than requested */
+    @Override
+    public synchronized void readDataRecords (String var_name, int first_record, int n_records, double dst [], int dst_pos)
+    throws IMCDFException
+    {
+        checkOpen ();
+        if (n_records <= 0) return;
+        int n_errors = accumulated_errors.size();
+        try
+        {
+            if (copyDataArray (var_name, getVariable (var_name).getRecordsObject ((long) first_record, (long) n_records).getData(), dst, dst_pos, n_records)) return;
+        }
+        catch (CDFException e)
+        {
+            process_error ("Error reading data variable " + var_name, e);
+        }
+        throwNewErrors (n_errors, "Error reading variable " + var_name);
+    }
+
+    /** read a range of records from a TT2000 time stamp variable into an array
+     * supplied by the caller - the CDF library returns a new array for the records,
+     * which is copied into the caller's array
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @param dst the array to read into
+     * @param dst_pos the index in dst to put the first record in
+     * @throws IMCDFException if there is an error, including fewer records than requested */
+    @Override
+    public synchronized void readTimeStampRecords (String var_name, int first_record, int n_records, long dst [], int dst_pos)
+    throws IMCDFException
+    {
+        checkOpen ();
+        if (n_records <= 0) return;
+        int n_errors = accumulated_errors.size();
+        try
+        {
+            if (copyTimeStampArray (var_name, getVariable (var_name).getRecordsObject ((long) first_record, (long) n_records).getData(), dst, dst_pos, n_records)) return;
+        }
+        catch (CDFException e)
+        {
+            process_error ("Error reading time stamp variable " + var_name, e);
+        }
+        throwNewErrors (n_errors, "Error reading time stamp variable " + var_name);
+    }
+    
     /** get an attribute entry, optionally throwing an exception if it doesn't exit
      * 
      * @param name the attribute name
@@ -769,6 +1029,29 @@ public class ImagCDFLowLevel_JNI
      * @param var the variable
      * @return the data or null if there was an error */
     public double [] getDataArray (Variable var)
+    {
+        if (var == null)
+        {
+            accumulated_errors.add ("Missing data variable");
+            return null;
+        }
+        try
+        {
+            return getDataArray (var, 0, (int) var.getNumWrittenRecords());
+        }
+        catch (CDFException e)
+        {
+            process_error("Error reading data " + var.getName(), e);
+            return null;
+        }
+    }
+    
+    /** get a range of records from a data variable
+     * @param var the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the data or null if there was an error */
+    public double [] getDataArray (Variable var, int first_record, int n_records)
     {
         CDFData cdf_data;
 
@@ -777,9 +1060,10 @@ public class ImagCDFLowLevel_JNI
             accumulated_errors.add ("Missing data variable");
             return null;
         }
+        if (n_records <= 0) return new double [0];
         try
         {
-            cdf_data = var.getRecordsObject(0l, var.getNumWrittenRecords());
+            cdf_data = var.getRecordsObject((long) first_record, (long) n_records);
             Object data = cdf_data.getData();
             if (data == null) {
                 accumulated_errors.add ("Missing data: " + var.getName());
@@ -813,6 +1097,29 @@ public class ImagCDFLowLevel_JNI
      * @param var the variable
      * @return the data or null if there was an error */
     public long [] getTimeStampArray (Variable var)
+    {
+        if (var == null)
+        {
+            accumulated_errors.add ("Missing time stamp variable");
+            return null;
+        }
+        try
+        {
+            return getTimeStampArray (var, 0, (int) var.getNumWrittenRecords());
+        }
+        catch (CDFException e)
+        {
+            process_error ("Error reading time stamp variable " + var.getName(), e);
+            return null;
+        }
+    }
+    
+    /** get a range of TT2000 time stamps from a variable
+     * @param var the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the data or null if there was an error */
+    public long [] getTimeStampArray (Variable var, int first_record, int n_records)
     {
         CDFData cdf_data;
 
@@ -821,9 +1128,10 @@ public class ImagCDFLowLevel_JNI
             accumulated_errors.add ("Missing time stamp variable");
             return null;
         }
+        if (n_records <= 0) return new long [0];
         try
         {
-            cdf_data = var.getRecordsObject(0l, var.getNumWrittenRecords());
+            cdf_data = var.getRecordsObject((long) first_record, (long) n_records);
             Object data = cdf_data.getData();
             if (data == null) {
                 accumulated_errors.add ("Missing time stamp data: " + var.getName());
@@ -831,6 +1139,11 @@ public class ImagCDFLowLevel_JNI
             }
             if (data instanceof long [])
                 return (long []) data;
+            if (data instanceof Long) {
+                long [] array = new long [1];
+                array [0] = (long) data;
+                return array;
+            }
             accumulated_errors.add ("Unexpected data type in time stamp array: " + var.getName());
             return null;
         }
@@ -895,20 +1208,31 @@ public class ImagCDFLowLevel_JNI
    
     public static long DateToTT2000 (Date date)
     {
-        GREGORIAN_CAL.setTime(date);
-        return CDFTT2000.fromGregorianTime(GREGORIAN_CAL);
+        return DateToTT2000 (date.getTime());
     }
     
     public static long DateToTT2000 (long date)
     {
-        GREGORIAN_CAL.setTimeInMillis(date);
-        return CDFTT2000.fromGregorianTime(GREGORIAN_CAL);
+        GregorianCalendar cal;
+        
+        if (ImagCDFTimeConverter.isInLeapSecondTable (date))
+            return ImagCDFTimeConverter.tableDateToTT2000 (date);
+        
+        // outside the leap second table use the CDF library - the calendar
+        // is local so that this can be called from many threads at once
+        cal = new GregorianCalendar (GMT_TIME_ZONE);
+        cal.setTimeInMillis(date);
+        return CDFTT2000.fromGregorianTime(cal);
     }
     
     public static Date TT2000ToDate (long tt2000)
     {
         GregorianCalendar cal;
         
+        if (ImagCDFTimeConverter.isTT2000InLeapSecondTable (tt2000))
+            return new Date (ImagCDFTimeConverter.tableTT2000ToEpochMillis (tt2000));
+        
+        // outside the leap second table use the CDF library
         cal = CDFTT2000.toGregorianTime(tt2000);
         cal.setTimeZone(GMT_TIME_ZONE);
         return new Date (cal.getTimeInMillis());
@@ -919,6 +1243,82 @@ public class ImagCDFLowLevel_JNI
      *  ---------------------------- Private code ------------------------------
      *  ------------------------------------------------------------------------*/
     
+    /** copy the object returned by the CDF library for a range of data records
+     * into an array, recording an error if it can't be copied */
+    private boolean copyDataArray (String var_name, Object data, double dst [], int dst_pos, int n_records)
+    {
+        if (data == null) {
+            accumulated_errors.add ("Missing data: " + var_name);
+            return false;
+        }
+        if (data instanceof double []) {
+            if (((double []) data).length != n_records) {
+                accumulated_errors.add ("Short read from data variable " + var_name);
+                return false;
+            }
+            System.arraycopy ((double []) data, 0, dst, dst_pos, n_records);
+            return true;
+        }
+        if (data instanceof Double []) {
+            Double orig_array [] = (Double []) data;
+            if (orig_array.length != n_records) {
+                accumulated_errors.add ("Short read from data variable " + var_name);
+                return false;
+            }
+            for (int count=0; count<n_records; count++)
+                dst [dst_pos + count] = (double) orig_array[count];
+            return true;
+        }
+        if (data instanceof Double && n_records == 1) {
+            dst [dst_pos] = (double) data;
+            return true;
+        }
+        accumulated_errors.add ("Unexpected data type in data array: " + var_name);
+        return false;
+    }
+    
+    /** copy the object returned by the CDF library for a range of time stamp
+     * records into an array, recording an error if it can't be copied */
+    private boolean copyTimeStampArray (String var_name, Object data, long dst [], int dst_pos, int n_records)
+    {
+        if (data == null) {
+            accumulated_errors.add ("Missing time stamp: " + var_name);
+            return false;
+        }
+        if (data instanceof long []) {
+            if (((long []) data).length != n_records) {
+                accumulated_errors.add ("Short read from time stamp variable " + var_name);
+                return false;
+            }
+            System.arraycopy ((long []) data, 0, dst, dst_pos, n_records);
+            return true;
+        }
+        if (data instanceof Long && n_records == 1) {
+            dst [dst_pos] = (long) data;
+            return true;
+        }
+        accumulated_errors.add ("Unexpected data type in time stamp array: " + var_name);
+        return false;
+    }
+    
+    /** check that the file is open for reading */
+    private void checkOpen ()
+    throws IMCDFException
+    {
+        if (cdf == null) throw new IMCDFException ("CDF file has been closed");
+        if (accumulated_errors == null) throw new IMCDFException ("CDF file is not open for reading");
+    }
+    
+    /** throw an exception containing the errors that have been accumulated
+     * since the given point in the error list */
+    private void throwNewErrors (int n_errors, String default_msg)
+    throws IMCDFException
+    {
+        List<String> new_errors = new ArrayList<> (accumulated_errors.subList (n_errors, accumulated_errors.size()));
+        if (new_errors.isEmpty()) new_errors.add (default_msg);
+        throw new IMCDFException (new_errors.get(0), new_errors);
+    }
+    
     /** find a variable attribute - if it doesn't exist create it */
     private Attribute findVariableAttribute (String name)
     throws CDFException
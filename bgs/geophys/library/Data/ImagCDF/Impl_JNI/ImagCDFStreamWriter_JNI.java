@@ -0,0 +1,221 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF.Impl_JNI;
+
+import bgs.geophys.library.Data.ImagCDF.IMCDFException;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFAppendJournal;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFReadOptions;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFStreamWriter;
+import gsfc.nssdc.cdf.Variable;
+import java.io.File;
+
+/**
+ * A stream writer that uses the CDF native library. Records are passed
+ * to the library as they are appended, and the library writes them to
+ * the file, so the memory used doesn't depend on the number of records.
+ * When appending to an existing file, the records already in the file are
+ * not rewritten (unless the file is compressed, when the CDF library
+ * decompresses and recompresses it). An atomic append writer writes the
+ * records to a journal and only adds them to the file when it is closed.
+ *
+ * THE IMCDF ROUTINES SHOULD NOT HAVE DEPENDENCIES ON OTHER LIBRARY ROUTINES -
+ * IT MUST BE POSSIBLE TO DISTRIBUTE THE IMCDF SOURCE CODE
+ *
+ * @author smf
+ */
+public class ImagCDFStreamWriter_JNI extends ImagCDFStreamWriter
+{
+
+    // private member data
+    private ImagCDFLowLevel_JNI cdf;
+    private final Variable data_cdf_vars [];
+    private final Variable ts_cdf_vars [];
+
+    /** create a CDF file and write the global and variable attributes to it
+     * @param cdf_file the CDF file to write into
+     * @param header the metadata for the file - any data in the header is ignored
+     * @param compress true to compress the CDF file, FALSE not to compress
+     * @param overwrite_existing true to overwrite any existing file, false to throw exception if file exists
+     * @throws IMCDFException if there is an error, including faulty metadata */
+    public ImagCDFStreamWriter_JNI (File cdf_file, ImagCDF_JNI header, boolean compress, boolean overwrite_existing)
+    throws IMCDFException
+    {
+        super (header);
+
+        int count;
+        String errmsg;
+
+        // check that the CDF libraries are available
+        errmsg = ImagCDFLowLevel_JNI.checkNativeLib("");
+        if (errmsg != null) throw new IMCDFException (errmsg);
+
+        data_cdf_vars = new Variable [getNDataVariables()];
+        ts_cdf_vars = new Variable [getNTimeStampVariables()];
+        cdf = new ImagCDFLowLevel_JNI (cdf_file,
+                                       overwrite_existing ? ImagCDFLowLevel_JNI.CDFOpenType.CDFForceCreate : ImagCDFLowLevel_JNI.CDFOpenType.CDFCreate,
+                                       compress ? ImagCDFLowLevel_JNI.CDFCompressType.GZip6 : ImagCDFLowLevel_JNI.CDFCompressType.None);
+        try
+        {
+            header.writeGlobalAttributes (cdf);
+            for (count=0; count<data_cdf_vars.length; count++)
+            {
+                if (! (getDataVariable(count) instanceof ImagCDFVariable_JNI))
+                    throw new IMCDFException ("Internal software error");
+                data_cdf_vars [count] = ((ImagCDFVariable_JNI) getDataVariable(count)).writeAttributes (cdf, getDataVariableSuffix(count));
+            }
+            for (count=0; count<ts_cdf_vars.length; count++)
+                ts_cdf_vars [count] = cdf.createDataVariable (getTimeStampVarName(count), ImagCDFLowLevel_JNI.CDFVariableType.TT2000);
+        }
+        catch (IMCDFException e)
+        {
+            // the file is incomplete, so remove it
+            try { cdf.close (); }
+            catch (IMCDFException e2) { }
+            cdf_file.delete ();
+            throw e;
+        }
+    }
+
+    /** open an existing CDF file to add records to the end of its variables - if
+     * a journal was left by an atomic append writer that didn't finish, its records
+     * are added to the file first
+     * @param cdf_file the CDF file
+     * @param atomic true to write the records to a journal, which is added to the
+     *        file when the writer is closed, so readers don't see any of the records
+     *        until then - the cost of each append doesn't depend on the size of the
+     *        file, but the file is still updated in place when the writer is closed,
+     *        so a reader that opens it while the journal is being added may see some
+     *        of the records. False to append to the file in place, so readers may see
+     *        records as they are appended
+     * @throws IMCDFException if there is an error */
+    public ImagCDFStreamWriter_JNI (File cdf_file, boolean atomic)
+    throws IMCDFException
+    {
+        this (cdf_file, atomic, readForAppend (cdf_file));
+    }
+
+    private ImagCDFStreamWriter_JNI (File cdf_file, boolean atomic, ImagCDF_JNI existing)
+    throws IMCDFException
+    {
+        super (existing);
+
+        int count;
+
+        data_cdf_vars = new Variable [getNDataVariables()];
+        ts_cdf_vars = new Variable [getNTimeStampVariables()];
+        cdf = null;
+        try
+        {
+            try
+            {
+                setExistingRecords (existing);
+            }
+            finally
+            {
+                existing.close ();
+            }
+            cdf = new ImagCDFLowLevel_JNI (cdf_file, ImagCDFLowLevel_JNI.CDFOpenType.CDFOpen, ImagCDFLowLevel_JNI.CDFCompressType.None);
+            for (count=0; count<data_cdf_vars.length; count++)
+                data_cdf_vars [count] = cdf.getVariable (getDataVariable(count).getVarName());
+            for (count=0; count<ts_cdf_vars.length; count++)
+                ts_cdf_vars [count] = cdf.getVariable (getTimeStampVarName(count));
+            if (! cdf.getAccumulatedErrors().isEmpty())
+                throw new IMCDFException (cdf.getAccumulatedErrors().get(0), cdf.getAccumulatedErrors());
+            if (atomic) setJournal (new ImagCDFAppendJournal (cdf_file));
+        }
+        catch (IMCDFException e)
+        {
+            if (cdf != null)
+            {
+                try { cdf.close (); }
+                catch (IMCDFException e2) { }
+            }
+            throw e;
+        }
+    }
+
+    /** read the metadata and variable lengths from a file that is to be appended
+     * to, after adding the records from any journal that was left for the file
+     * @param file the file to read
+     * @return the contents of the file, in lazy mode
+     * @throws IMCDFException if there is an error */
+    private static ImagCDF_JNI readForAppend (File file)
+    throws IMCDFException
+    {
+        File journal_file;
+        ImagCDFLowLevel_JNI cdf;
+
+        journal_file = ImagCDFAppendJournal.getJournalFile (file);
+        if (journal_file.exists())
+        {
+            cdf = new ImagCDFLowLevel_JNI (file, ImagCDFLowLevel_JNI.CDFOpenType.CDFOpen, ImagCDFLowLevel_JNI.CDFCompressType.None);
+            try
+            {
+                ImagCDFAppendJournal.replay (journal_file, new JournalReplayer (cdf));
+            }
+            catch (IMCDFException e)
+            {
+                try { cdf.close (); }
+                catch (IMCDFException e2) { }
+                throw e;
+            }
+            cdf.close ();
+            journal_file.delete ();
+        }
+        return new ImagCDF_JNI (file, false, new ImagCDFReadOptions (true, null, true));
+    }
+
+    /** writes the records in a journal left by an atomic append writer to the file */
+    private static class JournalReplayer implements ImagCDFAppendJournal.RecordWriter
+    {
+        private final ImagCDFLowLevel_JNI cdf;
+        public JournalReplayer (ImagCDFLowLevel_JNI cdf) { this.cdf = cdf; }
+        @Override
+        public void writeData (String var_name, int rec_no, double data [], int offset, int length)
+        throws IMCDFException
+        {
+            cdf.addData (findVariable (var_name), rec_no, data, offset, length);
+        }
+        @Override
+        public void writeTimeStamps (String ts_name, int rec_no, long tt2000 [], int offset, int length)
+        throws IMCDFException
+        {
+            cdf.addTimeStamp (findVariable (ts_name), rec_no, tt2000, offset, length);
+        }
+        private Variable findVariable (String var_name)
+        throws IMCDFException
+        {
+            Variable var;
+
+            var = cdf.getVariable (var_name);
+            if (var == null)
+                throw new IMCDFException ("Journal contains records for unknown variable '" + var_name + "'");
+            return var;
+        }
+    }
+
+    @Override
+    protected void writeData (int var_index, int rec_no, double data [], int offset, int length)
+    throws IMCDFException
+    {
+        cdf.addData (data_cdf_vars [var_index], rec_no, data, offset, length);
+    }
+
+    @Override
+    protected void writeTimeStamps (int ts_index, int rec_no, long tt2000 [], int offset, int length)
+    throws IMCDFException
+    {
+        cdf.addTimeStamp (ts_cdf_vars [ts_index], rec_no, tt2000, offset, length);
+    }
+
+    @Override
+    protected void closeFile ()
+    throws IMCDFException
+    {
+        cdf.close ();
+    }
+
+}
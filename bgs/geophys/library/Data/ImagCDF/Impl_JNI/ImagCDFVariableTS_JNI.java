@@ -5,6 +5,7 @@
 package bgs.geophys.library.Data.ImagCDF.Impl_JNI;
 
 import bgs.geophys.library.Data.ImagCDF.IMCDFException;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFRecordRange;
 import bgs.geophys.library.Data.ImagCDF.ImagCDFVariableTS;
 import gsfc.nssdc.cdf.Variable;
 import java.util.Date;
@@ -22,18 +23,61 @@ public class ImagCDFVariableTS_JNI extends ImagCDFVariableTS
      * @param cdf the open CDF file encapsulated in an ImagCDFLowLevel object
      * @param var_name the CDF variable name */
     public ImagCDFVariableTS_JNI (ImagCDFLowLevel_JNI cdf, String var_name)
+    {
+        this (cdf, var_name, false);
+    }
+
+    /** create an ImagCDF variable time stamp series from the contents of a CDF file
+     * @param cdf the open CDF file encapsulated in an ImagCDFLowLevel object
+     * @param var_name the CDF variable name
+     * @param lazy true to leave the time stamps to be read when they are first
+     *             used - the CDF file must be kept open until then */
+    public ImagCDFVariableTS_JNI (ImagCDFLowLevel_JNI cdf, String var_name, boolean lazy)
+    {
+        this (cdf, var_name, lazy, null);
+    }
+
+    /** create an ImagCDF variable time stamp series from part of the contents of a CDF file
+     * @param cdf the open CDF file encapsulated in an ImagCDFLowLevel object
+     * @param var_name the CDF variable name
+     * @param lazy true to leave the time stamps to be read when they are first
+     *             used - the CDF file must be kept open until then
+     * @param range the records to read from the file, or null to read all records */
+    public ImagCDFVariableTS_JNI (ImagCDFLowLevel_JNI cdf, String var_name, boolean lazy, ImagCDFRecordRange range)
     {
         super ();
         
         this.var_name = var_name;
         Variable var = cdf.getVariable (var_name);
 
-        time_stamps = cdf.getTimeStampArray (var);
+        if (lazy && var != null)
+        {
+            time_stamps = null;
+            lazy_reader = cdf;
+            lazy_range = range;
+            if (range != null)
+                lazy_n_samples = range.getNRecords();
+            else
+            {
+                try
+                {
+                    lazy_n_samples = cdf.getNRecords (var_name);
+                }
+                catch (IMCDFException e)
+                {
+                    cdf.process_error ("Error reading time stamp variable " + var_name, e);
+                }
+            }
+        }
+        else if (range == null)
+            setTimeStamps (cdf.getTimeStampArray (var));
+        else
+            setTimeStamps (cdf.getTimeStampArray (var, range.getFirstRecord(), range.getNRecords()));
         sample_period = -1.0;
     }
 
     /** create an ImagCDF variable time stamp series from a start date, sample period
-     * and duration
+     * and duration - only the start, period and number of samples are stored
      * @param start_date the date/time stamp of the first sample
      * @param samp_per the sample period (time between samples) in seconds
      * @param n_samples the number of samples
@@ -45,15 +89,40 @@ public class ImagCDFVariableTS_JNI extends ImagCDFVariableTS
         super ();
         
         this.var_name = var_name;
-        time_stamps = new long [n_samples];
         
-        for (int count=0; count<n_samples; count++)
-        {
-            long time_in_millis = start_date.getTime() + (long) ((samp_per * 1000.0 * (double) count) + 0.5);
-            time_stamps [count] = ImagCDFLowLevel_JNI.DateToTT2000(time_in_millis);
-        }
+        // the time stamps are calculated when they are needed, rather than stored
+        setRegular (start_date, samp_per, n_samples);
+    }
+    
+    /** convert a date to a TT2000 time stamp using the JNI library
+     * @param utc_millis the date in milliseconds since 1970 (UTC)
+     * @return the TT2000 time stamp */
+    @Override
+    protected long DateToTT2000 (long utc_millis)
+    {
+        return ImagCDFLowLevel_JNI.DateToTT2000 (utc_millis);
+    }
+    
+    /** create a view of part of another set of time stamps - time stamps
+     * in memory are shared with the source rather than copied
+     * @param source the time stamps to take the view from
+     * @param offset the index of the first time stamp in the view
+     * @param length the number of time stamps in the view */
+    public ImagCDFVariableTS_JNI (ImagCDFVariableTS source, int offset, int length)
+    {
+        super ();
         
-        sample_period = -1.0;
+        setSlice (source, offset, length);
+    }
+    
+    /** create a view of part of these time stamps
+     * @param offset the index of the first time stamp in the view
+     * @param length the number of time stamps in the view
+     * @return the view */
+    @Override
+    public ImagCDFVariableTS slice (int offset, int length)
+    {
+        return new ImagCDFVariableTS_JNI (this, offset, length);
     }
     
     /** create an ImagCDF variable time stamp series from a set of dates
@@ -66,9 +135,10 @@ public class ImagCDFVariableTS_JNI extends ImagCDFVariableTS
         int count;
         
         this.var_name = var_name;
-        time_stamps = new long [dates.length];
-        for (count=0; count<time_stamps.length; count++)
-            time_stamps [count] = ImagCDFLowLevel_JNI.DateToTT2000 (dates[count]);
+        long tt2000 [] = new long [dates.length];
+        for (count=0; count<tt2000.length; count++)
+            tt2000 [count] = ImagCDFLowLevel_JNI.DateToTT2000 (dates[count]);
+        setTimeStamps (tt2000);
 
         sample_period = -1.0;
     }
@@ -80,14 +150,32 @@ public class ImagCDFVariableTS_JNI extends ImagCDFVariableTS
     public boolean write (ImagCDFLowLevel_JNI cdf)
     throws IMCDFException
     {
-        int count;
+        int count, n, n_samples;
+        long block [];
         Variable var;
         
         var = cdf.createDataVariable (var_name, ImagCDFLowLevel_JNI.CDFVariableType.TT2000);
 
-        if (! callWriteProgressListeners(0, time_stamps.length)) return false;
-        cdf.addTimeStamp (var, 0, time_stamps);
-        if (! callWriteProgressListeners(time_stamps.length, time_stamps.length)) return false;
+        n_samples = getNSamples ();
+        if (! callWriteProgressListeners(0, n_samples)) return false;
+        if (time_stamps != null)
+        {
+            cdf.addTimeStamp (var, 0, time_stamps, time_stamps_offset, time_stamps_length);
+            if (! callWriteProgressListeners(time_stamps_length, time_stamps_length)) return false;
+        }
+        else
+        {
+            // time stamps that are regular, not yet loaded, off the heap or compressed are
+            // generated a block at a time, leaving them stored as they are
+            block = new long [Math.min (COPY_BLOCK_SIZE, n_samples)];
+            for (count=0; count<n_samples; count+=n)
+            {
+                n = Math.min (block.length, n_samples - count);
+                copyTT2000 (block, count, n);
+                cdf.addTimeStamp (var, count, block, 0, n);
+                if (! callWriteProgressListeners(count + n, n_samples)) return false;
+            }
+        }
         return true;
     }   
     
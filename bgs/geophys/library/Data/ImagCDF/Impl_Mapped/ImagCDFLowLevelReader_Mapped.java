@@ -0,0 +1,790 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF.Impl_Mapped;
+
+import bgs.geophys.library.Data.ImagCDF.IMCDFException;
+import bgs.geophys.library.Data.ImagCDF.IMCDFRecordReader;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFFactory;
+import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDFLowLevelReader_PureJava;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A reader for uncompressed CDF (version 3) files that maps the file into
+ * memory and parses the CDF internal records itself, rather than using a
+ * CDF library. The data in a variable is made available as a DoubleBuffer
+ * or LongBuffer view of the mapped file, so it is not copied onto the heap
+ * and processes that read the same file share the operating system's page
+ * cache. Only the subset of the CDF format used by ImagCDF files is supported:
+ * zero dimensional, uncompressed variables of type CDF_DOUBLE or CDF_TIME_TT2000.
+ *
+ * THE IMCDF ROUTINES SHOULD NOT HAVE DEPENDENCIES ON OTHER LIBRARY ROUTINES -
+ * IT MUST BE POSSIBLE TO DISTRIBUTE THE IMCDF SOURCE CODE
+ *
+ * Error handling strategy: errors in individual reading routines are
+ * add to a list, which allows multiple errors to be recorded for a single
+ * file (rather than just the first error found). Once reading has completed,
+ * call getAccumulatedErrors() to get the list of errors and check whether it
+ * is empty of not. Errors in the structure of the file are thrown as exceptions
+ * when the file is opened.
+ *
+ * @author smf
+ */
+public class ImagCDFLowLevelReader_Mapped
+implements IMCDFRecordReader
+{
+
+    // CDF internal record types
+    private static final int CDR_RECORD = 1;
+    private static final int GDR_RECORD = 2;
+    private static final int RVDR_RECORD = 3;
+    private static final int ADR_RECORD = 4;
+    private static final int AGREDR_RECORD = 5;
+    private static final int VXR_RECORD = 6;
+    private static final int VVR_RECORD = 7;
+    private static final int ZVDR_RECORD = 8;
+    private static final int AZEDR_RECORD = 9;
+    private static final int CVVR_RECORD = 13;
+
+    // CDF data types
+    private static final int CDF_INT8 = 8;
+    private static final int CDF_REAL4 = 21;
+    private static final int CDF_REAL8 = 22;
+    private static final int CDF_TIME_TT2000 = 33;
+    private static final int CDF_FLOAT = 44;
+    private static final int CDF_DOUBLE = 45;
+    private static final int CDF_CHAR = 51;
+    private static final int CDF_UCHAR = 52;
+
+    // magic numbers at the start of the file
+    private static final int CDF_V3_MAGIC = 0xCDF30001;
+    private static final int UNCOMPRESSED_MAGIC = 0x0000FFFF;
+
+    // flags in the VDR
+    private static final int VDR_COMPRESSION_FLAG = 0x04;
+
+    // attribute scopes
+    private static final int GLOBAL_SCOPE = 1;
+    private static final int GLOBAL_SCOPE_ASSUMED = 3;
+
+    // the maximum number of levels of VXR records that will be followed
+    private static final int MAX_VXR_DEPTH = 10;
+
+    /** the position of the data for a range of records in a VVR */
+    private static class VVRSegment
+    {
+        private final int first_record;
+        private final int last_record;
+        private final int data_position;
+        private VVRSegment (int first_record, int last_record, int data_position)
+        {
+            this.first_record = first_record;
+            this.last_record = last_record;
+            this.data_position = data_position;
+        }
+    }
+
+    /** the description of a variable from its VDR */
+    private static class VariableDescriptor
+    {
+        private final String name;
+        private final int num;
+        private final boolean z_variable;
+        private final int data_type;
+        private final int n_records;
+        private final boolean compressed;
+        private final int n_dims;
+        private final int n_elems;
+        private final List<VVRSegment> segments;
+        private VariableDescriptor (String name, int num, boolean z_variable, int data_type,
+                                    int n_records, boolean compressed, int n_dims, int n_elems)
+        {
+            this.name = name;
+            this.num = num;
+            this.z_variable = z_variable;
+            this.data_type = data_type;
+            this.n_records = n_records;
+            this.compressed = compressed;
+            this.n_dims = n_dims;
+            this.n_elems = n_elems;
+            this.segments = new ArrayList<> ();
+        }
+    }
+
+    /** the description of an attribute entry from its AEDR */
+    private static class EntryDescriptor
+    {
+        private final int data_type;
+        private final int n_elems;
+        private final int value_position;
+        private EntryDescriptor (int data_type, int n_elems, int value_position)
+        {
+            this.data_type = data_type;
+            this.n_elems = n_elems;
+            this.value_position = value_position;
+        }
+    }
+
+    /** the description of an attribute from its ADR */
+    private static class AttributeDescriptor
+    {
+        private final boolean global;
+        private final Map<Integer, EntryDescriptor> gr_entries;
+        private final Map<Integer, EntryDescriptor> z_entries;
+        private AttributeDescriptor (boolean global)
+        {
+            this.global = global;
+            this.gr_entries = new HashMap<> ();
+            this.z_entries = new HashMap<> ();
+        }
+    }
+
+    // private member data for this class
+    private ByteBuffer file_buffer;
+    private ByteOrder data_order;
+    private final Map<String, VariableDescriptor> variables;
+    private final Map<String, AttributeDescriptor> attributes;
+    private final List<String> accumulated_errors;
+
+
+    /** ------------------------------------------------------------------------
+     *  --------------------- Opening and closing CDF files --------------------
+     *  ------------------------------------------------------------------------*/
+
+    /** open a CDF for reading
+     * @param filename the file to open
+     * @throws IMCDFException if there is an error, including a file that is compressed
+     *         or uses parts of the CDF format that are not supported */
+    public ImagCDFLowLevelReader_Mapped (String filename)
+    throws IMCDFException
+    {
+        this (new File (filename));
+    }
+
+    /** open a CDF for reading
+     * @param file the file to open
+     * @throws IMCDFException if there is an error, including a file that is compressed
+     *         or uses parts of the CDF format that are not supported */
+    public ImagCDFLowLevelReader_Mapped (File file)
+    throws IMCDFException
+    {
+        variables = new HashMap<> ();
+        attributes = new HashMap<> ();
+        accumulated_errors = new ArrayList<> ();
+
+        // map the file - the mapping stays valid after the channel is closed
+        try (RandomAccessFile raf = new RandomAccessFile (file, "r");
+             FileChannel channel = raf.getChannel())
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IMCDFException ("CDF file is too large to be memory mapped: " + file.getName());
+            MappedByteBuffer mapped = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            file_buffer = mapped.order (ByteOrder.BIG_ENDIAN);
+        }
+        catch (IOException e)
+        {
+            throw new IMCDFException ("Error mapping CDF file " + file.getName(), e);
+        }
+
+        // parse the internal records
+        try
+        {
+            parseFile ();
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            throw new IMCDFException ("Corrupt CDF file " + file.getName(), e);
+        }
+    }
+
+    /** close a CDF - the mapping of the file is released when the buffers
+     * that have been returned from this reader are garbage collected. After
+     * this call no more records can be read */
+    @Override
+    public synchronized void close ()
+    {
+        file_buffer = null;
+    }
+
+
+    /** ------------------------------------------------------------------------
+     *  ----------------------- Reading from CDF files -------------------------
+     *  ------------------------------------------------------------------------*/
+
+    /** get the contents of a global attribute
+     * @param name the name of the attribute
+     * @param entry_no the entry number (zero based)
+     * @param mandatory if true, throw an exception if the attribute entry
+     *                  does not exist, otherwise return null
+     * @return the value of the attribute */
+    public String getGlobalAttributeString (String name, int entry_no, boolean mandatory)
+    {
+        EntryDescriptor entry = getGlobalAttributeEntry (name, entry_no, mandatory);
+        if (entry == null) return null;
+        if (isStringType (entry.data_type))
+            return getEntryString (entry);
+        accumulated_errors.add ("Incorrect global attribute \"" + name + "\", data type should be String");
+        return null;
+    }
+
+    /** get the contents of a global attribute
+     * @param name the name of the attribute
+     * @param entry_no the entry number (zero based)
+     * @param mandatory if true, throw an exception if the attribute entry
+     *                  does not exist, otherwise return null
+     * @return the value of the attribute */
+    public Double getGlobalAttributeDouble (String name, int entry_no, boolean mandatory)
+    {
+        EntryDescriptor entry = getGlobalAttributeEntry (name, entry_no, mandatory);
+        if (entry == null) return null;
+        if (isDoubleType (entry.data_type))
+            return getEntryDouble (entry);
+        accumulated_errors.add ("Incorrect global attribute \"" + name + "\", data type should be Double");
+        return null;
+    }
+
+    /** get the contents of a global attribute
+     * @param name the name of the attribute
+     * @param entry_no the entry number (zero based)
+     * @param mandatory if true, throw an exception if the attribute entry
+     *                  does not exist, otherwise return null
+     * @return the value of the attribute */
+    public Date getGlobalAttributeDate (String name, int entry_no, boolean mandatory)
+    {
+        EntryDescriptor entry = getGlobalAttributeEntry (name, entry_no, mandatory);
+        if (entry == null) return null;
+        if (isStringType (entry.data_type))
+        {
+            String string = getEntryString (entry).replace('T', ' ').replaceAll("Z", "");
+            SimpleDateFormat formatter = new SimpleDateFormat ("YYYY-mm-dd hh:mm:ss");
+            ImagCDFFactory.fixSimpleDateFormat(formatter);
+            try
+            {
+                return formatter.parse (string);
+            }
+            catch (ParseException e)
+            {
+                accumulated_errors.add ("Incorrect global attribute data \"" + name + "\", contents should be ISO 8601 format string");
+                return null;
+            }
+        }
+        if (entry.data_type == CDF_TIME_TT2000)
+        {
+            try
+            {
+                return ImagCDFLowLevelReader_PureJava.TT2000ToDate (getEntryLong (entry));
+            }
+            catch (IMCDFException e)
+            {
+                process_error ("Error decoding global attribute \"" + name + "\"", e);
+                return null;
+            }
+        }
+        accumulated_errors.add ("Incorrect global attribute \"" + name + "\", data type should be Long/TT2000 or ISO 8601 format string");
+        return null;
+    }
+
+    /** get the contents of a variable attribute
+     * @param name the name of the attribute
+     * @param var_name the name of the variable that this entry applies to
+     * @return the value of the attribute's entry */
+    public String getVariableAttributeString (String name, String var_name)
+    {
+        EntryDescriptor entry = getVariableAttributeEntry (name, var_name);
+        if (entry == null) return null;
+        if (isStringType (entry.data_type))
+            return getEntryString (entry);
+        accumulated_errors.add ("Incorrect variable \"" + var_name + "\", attribute \"" + name + "\", data type (should be String)");
+        return null;
+    }
+
+    /** get the contents of a variable attribute
+     * @param name the name of the attribute
+     * @param var_name the name of the variable that this entry applies to
+     * @return the value of the attribute's entry */
+    public Double getVariableAttributeDouble (String name, String var_name)
+    {
+        EntryDescriptor entry = getVariableAttributeEntry (name, var_name);
+        if (entry == null) return null;
+        if (isDoubleType (entry.data_type))
+            return getEntryDouble (entry);
+        accumulated_errors.add ("Incorrect variable \"" + var_name + "\", attribute \"" + name + "\", data type (should be Double)");
+        return null;
+    }
+
+    /** does the given variable exist in the CDF file
+     * @param name the name of the variable to test for
+     * @return true if it exists, false otherwise */
+    public boolean isVariableExist (String name)
+    {
+        return variables.containsKey (name);
+    }
+
+    /** get a read-only view of a range of records in a data variable - when the
+     * records are stored contiguously in the file (which is normally the case) the
+     * view is a window onto the mapped file and no data is copied
+     * @param var_name the name of the variable
+     * @param first_record the first record (zero based)
+     * @param n_records the number of records
+     * @return the data
+     * @throws IMCDFException if there is an error */
+    public synchronized DoubleBuffer getDataBuffer (String var_name, int first_record, int n_records)
+    throws IMCDFException
+    {
+        VariableDescriptor var = findVariable (var_name);
+        if (! isDoubleType (var.data_type) || var.data_type == CDF_FLOAT || var.data_type == CDF_REAL4)
+            throw new IMCDFException ("Unexpected data type in data array: " + var_name);
+        return getRecordBytes (var, first_record, n_records).asDoubleBuffer().asReadOnlyBuffer();
+    }
+
+    /** get a read-only view of a range of records in a TT2000 time stamp variable -
+     * when the records are stored contiguously in the file (which is normally the case)
+     * the view is a window onto the mapped file and no data is copied
+     * @param var_name the name of the variable
+     * @param first_record the first record (zero based)
+     * @param n_records the number of records
+     * @return the time stamps
+     * @throws IMCDFException if there is an error */
+    public synchronized LongBuffer getTimeStampBuffer (String var_name, int first_record, int n_records)
+    throws IMCDFException
+    {
+        VariableDescriptor var = findVariable (var_name);
+        if (var.data_type != CDF_TIME_TT2000 && var.data_type != CDF_INT8)
+            throw new IMCDFException ("Unexpected data type in time stamp array: " + var_name);
+        return getRecordBytes (var, first_record, n_records).asLongBuffer().asReadOnlyBuffer();
+    }
+
+    /** get the number of records in a variable without reading the records
+     * @param var_name the name of the variable
+     * @return the number of records
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized int getNRecords (String var_name)
+    throws IMCDFException
+    {
+        return findVariable (var_name).n_records;
+    }
+
+    /** read all the records from a data variable onto the heap
+     * @param var_name the name of the variable
+     * @return the data
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized double [] readDataRecords (String var_name)
+    throws IMCDFException
+    {
+        return readDataRecords (var_name, 0, getNRecords (var_name));
+    }
+
+    /** read all the records from a TT2000 time stamp variable onto the heap
+     * @param var_name the name of the variable
+     * @return the time stamps
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized long [] readTimeStampRecords (String var_name)
+    throws IMCDFException
+    {
+        return readTimeStampRecords (var_name, 0, getNRecords (var_name));
+    }
+
+    /** read a range of records from a data variable onto the heap
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the data
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized double [] readDataRecords (String var_name, int first_record, int n_records)
+    throws IMCDFException
+    {
+        DoubleBuffer buffer = getDataBuffer (var_name, first_record, n_records);
+        double data [] = new double [buffer.remaining()];
+        buffer.get (data);
+        return data;
+    }
+
+    /** read a range of records from a TT2000 time stamp variable onto the heap
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the time stamps
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized long [] readTimeStampRecords (String var_name, int first_record, int n_records)
+    throws IMCDFException
+    {
+        LongBuffer buffer = getTimeStampBuffer (var_name, first_record, n_records);
+        long time_stamps [] = new long [buffer.remaining()];
+        buffer.get (time_stamps);
+        return time_stamps;
+    }
+
+    /** read a range of records from a data variable into an array supplied by the
+     * caller - the records are copied straight from the mapped file
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @param dst the array to read into
+     * @param dst_pos the index in dst to put the first record in
+     * @throws IMCDFException if there is an error, including fewer records than requested */
+    @Override
+    public synchronized void readDataRecords (String var_name, int first_record, int n_records, double dst [], int dst_pos)
+    throws IMCDFException
+    {
+        DoubleBuffer buffer = getDataBuffer (var_name, first_record, n_records);
+        if (buffer.remaining() != n_records) throw new IMCDFException ("Short read from data variable " + var_name);
+        buffer.get (dst, dst_pos, n_records);
+    }
+
+    /** read a range of records from a TT2000 time stamp variable into an array
+     * supplied by the caller - the records are copied straight from the mapped file
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @param dst the array to read into
+     * @param dst_pos the index in dst to put the first record in
+     * @throws IMCDFException if there is an error, including fewer records than requested */
+    @Override
+    public synchronized void readTimeStampRecords (String var_name, int first_record, int n_records, long dst [], int dst_pos)
+    throws IMCDFException
+    {
+        LongBuffer buffer = getTimeStampBuffer (var_name, first_record, n_records);
+        if (buffer.remaining() != n_records) throw new IMCDFException ("Short read from time stamp variable " + var_name);
+        buffer.get (dst, dst_pos, n_records);
+    }
+
+    /** get the list of accumulated errors
+     * @return the list */
+    public List<String> getAccumulatedErrors ()
+    {
+        return accumulated_errors;
+    }
+
+    public void process_error (String msg, Exception e)
+    {
+        if (e.getMessage() != null)
+            msg += ": " + e.getMessage();
+        accumulated_errors.add (msg);
+    }
+
+    /** ------------------------------------------------------------------------
+     *  ---------------------------- Private code ------------------------------
+     *  ------------------------------------------------------------------------*/
+
+    /** parse the CDR, GDR, VDRs and ADRs, which describe the contents of the file */
+    private void parseFile ()
+    throws IMCDFException
+    {
+        int count, cdr, gdr, vdr, adr, encoding, r_num_dims, n_r_vars, n_z_vars, n_attrs;
+
+        // check the magic numbers
+        if (file_buffer.getInt (0) != CDF_V3_MAGIC)
+            throw new IMCDFException ("Not a version 3 CDF file");
+        if (file_buffer.getInt (4) != UNCOMPRESSED_MAGIC)
+            throw new IMCDFException ("Compressed CDF files can't be memory mapped - use the pure Java or JNI library to read this file");
+
+        // the CDR follows the magic numbers and gives the data encoding and the position of the GDR
+        cdr = 8;
+        checkRecordType (cdr, CDR_RECORD);
+        gdr = getPosition (cdr + 12);
+        encoding = file_buffer.getInt (cdr + 28);
+        switch (encoding)
+        {
+            case 1: case 2: case 5: case 7: case 9: case 11: case 12: case 18:
+                data_order = ByteOrder.BIG_ENDIAN;
+                break;
+            case 4: case 6: case 13: case 16: case 17:
+                data_order = ByteOrder.LITTLE_ENDIAN;
+                break;
+            default:
+                throw new IMCDFException ("Unsupported CDF data encoding: " + encoding);
+        }
+
+        // the GDR gives the heads of the variable and attribute lists
+        checkRecordType (gdr, GDR_RECORD);
+        n_r_vars = file_buffer.getInt (gdr + 44);
+        n_attrs = file_buffer.getInt (gdr + 48);
+        r_num_dims = file_buffer.getInt (gdr + 56);
+        n_z_vars = file_buffer.getInt (gdr + 60);
+
+        vdr = getPosition (gdr + 12);
+        for (count=0; count<n_r_vars; count++)
+        {
+            checkRecordType (vdr, RVDR_RECORD);
+            parseVDR (vdr, false, r_num_dims);
+            vdr = getPosition (vdr + 12);
+        }
+        vdr = getPosition (gdr + 20);
+        for (count=0; count<n_z_vars; count++)
+        {
+            checkRecordType (vdr, ZVDR_RECORD);
+            parseVDR (vdr, true, file_buffer.getInt (vdr + 340));
+            vdr = getPosition (vdr + 12);
+        }
+
+        adr = getPosition (gdr + 28);
+        for (count=0; count<n_attrs; count++)
+        {
+            checkRecordType (adr, ADR_RECORD);
+            parseADR (adr);
+            adr = getPosition (adr + 12);
+        }
+    }
+
+    /** parse a VDR, including the VXRs that locate the variable's data */
+    private void parseVDR (int vdr, boolean z_variable, int n_dims)
+    throws IMCDFException
+    {
+        int flags;
+        VariableDescriptor var;
+
+        flags = file_buffer.getInt (vdr + 44);
+        var = new VariableDescriptor (getName (vdr + 84), file_buffer.getInt (vdr + 68), z_variable,
+                                      file_buffer.getInt (vdr + 20), file_buffer.getInt (vdr + 24) +1,
+                                      (flags & VDR_COMPRESSION_FLAG) != 0, n_dims, file_buffer.getInt (vdr + 64));
+        if (! var.compressed)
+            parseVXR (var, getPosition (vdr + 28), 0);
+        Collections.sort (var.segments, new Comparator<VVRSegment> ()
+        {
+            @Override
+            public int compare (VVRSegment o1, VVRSegment o2) { return Integer.compare (o1.first_record, o2.first_record); }
+        });
+        variables.put (var.name, var);
+    }
+
+    /** parse a chain of VXRs, recording the position of each VVR */
+    private void parseVXR (VariableDescriptor var, int vxr, int depth)
+    throws IMCDFException
+    {
+        int count, n_entries, n_used, first, last, offset, n_vxrs;
+
+        if (depth > MAX_VXR_DEPTH) throw new IMCDFException ("Too many levels of VXR records in variable " + var.name);
+        for (n_vxrs = 0; vxr != 0; n_vxrs ++)
+        {
+            // a chain can't hold more VXRs than will fit in the file - more than this means it is corrupt
+            if (n_vxrs > file_buffer.capacity() / 28) throw new IMCDFException ("Corrupt CDF file, loop in VXR records for variable " + var.name);
+            checkRecordType (vxr, VXR_RECORD);
+            n_entries = file_buffer.getInt (vxr + 20);
+            n_used = file_buffer.getInt (vxr + 24);
+            for (count=0; count<n_used; count++)
+            {
+                first = file_buffer.getInt (vxr + 28 + (count * 4));
+                last = file_buffer.getInt (vxr + 28 + (n_entries * 4) + (count * 4));
+                offset = getPosition (vxr + 28 + (n_entries * 8) + (count * 8));
+                switch (file_buffer.getInt (offset + 8))
+                {
+                    case VVR_RECORD:
+                        var.segments.add (new VVRSegment (first, last, offset + 12));
+                        break;
+                    case VXR_RECORD:
+                        parseVXR (var, offset, depth +1);
+                        break;
+                    case CVVR_RECORD:
+                        throw new IMCDFException ("Compressed variables can't be memory mapped: " + var.name);
+                    default:
+                        throw new IMCDFException ("Unexpected record type in VXR for variable " + var.name);
+                }
+            }
+            vxr = getPosition (vxr + 12);
+        }
+    }
+
+    /** parse an ADR and its chains of AEDRs */
+    private void parseADR (int adr)
+    throws IMCDFException
+    {
+        int scope;
+        AttributeDescriptor attr;
+
+        scope = file_buffer.getInt (adr + 28);
+        attr = new AttributeDescriptor (scope == GLOBAL_SCOPE || scope == GLOBAL_SCOPE_ASSUMED);
+        parseAEDRs (attr.gr_entries, getPosition (adr + 20), file_buffer.getInt (adr + 36), AGREDR_RECORD);
+        parseAEDRs (attr.z_entries, getPosition (adr + 48), file_buffer.getInt (adr + 56), AZEDR_RECORD);
+        attributes.put (getName (adr + 68), attr);
+    }
+
+    /** parse a chain of AEDRs */
+    private void parseAEDRs (Map<Integer, EntryDescriptor> entries, int aedr, int n_entries, int record_type)
+    throws IMCDFException
+    {
+        int count;
+
+        for (count=0; count<n_entries; count++)
+        {
+            checkRecordType (aedr, record_type);
+            entries.put (file_buffer.getInt (aedr + 28),
+                         new EntryDescriptor (file_buffer.getInt (aedr + 24), file_buffer.getInt (aedr + 32), aedr + 56));
+            aedr = getPosition (aedr + 12);
+        }
+    }
+
+    /** get a view of the bytes for a range of records, in the data's byte order */
+    private ByteBuffer getRecordBytes (VariableDescriptor var, int first_record, int n_records)
+    throws IMCDFException
+    {
+        int record, n_to_copy;
+        ByteBuffer source, dest;
+
+        checkOpen ();
+        if (var.compressed) throw new IMCDFException ("Compressed variables can't be memory mapped: " + var.name);
+        if (var.n_dims != 0 || var.n_elems != 1) throw new IMCDFException ("Variable is not zero dimensional: " + var.name);
+        if (first_record < 0 || n_records < 0 || first_record + n_records > var.n_records)
+            throw new IMCDFException ("Record range outside variable " + var.name);
+
+        // the usual case - all the records are in one VVR, so use a view of the file
+        for (VVRSegment segment : var.segments)
+        {
+            if (first_record >= segment.first_record && first_record + n_records -1 <= segment.last_record)
+                return sliceFile (segment.data_position + ((first_record - segment.first_record) * 8), n_records * 8);
+        }
+
+        // the records are spread over more than one VVR, so copy them
+        dest = ByteBuffer.allocate (n_records * 8).order (data_order);
+        record = first_record;
+        for (VVRSegment segment : var.segments)
+        {
+            if (record >= first_record + n_records) break;
+            if (segment.last_record < record) continue;
+            if (segment.first_record > record) break;
+            n_to_copy = Math.min (segment.last_record, first_record + n_records -1) - record +1;
+            source = sliceFile (segment.data_position + ((record - segment.first_record) * 8), n_to_copy * 8);
+            dest.put (source);
+            record += n_to_copy;
+        }
+        if (record < first_record + n_records)
+            throw new IMCDFException ("Missing records in variable " + var.name);
+        dest.flip ();
+        return dest;
+    }
+
+    /** get a view of part of the file, in the data's byte order */
+    private ByteBuffer sliceFile (int position, int length)
+    {
+        ByteBuffer slice = file_buffer.duplicate ();
+        slice.limit (position + length);
+        slice.position (position);
+        return slice.slice ().order (data_order);
+    }
+
+    /** find a global attribute entry, recording an error if it is missing and mandatory */
+    private EntryDescriptor getGlobalAttributeEntry (String name, int entry_no, boolean mandatory)
+    {
+        AttributeDescriptor attr = attributes.get (name);
+        EntryDescriptor entry = null;
+        if (attr != null && attr.global) entry = attr.gr_entries.get (entry_no);
+        if (entry == null && mandatory)
+            accumulated_errors.add ("Missing global attribute name/entry: " + name + "/" + Integer.toString (entry_no));
+        return entry;
+    }
+
+    /** find a variable attribute entry */
+    private EntryDescriptor getVariableAttributeEntry (String name, String var_name)
+    {
+        AttributeDescriptor attr = attributes.get (name);
+        VariableDescriptor var = variables.get (var_name);
+        if (attr == null || attr.global || var == null) return null;
+        if (var.z_variable) return attr.z_entries.get (var.num);
+        return attr.gr_entries.get (var.num);
+    }
+
+    private String getEntryString (EntryDescriptor entry)
+    {
+        int length;
+        byte bytes [];
+
+        bytes = new byte [entry.n_elems];
+        ByteBuffer buffer = file_buffer.duplicate ();
+        buffer.position (entry.value_position);
+        buffer.get (bytes);
+        for (length = bytes.length; length > 0 && bytes [length -1] == 0; length --) ;
+        return new String (bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private Double getEntryDouble (EntryDescriptor entry)
+    {
+        if (entry.data_type == CDF_FLOAT || entry.data_type == CDF_REAL4)
+            return (double) sliceFile (entry.value_position, 4).getFloat (0);
+        return sliceFile (entry.value_position, 8).getDouble (0);
+    }
+
+    private long getEntryLong (EntryDescriptor entry)
+    {
+        return sliceFile (entry.value_position, 8).getLong (0);
+    }
+
+    private static boolean isStringType (int data_type)
+    {
+        return data_type == CDF_CHAR || data_type == CDF_UCHAR;
+    }
+
+    private static boolean isDoubleType (int data_type)
+    {
+        return data_type == CDF_DOUBLE || data_type == CDF_REAL8 || data_type == CDF_FLOAT || data_type == CDF_REAL4;
+    }
+
+    /** read a record's name, which is a null padded 256 byte field */
+    private String getName (int position)
+    {
+        int length;
+        byte bytes [];
+
+        bytes = new byte [256];
+        ByteBuffer buffer = file_buffer.duplicate ();
+        buffer.position (position);
+        buffer.get (bytes);
+        for (length = 0; length < bytes.length && bytes [length] != 0; length ++) ;
+        return new String (bytes, 0, length, StandardCharsets.UTF_8).trim();
+    }
+
+    /** read an 8 byte file offset, checking that it lies inside the file */
+    private int getPosition (int position)
+    throws IMCDFException
+    {
+        long offset = file_buffer.getLong (position);
+        if (offset < 0 || offset >= file_buffer.capacity())
+            throw new IMCDFException ("Corrupt CDF file, record offset out of range: " + offset);
+        return (int) offset;
+    }
+
+    private void checkRecordType (int position, int record_type)
+    throws IMCDFException
+    {
+        if (position == 0 || file_buffer.getInt (position + 8) != record_type)
+            throw new IMCDFException ("Corrupt CDF file, expected record type " + record_type + " at offset " + position);
+    }
+
+    private VariableDescriptor findVariable (String var_name)
+    throws IMCDFException
+    {
+        VariableDescriptor var = variables.get (var_name);
+        if (var == null) throw new IMCDFException ("Missing variable: " + var_name);
+        return var;
+    }
+
+    /** check that the file has not been closed */
+    private void checkOpen ()
+    throws IMCDFException
+    {
+        if (file_buffer == null) throw new IMCDFException ("CDF file has been closed");
+    }
+}
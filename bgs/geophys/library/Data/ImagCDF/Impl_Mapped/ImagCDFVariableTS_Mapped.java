@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF.Impl_Mapped;
+
+import bgs.geophys.library.Data.ImagCDF.IMCDFException;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFRecordRange;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFVariableTS;
+import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDFVariableTS_PureJava;
+import java.nio.LongBuffer;
+
+/**
+ * A class that holds the time stamps for an ImagCDFVariable read from a
+ * memory mapped file. The TT2000 time stamps are available as a view of
+ * the mapped file through getTimeStampBuffer(). They are only copied onto
+ * the heap if they are needed as an array.
+ * 
+ * @author smf
+ */
+public class ImagCDFVariableTS_Mapped extends ImagCDFVariableTS_PureJava
+{
+    
+    // a view of the time stamps in the mapped file
+    private final LongBuffer time_stamp_buffer;
+
+    /** create an ImagCDF variable time stamp series from the contents of a mapped CDF file
+     * @param cdf the open CDF file encapsulated in an ImagCDFLowLevel object
+     * @param var_name the CDF variable name
+     * @param range the records to read from the file, or null to read all records */
+    public ImagCDFVariableTS_Mapped (ImagCDFLowLevelReader_Mapped cdf, String var_name, ImagCDFRecordRange range)
+    {
+        super ();
+        
+        LongBuffer buffer;
+        
+        this.var_name = var_name;
+        buffer = null;
+        try
+        {
+            if (range == null)
+                buffer = cdf.getTimeStampBuffer (var_name, 0, cdf.getNRecords (var_name));
+            else
+                buffer = cdf.getTimeStampBuffer (var_name, range.getFirstRecord(), range.getNRecords());
+        }
+        catch (IMCDFException e)
+        {
+            cdf.process_error ("Error reading time stamp variable " + var_name, e);
+        }
+        time_stamp_buffer = buffer;
+        time_stamps = null;
+        if (buffer != null)
+        {
+            lazy_n_samples = buffer.remaining();
+            lazy_reader = cdf;
+            lazy_range = range;
+        }
+        
+        sample_period = -1.0;
+    }
+    
+    /** create a view of part of another set of time stamps from a mapped file
+     * @param source the time stamps to take the view from
+     * @param offset the index of the first time stamp in the view
+     * @param length the number of time stamps in the view */
+    public ImagCDFVariableTS_Mapped (ImagCDFVariableTS_Mapped source, int offset, int length)
+    {
+        super (source, offset, length);
+        
+        LongBuffer buffer;
+        
+        if (source.time_stamp_buffer == null)
+            buffer = null;
+        else
+        {
+            buffer = source.time_stamp_buffer.duplicate();
+            buffer.position (buffer.position() + offset);
+            buffer.limit (buffer.position() + length);
+            buffer = buffer.slice();
+        }
+        time_stamp_buffer = buffer;
+    }
+    
+    /** create a view of part of these time stamps
+     * @param offset the index of the first time stamp in the view
+     * @param length the number of time stamps in the view
+     * @return the view */
+    @Override
+    public ImagCDFVariableTS slice (int offset, int length)
+    {
+        return new ImagCDFVariableTS_Mapped (this, offset, length);
+    }
+    
+    /** get a read-only view of the TT2000 time stamps in the mapped file - no data
+     * is copied and the view stays valid after the ImagCDF object has been closed
+     * @return the time stamps, or null if they could not be read */
+    public LongBuffer getTimeStampBuffer () { return time_stamp_buffer == null ? null : time_stamp_buffer.duplicate(); }
+    
+}
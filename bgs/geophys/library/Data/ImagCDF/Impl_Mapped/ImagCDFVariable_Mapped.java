@@ -0,0 +1,191 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF.Impl_Mapped;
+
+import bgs.geophys.library.Data.ImagCDF.IMCDFException;
+import bgs.geophys.library.Data.ImagCDF.IMCDFVariableType;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFVariable;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFRecordRange;
+import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDFVariable_PureJava;
+import java.nio.DoubleBuffer;
+import java.util.function.DoubleConsumer;
+
+/**
+ * A class that holds an ImagCDF variable read from a memory mapped file. The
+ * data is available as a view of the mapped file through getDataBuffer(). It
+ * is only copied onto the heap if getData() is called.
+ * 
+ * THE IMCDF ROUTINES SHOULD NOT HAVE DEPENDENCIES ON OTHER LIBRARY ROUTINES -
+ * IT MUST BE POSSIBLE TO DISTRIBUTE THE IMCDF SOURCE CODE
+ * 
+ * @author smf
+ */
+public class ImagCDFVariable_Mapped extends ImagCDFVariable_PureJava
+{
+    
+    // a view of the data in the mapped file
+    private final DoubleBuffer data_buffer;
+    
+    /** create a ImagCDF variable from the contents of a mapped CDF file
+     * @param cdf the open CDF file encapsulated in an ImagCDFLowLevel object
+     * @param variable_type the type of data this object should look for in the CDF file
+     * @param suffix the suffix for the element name (numbers starting at '1' for temperature elements,
+     *               geomagnetic element codes for geomagnetic elements)
+     * @param range the records to read from the file, or null to read all records */
+    public ImagCDFVariable_Mapped (ImagCDFLowLevelReader_Mapped cdf, IMCDFVariableType variable_type, String suffix,
+                                   ImagCDFRecordRange range)
+    {
+        super ();
+        
+        DoubleBuffer buffer;
+        
+        this.variable_type = variable_type;
+        var_name = variable_type.getCDFFileVariableName(suffix);
+ 
+        field_nam = cdf.getVariableAttributeString("FIELDNAM",  var_name);
+        valid_min = cdf.getVariableAttributeDouble("VALIDMIN",  var_name);
+        valid_max = cdf.getVariableAttributeDouble("VALIDMAX",  var_name);
+        units =     cdf.getVariableAttributeString("UNITS",     var_name);
+        fill_val =  cdf.getVariableAttributeDouble("FILLVAL",   var_name);
+        depend_0 =  cdf.getVariableAttributeString("DEPEND_0",  var_name);
+        
+        elem_rec = suffix;
+        
+        // the data is only copied from the mapped file if it is asked for as an array
+        buffer = null;
+        try
+        {
+            if (range == null)
+                buffer = cdf.getDataBuffer (var_name, 0, cdf.getNRecords (var_name));
+            else
+                buffer = cdf.getDataBuffer (var_name, range.getFirstRecord(), range.getNRecords());
+        }
+        catch (IMCDFException e)
+        {
+            cdf.process_error ("Error reading variable " + var_name, e);
+        }
+        data_buffer = buffer;
+        data = null;
+        data_offset = 0;
+        if (buffer != null)
+        {
+            data_length = buffer.remaining();
+            lazy_reader = cdf;
+            lazy_range = range;
+        }
+
+        super.checkMetadata (cdf.getAccumulatedErrors());
+    }
+    
+    /** create a view of part of another variable's data from a mapped file
+     * @param source the variable to take the view from
+     * @param offset the index of the first sample in the view
+     * @param length the number of samples in the view */
+    public ImagCDFVariable_Mapped (ImagCDFVariable_Mapped source, int offset, int length)
+    {
+        super (source, offset, length);
+        
+        DoubleBuffer buffer;
+        
+        if (source.data_buffer == null)
+            buffer = null;
+        else
+        {
+            buffer = source.data_buffer.duplicate();
+            buffer.position (buffer.position() + offset);
+            buffer.limit (buffer.position() + length);
+            buffer = buffer.slice();
+        }
+        data_buffer = buffer;
+    }
+    
+    /** create a view of part of this variable's data
+     * @param offset the index of the first sample in the view
+     * @param length the number of samples in the view
+     * @return the view */
+    @Override
+    public ImagCDFVariable slice (int offset, int length)
+    {
+        return new ImagCDFVariable_Mapped (this, offset, length);
+    }
+    
+    /** get a read-only view of the data in the mapped file - no data is copied
+     * and the view stays valid after the ImagCDF object has been closed
+     * @return the data, or null if the data could not be read */
+    public DoubleBuffer getDataBuffer () { return data_buffer == null ? null : data_buffer.duplicate(); }
+    
+    /** get a read-only view of the data - this is a view of the mapped file
+     * unless the data has been copied onto the heap
+     * @return the data
+     * @throws IMCDFException if the data could not be loaded from the CDF file */
+    @Override
+    public DoubleBuffer asDoubleBuffer ()
+    throws IMCDFException
+    {
+        if (isDataLoaded() || data_buffer == null) return super.asDoubleBuffer();
+        return data_buffer.duplicate();
+    }
+    
+    /** get a single data sample, from the mapped file unless the data has
+     * been copied onto the heap
+     * @param index the index of the sample
+     * @return the sample
+     * @throws IMCDFException if the data could not be loaded from the CDF file */
+    @Override
+    public double get (int index)
+    throws IMCDFException
+    {
+        if (isDataLoaded() || data_buffer == null) return super.get (index);
+        if (index < 0 || index >= data_length)
+            throw new IndexOutOfBoundsException ("Data index out of range: " + index);
+        return data_buffer.get (data_buffer.position() + index);
+    }
+    
+    /** copy data into an array supplied by the caller, from the mapped file
+     * unless the data has been copied onto the heap
+     * @param dst the array to copy into
+     * @param dst_pos the index in dst to copy the first sample to
+     * @param from the index of the first sample to copy
+     * @param len the number of samples to copy
+     * @throws IMCDFException if there was an error reading the data */
+    @Override
+    public void copyInto (double dst [], int dst_pos, int from, int len)
+    throws IMCDFException
+    {
+        DoubleBuffer buffer;
+        
+        if (isDataLoaded() || data_buffer == null)
+            super.copyInto (dst, dst_pos, from, len);
+        else
+        {
+            if (from < 0 || len < 0 || from + len > data_length || dst_pos < 0 || dst_pos + len > dst.length)
+                throw new IndexOutOfBoundsException ("Data copy out of range: " + from + ", " + len);
+            buffer = data_buffer.duplicate();
+            buffer.position (buffer.position() + from);
+            buffer.get (dst, dst_pos, len);
+        }
+    }
+    
+    /** pass each data sample in turn to a consumer, from the mapped file
+     * unless the data has been copied onto the heap
+     * @param consumer the consumer
+     * @throws IMCDFException if the data could not be loaded from the CDF file */
+    @Override
+    public void forEach (DoubleConsumer consumer)
+    throws IMCDFException
+    {
+        DoubleBuffer buffer;
+        
+        if (isDataLoaded() || data_buffer == null)
+            super.forEach (consumer);
+        else
+        {
+            buffer = data_buffer.duplicate();
+            while (buffer.hasRemaining()) consumer.accept (buffer.get());
+        }
+    }
+    
+}
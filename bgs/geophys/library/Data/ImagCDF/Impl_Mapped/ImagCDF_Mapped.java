@@ -0,0 +1,355 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF.Impl_Mapped;
+
+import bgs.geophys.library.Data.ImagCDF.IMCDFException;
+import bgs.geophys.library.Data.ImagCDF.IMCDFPublicationLevel;
+import bgs.geophys.library.Data.ImagCDF.IMCDFStandardLevel;
+import bgs.geophys.library.Data.ImagCDF.IMCDFStandardName;
+import bgs.geophys.library.Data.ImagCDF.IMCDFVariableType;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFDataValidator;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFReadOptions;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFRecordCursor;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFRecordRange;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFVariable;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFVariableTS;
+import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDFLowLevelWriter_PureJava;
+import bgs.geophys.library.Data.ImagCDF.Impl_PureJava.ImagCDF_PureJava;
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * THE IMCDF ROUTINES SHOULD NOT HAVE DEPENDENCIES ON OTHER LIBRARY ROUTINES -
+ * IT MUST BE POSSIBLE TO DISTRIBUTE THE IMCDF SOURCE CODE
+ * 
+ * An ImagCDF object read from a memory mapped file. The data in each variable
+ * stays in the mapped file and is available (without copying) through
+ * ImagCDFVariable_Mapped.getDataBuffer() and ImagCDFVariableTS_Mapped.getTimeStampBuffer().
+ * Only uncompressed files can be read this way. The file stays open until
+ * close() is called - data that has not been copied onto the heap by then
+ * is still available through the buffers, but not as arrays. Writing is
+ * done with the pure Java CDF library.
+ * 
+ * @author smf
+ */
+public class ImagCDF_Mapped extends ImagCDF_PureJava
+{
+    /** read an ImagCDF file
+     * @param file the CDF file
+     * @throws IMCDFException if there is an error */
+    public ImagCDF_Mapped (File file)
+    throws IMCDFException
+    {
+        this (file, false, new ImagCDFReadOptions ());
+    }
+    
+    /** read an ImagCDF file
+     * @param file the CDF file
+     * @param headerOnly if TRUE read the global attributes, but not the data
+     * @param options options that control which variables are read - the lazy
+     *        option is ignored, as data is always left in the mapped file until it is used
+     * @throws IMCDFException if there is an error */
+    public ImagCDF_Mapped (File file, boolean headerOnly, ImagCDFReadOptions options)
+    throws IMCDFException
+    {
+        super ();
+        
+        ImagCDFReadOptions.ErrorPolicy error_policy = options.getErrorPolicy();
+        
+        // open the CDF file
+        ImagCDFLowLevelReader_Mapped cdf = null;
+        boolean keep_open = false;
+        try
+        {
+            cdf = new ImagCDFLowLevelReader_Mapped (file);
+
+            // get global metadata
+            List<String> links = new ArrayList<> ();
+            List<String> pids = new ArrayList<> ();
+            format_description =           cdf.getGlobalAttributeString("FormatDescription", 0, true);
+            format_version =               cdf.getGlobalAttributeString("FormatVersion",     0, true);
+            title =                        cdf.getGlobalAttributeString("Title",             0, true);
+            iaga_code =                    cdf.getGlobalAttributeString("IagaCode",          0, true);
+            elements_recorded =            cdf.getGlobalAttributeString("ElementsRecorded",  0, true);
+            String pub_level_string =      cdf.getGlobalAttributeString("PublicationLevel",  0, true);
+            pub_date =                     cdf.getGlobalAttributeDate  ("PublicationDate",   0, true);
+            observatory_name =             cdf.getGlobalAttributeString("ObservatoryName",   0, true);
+            latitude =                     cdf.getGlobalAttributeDouble("Latitude",          0, true);
+            longitude =                    cdf.getGlobalAttributeDouble("Longitude",         0, true);
+            elevation =                    cdf.getGlobalAttributeDouble("Elevation",         0, true);
+            institution =                  cdf.getGlobalAttributeString("Institution",       0, true);
+            vector_sens_orient =           cdf.getGlobalAttributeString("VectorSensOrient",  0, false);
+            String standard_level_string = cdf.getGlobalAttributeString("StandardLevel",     0, true);
+            String standard_name_string =  cdf.getGlobalAttributeString("StandardName",      0, false);
+            standard_version =             cdf.getGlobalAttributeString("StandardVersion",   0, false);
+            partial_stand_desc =           cdf.getGlobalAttributeString("PartialStandDesc",  0, false);
+            source =                       cdf.getGlobalAttributeString("Source",            0, true);
+            terms_of_use =                 cdf.getGlobalAttributeString("TermsOfUse",        0, false);
+            unique_identifier =            cdf.getGlobalAttributeString("UniqueIdentifier",  0, false);
+            if (pub_level_string == null) pub_level = null;
+            else pub_level = new IMCDFPublicationLevel (pub_level_string);
+            if (standard_level_string == null) standard_level = null;
+            else standard_level = new IMCDFStandardLevel (standard_level_string);
+            if (standard_name_string == null) standard_name = null;
+            else standard_name = new IMCDFStandardName (standard_name_string); 
+            String string = "";
+            for (int count=0; string != null; count ++)
+            {
+                string = cdf.getGlobalAttributeString("ParentIdentifiers", count, false);
+                if (string != null) pids.add (string);
+            }
+            string = "";
+            for (int count=0; string != null; count ++)
+            {
+                string = cdf.getGlobalAttributeString("ReferenceLinks", count, false);
+                if (string != null) links.add (string);
+            }
+
+            // sort out the array of reference links
+            reference_links = new URL [links.size()];
+            int count = 0;
+            try
+            {   
+                for (String s : links)
+                {
+                    reference_links [count ++] = new URL (s);
+                }
+            }
+            catch (MalformedURLException ex)
+            {
+                cdf.process_error ("Badly formed URL in reference link " + (count +1), ex);
+            }
+
+            // sort out the array of parent identifiers
+            parent_identifiers = new String [pids.size()];
+            count = 0;
+            for (String s : pids)
+            {
+                parent_identifiers [count ++] = s;
+            }
+            
+            // with the fail fast policy, don't go on to the variables if the global metadata is faulty
+            checkErrorPolicy (error_policy, cdf.getAccumulatedErrors());
+        
+            // set those object fields to empty values that won't be used when
+            // only headers are being read
+            elements = new ImagCDFVariable[0];
+            temperatures = new ImagCDFVariable[0];
+            time_stamps = new ImagCDFVariableTS[0];
+            
+            // read the data
+            if (! headerOnly)
+            {
+                // when reading a time range, the record range for each time stamp variable
+                // is found the first time a data variable that uses it is read
+                Map<String, ImagCDFRecordRange> ranges = null;
+                long start_tt2000 = Long.MIN_VALUE;
+                long end_tt2000 = Long.MAX_VALUE;
+                if (options.isTimeRangeSet())
+                {
+                    ranges = new HashMap<> ();
+                    if (options.getStartDate() != null) start_tt2000 = ImagCDFLowLevelWriter_PureJava.DateToTT2000 (options.getStartDate());
+                    if (options.getEndDate() != null) end_tt2000 = ImagCDFLowLevelWriter_PureJava.DateToTT2000 (options.getEndDate());
+                }
+                
+                // get geomagnetic field data - find variable names based on elements recorded,
+                // reading only those that have been selected (the elements recorded are left as
+                // they are in the file)
+                if (elements_recorded != null)
+                {
+                    if (options.getElementSelection() != null)
+                        elements_selected = options.selectElements (elements_recorded, cdf.getAccumulatedErrors());
+                    IMCDFVariableType field_var_type = new IMCDFVariableType (IMCDFVariableType.VariableTypeCode.GeomagneticFieldElement);
+                    int n_elements = getElementsSelected().length();
+                    elements = new ImagCDFVariable_Mapped [n_elements];
+                    for (count=0; count<n_elements; count++)
+                    {
+                        String suffix = getElementsSelected().substring(count, count +1);
+                        ImagCDFRecordRange range = findRecordRange (cdf, field_var_type.getCDFFileVariableName(suffix), start_tt2000, end_tt2000, ranges);
+                        elements [count] = new ImagCDFVariable_Mapped(cdf, field_var_type, suffix, range);
+                        checkErrorPolicy (error_policy, cdf.getAccumulatedErrors());
+                    }
+                }
+
+                // find the number of temperature variables and get temperature data
+                IMCDFVariableType temperature_var_type = new IMCDFVariableType (IMCDFVariableType.VariableTypeCode.Temperature);
+                int n_temperatures = 0;
+                while (options.isIncludeTemperatures() && cdf.isVariableExist (temperature_var_type.getCDFFileVariableName(Integer.toString (n_temperatures +1)))) n_temperatures ++;
+                temperatures = new ImagCDFVariable_Mapped [n_temperatures];
+                for (count=0; count<n_temperatures; count++)
+                {
+                    String suffix = Integer.toString (count +1);
+                    ImagCDFRecordRange range = findRecordRange (cdf, temperature_var_type.getCDFFileVariableName(suffix), start_tt2000, end_tt2000, ranges);
+                    temperatures [count] = new ImagCDFVariable_Mapped(cdf, temperature_var_type, suffix, range);
+                    checkErrorPolicy (error_policy, cdf.getAccumulatedErrors());
+                }
+
+                // work out the names of the time stamp arrays
+                List<String> unique_ts_names = new ArrayList<> ();
+                for (count=0; count<elements.length; count++)
+                {
+                    String depend_0 = elements[count].getDepend0();
+                    if (depend_0 != null)
+                    {
+                        boolean found = false;
+                        for (String ts_name : unique_ts_names)
+                        {
+                            if (ts_name.equals(depend_0)) found = true;
+                        }
+                        if (! found) unique_ts_names.add (depend_0);
+                    }
+                }
+                for (count=0; count<temperatures.length; count++)
+                {
+                    String depend_0 = temperatures[count].getDepend0();
+                    if (depend_0 != null)
+                    {
+                        boolean found = false;
+                        for (String ts_name : unique_ts_names)
+                        {
+                            if (ts_name.equals(depend_0)) found = true;
+                        }
+                        if (! found) unique_ts_names.add (depend_0);
+                    }
+                }
+
+                // read the time stamp arrays
+                time_stamps = new ImagCDFVariableTS_Mapped [unique_ts_names.size()];
+                for (count=0; count<time_stamps.length; count++)
+                {
+                    time_stamps [count] = new ImagCDFVariableTS_Mapped (cdf, unique_ts_names.get(count),
+                                                                       ranges == null ? null : ranges.get (unique_ts_names.get(count)));
+                    checkErrorPolicy (error_policy, cdf.getAccumulatedErrors());
+                }
+
+                // with the headers then data policy, check all the metadata before any data is used
+                if (error_policy == ImagCDFReadOptions.ErrorPolicy.HEADERS_THEN_DATA)
+                {
+                    super.checkMetadata (cdf.getAccumulatedErrors());
+                    if (! cdf.getAccumulatedErrors().isEmpty())
+                        throw new IMCDFException (cdf.getAccumulatedErrors().get(0), cdf.getAccumulatedErrors());
+                }
+
+                // check the data values
+                if (options.isValidateData())
+                    ImagCDFDataValidator.validate (elements, temperatures, time_stamps, options.getMaxValidationErrors(), cdf.getAccumulatedErrors());
+                checkErrorPolicy (error_policy, cdf.getAccumulatedErrors());
+
+                // the file stays open so that data can be copied from the mapped buffers
+                keep_open = true;
+            }
+        }
+        finally
+        {
+            // close the file
+            if (cdf != null && ! keep_open) cdf.close ();
+        }
+        
+        // check the metadata
+        if (cdf == null)
+            throw new IMCDFException ("Internal software errors");
+        List<String> errors = cdf.getAccumulatedErrors();
+        super.checkMetadata (errors);
+        
+        // check for errors
+        if (! errors.isEmpty())
+        {
+            if (keep_open) cdf.close ();
+            throw new IMCDFException (errors.get(0), errors);
+        }
+        if (keep_open) lazy_reader = cdf;
+    }
+
+    /** open a cursor that reads the records in an ImagCDF file a block at a time,
+     * without reading the whole file into memory
+     * @param file the CDF file
+     * @param element_selection the elements to read (e.g. "XYZ") or null for all elements
+     * @param block_size the maximum number of records in each block
+     * @return the cursor, which must be closed after use
+     * @throws IMCDFException if there is an error, including selected elements that
+     *         don't share the same time stamps */
+    public static ImagCDFRecordCursor openRecordCursor (File file, String element_selection, int block_size)
+    throws IMCDFException
+    {
+        int count;
+        String elements, ts_var_name, var_names [];
+        ImagCDFRecordCursor cursor;
+        
+        ImagCDFLowLevelReader_Mapped cdf = new ImagCDFLowLevelReader_Mapped (file);
+        cursor = null;
+        try
+        {
+            // find the variables for the selected elements
+            List<String> errors = cdf.getAccumulatedErrors();
+            elements = cdf.getGlobalAttributeString ("ElementsRecorded", 0, true);
+            if (elements == null) elements = "";
+            elements = new ImagCDFReadOptions (false, element_selection, false).selectElements (elements, errors);
+            if (elements.length() <= 0) errors.add ("No geomagnetic elements selected");
+            IMCDFVariableType field_var_type = new IMCDFVariableType (IMCDFVariableType.VariableTypeCode.GeomagneticFieldElement);
+            var_names = new String [elements.length()];
+            ts_var_name = null;
+            for (count=0; count<var_names.length; count++)
+            {
+                var_names [count] = field_var_type.getCDFFileVariableName (elements.substring (count, count +1));
+                String depend_0 = cdf.getVariableAttributeString ("DEPEND_0", var_names [count]);
+                if (depend_0 == null)
+                    errors.add ("Missing time stamp data for element " + elements.substring (count, count +1));
+                else if (ts_var_name == null)
+                    ts_var_name = depend_0;
+                else if (! ts_var_name.equals (depend_0))
+                    errors.add ("Selected elements have different time stamps - use a separate cursor for each set of time stamps");
+            }
+            if (! errors.isEmpty())
+                throw new IMCDFException (errors.get(0), errors);
+            
+            cursor = new ImagCDFRecordCursor (cdf, ts_var_name, elements, var_names, block_size);
+        }
+        finally
+        {
+            // if the cursor wasn't created, it isn't there to close the file
+            if (cursor == null) cdf.close ();
+        }
+        return cursor;
+    }
+    
+    /** for reads restricted to a time range, find the records of a data variable that
+     * are in the range by searching the time stamps that the variable depends on
+     * @param cdf the open CDF file
+     * @param var_name the name of the data variable
+     * @param start_tt2000 the start of the time range (inclusive)
+     * @param end_tt2000 the end of the time range (exclusive)
+     * @param ranges the ranges already found for each time stamp variable, or
+     *        null if the read isn't restricted to a time range
+     * @return the range of records to read, or null to read the complete variable */
+    private static ImagCDFRecordRange findRecordRange (ImagCDFLowLevelReader_Mapped cdf, String var_name,
+                                                       long start_tt2000, long end_tt2000,
+                                                       Map<String, ImagCDFRecordRange> ranges)
+    {
+        if (ranges == null || ! cdf.isVariableExist (var_name)) return null;
+        String depend_0 = cdf.getVariableAttributeString ("DEPEND_0", var_name);
+        if (depend_0 == null || ! cdf.isVariableExist (depend_0)) return null;
+        if (! ranges.containsKey (depend_0))
+        {
+            ImagCDFRecordRange range = null;
+            try
+            {
+                range = ImagCDFRecordRange.findTimeRange (cdf, depend_0, start_tt2000, end_tt2000);
+            }
+            catch (IMCDFException e)
+            {
+                cdf.process_error ("Error searching time stamp variable " + depend_0, e);
+            }
+            ranges.put (depend_0, range);
+        }
+        return ranges.get (depend_0);
+    }
+}
@@ -5,11 +5,12 @@
 package bgs.geophys.library.Data.ImagCDF.Impl_PureJava;
 
 import bgs.geophys.library.Data.ImagCDF.IMCDFException;
+import bgs.geophys.library.Data.ImagCDF.IMCDFRecordReader;
 import bgs.geophys.library.Data.ImagCDF.ImagCDFFactory;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFTimeConverter;
 import gov.nasa.gsfc.spdf.cdfj.AttributeEntry;
 import gov.nasa.gsfc.spdf.cdfj.CDFReader;
 import gov.nasa.gsfc.spdf.cdfj.CDFException;
-import static gov.nasa.gsfc.spdf.cdfj.TimeUtil.TT_JANUARY_1_1970;
 import java.io.File;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -26,9 +27,14 @@ import java.util.*;
  * call getAccumulatedErrors() to get the list of errors and check whether it
  * is empty of not.
  * 
+ * The reader can also be used (through the IMCDFRecordReader interface) to
+ * read variables on demand after the file's metadata has been read. In this
+ * case errors are thrown as exceptions, rather than being accumulated.
+ * 
  * @author smf
  */
 public class ImagCDFLowLevelReader_PureJava 
+implements IMCDFRecordReader
 {
     // private member data for this class
     private CDFReader cdf_reader;
@@ -68,10 +74,12 @@ public class ImagCDFLowLevelReader_PureJava
         this (file.getAbsolutePath());
     }
     
-    /** close a CDF - this doesn't do anything for a reader */
-    public void close ()
+    /** close a CDF - the pure Java library doesn't need the file to be closed,
+     * but after this call no more records can be read on demand */
+    @Override
+    public synchronized void close ()
     {
-        /* intentionally empty */ 
+        cdf_reader = null;
     }
 
     
@@ -297,28 +305,27 @@ public class ImagCDFLowLevelReader_PureJava
     {
         try
         {
-            Object data = cdf_reader.get(var_name);
-            if (data == null) {
-                accumulated_errors.add ("Missing data: " + var_name);
-                return null;
-            }
-            if (data instanceof double [])
-                return (double []) data;
-            if (data instanceof Double []) {
-                Double orig_array [] = (Double []) data;
-                double [] new_array = new double [orig_array.length];
-                for (int count=0; count<orig_array.length; count++)
-                    new_array[count] = (double) orig_array[count];
-                return new_array;
-            }
-            if (data instanceof Double) {
-                double [] array = new double [1];
-                array [0] = (double) data;
-                return array;
-            }
-            accumulated_errors.add ("Unexpected data type in data array: " + var_name);
+            return convertDataArray (var_name, cdf_reader.get(var_name));
+        }
+        catch (CDFException.ReaderError e)
+        {
+            process_error ("Error reading data variable " + var_name, e);
             return null;
         }
+    }
+    
+    /** get a range of records from a data variable
+     * @param var_name the name of the variable 
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the data */
+    public double [] getDataArray (String var_name, int first_record, int n_records)
+    {
+        if (n_records <= 0) return new double [0];
+        try
+        {
+            return convertDataArray (var_name, cdf_reader.getRange(var_name, first_record, first_record + n_records -1));
+        }
         catch (CDFException.ReaderError e)
         {
             process_error ("Error reading data variable " + var_name, e);
@@ -333,16 +340,27 @@ public class ImagCDFLowLevelReader_PureJava
     {
         try
         {
-            Object data = cdf_reader.get(var_name);
-            if (data == null) {
-                accumulated_errors.add ("Missing time stamp: " + var_name);
-                return null;
-            }
-            if (data instanceof long [])
-                return (long []) data;
-            accumulated_errors.add ("Unexpected data type in time stamp array: " + var_name);
+            return convertTimeStampArray (var_name, cdf_reader.get(var_name));
+        }
+        catch (CDFException.ReaderError e)
+        {
+            process_error ("Error reading time stamp variable " + var_name, e);
             return null;
         }
+    }
+    
+    /** get a range of TT2000 time stamps from a variable
+     * @param var_name the name of the variable 
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the data */
+    public long [] getTimeStampArray (String var_name, int first_record, int n_records)
+    {
+        if (n_records <= 0) return new long [0];
+        try
+        {
+            return convertTimeStampArray (var_name, cdf_reader.getRange(var_name, first_record, first_record + n_records -1));
+        }
         catch (CDFException.ReaderError e)
         {
             process_error ("Error reading time stamp variable " + var_name, e);
@@ -350,6 +368,143 @@ public class ImagCDFLowLevelReader_PureJava
         }
     }
     
+    /** get the number of records in a variable without reading the records
+     * @param var_name the name of the variable
+     * @return the number of records
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized int getNRecords (String var_name)
+    throws IMCDFException
+    {
+        checkOpen ();
+        try
+        {
+            return cdf_reader.getNumberOfValues (var_name);
+        }
+        catch (CDFException.ReaderError e)
+        {
+            throw new IMCDFException ("Error reading variable " + var_name, e);
+        }
+    }
+    
+    /** read all the records from a data variable
+     * @param var_name the name of the variable
+     * @return the data
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized double [] readDataRecords (String var_name)
+    throws IMCDFException
+    {
+        checkOpen ();
+        int n_errors = accumulated_errors.size();
+        double data [] = getDataArray (var_name);
+        if (data == null) throwNewErrors (n_errors, "Error reading variable " + var_name);
+        return data;
+    }
+
+    /** read all the records from a TT2000 time stamp variable
+     * @param var_name the name of the variable
+     * @return the time stamps
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized long [] readTimeStampRecords (String var_name)
+    throws IMCDFException
+    {
+        checkOpen ();
+        int n_errors = accumulated_errors.size();
+        long time_stamps [] = getTimeStampArray (var_name);
+        if (time_stamps == null) throwNewErrors (n_errors, "Error reading time stamp variable " + var_name);
+        return time_stamps;
+    }
+
+    /** read a range of records from a data variable
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the data
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized double [] readDataRecords (String var_name, int first_record, int n_records)
+    throws IMCDFException
+    {
+        checkOpen ();
+        int n_errors = accumulated_errors.size();
+        double data [] = getDataArray (var_name, first_record, n_records);
+        if (data == null) throwNewErrors (n_errors, "Error reading variable " + var_name);
+        return data;
+    }
+
+    /** read a range of records from a TT2000 time stamp variable
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @return the time stamps
+     * @throws IMCDFException if there is an error */
+    @Override
+    public synchronized long [] readTimeStampRecords (String var_name, int first_record, int n_records)
+    throws IMCDFException
+    {
+        checkOpen ();
+        int n_errors = accumulated_errors.size();
+        long time_stamps [] = getTimeStampArray (var_name, first_record, n_records);
+        if (time_stamps == null) throwNewErrors (n_errors, "Error reading time stamp variable " + var_name);
+        return time_stamps;
+    }
+    
+    /** read a range of records from a data variable into an array supplied by the
+     * caller - the CDF library returns a new array for the records, which is copied
+     * into the caller's array without any further conversion or allocation
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @param dst the array to read into
+     * @param dst_pos the index in dst to put the first record in
+     * @throws IMCDFException if there is an error, including fewer records than requested */
+    @Override
+    public synchronized void readDataRecords (String var_name, int first_record, int n_records, double dst [], int dst_pos)
+    throws IMCDFException
+    {
+        checkOpen ();
+        if (n_records <= 0) return;
+        int n_errors = accumulated_errors.size();
+        try
+        {
+            if (copyDataArray (var_name, cdf_reader.getRange (var_name, first_record, first_record + n_records -1), dst, dst_pos, n_records)) return;
+        }
+        catch (CDFException.ReaderError e)
+        {
+            process_error ("Error reading data variable " + var_name, e);
+        }
+        throwNewErrors (n_errors, "Error reading variable " + var_name);
+    }
+
+    /** read a range of records from a TT2000 time stamp variable into an array
+     * supplied by the caller - the CDF library returns a new array for the records,
+     * which is copied into the caller's array
+     * @param var_name the name of the variable
+     * @param first_record the first record to read (zero based)
+     * @param n_records the number of records to read
+     * @param dst the array to read into
+     * @param dst_pos the index in dst to put the first record in
+     * @throws IMCDFException if there is an error, including fewer records than requested */
+    @Override
+    public synchronized void readTimeStampRecords (String var_name, int first_record, int n_records, long dst [], int dst_pos)
+    throws IMCDFException
+    {
+        checkOpen ();
+        if (n_records <= 0) return;
+        int n_errors = accumulated_errors.size();
+        try
+        {
+            if (copyTimeStampArray (var_name, cdf_reader.getRange (var_name, first_record, first_record + n_records -1), dst, dst_pos, n_records)) return;
+        }
+        catch (CDFException.ReaderError e)
+        {
+            process_error ("Error reading time stamp variable " + var_name, e);
+        }
+        throwNewErrors (n_errors, "Error reading time stamp variable " + var_name);
+    }
+    
     /** get the list of accumulated errors
      * @return the list */
     public List<String> getAccumulatedErrors ()
@@ -368,14 +523,7 @@ public class ImagCDFLowLevelReader_PureJava
     public static Date TT2000ToDate (long tt2000)
     throws IMCDFException
     {
-        // I can't find code to do this in NASA's CDF library, so have adapted
-        // code from the library that converts in the opposite direction
-        // get the date, ignoring leap seconds
-        Date date = new Date ((tt2000 - TT_JANUARY_1_1970) / 1000000);
-        // now convert back to TT2000 to find the number of leap seconds
-        long diff = ImagCDFLowLevelWriter_PureJava.DateToTT2000(date) - tt2000;
-        date = new Date (date.getTime() - (diff / 1000000));
-        return date;
+        return ImagCDFTimeConverter.TT2000ToDate (tt2000);
     }
     
     public void process_error (String msg, Exception e)
@@ -384,4 +532,128 @@ public class ImagCDFLowLevelReader_PureJava
             msg += ": " + e.getMessage();
         accumulated_errors.add (msg);
     }
+    
+    /** ------------------------------------------------------------------------
+     *  ---------------------------- Private code ------------------------------
+     *  ------------------------------------------------------------------------*/
+    
+    /** convert the object returned by the CDF library for a data variable
+     * to an array of doubles, recording an error if it can't be converted */
+    private double [] convertDataArray (String var_name, Object data)
+    {
+        if (data == null) {
+            accumulated_errors.add ("Missing data: " + var_name);
+            return null;
+        }
+        if (data instanceof double [])
+            return (double []) data;
+        if (data instanceof Double []) {
+            Double orig_array [] = (Double []) data;
+            double [] new_array = new double [orig_array.length];
+            for (int count=0; count<orig_array.length; count++)
+                new_array[count] = (double) orig_array[count];
+            return new_array;
+        }
+        if (data instanceof Double) {
+            double [] array = new double [1];
+            array [0] = (double) data;
+            return array;
+        }
+        accumulated_errors.add ("Unexpected data type in data array: " + var_name);
+        return null;
+    }
+    
+    /** convert the object returned by the CDF library for a time stamp variable
+     * to an array of longs, recording an error if it can't be converted */
+    private long [] convertTimeStampArray (String var_name, Object data)
+    {
+        if (data == null) {
+            accumulated_errors.add ("Missing time stamp: " + var_name);
+            return null;
+        }
+        if (data instanceof long [])
+            return (long []) data;
+        if (data instanceof Long) {
+            long [] array = new long [1];
+            array [0] = (long) data;
+            return array;
+        }
+        accumulated_errors.add ("Unexpected data type in time stamp array: " + var_name);
+        return null;
+    }
+    
+    /** copy the object returned by the CDF library for a range of data records
+     * into an array, recording an error if it can't be copied */
+    private boolean copyDataArray (String var_name, Object data, double dst [], int dst_pos, int n_records)
+    {
+        if (data == null) {
+            accumulated_errors.add ("Missing data: " + var_name);
+            return false;
+        }
+        if (data instanceof double []) {
+            if (((double []) data).length != n_records) {
+                accumulated_errors.add ("Short read from data variable " + var_name);
+                return false;
+            }
+            System.arraycopy ((double []) data, 0, dst, dst_pos, n_records);
+            return true;
+        }
+        if (data instanceof Double []) {
+            Double orig_array [] = (Double []) data;
+            if (orig_array.length != n_records) {
+                accumulated_errors.add ("Short read from data variable " + var_name);
+                return false;
+            }
+            for (int count=0; count<n_records; count++)
+                dst [dst_pos + count] = (double) orig_array[count];
+            return true;
+        }
+        if (data instanceof Double && n_records == 1) {
+            dst [dst_pos] = (double) data;
+            return true;
+        }
+        accumulated_errors.add ("Unexpected data type in data array: " + var_name);
+        return false;
+    }
+    
+    /** copy the object returned by the CDF library for a range of time stamp
+     * records into an array, recording an error if it can't be copied */
+    private boolean copyTimeStampArray (String var_name, Object data, long dst [], int dst_pos, int n_records)
+    {
+        if (data == null) {
+            accumulated_errors.add ("Missing time stamp: " + var_name);
+            return false;
+        }
+        if (data instanceof long []) {
+            if (((long []) data).length != n_records) {
+                accumulated_errors.add ("Short read from time stamp variable " + var_name);
+                return false;
+            }
+            System.arraycopy ((long []) data, 0, dst, dst_pos, n_records);
+            return true;
+        }
+        if (data instanceof Long && n_records == 1) {
+            dst [dst_pos] = (long) data;
+            return true;
+        }
+        accumulated_errors.add ("Unexpected data type in time stamp array: " + var_name);
+        return false;
+    }
+    
+    /** check that the file has not been closed */
+    private void checkOpen ()
+    throws IMCDFException
+    {
+        if (cdf_reader == null) throw new IMCDFException ("CDF file has been closed");
+    }
+    
+    /** throw an exception containing the errors that have been accumulated
+     * since the given point in the error list */
+    private void throwNewErrors (int n_errors, String default_msg)
+    throws IMCDFException
+    {
+        List<String> new_errors = new ArrayList<> (accumulated_errors.subList (n_errors, accumulated_errors.size()));
+        if (new_errors.isEmpty()) new_errors.add (default_msg);
+        throw new IMCDFException (new_errors.get(0), new_errors);
+    }
 }
@@ -6,10 +6,10 @@ package bgs.geophys.library.Data.ImagCDF.Impl_PureJava;
 
 import bgs.geophys.library.Data.ImagCDF.IMCDFException;
 import bgs.geophys.library.Data.ImagCDF.IMCDFPrintEnum;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFTimeConverter;
 import gov.nasa.gsfc.spdf.cdfj.CDFDataType;
 import gov.nasa.gsfc.spdf.cdfj.CDFWriter;
 import gov.nasa.gsfc.spdf.cdfj.CDFException;
-import gov.nasa.gsfc.spdf.cdfj.TimeUtil;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
@@ -31,6 +31,7 @@ public class ImagCDFLowLevelWriter_PureJava
     private boolean force_create;
     private boolean compress;
     private String cdf_filename;
+    private Map<String, Boolean> variable_compression;
 
     
     /** ------------------------------------------------------------------------
@@ -46,6 +47,7 @@ public class ImagCDFLowLevelWriter_PureJava
         this.compress = compress;
         this.force_create = force_create;
         this.cdf_filename = filename;
+        variable_compression = new HashMap<> ();
         
         cdf_writer = new CDFWriter (true);
     }
@@ -217,6 +219,15 @@ public class ImagCDFLowLevelWriter_PureJava
         }
     }
     
+    /** set the compression for a variable that hasn't been created yet, overriding
+     * the compression given when the file was opened
+     * @param var_name the name of the variable
+     * @param compress whether to compress the variable */
+    public void setVariableCompression (String var_name, boolean compress)
+    {
+        variable_compression.put (var_name, compress);
+    }
+    
     /** create a 0 dimensional data array in the CDF file
      * @param var_name the name of the variable
      * @param var_type the type of variable to create (Double or Long))
@@ -227,6 +238,9 @@ public class ImagCDFLowLevelWriter_PureJava
     public void createDataVariable (String var_name, CDFVariableType var_type, Object missing_val)
     throws IMCDFException
     {
+        boolean compress;
+        
+        compress = variable_compression.getOrDefault (var_name, this.compress);
         try
         {
             switch (var_type)
@@ -426,20 +440,12 @@ public class ImagCDFLowLevelWriter_PureJava
     public static long DateToTT2000 (Date date)
     throws IMCDFException
     {
-        try {
-            return TimeUtil.tt2000(date);
-        } catch (Throwable ex) {
-            throw new IMCDFException (ex.getMessage());
-        }
+        return ImagCDFTimeConverter.DateToTT2000 (date);
     }
     
     public static long DateToTT2000 (long date)
     throws IMCDFException
     {
-        try {
-            return TimeUtil.tt2000(date);
-        } catch (Throwable ex) {
-            throw new IMCDFException (ex.getMessage());
-        }
+        return ImagCDFTimeConverter.DateToTT2000 (date);
     }    
 }
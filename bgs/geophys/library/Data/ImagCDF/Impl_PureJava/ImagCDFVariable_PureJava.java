@@ -6,6 +6,7 @@ package bgs.geophys.library.Data.ImagCDF.Impl_PureJava;
 
 import bgs.geophys.library.Data.ImagCDF.IMCDFException;
 import bgs.geophys.library.Data.ImagCDF.IMCDFVariableType;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFRecordRange;
 import bgs.geophys.library.Data.ImagCDF.ImagCDFVariable;
 import java.util.ArrayList;
 import java.util.List;
@@ -21,12 +22,44 @@ import java.util.List;
 public class ImagCDFVariable_PureJava  extends ImagCDFVariable
 {
     
+    /** only allow creation by subclasses */
+    protected ImagCDFVariable_PureJava ()
+    {
+        super ();
+    }
+    
     /** create a ImagCDF variable from the contents of a CDF file
      * @param cdf the open CDF file encapsulated in an ImagCDFLowLevel object
      * @param variable_type the type of data this object should look for in the CDF file
      * @param suffix the suffix for the element name (numbers starting at '1' for temperature elements,
      *               geomagnetic element codes for geomagnetic elements) */
     public ImagCDFVariable_PureJava (ImagCDFLowLevelReader_PureJava cdf, IMCDFVariableType variable_type, String suffix)
+    {
+        this (cdf, variable_type, suffix, false);
+    }
+    
+    /** create a ImagCDF variable from the contents of a CDF file
+     * @param cdf the open CDF file encapsulated in an ImagCDFLowLevel object
+     * @param variable_type the type of data this object should look for in the CDF file
+     * @param suffix the suffix for the element name (numbers starting at '1' for temperature elements,
+     *               geomagnetic element codes for geomagnetic elements)
+     * @param lazy true to read the metadata now, but leave the data to be read when
+     *             it is first used - the CDF file must be kept open until then */
+    public ImagCDFVariable_PureJava (ImagCDFLowLevelReader_PureJava cdf, IMCDFVariableType variable_type, String suffix, boolean lazy)
+    {
+        this (cdf, variable_type, suffix, lazy, null);
+    }
+    
+    /** create a ImagCDF variable from part of the contents of a CDF file
+     * @param cdf the open CDF file encapsulated in an ImagCDFLowLevel object
+     * @param variable_type the type of data this object should look for in the CDF file
+     * @param suffix the suffix for the element name (numbers starting at '1' for temperature elements,
+     *               geomagnetic element codes for geomagnetic elements)
+     * @param lazy true to read the metadata now, but leave the data to be read when
+     *             it is first used - the CDF file must be kept open until then
+     * @param range the records to read from the file, or null to read all records */
+    public ImagCDFVariable_PureJava (ImagCDFLowLevelReader_PureJava cdf, IMCDFVariableType variable_type, String suffix, boolean lazy,
+                                     ImagCDFRecordRange range)
     {
         super ();
         
@@ -42,16 +75,63 @@ public class ImagCDFVariable_PureJava  extends ImagCDFVariable
         
         elem_rec = suffix;
         
-        data = cdf.getDataArray (var_name);
         data_offset = 0;
-        if (data == null)
-            cdf.getAccumulatedErrors().add ("Error reading variable " + var_name);
+        if (lazy)
+        {
+            data = null;
+            lazy_reader = cdf;
+            lazy_range = range;
+            if (range != null)
+                data_length = range.getNRecords();
+            else
+            {
+                try
+                {
+                    data_length = cdf.getNRecords (var_name);
+                }
+                catch (IMCDFException e)
+                {
+                    cdf.process_error ("Error reading variable " + var_name, e);
+                }
+            }
+        }
         else
-            data_length = data.length;
+        {
+            if (range == null)
+                data = cdf.getDataArray (var_name);
+            else
+                data = cdf.getDataArray (var_name, range.getFirstRecord(), range.getNRecords());
+            if (data == null)
+                cdf.getAccumulatedErrors().add ("Error reading variable " + var_name);
+            else
+                data_length = data.length;
+        }
 
         super.checkMetadata (cdf.getAccumulatedErrors());
     }
 
+    /** create a view of part of another variable's data - data in memory
+     * is shared with the source rather than copied
+     * @param source the variable to take the view from
+     * @param offset the index of the first sample in the view
+     * @param length the number of samples in the view */
+    public ImagCDFVariable_PureJava (ImagCDFVariable source, int offset, int length)
+    {
+        super ();
+        
+        setSlice (source, offset, length);
+    }
+    
+    /** create a view of part of this variable's data
+     * @param offset the index of the first sample in the view
+     * @param length the number of samples in the view
+     * @return the view */
+    @Override
+    public ImagCDFVariable slice (int offset, int length)
+    {
+        return new ImagCDFVariable_PureJava (this, offset, length);
+    }
+    
     /** create an ImagCDFVariable from data and metadata for subsequent writing to a file
      * @param variable_type the type of variable - geomagnetic element or temperature
      * @param field_nam set the "Geomagnetic Field Element " and a number or
@@ -118,13 +198,12 @@ public class ImagCDFVariable_PureJava  extends ImagCDFVariable
             throw new IMCDFException (errors.get(0), errors);
     }
 
-    /** write this data to a CDF file
-     * @param cdf the CDF file to write into
-     * @param suffix the suffix for the element name (numbers starting at '1' for temperature elements,
-     *               geomagnetic element codes for geomagnetic elements)
-     * @return true if the write completed, false if it was interrupted 
+    /** create this variable in a CDF file and write its attributes, but not its data
+     * @param cdf the CDF file
+     * @param suffix the suffix for the variable name
+     * @return the name of the variable in the CDF file
      * @throws IMCDFException if there is an error */
-    public boolean write (ImagCDFLowLevelWriter_PureJava cdf, String suffix)
+    protected String writeAttributes (ImagCDFLowLevelWriter_PureJava cdf, String suffix)
     throws IMCDFException
     {
         var_name = variable_type.getCDFFileVariableName(suffix);
@@ -142,10 +221,43 @@ public class ImagCDFVariable_PureJava  extends ImagCDFVariable
             cdf.addVariableAttribute ("LABLAXIS",  var_name, suffix);
         else
             cdf.addVariableAttribute ("LABLAXIS",  var_name, "Temperature " + suffix);
+        return var_name;
+    }
+    
+    /** write this data to a CDF file
+     * @param cdf the CDF file to write into
+     * @param suffix the suffix for the element name (numbers starting at '1' for temperature elements,
+     *               geomagnetic element codes for geomagnetic elements)
+     * @return true if the write completed, false if it was interrupted 
+     * @throws IMCDFException if there is an error */
+    public boolean write (ImagCDFLowLevelWriter_PureJava cdf, String suffix)
+    throws IMCDFException
+    {
+        int count, n;
+        double block [];
+        
+        writeAttributes (cdf, suffix);
 
         if (! callWriteProgressListeners(0, data_length)) return false;
-        cdf.addData (var_name, 0, data, data_offset, data_length);
-        if (! callWriteProgressListeners(data_length, data_length)) return false;
+        if (data != null)
+        {
+            cdf.addData (var_name, 0, data, data_offset, data_length);
+            if (! callWriteProgressListeners(data_length, data_length)) return false;
+        }
+        else
+        {
+            // data that is not yet loaded, off the heap, compact or compressed is written a block
+            // at a time, leaving it stored as it is - the CDF library holds on to the data until
+            // the file is written, so each block is a new array
+            for (count=0; count<data_length; count+=n)
+            {
+                n = Math.min (COPY_BLOCK_SIZE, data_length - count);
+                block = new double [n];
+                copyInto (block, 0, count, n);
+                cdf.addData (var_name, count, block);
+                if (! callWriteProgressListeners(count + n, data_length)) return false;
+            }
+        }
         return true;
     }
     
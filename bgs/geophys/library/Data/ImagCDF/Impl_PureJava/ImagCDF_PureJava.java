@@ -10,7 +10,12 @@ import bgs.geophys.library.Data.ImagCDF.IMCDFStandardLevel;
 import bgs.geophys.library.Data.ImagCDF.IMCDFStandardName;
 import bgs.geophys.library.Data.ImagCDF.IMCDFVariableType;
 import bgs.geophys.library.Data.ImagCDF.ImagCDF;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFCompression;
 import bgs.geophys.library.Data.ImagCDF.ImagCDFFactory;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFDataValidator;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFReadOptions;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFRecordCursor;
+import bgs.geophys.library.Data.ImagCDF.ImagCDFRecordRange;
 import bgs.geophys.library.Data.ImagCDF.ImagCDFVariable;
 import bgs.geophys.library.Data.ImagCDF.ImagCDFVariableTS;
 import java.io.File;
@@ -18,7 +23,9 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -39,6 +46,12 @@ import java.util.List;
  */
 public class ImagCDF_PureJava extends ImagCDF
 {
+    /** only allow creation by subclasses */
+    protected ImagCDF_PureJava ()
+    {
+        super ();
+    }
+    
     /** read an ImagCDF file
      * @param file the CDF file
      * @throws IMCDFException if there is an error */
@@ -50,14 +63,50 @@ public class ImagCDF_PureJava extends ImagCDF
     
     /** read an ImagCDF file
      * @param file the CDF file
+     * @param headerOnly if TRUE read the global attributes, but not the data
      * @throws IMCDFException if there is an error */
     public ImagCDF_PureJava (File file, boolean headerOnly)
     throws IMCDFException
+    {
+        this (file, headerOnly, false);
+    }
+    
+    /** read an ImagCDF file
+     * @param file the CDF file
+     * @param headerOnly if TRUE read the global attributes, but not the data
+     * @param lazy if TRUE read the metadata, but leave the data for each variable
+     *             to be read the first time it is used - the CDF file stays open
+     *             until close() is called
+     * @throws IMCDFException if there is an error */
+    public ImagCDF_PureJava (File file, boolean headerOnly, boolean lazy)
+    throws IMCDFException
+    {
+        this (file, headerOnly, new ImagCDFReadOptions (lazy, null, true));
+    }
+    
+    /** read an ImagCDF file
+     * @param file the CDF file
+     * @param headerOnly if TRUE read the global attributes, but not the data
+     * @param options options that control which variables are read and how
+     * @throws IMCDFException if there is an error */
+    public ImagCDF_PureJava (File file, boolean headerOnly, ImagCDFReadOptions options)
+    throws IMCDFException
     {
         super ();
         
+        boolean lazy = options.isLazy();
+        boolean off_heap = options.isOffHeap() && ! lazy;
+        boolean compact = options.isCompact() && ! lazy;
+        boolean compressed = options.isCompressed() && ! lazy;
+        
+        // to check the metadata before any data is read, the variables are
+        // opened in lazy mode and their data read once the checks have passed
+        ImagCDFReadOptions.ErrorPolicy error_policy = options.getErrorPolicy();
+        boolean headers_first = error_policy == ImagCDFReadOptions.ErrorPolicy.HEADERS_THEN_DATA && ! headerOnly;
+        
         // open the CDF file
         ImagCDFLowLevelReader_PureJava cdf = null;
+        boolean keep_open = false;
         try
         {
             cdf = new ImagCDFLowLevelReader_PureJava (file);
@@ -126,6 +175,9 @@ public class ImagCDF_PureJava extends ImagCDF
             {
                 parent_identifiers [count ++] = s;
             }
+            
+            // with the fail fast policy, don't go on to the variables if the global metadata is faulty
+            checkErrorPolicy (error_policy, cdf.getAccumulatedErrors());
         
             // set those object fields to empty values that won't be used when
             // only headers are being read
@@ -136,23 +188,49 @@ public class ImagCDF_PureJava extends ImagCDF
             // read the data
             if (! headerOnly)
             {
-                // get geomagnetic field data - find variable names based on elements recorded
+                // when reading a time range, the record range for each time stamp variable
+                // is found the first time a data variable that uses it is read
+                Map<String, ImagCDFRecordRange> ranges = null;
+                long start_tt2000 = Long.MIN_VALUE;
+                long end_tt2000 = Long.MAX_VALUE;
+                if (options.isTimeRangeSet())
+                {
+                    ranges = new HashMap<> ();
+                    if (options.getStartDate() != null) start_tt2000 = ImagCDFLowLevelWriter_PureJava.DateToTT2000 (options.getStartDate());
+                    if (options.getEndDate() != null) end_tt2000 = ImagCDFLowLevelWriter_PureJava.DateToTT2000 (options.getEndDate());
+                }
+                
+                // get geomagnetic field data - find variable names based on elements recorded,
+                // reading only those that have been selected (the elements recorded are left as
+                // they are in the file)
                 if (elements_recorded != null)
                 {
+                    if (options.getElementSelection() != null)
+                        elements_selected = options.selectElements (elements_recorded, cdf.getAccumulatedErrors());
                     IMCDFVariableType field_var_type = new IMCDFVariableType (IMCDFVariableType.VariableTypeCode.GeomagneticFieldElement);
-                    int n_elements = elements_recorded.length();
+                    int n_elements = getElementsSelected().length();
                     elements = new ImagCDFVariable_PureJava [n_elements];
                     for (count=0; count<n_elements; count++)
-                        elements [count] = new ImagCDFVariable_PureJava(cdf, field_var_type, elements_recorded.substring(count, count +1));
+                    {
+                        String suffix = getElementsSelected().substring(count, count +1);
+                        ImagCDFRecordRange range = findRecordRange (cdf, field_var_type.getCDFFileVariableName(suffix), start_tt2000, end_tt2000, ranges);
+                        elements [count] = new ImagCDFVariable_PureJava(cdf, field_var_type, suffix, lazy || off_heap || compact || compressed || headers_first, range);
+                        checkErrorPolicy (error_policy, cdf.getAccumulatedErrors());
+                    }
                 }
 
                 // find the number of temperature variables and get temperature data
                 IMCDFVariableType temperature_var_type = new IMCDFVariableType (IMCDFVariableType.VariableTypeCode.Temperature);
                 int n_temperatures = 0;
-                while (cdf.isVariableExist (temperature_var_type.getCDFFileVariableName(Integer.toString (n_temperatures +1)))) n_temperatures ++;
+                while (options.isIncludeTemperatures() && cdf.isVariableExist (temperature_var_type.getCDFFileVariableName(Integer.toString (n_temperatures +1)))) n_temperatures ++;
                 temperatures = new ImagCDFVariable_PureJava [n_temperatures];
                 for (count=0; count<n_temperatures; count++)
-                    temperatures [count] = new ImagCDFVariable_PureJava(cdf, temperature_var_type, Integer.toString (count +1));
+                {
+                    String suffix = Integer.toString (count +1);
+                    ImagCDFRecordRange range = findRecordRange (cdf, temperature_var_type.getCDFFileVariableName(suffix), start_tt2000, end_tt2000, ranges);
+                    temperatures [count] = new ImagCDFVariable_PureJava(cdf, temperature_var_type, suffix, lazy || off_heap || compact || compressed || headers_first, range);
+                    checkErrorPolicy (error_policy, cdf.getAccumulatedErrors());
+                }
 
                 // work out the names of the time stamp arrays
                 List<String> unique_ts_names = new ArrayList<> ();
@@ -186,14 +264,40 @@ public class ImagCDF_PureJava extends ImagCDF
                 // read the time stamp arrays
                 time_stamps = new ImagCDFVariableTS_PureJava [unique_ts_names.size()];
                 for (count=0; count<time_stamps.length; count++)
-                    time_stamps [count] = new ImagCDFVariableTS_PureJava (cdf, unique_ts_names.get(count));
+                {
+                    time_stamps [count] = new ImagCDFVariableTS_PureJava (cdf, unique_ts_names.get(count), lazy || off_heap || compact || compressed || headers_first,
+                                                                          ranges == null ? null : ranges.get (unique_ts_names.get(count)));
+                    checkErrorPolicy (error_policy, cdf.getAccumulatedErrors());
+                }
 
+                // with the headers then data policy, check all the metadata before reading any data
+                if (headers_first)
+                {
+                    super.checkMetadata (cdf.getAccumulatedErrors());
+                    if (! cdf.getAccumulatedErrors().isEmpty())
+                        throw new IMCDFException (cdf.getAccumulatedErrors().get(0), cdf.getAccumulatedErrors());
+                    if (! (lazy || off_heap || compact || compressed)) loadData (cdf.getAccumulatedErrors());
+                }
+
+                // check the data values while the file is still open
+                if (options.isValidateData())
+                    ImagCDFDataValidator.validate (elements, temperatures, time_stamps, options.getMaxValidationErrors(), cdf.getAccumulatedErrors());
+                checkErrorPolicy (error_policy, cdf.getAccumulatedErrors());
+
+                // for compact, compressed or off-heap storage the variables were opened in
+                // lazy mode, so that the data can be read from the file straight into the stores
+                if (compact) compact (options.getCompactEncoding(), options.getCompactResolution(), cdf.getAccumulatedErrors());
+                if (compressed) compress (cdf.getAccumulatedErrors());
+                if (off_heap) moveOffHeap (cdf.getAccumulatedErrors());
+
+                // in lazy mode the file stays open until the data has been read
+                keep_open = lazy;
             }
         }
         finally
         {
             // close the file
-            if (cdf != null) cdf.close ();
+            if (cdf != null && ! keep_open) cdf.close ();
         }
         
         // check the metadata
@@ -204,7 +308,11 @@ public class ImagCDF_PureJava extends ImagCDF
         
         // check for errors
         if (! errors.isEmpty())
+        {
+            if (keep_open) cdf.close ();
             throw new IMCDFException (errors.get(0), errors);
+        }
+        if (keep_open) lazy_reader = cdf;
     }
 
     /** create an ImagCDF object from data and metadata (prior to writing to a file)
@@ -338,53 +446,83 @@ public class ImagCDF_PureJava extends ImagCDF
             throw new IMCDFException (errors.get(0), errors);
     }
     
+    /** create a new, empty object, used by slice()
+     * @return the new object */
+    @Override
+    protected ImagCDF createEmpty ()
+    {
+        return new ImagCDF_PureJava ();
+    }
+    
+    /** write the global attributes to a CDF file
+     * @param cdf the CDF file
+     * @throws IMCDFException if there is an error, including a missing mandatory attribute */
+    protected void writeGlobalAttributes (ImagCDFLowLevelWriter_PureJava cdf)
+    throws IMCDFException
+    {
+        int count;
+        
+        cdf.addGlobalAttribute ("FormatDescription",         0, true,  format_description);
+        cdf.addGlobalAttribute ("FormatVersion",             0, true,  format_version);
+        cdf.addGlobalAttribute ("Title",                     0, true,  title);
+        cdf.addGlobalAttribute ("IagaCode",                  0, true,  iaga_code);
+        cdf.addGlobalAttribute ("ElementsRecorded",          0, true,  getElementsSelected());
+        cdf.addGlobalAttribute ("PublicationLevel",          0, true,  pub_level);
+        cdf.addGlobalAttribute ("PublicationDate",           0, true,  pub_date);
+        cdf.addGlobalAttribute ("ObservatoryName",           0, true,  observatory_name);
+        cdf.addGlobalAttribute ("Latitude",                  0, true,  latitude);
+        cdf.addGlobalAttribute ("Longitude",                 0, true,  longitude);
+        cdf.addGlobalAttribute ("Elevation",                 0, true,  elevation);
+        cdf.addGlobalAttribute ("Institution",               0, true,  institution);
+        cdf.addGlobalAttribute ("VectorSensOrient",          0, false, vector_sens_orient);
+        cdf.addGlobalAttribute ("StandardLevel",             0, true,  standard_level);
+        cdf.addGlobalAttribute ("StandardName",              0, false, standard_name);
+        cdf.addGlobalAttribute ("StandardVersion",           0, false, standard_version);
+        cdf.addGlobalAttribute ("PartialStandDesc",          0, false, partial_stand_desc);
+        cdf.addGlobalAttribute ("Source",                    0, true,  source);
+        cdf.addGlobalAttribute ("TermsOfUse",                0, false, terms_of_use);
+        cdf.addGlobalAttribute ("UniqueIdentifier",          0, false, unique_identifier);
+        for (count=0; count<parent_identifiers.length; count++)
+            cdf.addGlobalAttribute ("ParentIdentifiers", count, true, parent_identifiers [count]);
+        for (count=0; count<reference_links.length; count++)
+            cdf.addGlobalAttribute ("ReferenceLinks",    count, true,  reference_links [count].toString());
+    }
+    
     /** write this data to a CDF file
      * @param cdf_file the CDF file to write into
-     * @param compress true to compress the CDF file, FALSE not to compress
+     * @param compression the compression for the file - variables that have their
+     *        own compression set (see ImagCDFVariable.setWriteCompression()) use that instead
+     *        - this library only writes GZIP compression, at DEFAULT_GZIP_LEVEL
+     *        (see ImagCDFCompression.isPureJavaSupported())
      * @param overwrite_existing true to overwrite any existing file, false to throw exception if file exists
-     * @throws IMCDFException if there is an error, including user abort */
+     * @throws IMCDFException if there is an error, including user abort and compression
+     *         that the CDF library can't write */
     @Override
-    public void write (File cdf_file, boolean compress, boolean overwrite_existing)
+    public void write (File cdf_file, ImagCDFCompression compression, boolean overwrite_existing)
     throws IMCDFException
     {
         int count;
         boolean abort;
-        String string;
+        String string, var_names [];
+        ImagCDFCompression var_compression [];
         ImagCDFLowLevelWriter_PureJava cdf;
         List <Integer> lengths;
         IMCDFException stored_close_exception;
         
+        // work out the compression for each variable before the file is created
+        var_compression = resolveWriteCompression (compression, true);
+        var_names = getWriteVarNames ();
+        
         abort = false;
         cdf = null;
         stored_close_exception = null;
         try
         {
-            cdf = new ImagCDFLowLevelWriter_PureJava (cdf_file, overwrite_existing, compress);
+            cdf = new ImagCDFLowLevelWriter_PureJava (cdf_file, overwrite_existing, compression.isCompressed());
+            for (count=0; count<var_names.length; count++)
+                cdf.setVariableCompression (var_names [count], var_compression [count].isCompressed());
 
-            cdf.addGlobalAttribute ("FormatDescription",         0, true,  format_description);
-            cdf.addGlobalAttribute ("FormatVersion",             0, true,  format_version);
-            cdf.addGlobalAttribute ("Title",                     0, true,  title);
-            cdf.addGlobalAttribute ("IagaCode",                  0, true,  iaga_code);
-            cdf.addGlobalAttribute ("ElementsRecorded",          0, true,  elements_recorded);
-            cdf.addGlobalAttribute ("PublicationLevel",          0, true,  pub_level);
-            cdf.addGlobalAttribute ("PublicationDate",           0, true,  pub_date);
-            cdf.addGlobalAttribute ("ObservatoryName",           0, true,  observatory_name);
-            cdf.addGlobalAttribute ("Latitude",                  0, true,  latitude);
-            cdf.addGlobalAttribute ("Longitude",                 0, true,  longitude);
-            cdf.addGlobalAttribute ("Elevation",                 0, true,  elevation);
-            cdf.addGlobalAttribute ("Institution",               0, true,  institution);
-            cdf.addGlobalAttribute ("VectorSensOrient",          0, false, vector_sens_orient);
-            cdf.addGlobalAttribute ("StandardLevel",             0, true,  standard_level);
-            cdf.addGlobalAttribute ("StandardName",              0, false, standard_name);
-            cdf.addGlobalAttribute ("StandardVersion",           0, false, standard_version);
-            cdf.addGlobalAttribute ("PartialStandDesc",          0, false, partial_stand_desc);
-            cdf.addGlobalAttribute ("Source",                    0, true,  source);
-            cdf.addGlobalAttribute ("TermsOfUse",                0, false, terms_of_use);
-            cdf.addGlobalAttribute ("UniqueIdentifier",          0, false, unique_identifier);
-            for (count=0; count<parent_identifiers.length; count++)
-                cdf.addGlobalAttribute ("ParentIdentifiers", count, true, parent_identifiers [count]);
-            for (count=0; count<reference_links.length; count++)
-                cdf.addGlobalAttribute ("ReferenceLinks",    count, true,  reference_links [count].toString());
+            writeGlobalAttributes (cdf);
         
             // set up variables for monitoring progress - the array containing the length of each sample must correspond to the
             // order in which the data is written to file
@@ -407,7 +545,7 @@ public class ImagCDF_PureJava extends ImagCDF
             {
                 abort = true;
             }
-        
+            
             // write the geomagnetic data to file
             for (count=0; (count<elements.length) && (! abort); count++)
             {
@@ -479,4 +617,88 @@ public class ImagCDF_PureJava extends ImagCDF
         // process any problems when the file was closed
         if (stored_close_exception != null) throw stored_close_exception;
     }
+    
+    /** open a cursor that reads the records in an ImagCDF file a block at a time,
+     * without reading the whole file into memory
+     * @param file the CDF file
+     * @param element_selection the elements to read (e.g. "XYZ") or null for all elements
+     * @param block_size the maximum number of records in each block
+     * @return the cursor, which must be closed after use
+     * @throws IMCDFException if there is an error, including selected elements that
+     *         don't share the same time stamps */
+    public static ImagCDFRecordCursor openRecordCursor (File file, String element_selection, int block_size)
+    throws IMCDFException
+    {
+        int count;
+        String elements, ts_var_name, var_names [];
+        ImagCDFRecordCursor cursor;
+        
+        ImagCDFLowLevelReader_PureJava cdf = new ImagCDFLowLevelReader_PureJava (file);
+        cursor = null;
+        try
+        {
+            // find the variables for the selected elements
+            List<String> errors = cdf.getAccumulatedErrors();
+            elements = cdf.getGlobalAttributeString ("ElementsRecorded", 0, true);
+            if (elements == null) elements = "";
+            elements = new ImagCDFReadOptions (false, element_selection, false).selectElements (elements, errors);
+            if (elements.length() <= 0) errors.add ("No geomagnetic elements selected");
+            IMCDFVariableType field_var_type = new IMCDFVariableType (IMCDFVariableType.VariableTypeCode.GeomagneticFieldElement);
+            var_names = new String [elements.length()];
+            ts_var_name = null;
+            for (count=0; count<var_names.length; count++)
+            {
+                var_names [count] = field_var_type.getCDFFileVariableName (elements.substring (count, count +1));
+                String depend_0 = cdf.getVariableAttributeString ("DEPEND_0", var_names [count]);
+                if (depend_0 == null)
+                    errors.add ("Missing time stamp data for element " + elements.substring (count, count +1));
+                else if (ts_var_name == null)
+                    ts_var_name = depend_0;
+                else if (! ts_var_name.equals (depend_0))
+                    errors.add ("Selected elements have different time stamps - use a separate cursor for each set of time stamps");
+            }
+            if (! errors.isEmpty())
+                throw new IMCDFException (errors.get(0), errors);
+            
+            cursor = new ImagCDFRecordCursor (cdf, ts_var_name, elements, var_names, block_size);
+        }
+        finally
+        {
+            // if the cursor wasn't created, it isn't there to close the file
+            if (cursor == null) cdf.close ();
+        }
+        return cursor;
+    }
+    
+    /** for reads restricted to a time range, find the records of a data variable that
+     * are in the range by searching the time stamps that the variable depends on
+     * @param cdf the open CDF file
+     * @param var_name the name of the data variable
+     * @param start_tt2000 the start of the time range (inclusive)
+     * @param end_tt2000 the end of the time range (exclusive)
+     * @param ranges the ranges already found for each time stamp variable, or
+     *        null if the read isn't restricted to a time range
+     * @return the range of records to read, or null to read the complete variable */
+    private static ImagCDFRecordRange findRecordRange (ImagCDFLowLevelReader_PureJava cdf, String var_name,
+                                                       long start_tt2000, long end_tt2000,
+                                                       Map<String, ImagCDFRecordRange> ranges)
+    {
+        if (ranges == null || ! cdf.isVariableExist (var_name)) return null;
+        String depend_0 = cdf.getVariableAttributeString ("DEPEND_0", var_name);
+        if (depend_0 == null || ! cdf.isVariableExist (depend_0)) return null;
+        if (! ranges.containsKey (depend_0))
+        {
+            ImagCDFRecordRange range = null;
+            try
+            {
+                range = ImagCDFRecordRange.findTimeRange (cdf, depend_0, start_tt2000, end_tt2000);
+            }
+            catch (IMCDFException e)
+            {
+                cdf.process_error ("Error searching time stamp variable " + depend_0, e);
+            }
+            ranges.put (depend_0, range);
+        }
+        return ranges.get (depend_0);
+    }
 }
@@ -0,0 +1,238 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the journal used by atomic append writers: the records written
+ * to the journal must be replayed exactly, a block that was only partly
+ * written must be ignored, and the cost of an append must depend on the
+ * number of records appended, not on the size of the file being appended
+ * to. The last test prints the time taken to journal one minute of data
+ * after a day, a month and a year of records, and the time taken to copy a
+ * file the size of a year of one minute data (which is what an atomic append
+ * cost before the journal was used). Run with:
+ *
+ *   java bgs.geophys.library.Data.ImagCDF.ImagCDFAppendJournalTest
+ *
+ * The exit status is 1 if any test fails.
+ *
+ * @author smf
+ */
+public class ImagCDFAppendJournalTest
+{
+
+    private static final String TS_VAR_NAME = "GeomagneticVectorTimes";
+    private static final String VAR_NAMES [] = {"GeomagneticFieldX", "GeomagneticFieldY", "GeomagneticFieldZ", "GeomagneticFieldF"};
+    private static final int N_TIMING_APPENDS = 1000;
+
+    private static List<String> failures;
+    private static int n_tests;
+    private static File dir;
+
+    public static void main (String args [])
+    throws Exception
+    {
+        failures = new ArrayList<> ();
+        n_tests = 0;
+        dir = Files.createTempDirectory ("imcdf-journal").toFile();
+
+        try
+        {
+            testReplay ();
+            testPartialBlock ();
+            testExistingJournal ();
+            testAppendCost ();
+        }
+        finally
+        {
+            for (File file : dir.listFiles ()) file.delete ();
+            dir.delete ();
+        }
+
+        for (String failure : failures) System.out.println ("FAILED: " + failure);
+        if (failures.size() > 0)
+        {
+            System.out.println (failures.size() + " of " + n_tests + " tests failed");
+            System.exit (1);
+        }
+        System.out.println ("OK: " + n_tests + " tests passed");
+    }
+
+    /** records written to the journal are replayed in order */
+    private static void testReplay ()
+    throws IMCDFException
+    {
+        File cdf_file;
+        ImagCDFAppendJournal journal;
+        RecordingWriter writer;
+
+        cdf_file = new File (dir, "replay.cdf");
+        journal = new ImagCDFAppendJournal (cdf_file);
+        journal.append (TS_VAR_NAME, VAR_NAMES, 1440, timeStamps (1440, 60), data (1440, 60), 0, 60);
+        journal.append (TS_VAR_NAME, VAR_NAMES, 1500, timeStamps (1500, 60), data (1500, 60), 10, 50);
+        journal.close ();
+
+        n_tests ++;
+        if (! ImagCDFAppendJournal.getJournalFile (cdf_file).equals (journal.getFile()) || ! journal.getFile().exists())
+            failures.add ("Replay: journal file is " + journal.getFile());
+
+        writer = new RecordingWriter ();
+        n_tests ++;
+        if (ImagCDFAppendJournal.replay (journal.getFile(), writer) != 2)
+            failures.add ("Replay: wrong number of blocks replayed");
+        n_tests ++;
+        if (! writer.ts_writes.equals (List.of (TS_VAR_NAME + " 1440 60 " + tt2000 (1440) + " " + tt2000 (1499),
+                                                TS_VAR_NAME + " 1500 50 " + tt2000 (1510) + " " + tt2000 (1559))))
+            failures.add ("Replay: time stamps " + writer.ts_writes);
+        n_tests ++;
+        if (writer.data_writes.size() != 8 ||
+            ! writer.data_writes.get (0).equals ("GeomagneticFieldX 1440 60 1440.0 1499.0") ||
+            ! writer.data_writes.get (7).equals ("GeomagneticFieldF 1500 50 31510.0 31559.0"))
+            failures.add ("Replay: data " + writer.data_writes);
+    }
+
+    /** a block that was only partly written is ignored */
+    private static void testPartialBlock ()
+    throws IMCDFException, IOException
+    {
+        long length;
+        File cdf_file;
+        ImagCDFAppendJournal journal;
+        RecordingWriter writer;
+        RandomAccessFile raf;
+
+        cdf_file = new File (dir, "partial.cdf");
+        journal = new ImagCDFAppendJournal (cdf_file);
+        journal.append (TS_VAR_NAME, VAR_NAMES, 0, timeStamps (0, 60), data (0, 60), 0, 60);
+        length = journal.getNBytes ();
+        journal.append (TS_VAR_NAME, VAR_NAMES, 60, timeStamps (60, 60), data (60, 60), 0, 60);
+        journal.close ();
+
+        // cut the second block short at several points, then replace
+        // it with zeros, as a crash can leave the end of a file
+        for (long cut : new long [] {journal.getNBytes() - 1, length + 20, length + 1, length})
+        {
+            raf = new RandomAccessFile (journal.getFile(), "rw");
+            raf.setLength (cut);
+            if (cut == length) raf.setLength (journal.getNBytes());
+            raf.close ();
+            writer = new RecordingWriter ();
+            n_tests ++;
+            if (ImagCDFAppendJournal.replay (journal.getFile(), writer) != 1 || writer.ts_writes.size() != 1 || writer.data_writes.size() != 4)
+                failures.add ("Partial block cut at " + cut + ": replayed " + writer.ts_writes + ", " + writer.data_writes);
+        }
+    }
+
+    /** a second journal can't be created for a file */
+    private static void testExistingJournal ()
+    throws IMCDFException
+    {
+        File cdf_file;
+        ImagCDFAppendJournal journal;
+
+        cdf_file = new File (dir, "existing.cdf");
+        journal = new ImagCDFAppendJournal (cdf_file);
+        journal.close ();
+        n_tests ++;
+        try
+        {
+            new ImagCDFAppendJournal (cdf_file).close ();
+            failures.add ("Existing journal: second journal was created");
+        }
+        catch (IMCDFException e) { }
+    }
+
+    /** appending one minute of data costs the same after a day, a month or a year of records */
+    private static void testAppendCost ()
+    throws IMCDFException, IOException
+    {
+        int count, n_existing;
+        long start, bytes_per_append, first_bytes_per_append, copy_nanos;
+        File cdf_file, copy_file;
+        ImagCDFAppendJournal journal;
+        RandomAccessFile raf;
+
+        first_bytes_per_append = -1;
+        for (String period : new String [] {"day", "month", "year"})
+        {
+            n_existing = period.equals ("day") ? 1440 : (period.equals ("month") ? 31 * 1440 : 365 * 1440);
+            cdf_file = new File (dir, period + ".cdf");
+            journal = new ImagCDFAppendJournal (cdf_file);
+            start = System.nanoTime ();
+            for (count=0; count<N_TIMING_APPENDS; count++)
+                journal.append (TS_VAR_NAME, VAR_NAMES, n_existing + count, timeStamps (n_existing + count, 1), data (n_existing + count, 1), 0, 1);
+            System.out.println ("Journal, 1 record appended after a " + period + " of records: " +
+                                ((System.nanoTime () - start) / N_TIMING_APPENDS / 1000) + " us per append");
+            journal.close ();
+
+            bytes_per_append = (journal.getNBytes () - 4) / N_TIMING_APPENDS;
+            if (first_bytes_per_append < 0) first_bytes_per_append = bytes_per_append;
+            n_tests ++;
+            if (bytes_per_append != first_bytes_per_append)
+                failures.add ("Append cost: " + bytes_per_append + " bytes per append after a " + period + ", " + first_bytes_per_append + " after a day");
+        }
+
+        // what an atomic append cost when the whole file was copied
+        cdf_file = new File (dir, "year-copy.cdf");
+        copy_file = new File (dir, "year-copy.tmp");
+        raf = new RandomAccessFile (cdf_file, "rw");
+        raf.setLength (365l * 1440l * (VAR_NAMES.length + 1) * 8l);
+        raf.close ();
+        start = System.nanoTime ();
+        Files.copy (cdf_file.toPath(), copy_file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        copy_nanos = System.nanoTime () - start;
+        System.out.println ("Copy of a " + cdf_file.length() + " byte file (a year of one minute data): " + (copy_nanos / 1000) + " us per append");
+    }
+
+    private static long tt2000 (int record)
+    {
+        return ImagCDFTimeConverter.tableDateToTT2000 (1577836800000l + (record * 60000l));
+    }
+
+    private static long [] timeStamps (int first_record, int n_records)
+    {
+        long tt2000 [] = new long [n_records];
+        for (int count=0; count<n_records; count++) tt2000 [count] = tt2000 (first_record + count);
+        return tt2000;
+    }
+
+    /** each value is its record number, plus 10000 times its variable number */
+    private static double [][] data (int first_record, int n_records)
+    {
+        double data [][] = new double [VAR_NAMES.length][n_records];
+        for (int count=0; count<VAR_NAMES.length; count++)
+        {
+            for (int count2=0; count2<n_records; count2++) data [count][count2] = (count * 10000) + first_record + count2;
+        }
+        return data;
+    }
+
+    /** records what is replayed as strings */
+    private static class RecordingWriter implements ImagCDFAppendJournal.RecordWriter
+    {
+        List<String> data_writes = new ArrayList<> ();
+        List<String> ts_writes = new ArrayList<> ();
+        @Override
+        public void writeData (String var_name, int rec_no, double data [], int offset, int length)
+        {
+            data_writes.add (var_name + " " + rec_no + " " + length + " " + data [offset] + " " + data [offset + length -1]);
+        }
+        @Override
+        public void writeTimeStamps (String ts_name, int rec_no, long tt2000 [], int offset, int length)
+        {
+            ts_writes.add (ts_name + " " + rec_no + " " + length + " " + tt2000 [offset] + " " + tt2000 [offset + length -1]);
+        }
+    }
+
+}
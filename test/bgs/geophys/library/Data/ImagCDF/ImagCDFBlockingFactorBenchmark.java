@@ -0,0 +1,304 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import bgs.geophys.library.Data.ImagCDF.Impl_JNI.ImagCDFLowLevel_JNI;
+import gsfc.nssdc.cdf.Variable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Measurements behind the blocking factors and record preallocation used when
+ * ImagCDFLowLevel_JNI writes a file:
+ *
+ * 1.) Compressed block size - one second data and time stamps are split into
+ *     blocks of different sizes and each block is compressed separately with
+ *     java.util.zip (GZIP level 6), as the CDF library does for a compressed
+ *     variable. The compressed size and the time to decompress one block (the
+ *     cost of reading one record) are reported for each block size. This part
+ *     doesn't need a CDF library.
+ *
+ * 2.) Native library writes - day, month and year files are written with and
+ *     without preallocation, uncompressed and compressed, and the time taken
+ *     and file size are reported.
+ *
+ * 3.) Native library short write - records are allocated for a variable but
+ *     only half of them are written, to show how many records the file then
+ *     reports and that checkRecordsWritten() catches it.
+ *
+ * Parts 2 and 3 are skipped if the native CDF library isn't available. Run with:
+ *
+ *   java bgs.geophys.library.Data.ImagCDF.ImagCDFBlockingFactorBenchmark [output_dir]
+ *
+ * @author smf
+ */
+public class ImagCDFBlockingFactorBenchmark
+{
+
+    private static final int BLOCK_SIZES [] = {1024, 2048, 4096, 8192, 16384, 65536, 262144};
+    private static final int N_RUNS = 3;
+    private static final int N_ELEMENTS = 4;
+
+    public static void main (String args [])
+    throws Exception
+    {
+        File dir;
+
+        dir = new File (args.length > 0 ? args [0] : System.getProperty ("java.io.tmpdir"));
+
+        System.out.println ("1.) Compressed block size, 8 days of one second data, GZIP level 6 (java.util.zip)");
+        compareBlockSizes ("Data", toBytes (makeData (8 * 86400, 1)));
+        compareBlockSizes ("Time stamps", toBytes (makeTimeStamps (8 * 86400, 1000000000l)));
+
+        try
+        {
+            System.out.println ("2.) Native library writes, " + N_ELEMENTS + " elements and time stamps, best of " + N_RUNS + " runs");
+            compareWrites (dir, "Day of seconds", 86400, 1000000000l);
+            compareWrites (dir, "Month of seconds", 30 * 86400, 1000000000l);
+            compareWrites (dir, "Year of minutes", 365 * 1440, 60000000000l);
+
+            System.out.println ("3.) Native library short write");
+            shortWrite (dir);
+        }
+        catch (LinkageError e)
+        {
+            System.out.println ("Native CDF library not available (" + e + ")");
+        }
+    }
+
+    /** compress data in blocks of each size, reporting the size and the time to decompress a block */
+    private static void compareBlockSizes (String name, byte data [])
+    throws DataFormatException
+    {
+        int block_bytes, n_blocks, compressed_size, position, length, count;
+        long start, nanos;
+        byte compressed [][], buffer [];
+        Deflater deflater;
+        Inflater inflater;
+
+        deflater = new Deflater (6);
+        inflater = new Inflater ();
+        try
+        {
+            for (int block_size : BLOCK_SIZES)
+            {
+                block_bytes = block_size * 8;
+                n_blocks = (data.length + block_bytes -1) / block_bytes;
+                compressed = new byte [n_blocks][];
+                compressed_size = 0;
+                buffer = new byte [block_bytes + 1024];
+                for (count=0; count<n_blocks; count++)
+                {
+                    position = count * block_bytes;
+                    length = Math.min (block_bytes, data.length - position);
+                    deflater.reset ();
+                    deflater.setInput (data, position, length);
+                    deflater.finish ();
+                    length = 0;
+                    while (! deflater.finished ())
+                        length += deflater.deflate (buffer, length, buffer.length - length);
+                    compressed [count] = new byte [length];
+                    System.arraycopy (buffer, 0, compressed [count], 0, length);
+                    compressed_size += length;
+                }
+
+                // time decompressing every block, several times over, and take the best
+                nanos = Long.MAX_VALUE;
+                for (int run=0; run<N_RUNS; run++)
+                {
+                    start = System.nanoTime ();
+                    for (count=0; count<n_blocks; count++)
+                    {
+                        inflater.reset ();
+                        inflater.setInput (compressed [count]);
+                        while (! inflater.finished ()) inflater.inflate (buffer);
+                    }
+                    nanos = Math.min (nanos, System.nanoTime () - start);
+                }
+                System.out.println (String.format ("    %-12s block %6d records (%4d KiB): compressed to %5.1f%%, %8.1f us to decompress one block",
+                                                   name, block_size, block_bytes / 1024,
+                                                   (100.0 * compressed_size) / data.length, (nanos / 1000.0) / n_blocks));
+            }
+        }
+        finally
+        {
+            deflater.end ();
+            inflater.end ();
+        }
+    }
+
+    /** write files with and without preallocation, uncompressed and compressed */
+    private static void compareWrites (File dir, String name, int n_records, long interval)
+    throws Exception
+    {
+        double data [][];
+        long time_stamps [];
+        File file;
+
+        data = new double [N_ELEMENTS][];
+        for (int count=0; count<N_ELEMENTS; count++) data [count] = makeData (n_records, count +1);
+        time_stamps = makeTimeStamps (n_records, interval);
+        file = new File (dir, "blocking_factor_benchmark.cdf");
+        try
+        {
+            for (ImagCDFLowLevel_JNI.CDFCompressType compress_type : new ImagCDFLowLevel_JNI.CDFCompressType [] {ImagCDFLowLevel_JNI.CDFCompressType.None, ImagCDFLowLevel_JNI.CDFCompressType.GZip6})
+            {
+                for (boolean preallocate : new boolean [] {false, true})
+                {
+                    long nanos = Long.MAX_VALUE;
+                    for (int run=0; run<N_RUNS; run++)
+                    {
+                        long start = System.nanoTime ();
+                        writeFile (file, data, time_stamps, compress_type, preallocate);
+                        nanos = Math.min (nanos, System.nanoTime () - start);
+                    }
+                    System.out.println (String.format ("    %-17s %-5s %-16s %8.1f ms %10d bytes",
+                                                       name + ",", compress_type + ",",
+                                                       preallocate ? "preallocated:" : "not preallocated:",
+                                                       nanos / 1.0e6, file.length()));
+                }
+            }
+        }
+        finally
+        {
+            file.delete ();
+        }
+    }
+
+    private static void writeFile (File file, double data [][], long time_stamps [],
+                                   ImagCDFLowLevel_JNI.CDFCompressType compress_type, boolean preallocate)
+    throws IMCDFException
+    {
+        String var_name;
+        ImagCDFLowLevel_JNI cdf;
+        Variable var;
+
+        cdf = new ImagCDFLowLevel_JNI (file.getAbsolutePath(), ImagCDFLowLevel_JNI.CDFOpenType.CDFForceCreate, ImagCDFLowLevel_JNI.CDFCompressType.None);
+        try
+        {
+            for (int count=0; count<=data.length; count++)
+            {
+                var_name = count < data.length ? "GeomagneticField" + count : "GeomagneticVectorTimes";
+                cdf.setVariableCompression (var_name, compress_type);
+                if (preallocate) cdf.setVariableRecords (var_name, time_stamps.length);
+            }
+            for (int count=0; count<data.length; count++)
+            {
+                var = cdf.createDataVariable ("GeomagneticField" + count, ImagCDFLowLevel_JNI.CDFVariableType.Double);
+                cdf.addData (var, 0, data [count]);
+            }
+            var = cdf.createDataVariable ("GeomagneticVectorTimes", ImagCDFLowLevel_JNI.CDFVariableType.TT2000);
+            cdf.addTimeStamp (var, 0, time_stamps);
+            cdf.checkRecordsWritten ();
+        }
+        finally
+        {
+            cdf.close ();
+        }
+    }
+
+    /** allocate records for a variable, write half of them and report what the file contains */
+    private static void shortWrite (File dir)
+    throws Exception
+    {
+        double data [];
+        String msg;
+        File file;
+        ImagCDFLowLevel_JNI cdf;
+        Variable var;
+
+        data = makeData (86400, 1);
+        file = new File (dir, "blocking_factor_short_write.cdf");
+        try
+        {
+            cdf = new ImagCDFLowLevel_JNI (file.getAbsolutePath(), ImagCDFLowLevel_JNI.CDFOpenType.CDFForceCreate, ImagCDFLowLevel_JNI.CDFCompressType.None);
+            try
+            {
+                cdf.setVariableRecords ("GeomagneticFieldX", data.length);
+                var = cdf.createDataVariable ("GeomagneticFieldX", ImagCDFLowLevel_JNI.CDFVariableType.Double);
+                cdf.addData (var, 0, data, 0, data.length / 2);
+                System.out.println ("    " + data.length + " records allocated, " + (data.length / 2) + " written: the library reports " +
+                                    var.getNumAllocatedRecords() + " allocated, " + var.getNumWrittenRecords() + " written");
+                try
+                {
+                    cdf.checkRecordsWritten ();
+                    msg = "not detected";
+                }
+                catch (IMCDFException e)
+                {
+                    msg = e.getMessage();
+                }
+                System.out.println ("    checkRecordsWritten(): " + msg);
+            }
+            finally
+            {
+                cdf.close ();
+            }
+
+            cdf = new ImagCDFLowLevel_JNI (file.getAbsolutePath(), ImagCDFLowLevel_JNI.CDFOpenType.CDFOpen, ImagCDFLowLevel_JNI.CDFCompressType.None);
+            try
+            {
+                System.out.println ("    after reopening the file, getNRecords() = " + cdf.getNRecords ("GeomagneticFieldX") +
+                                    ", file size " + file.length() + " bytes");
+            }
+            finally
+            {
+                cdf.close ();
+            }
+        }
+        finally
+        {
+            file.delete ();
+        }
+    }
+
+    /** make a geomagnetic-like series: a daily variation plus a random walk, at 0.01nT resolution */
+    private static double [] makeData (int n_records, long seed)
+    {
+        double data [], walk;
+        Random random;
+
+        random = new Random (seed);
+        data = new double [n_records];
+        walk = 0.0;
+        for (int count=0; count<n_records; count++)
+        {
+            walk += random.nextGaussian () * 0.05;
+            data [count] = Math.rint ((20000.0 + (30.0 * Math.sin ((2.0 * Math.PI * count) / 86400.0)) + walk) * 100.0) / 100.0;
+        }
+        return data;
+    }
+
+    private static long [] makeTimeStamps (int n_records, long interval)
+    {
+        long time_stamps [];
+
+        time_stamps = new long [n_records];
+        for (int count=0; count<n_records; count++)
+            time_stamps [count] = 536500869184000000l + (count * interval);
+        return time_stamps;
+    }
+
+    private static byte [] toBytes (double data [])
+    {
+        ByteBuffer buffer = ByteBuffer.allocate (data.length * 8).order (ByteOrder.LITTLE_ENDIAN);
+        buffer.asDoubleBuffer().put (data);
+        return buffer.array();
+    }
+
+    private static byte [] toBytes (long data [])
+    {
+        ByteBuffer buffer = ByteBuffer.allocate (data.length * 8).order (ByteOrder.LITTLE_ENDIAN);
+        buffer.asLongBuffer().put (data);
+        return buffer.array();
+    }
+
+}
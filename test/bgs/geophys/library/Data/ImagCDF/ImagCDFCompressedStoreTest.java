@@ -0,0 +1,321 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Round trip tests for the compressed in-memory stores (ImagCDFCompressedData,
+ * ImagCDFCompressedTimeStamps) and the bit stream they are built on. Each
+ * series is compressed, then decompressed in full, one sample at a time, and
+ * in ranges that cross block boundaries, and every sample must come back with
+ * exactly the bits it went in with. The series cover NaN (with different
+ * payloads), fill values, infinities and signed zeros, constant runs, lengths
+ * either side of the 256 sample block size, XORs that use all 64 bits, and
+ * time stamp deltas at the edge of each encoding range. Run with:
+ *
+ *   java bgs.geophys.library.Data.ImagCDF.ImagCDFCompressedStoreTest
+ *
+ * The exit status is 1 if any test fails.
+ *
+ * @author smf
+ */
+public class ImagCDFCompressedStoreTest
+{
+
+    /** lengths either side of one, two and three blocks */
+    private static final int LENGTHS [] = {0, 1, 2, 255, 256, 257, 511, 512, 513, 767, 768, 769};
+
+    private static List<String> failures;
+    private static int n_tests;
+
+    public static void main (String args [])
+    {
+        failures = new ArrayList<> ();
+        n_tests = 0;
+
+        testBitStream ();
+        testData ();
+        testTimeStamps ();
+
+        for (String failure : failures) System.out.println ("FAILED: " + failure);
+        if (failures.size() > 0)
+        {
+            System.out.println (failures.size() + " of " + n_tests + " tests failed");
+            System.exit (1);
+        }
+        System.out.println ("OK: " + n_tests + " tests passed");
+    }
+
+    /** write values of every width from 0 to 64 bits at every alignment and read them back */
+    private static void testBitStream ()
+    {
+        int count, widths [];
+        long values [], positions [], expected;
+        Random random;
+        ImagCDFBitStream bits;
+
+        random = new Random (1);
+        bits = new ImagCDFBitStream ();
+        widths = new int [5000];
+        values = new long [widths.length];
+        positions = new long [widths.length];
+        for (count=0; count<widths.length; count++)
+        {
+            widths [count] = count < 65 ? count : random.nextInt (65);
+            values [count] = (count % 3) == 0 ? -1l : random.nextLong ();
+            positions [count] = bits.getNBits ();
+            bits.write (values [count], widths [count]);
+        }
+        bits.trim ();
+        n_tests ++;
+        for (count=0; count<widths.length; count++)
+        {
+            expected = widths [count] == 0 ? 0 : (widths [count] == 64 ? values [count] : values [count] & ((1l << widths [count]) -1l));
+            if (bits.read (positions [count], widths [count]) != expected)
+            {
+                failures.add ("Bit stream: value " + count + " (" + widths [count] + " bits at bit " + positions [count] + ") read back wrongly");
+                break;
+            }
+        }
+    }
+
+    private static void testData ()
+    {
+        int length, count;
+        double series [];
+        Random random;
+
+        for (int n : LENGTHS)
+        {
+            // constant runs, including a run of NaNs
+            checkData ("Constant " + n, fill (new double [n], 20000.0));
+            checkData ("Constant NaN " + n, fill (new double [n], Double.NaN));
+            checkData ("Constant zero " + n, fill (new double [n], 0.0));
+
+            // slowly varying data with missing values (99999.0 and NaN) mixed in
+            random = new Random (n);
+            series = new double [n];
+            for (count=0; count<n; count++)
+            {
+                series [count] = Math.rint ((20000.0 + (30.0 * Math.sin (count / 100.0)) + random.nextGaussian ()) * 100.0) / 100.0;
+                if (count % 17 == 5) series [count] = ImagCDF.MISSING_DATA_VALUE;
+                if (count % 23 == 7) series [count] = Double.NaN;
+            }
+            checkData ("Varying with fill values " + n, series);
+
+            // values whose XORs use all 64 bits (leading and trailing zero counts of 0)
+            series = new double [n];
+            for (count=0; count<n; count++)
+                series [count] = Double.longBitsToDouble ((count % 2) == 0 ? 0x8000000000000000l : 0x0000000000000001l);
+            checkData ("Full width XOR " + n, series);
+
+            // random bit patterns - every kind of window change
+            random = new Random (n + 1000);
+            series = new double [n];
+            for (count=0; count<n; count++) series [count] = Double.longBitsToDouble (random.nextLong ());
+            checkData ("Random bits " + n, series);
+        }
+
+        // special values, including NaNs with different payloads, which must be kept
+        series = new double [] {0.0, -0.0, Double.NaN, Double.longBitsToDouble (0x7ff8000000000001l),
+                                Double.longBitsToDouble (0xfff0000000000001l), Double.POSITIVE_INFINITY,
+                                Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE,
+                                -Double.MAX_VALUE, ImagCDF.MISSING_DATA_VALUE, 1.0, 1.0 + Math.ulp (1.0), 1.0};
+        checkData ("Special values", series);
+
+        // a long run of one value between changes, so a block starts and ends within a run
+        length = 1000;
+        series = new double [length];
+        for (count=0; count<length; count++) series [count] = count < 250 || count > 700 ? 19999.99 : ImagCDF.MISSING_DATA_VALUE;
+        checkData ("Runs across block boundaries", series);
+
+        // the number of leading zeros is capped at 31 - XORs with more than this
+        series = new double [600];
+        for (count=0; count<series.length; count++)
+            series [count] = Double.longBitsToDouble (0x40d3880000000000l ^ ((count % 5) == 0 ? 0l : (1l << (count % 40))));
+        checkData ("Small XORs", series);
+    }
+
+    private static void testTimeStamps ()
+    {
+        int count;
+        long series [], start;
+        Random random;
+
+        start = 536500869184000000l;
+        for (int n : LENGTHS)
+        {
+            checkTimeStamps ("Regular " + n, regular (n, start, 1000000000l));
+            checkTimeStamps ("Constant " + n, regular (n, start, 0l));
+
+            // irregular cadence - a one second series with random jitter and gaps
+            random = new Random (n);
+            series = new long [n];
+            for (count=0; count<n; count++)
+                series [count] = (count == 0 ? start : series [count -1] + 1000000000l) +
+                                 ((count % 50) == 49 ? 3600000000000l : random.nextInt (5000) - 2500);
+            checkTimeStamps ("Irregular " + n, series);
+        }
+
+        // a change in delta at each edge of each encoding range
+        for (long dod : new long [] {-63, 64, -64, 65, -255, 256, -256, 257, -2047, 2048, -2048, 2049, Long.MAX_VALUE / 4, Long.MIN_VALUE / 4})
+        {
+            series = regular (600, start, 60000000000l);
+            for (count=300; count<series.length; count++) series [count] += dod * (count - 299);
+            checkTimeStamps ("Delta of delta " + dod, series);
+        }
+
+        // extreme values, which make the arithmetic overflow
+        series = new long [] {Long.MIN_VALUE, Long.MAX_VALUE, 0l, Long.MIN_VALUE, -1l, 1l, Long.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        checkTimeStamps ("Extreme values", series);
+    }
+
+    /** compress a data series, appending it in uneven pieces, and check it decompresses exactly */
+    private static void checkData (String name, double series [])
+    {
+        int count, pos, len;
+        double decoded [];
+        ImagCDFCompressedData store;
+
+        n_tests ++;
+        store = new ImagCDFCompressedData (series.length);
+        for (pos=0, count=0; pos<series.length; pos += len, count++)
+        {
+            len = Math.min (series.length - pos, 1 + ((count * 37) % 300));
+            store.append (series, pos, len);
+        }
+        if (store.getLength () != series.length)
+        {
+            failures.add (name + ": length " + store.getLength () + ", expected " + series.length);
+            return;
+        }
+
+        // the whole series, one sample at a time, and ranges either side of each block boundary
+        decoded = new double [series.length + 2];
+        store.decode (0, decoded, 1, series.length);
+        for (count=0; count<series.length; count++)
+        {
+            if (! sameBits (decoded [count +1], series [count]))
+            {
+                failures.add (name + ": sample " + count + " decoded as " + decoded [count +1] + ", expected " + series [count]);
+                return;
+            }
+            if (! sameBits (store.get (count), series [count]))
+            {
+                failures.add (name + ": get(" + count + ") returned " + store.get (count) + ", expected " + series [count]);
+                return;
+            }
+        }
+        for (pos=ImagCDFCompressedData.BLOCK_SIZE; pos<series.length; pos += ImagCDFCompressedData.BLOCK_SIZE)
+        {
+            for (int from : new int [] {pos -2, pos -1, pos})
+            {
+                len = Math.min (series.length - from, 3);
+                store.decode (from, decoded, 0, len);
+                for (count=0; count<len; count++)
+                {
+                    if (! sameBits (decoded [count], series [from + count]))
+                    {
+                        failures.add (name + ": sample " + (from + count) + " decoded from " + from + " as " + decoded [count] + ", expected " + series [from + count]);
+                        return;
+                    }
+                }
+            }
+        }
+        if (! outOfBoundsRejected (() -> store.decode (0, new double [series.length +1], 0, series.length +1)))
+            failures.add (name + ": decoding past the end was not rejected");
+    }
+
+    /** compress a time stamp series, appending it in uneven pieces, and check it decompresses exactly */
+    private static void checkTimeStamps (String name, long series [])
+    {
+        int count, pos, len;
+        long decoded [];
+        ImagCDFCompressedTimeStamps store;
+
+        n_tests ++;
+        store = new ImagCDFCompressedTimeStamps (series.length);
+        for (pos=0, count=0; pos<series.length; pos += len, count++)
+        {
+            len = Math.min (series.length - pos, 1 + ((count * 37) % 300));
+            store.append (series, pos, len);
+        }
+        if (store.getLength () != series.length)
+        {
+            failures.add (name + ": length " + store.getLength () + ", expected " + series.length);
+            return;
+        }
+
+        decoded = new long [series.length + 2];
+        store.decode (0, decoded, 1, series.length);
+        for (count=0; count<series.length; count++)
+        {
+            if (decoded [count +1] != series [count])
+            {
+                failures.add (name + ": time stamp " + count + " decoded as " + decoded [count +1] + ", expected " + series [count]);
+                return;
+            }
+            if (store.get (count) != series [count])
+            {
+                failures.add (name + ": get(" + count + ") returned " + store.get (count) + ", expected " + series [count]);
+                return;
+            }
+        }
+        for (pos=ImagCDFCompressedTimeStamps.BLOCK_SIZE; pos<series.length; pos += ImagCDFCompressedTimeStamps.BLOCK_SIZE)
+        {
+            for (int from : new int [] {pos -2, pos -1, pos})
+            {
+                len = Math.min (series.length - from, 3);
+                store.decode (from, decoded, 0, len);
+                for (count=0; count<len; count++)
+                {
+                    if (decoded [count] != series [from + count])
+                    {
+                        failures.add (name + ": time stamp " + (from + count) + " decoded from " + from + " as " + decoded [count] + ", expected " + series [from + count]);
+                        return;
+                    }
+                }
+            }
+        }
+        if (! outOfBoundsRejected (() -> store.decode (0, new long [series.length +1], 0, series.length +1)))
+            failures.add (name + ": decoding past the end was not rejected");
+    }
+
+    private static boolean outOfBoundsRejected (Runnable runnable)
+    {
+        try
+        {
+            runnable.run ();
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean sameBits (double a, double b)
+    {
+        return Double.doubleToRawLongBits (a) == Double.doubleToRawLongBits (b);
+    }
+
+    private static double [] fill (double series [], double value)
+    {
+        for (int count=0; count<series.length; count++) series [count] = value;
+        return series;
+    }
+
+    private static long [] regular (int n, long start, long interval)
+    {
+        long series [] = new long [n];
+        for (int count=0; count<n; count++) series [count] = start + (count * interval);
+        return series;
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tests for the memory budget used when reading ImagCDF files: the read
+ * footprint estimate must only count the records in the time range being
+ * read, and variables read in lazy mode because they were over budget must
+ * refuse to load more data than the budget allows, while still letting the
+ * data be read a range at a time. The CDF file is simulated by a record
+ * reader that generates a year of one minute data. Run with:
+ *
+ *   java bgs.geophys.library.Data.ImagCDF.ImagCDFMemoryBudgetTest
+ *
+ * The exit status is 1 if any test fails.
+ *
+ * @author smf
+ */
+public class ImagCDFMemoryBudgetTest
+{
+
+    /** a year of one minute samples */
+    private static final int N_RECORDS = 365 * 1440;
+    /** 2020-01-01T00:00:00Z in milliseconds since 1970 */
+    private static final long START_MILLIS = 1577836800000l;
+    private static final String TS_VAR_NAME = "GeomagneticVectorTimes";
+
+    private static List<String> failures;
+    private static int n_tests;
+
+    public static void main (String args [])
+    throws Exception
+    {
+        failures = new ArrayList<> ();
+        n_tests = 0;
+
+        testEstimate ();
+        testLazyBudget ();
+
+        for (String failure : failures) System.out.println ("FAILED: " + failure);
+        if (failures.size() > 0)
+        {
+            System.out.println (failures.size() + " of " + n_tests + " tests failed");
+            System.exit (1);
+        }
+        System.out.println ("OK: " + n_tests + " tests passed");
+    }
+
+    /** the estimate for a time range must only count the records in the range */
+    private static void testEstimate ()
+    throws IMCDFException
+    {
+        ImagCDFReadOptions options;
+        TestInfo info;
+        YearReader reader;
+
+        info = new TestInfo ();
+        reader = new YearReader ();
+        options = new ImagCDFReadOptions (false, "XY", false);
+
+        // the whole file - two elements and their time stamps
+        checkEstimate ("Whole file", info.estimateReadFootprint (options), (long) N_RECORDS * 3l * 8l);
+        checkEstimate ("Whole file with reader", info.estimateReadFootprint (options, reader), (long) N_RECORDS * 3l * 8l);
+
+        // one hour, from the start of the second day
+        options.setTimeRange (new Date (START_MILLIS + 86400000l), new Date (START_MILLIS + 86400000l + 3600000l));
+        checkEstimate ("One hour", info.estimateReadFootprint (options, reader), 60l * 3l * 8l);
+
+        // a range that is partly after the end of the file
+        options.setTimeRange (new Date (START_MILLIS + ((N_RECORDS - 30) * 60000l)), new Date (START_MILLIS + ((N_RECORDS + 30) * 60000l)));
+        checkEstimate ("Range past the end", info.estimateReadFootprint (options, reader), 30l * 3l * 8l);
+
+        // a range with no records
+        options.setTimeRange (new Date (START_MILLIS - 7200000l), new Date (START_MILLIS - 3600000l));
+        checkEstimate ("Empty range", info.estimateReadFootprint (options, reader), 0l);
+
+        // compact encoding halves the data, but not the time stamps
+        options = new ImagCDFReadOptions (false, "X", false);
+        options.setCompact (ImagCDFCompactData.Encoding.FLOAT32, 0.01);
+        options.setTimeRange (new Date (START_MILLIS), new Date (START_MILLIS + 86400000l));
+        checkEstimate ("One day, compact", info.estimateReadFootprint (options, reader), (1440l * 4l) + (1440l * 8l));
+    }
+
+    /** lazy variables sharing a budget can only load as much as the budget allows */
+    private static void testLazyBudget ()
+    throws IMCDFException
+    {
+        double block [];
+        long tt2000 [];
+        YearReader reader;
+        ImagCDFMemoryBudget budget;
+        TestVariable x, y, y_slice;
+        TestTimeStamps ts;
+
+        reader = new YearReader ();
+        budget = new ImagCDFMemoryBudget ((long) N_RECORDS * 8l + 1000l);
+        x = new TestVariable (reader, "GeomagneticFieldX");
+        y = new TestVariable (reader, "GeomagneticFieldY");
+        ts = new TestTimeStamps (reader);
+        x.setLazyBudget (budget);
+        y.setLazyBudget (budget);
+        ts.setLazyBudget (budget);
+
+        // the first variable fits in the budget
+        n_tests ++;
+        try
+        {
+            x.loadData ();
+            if (! x.isDataLoaded ()) failures.add ("Lazy budget: first variable not loaded");
+            if (budget.getUsed () != (long) N_RECORDS * 8l) failures.add ("Lazy budget: " + budget.getUsed () + " bytes used after loading one variable");
+        }
+        catch (IMCDFException e)
+        {
+            failures.add ("Lazy budget: first variable refused: " + e.getMessage());
+        }
+
+        // the second variable and the time stamps don't
+        n_tests ++;
+        if (! loadRefused (y)) failures.add ("Lazy budget: second variable was loaded over budget");
+        n_tests ++;
+        if (! loadRefused (ts)) failures.add ("Lazy budget: time stamps were loaded over budget");
+        n_tests ++;
+        if (y.isDataLoaded () || ts.isTimeStampsLoaded ()) failures.add ("Lazy budget: a refused variable was marked as loaded");
+        if (budget.getUsed () != (long) N_RECORDS * 8l) failures.add ("Lazy budget: " + budget.getUsed () + " bytes used after refused loads");
+
+        // the data can still be read a range at a time
+        n_tests ++;
+        block = new double [1440];
+        y.copyInto (block, 0, 1440, block.length);
+        if (block [0] != 1440.0 || block [1439] != 2879.0) failures.add ("Lazy budget: range read gave " + block [0] + " to " + block [1439]);
+        tt2000 = new long [10];
+        ts.copyTT2000 (tt2000, 100, tt2000.length);
+        if (tt2000 [0] != YearReader.tt2000 (100)) failures.add ("Lazy budget: time stamp range read gave " + tt2000 [0]);
+
+        // a slice shares the budget, and a small one fits in what is left
+        n_tests ++;
+        y_slice = (TestVariable) y.slice (0, 100);
+        try
+        {
+            y_slice.loadData ();
+            if (budget.getUsed () != (long) (N_RECORDS + 100) * 8l) failures.add ("Lazy budget: " + budget.getUsed () + " bytes used after loading a slice");
+        }
+        catch (IMCDFException e)
+        {
+            failures.add ("Lazy budget: slice refused: " + e.getMessage());
+        }
+        n_tests ++;
+        if (! loadRefused (y.slice (0, 200))) failures.add ("Lazy budget: slice was loaded over budget");
+    }
+
+    private static void checkEstimate (String name, long estimate, long expected)
+    {
+        n_tests ++;
+        if (estimate != expected) failures.add ("Estimate, " + name + ": " + estimate + " bytes, expected " + expected);
+    }
+
+    private static boolean loadRefused (ImagCDFVariable var)
+    {
+        try
+        {
+            var.loadData ();
+        }
+        catch (IMCDFException e)
+        {
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean loadRefused (ImagCDFVariableTS ts)
+    {
+        try
+        {
+            ts.loadTimeStamps ();
+        }
+        catch (IMCDFException e)
+        {
+            return true;
+        }
+        return false;
+    }
+
+    /** information about a file with X, Y, Z and F and their time stamps */
+    private static class TestInfo extends ImagCDFInfo
+    {
+        public TestInfo ()
+        {
+            elements_recorded = "XYZF";
+            cdf_var_info = new CDFVariableInfo [5];
+            for (int count=0; count<4; count++)
+                cdf_var_info [count] = new CDFVariableInfo ("GeomagneticField" + elements_recorded.charAt (count), N_RECORDS, TS_VAR_NAME);
+            cdf_var_info [4] = new CDFVariableInfo (TS_VAR_NAME, N_RECORDS, "");
+        }
+    }
+
+    /** a data variable read in lazy mode from the simulated file */
+    private static class TestVariable extends ImagCDFVariable
+    {
+        public TestVariable (IMCDFRecordReader reader, String var_name)
+        {
+            super ();
+            this.var_name = var_name;
+            this.depend_0 = TS_VAR_NAME;
+            this.lazy_reader = reader;
+            this.data_length = N_RECORDS;
+        }
+        private TestVariable () { super (); }
+        @Override
+        public ImagCDFVariable slice (int offset, int length)
+        {
+            TestVariable slice = new TestVariable ();
+            slice.setSlice (this, offset, length);
+            return slice;
+        }
+    }
+
+    /** time stamps read in lazy mode from the simulated file */
+    private static class TestTimeStamps extends ImagCDFVariableTS
+    {
+        public TestTimeStamps (IMCDFRecordReader reader)
+        {
+            super ();
+            this.var_name = TS_VAR_NAME;
+            this.lazy_reader = reader;
+            this.lazy_n_samples = N_RECORDS;
+        }
+        private TestTimeStamps () { super (); }
+        @Override
+        public ImagCDFVariableTS slice (int offset, int length)
+        {
+            TestTimeStamps slice = new TestTimeStamps ();
+            slice.setSlice (this, offset, length);
+            return slice;
+        }
+    }
+
+    /** a simulated file holding a year of one minute data - each data
+     * value is its record number */
+    private static class YearReader implements IMCDFRecordReader
+    {
+        static long tt2000 (int record)
+        {
+            return ImagCDFTimeConverter.tableDateToTT2000 (START_MILLIS + (record * 60000l));
+        }
+        @Override
+        public int getNRecords (String var_name) { return N_RECORDS; }
+        @Override
+        public double [] readDataRecords (String var_name) { return readDataRecords (var_name, 0, N_RECORDS); }
+        @Override
+        public long [] readTimeStampRecords (String var_name) { return readTimeStampRecords (var_name, 0, N_RECORDS); }
+        @Override
+        public double [] readDataRecords (String var_name, int first_record, int n_records)
+        {
+            double data [] = new double [n_records];
+            readDataRecords (var_name, first_record, n_records, data, 0);
+            return data;
+        }
+        @Override
+        public long [] readTimeStampRecords (String var_name, int first_record, int n_records)
+        {
+            long time_stamps [] = new long [n_records];
+            readTimeStampRecords (var_name, first_record, n_records, time_stamps, 0);
+            return time_stamps;
+        }
+        @Override
+        public void readDataRecords (String var_name, int first_record, int n_records, double dst [], int dst_pos)
+        {
+            for (int count=0; count<n_records; count++) dst [dst_pos + count] = first_record + count;
+        }
+        @Override
+        public void readTimeStampRecords (String var_name, int first_record, int n_records, long dst [], int dst_pos)
+        {
+            for (int count=0; count<n_records; count++) dst [dst_pos + count] = tt2000 (first_record + count);
+        }
+        @Override
+        public void close () { }
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import bgs.geophys.library.Data.ImagCDF.Impl_JNI.ImagCDFLowLevel_JNI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for the checks on records preallocated when ImagCDFLowLevel_JNI writes
+ * a file: checkRecordsWritten() must catch variables that had fewer (or more)
+ * records written than were allocated, and the blocking factor for compressed
+ * variables must follow the number of records up to its limit. The record
+ * counts are given directly, so this doesn't need the native CDF library -
+ * ImagCDFBlockingFactorBenchmark runs a short write against the library. Run with:
+ *
+ *   java bgs.geophys.library.Data.ImagCDF.ImagCDFRecordsWrittenTest
+ *
+ * The exit status is 1 if any test fails.
+ *
+ * @author smf
+ */
+public class ImagCDFRecordsWrittenTest
+{
+
+    private static List<String> failures;
+    private static int n_tests;
+
+    public static void main (String args [])
+    throws Exception
+    {
+        failures = new ArrayList<> ();
+        n_tests = 0;
+
+        testRecordsWritten ();
+        testCompressedBlockingFactor ();
+
+        for (String failure : failures) System.out.println ("FAILED: " + failure);
+        if (failures.size() > 0)
+        {
+            System.out.println (failures.size() + " of " + n_tests + " tests failed");
+            System.exit (1);
+        }
+        System.out.println ("OK: " + n_tests + " tests passed");
+    }
+
+    /** checkRecordsWritten() catches variables with the wrong number of records */
+    private static void testRecordsWritten ()
+    {
+        Map<String, Long> allocated, written;
+        IMCDFException error;
+
+        allocated = new HashMap<> ();
+        allocated.put ("GeomagneticFieldX", 86400l);
+        allocated.put ("GeomagneticFieldY", 86400l);
+        allocated.put ("GeomagneticVectorTimes", 86400l);
+
+        // every record written
+        written = new HashMap<> (allocated);
+        n_tests ++;
+        error = check (allocated, written);
+        if (error != null) failures.add ("All written: " + error.getMessage());
+
+        // half of one variable written
+        written.put ("GeomagneticFieldY", 43200l);
+        n_tests ++;
+        error = check (allocated, written);
+        if (error == null)
+            failures.add ("Under-written variable not detected");
+        else if (error.getErrorList().size() != 1 || ! error.getMessage().contains ("GeomagneticFieldY") || ! error.getMessage().contains ("43200"))
+            failures.add ("Under-written variable: " + error.getErrorList());
+
+        // a variable with no records written, and one with too many
+        written.remove ("GeomagneticVectorTimes");
+        written.put ("GeomagneticFieldX", 86401l);
+        n_tests ++;
+        error = check (allocated, written);
+        if (error == null)
+            failures.add ("Unwritten and over-written variables not detected");
+        else if (error.getErrorList().size() != 3)
+            failures.add ("Unwritten and over-written variables: " + error.getErrorList());
+
+        // variables that weren't allocated (e.g. compressed ones) aren't checked
+        written.clear ();
+        written.put ("GeomagneticFieldZ", 10l);
+        n_tests ++;
+        error = check (new HashMap<> (), written);
+        if (error != null) failures.add ("Unallocated variable: " + error.getMessage());
+    }
+
+    /** the blocking factor for compressed variables follows the number of records up to the limit */
+    private static void testCompressedBlockingFactor ()
+    {
+        checkBlockingFactor (0l, 1l);
+        checkBlockingFactor (1440l, 1440l);
+        checkBlockingFactor (ImagCDFLowLevel_JNI.MAX_COMPRESSED_BLOCKING_FACTOR, ImagCDFLowLevel_JNI.MAX_COMPRESSED_BLOCKING_FACTOR);
+        checkBlockingFactor (86400l, ImagCDFLowLevel_JNI.MAX_COMPRESSED_BLOCKING_FACTOR);
+        checkBlockingFactor (365l * 86400l, ImagCDFLowLevel_JNI.MAX_COMPRESSED_BLOCKING_FACTOR);
+    }
+
+    private static IMCDFException check (Map<String, Long> allocated, Map<String, Long> written)
+    {
+        try
+        {
+            ImagCDFLowLevel_JNI.checkRecordsWritten (allocated, written);
+        }
+        catch (IMCDFException e)
+        {
+            return e;
+        }
+        return null;
+    }
+
+    private static void checkBlockingFactor (long n_records, long expected)
+    {
+        long blocking_factor;
+
+        n_tests ++;
+        blocking_factor = ImagCDFLowLevel_JNI.getCompressedBlockingFactor (n_records);
+        if (blocking_factor != expected)
+            failures.add ("Blocking factor for " + n_records + " records: " + blocking_factor + ", expected " + expected);
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import bgs.geophys.library.Data.ImagCDF.Impl_JNI.ImagCDFLowLevel_JNI;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that the time conversions in ImagCDFLowLevel_JNI give the same results
+ * when they are called from many threads at once as they do from one thread.
+ * A reference is made by converting a set of dates on one thread, then each
+ * thread converts the same dates (starting at a different place, so that the
+ * threads are converting different dates at the same moment) many times over
+ * and counts the results that differ from the reference. The dates include
+ * leap second boundaries and, if a CDF library is on the class path, dates
+ * before 1972, which are converted by the library's calendar code. Run with:
+ *
+ *   java bgs.geophys.library.Data.ImagCDF.ImagCDFTimeConversionStressTest [n_threads [n_repeats]]
+ *
+ * The exit status is 1 if any result differs from the reference, 2 if the
+ * native CDF library isn't available.
+ *
+ * @author smf
+ */
+public class ImagCDFTimeConversionStressTest
+{
+
+    private static final int N_DATES = 10000;
+
+    public static void main (String args [])
+    throws Exception
+    {
+        int n_threads, n_repeats, count, n_differences, thread_differences;
+        long dates [], ref_tt2000 [], ref_millis [];
+        ExecutorService executor;
+        CountDownLatch start_latch;
+        List<Future<Integer>> futures;
+
+        n_threads = args.length > 0 ? Integer.parseInt (args [0]) : 8;
+        n_repeats = args.length > 1 ? Integer.parseInt (args [1]) : 50;
+
+        // ImagCDFLowLevel_JNI can't be loaded without the native library
+        try
+        {
+            ImagCDFLowLevel_JNI.DateToTT2000 (0l);
+        }
+        catch (LinkageError e)
+        {
+            System.out.println ("ImagCDFLowLevel_JNI needs the native CDF library and its Java classes (" + e + ")");
+            System.exit (2);
+        }
+
+        // a date before 1972 needs the CDF library itself to convert it
+        dates = makeDates (true);
+        try
+        {
+            ImagCDFLowLevel_JNI.DateToTT2000 (-315619200000l);
+        }
+        catch (LinkageError e)
+        {
+            System.out.println ("No CDF library available (" + e + "), so dates before 1972 are not tested");
+            dates = makeDates (false);
+        }
+
+        // the single threaded reference
+        ref_tt2000 = new long [dates.length];
+        ref_millis = new long [dates.length];
+        for (count=0; count<dates.length; count++)
+        {
+            ref_tt2000 [count] = ImagCDFLowLevel_JNI.DateToTT2000 (dates [count]);
+            ref_millis [count] = ImagCDFLowLevel_JNI.TT2000ToDate (ref_tt2000 [count]).getTime();
+        }
+
+        System.out.println ("Converting " + dates.length + " dates " + n_repeats + " times on each of " + n_threads + " threads");
+        executor = Executors.newFixedThreadPool (n_threads);
+        start_latch = new CountDownLatch (1);
+        futures = new ArrayList<> ();
+        try
+        {
+            for (count=0; count<n_threads; count++)
+                futures.add (executor.submit (new Converter (dates, ref_tt2000, ref_millis, n_repeats,
+                                                             (count * dates.length) / n_threads, start_latch)));
+            start_latch.countDown ();
+            n_differences = 0;
+            for (count=0; count<futures.size(); count++)
+            {
+                thread_differences = futures.get (count).get ();
+                if (thread_differences > 0)
+                    System.out.println ("Thread " + count + ": " + thread_differences + " differences from the reference");
+                n_differences += thread_differences;
+            }
+        }
+        finally
+        {
+            executor.shutdownNow ();
+        }
+
+        if (n_differences > 0)
+        {
+            System.out.println ("FAILED: " + n_differences + " differences from the single threaded reference");
+            System.exit (1);
+        }
+        System.out.println ("OK: all threads matched the single threaded reference");
+    }
+
+    /** converts the dates on one thread, counting differences from the reference */
+    private static class Converter implements Callable<Integer>
+    {
+        private final long dates [];
+        private final long ref_tt2000 [];
+        private final long ref_millis [];
+        private final int n_repeats;
+        private final int first_index;
+        private final CountDownLatch start_latch;
+
+        public Converter (long dates [], long ref_tt2000 [], long ref_millis [], int n_repeats,
+                          int first_index, CountDownLatch start_latch)
+        {
+            this.dates = dates;
+            this.ref_tt2000 = ref_tt2000;
+            this.ref_millis = ref_millis;
+            this.n_repeats = n_repeats;
+            this.first_index = first_index;
+            this.start_latch = start_latch;
+        }
+
+        @Override
+        public Integer call ()
+        throws Exception
+        {
+            int repeat, count, index, n_differences;
+
+            start_latch.await ();
+            n_differences = 0;
+            for (repeat=0; repeat<n_repeats; repeat++)
+            {
+                for (count=0; count<dates.length; count++)
+                {
+                    index = (first_index + count) % dates.length;
+                    if (ImagCDFLowLevel_JNI.DateToTT2000 (dates [index]) != ref_tt2000 [index]) n_differences ++;
+                    if (ImagCDFLowLevel_JNI.TT2000ToDate (ref_tt2000 [index]).getTime() != ref_millis [index]) n_differences ++;
+                }
+            }
+            return n_differences;
+        }
+    }
+
+    /** make a set of dates in milliseconds since 1970: seconds either side of
+     * each leap second from 1972 to 2017 and times spread over the following
+     * years, and optionally times spread over 1900 to 1971 (and the seconds
+     * before the start of 1972) */
+    private static long [] makeDates (boolean include_pre_1972)
+    {
+        int count, year, n_leap, n_pre;
+        long dates [], start, end, date, start_1972;
+        GregorianCalendar calendar;
+
+        calendar = new GregorianCalendar (TimeZone.getTimeZone ("gmt"));
+        dates = new long [N_DATES];
+        count = 0;
+        calendar.clear ();
+        calendar.set (1972, 0, 1, 0, 0, 0);
+        start_1972 = calendar.getTimeInMillis ();
+
+        // the seconds around each 1st January and 1st July, which include every leap second
+        for (year=1972; year<=2017; year++)
+        {
+            for (int month : new int [] {0, 6})
+            {
+                calendar.clear ();
+                calendar.set (year, month, 1, 0, 0, 0);
+                for (int second=-2; second<=2; second++)
+                {
+                    date = calendar.getTimeInMillis () + (second * 1000l);
+                    if (include_pre_1972 || date >= start_1972) dates [count ++] = date;
+                }
+            }
+        }
+        n_leap = count;
+
+        // times spread evenly over the rest of the range
+        n_pre = include_pre_1972 ? (N_DATES - n_leap) / 4 : 0;
+        calendar.clear ();
+        calendar.set (1900, 0, 1, 0, 0, 0);
+        start = calendar.getTimeInMillis ();
+        end = start_1972;
+        for (int i=0; i<n_pre; i++)
+            dates [count ++] = start + (((end - start) / n_pre) * i) + (i % 1000);
+        calendar.clear ();
+        calendar.set (2030, 0, 1, 0, 0, 0);
+        start = end;
+        end = calendar.getTimeInMillis ();
+        for (int i=0; count<N_DATES; i++)
+            dates [count ++] = start + (((end - start) / (N_DATES - n_leap - n_pre)) * i) + (i % 1000);
+        return dates;
+    }
+
+}
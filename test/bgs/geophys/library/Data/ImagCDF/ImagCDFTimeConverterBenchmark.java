@@ -0,0 +1,133 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import gov.nasa.gsfc.spdf.cdfj.TimeUtil;
+import gsfc.nssdc.cdf.util.CDFTT2000;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+/**
+ * Compares the speed of ImagCDFTimeConverter with the per-call conversions in
+ * the CDF libraries that it replaced (TimeUtil.tt2000() in the pure Java library,
+ * CDFTT2000.fromGregorianTime() in the native library), and checks that they
+ * give the same results. A library that isn't on the class path (or can't load
+ * its native code) is reported and skipped. Run with:
+ *
+ *   java bgs.geophys.library.Data.ImagCDF.ImagCDFTimeConverterBenchmark [n_samples]
+ *
+ * @author smf
+ */
+public class ImagCDFTimeConverterBenchmark
+{
+
+    private static final int N_RUNS = 5;
+
+    public static void main (String args [])
+    throws Exception
+    {
+        int n_samples, count;
+        long utc_millis [], tt2000 [], reference [], start;
+        GregorianCalendar calendar;
+
+        n_samples = args.length > 0 ? Integer.parseInt (args [0]) : 1000000;
+
+        // one second samples that run across the leap second at the end of 2016
+        utc_millis = new long [n_samples];
+        calendar = new GregorianCalendar (TimeZone.getTimeZone ("gmt"));
+        calendar.clear ();
+        calendar.set (2016, 11, 31, 12, 0, 0);
+        start = calendar.getTimeInMillis ();
+        for (count=0; count<n_samples; count++) utc_millis [count] = start + (count * 1000l);
+        tt2000 = new long [n_samples];
+
+        reference = new long [n_samples];
+        for (count=0; count<n_samples; count++) reference [count] = ImagCDFTimeConverter.DateToTT2000 (utc_millis [count]);
+        System.out.println ("Converting " + n_samples + " one second samples from 2016-12-31 12:00:00 UTC, best of " + N_RUNS + " runs");
+
+        report ("ImagCDFTimeConverter, one call per sample", time (() ->
+        {
+            for (int i=0; i<utc_millis.length; i++) tt2000 [i] = ImagCDFTimeConverter.DateToTT2000 (utc_millis [i]);
+        }), n_samples, tt2000, reference);
+
+        report ("ImagCDFTimeConverter, batch", time (() ->
+        {
+            ImagCDFTimeConverter.DateToTT2000 (utc_millis, tt2000, utc_millis.length);
+        }), n_samples, tt2000, reference);
+
+        try
+        {
+            report ("Pure Java library, TimeUtil.tt2000(Date)", time (() ->
+            {
+                for (int i=0; i<utc_millis.length; i++) tt2000 [i] = TimeUtil.tt2000 (new Date (utc_millis [i]));
+            }), n_samples, tt2000, reference);
+        }
+        catch (LinkageError e)
+        {
+            System.out.println ("Pure Java library, TimeUtil.tt2000(Date): not available (" + e + ")");
+        }
+
+        try
+        {
+            final GregorianCalendar lib_calendar = new GregorianCalendar (TimeZone.getTimeZone ("gmt"));
+            report ("Native library, CDFTT2000.fromGregorianTime()", time (() ->
+            {
+                for (int i=0; i<utc_millis.length; i++)
+                {
+                    lib_calendar.setTimeInMillis (utc_millis [i]);
+                    tt2000 [i] = CDFTT2000.fromGregorianTime (lib_calendar);
+                }
+            }), n_samples, tt2000, reference);
+        }
+        catch (LinkageError e)
+        {
+            System.out.println ("Native library, CDFTT2000.fromGregorianTime(): not available (" + e + ")");
+        }
+    }
+
+    private interface Conversion { void run () throws Throwable; }
+
+    /** run a conversion several times, returning the fastest time in nanoseconds */
+    private static long time (Conversion conversion)
+    throws Exception
+    {
+        int run;
+        long best, start;
+
+        best = Long.MAX_VALUE;
+        for (run=0; run<N_RUNS; run++)
+        {
+            start = System.nanoTime ();
+            try
+            {
+                conversion.run ();
+            }
+            catch (LinkageError | Exception e)
+            {
+                throw e;
+            }
+            catch (Throwable e)
+            {
+                throw new Exception (e);
+            }
+            best = Math.min (best, System.nanoTime () - start);
+        }
+        return best;
+    }
+
+    private static void report (String name, long nanos, int n_samples, long tt2000 [], long reference [])
+    {
+        int count, n_differences;
+
+        n_differences = 0;
+        for (count=0; count<n_samples; count++)
+            if (tt2000 [count] != reference [count]) n_differences ++;
+        System.out.println (String.format ("%-50s %8.1f ms %8.1f ns/sample %d differences from the converter",
+                                           name + ":", nanos / 1.0e6, (double) nanos / n_samples, n_differences));
+    }
+
+}
@@ -0,0 +1,314 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package bgs.geophys.library.Data.ImagCDF;
+
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Tests for ImagCDFTimeStampIndex: segment and gap detection on series with
+ * known structure (empty, one sample, gaps at the first and last samples, a
+ * leap second, irregular cadence) and the searches (getTT2000, indexOf, floor,
+ * ceiling, nearest), which are checked against a linear scan of the time
+ * stamps for query times on, between, before and after the samples. Run with:
+ *
+ *   java bgs.geophys.library.Data.ImagCDF.ImagCDFTimeStampIndexTest
+ *
+ * The exit status is 1 if any test fails.
+ *
+ * @author smf
+ */
+public class ImagCDFTimeStampIndexTest
+{
+
+    private static final long SECOND = 1000000000l;
+
+    private static List<String> failures;
+    private static int n_tests;
+
+    public static void main (String args [])
+    throws IMCDFException
+    {
+        int count;
+        long start, tt2000 [];
+        Random random;
+        GregorianCalendar calendar;
+
+        failures = new ArrayList<> ();
+        n_tests = 0;
+        start = 536500869184000000l;
+
+        // empty series
+        tt2000 = new long [0];
+        checkStructure ("Empty", tt2000, 0, new long [0][]);
+        checkSearches ("Empty", tt2000);
+
+        // a single sample
+        tt2000 = new long [] {start};
+        checkStructure ("Single sample", tt2000, 1, new long [0][]);
+        checkSearches ("Single sample", tt2000);
+
+        // two samples
+        tt2000 = new long [] {start, start + SECOND};
+        checkStructure ("Two samples", tt2000, 1, new long [0][]);
+        checkSearches ("Two samples", tt2000);
+
+        // a regular series
+        tt2000 = regular (1000, start, SECOND);
+        checkStructure ("Regular", tt2000, 1, new long [0][]);
+        checkSearches ("Regular", tt2000);
+
+        // a gap after the first sample - two samples missing
+        tt2000 = regular (100, start + (2 * SECOND), SECOND);
+        tt2000 [0] = start;
+        checkStructure ("Gap after first sample", tt2000, 2, new long [][] {{1, 2}});
+        checkSearches ("Gap after first sample", tt2000);
+
+        // a gap before the last sample - four samples missing
+        tt2000 = regular (100, start, SECOND);
+        tt2000 [99] += 4 * SECOND;
+        checkStructure ("Gap before last sample", tt2000, 2, new long [][] {{99, 4}});
+        checkSearches ("Gap before last sample", tt2000);
+
+        // gaps at both ends and in the middle
+        tt2000 = regular (100, start, SECOND);
+        for (count=1; count<100; count++) tt2000 [count] += 10 * SECOND;
+        for (count=50; count<100; count++) tt2000 [count] += 60 * SECOND;
+        tt2000 [99] += 2 * SECOND;
+        checkStructure ("Gaps at both ends and in the middle", tt2000, 4, new long [][] {{1, 10}, {50, 60}, {99, 2}});
+        checkSearches ("Gaps at both ends and in the middle", tt2000);
+
+        // one second samples across the leap second at the end of 2016 - the TT2000
+        // step is two seconds over the leap second, but no samples are missing
+        calendar = new GregorianCalendar (TimeZone.getTimeZone ("gmt"));
+        calendar.clear ();
+        calendar.set (2016, 11, 31, 23, 59, 0);
+        tt2000 = new long [120];
+        for (count=0; count<tt2000.length; count++)
+            tt2000 [count] = ImagCDFTimeConverter.DateToTT2000 (calendar.getTimeInMillis() + (count * 1000l));
+        checkStructure ("Leap second", tt2000, 2, new long [0][]);
+        checkSearches ("Leap second", tt2000);
+
+        // irregular cadence - every step is different
+        random = new Random (1);
+        tt2000 = new long [500];
+        tt2000 [0] = start;
+        for (count=1; count<tt2000.length; count++) tt2000 [count] = tt2000 [count -1] + 1 + random.nextInt (5000);
+        checkSearches ("Irregular", tt2000);
+
+        // runs of regular samples with irregular steps and gaps between them
+        random = new Random (2);
+        tt2000 = new long [2000];
+        tt2000 [0] = start;
+        for (count=1; count<tt2000.length; count++)
+            tt2000 [count] = tt2000 [count -1] + ((count % 97) == 0 ? SECOND + random.nextInt (100) * SECOND : ((count / 97) % 2 == 0 ? SECOND : 60 * SECOND));
+        checkSearches ("Regular runs with gaps", tt2000);
+
+        // time stamps before 2000 (negative TT2000) and a part of an array
+        tt2000 = regular (300, -SECOND * 150, SECOND);
+        checkSearches ("Negative time stamps", tt2000);
+        checkRange ("Part of an array", regular (300, start, SECOND), 100, 50);
+
+        // time stamps that aren't ascending must be rejected
+        checkRejected ("Repeated time stamp", new long [] {start, start + SECOND, start + SECOND});
+        checkRejected ("Descending time stamp", new long [] {start, start + SECOND, start});
+
+        for (String failure : failures) System.out.println ("FAILED: " + failure);
+        if (failures.size() > 0)
+        {
+            System.out.println (failures.size() + " of " + n_tests + " tests failed");
+            System.exit (1);
+        }
+        System.out.println ("OK: " + n_tests + " tests passed");
+    }
+
+    /** check the number of segments and the gaps found in a series
+     * @param expected_gaps for each gap, the index after it and the number of samples missing */
+    private static void checkStructure (String name, long tt2000 [], int expected_segments, long expected_gaps [][])
+    throws IMCDFException
+    {
+        ImagCDFTimeStampIndex index;
+        List<ImagCDFTimeStampIndex.Gap> gaps;
+
+        n_tests ++;
+        index = new ImagCDFTimeStampIndex (tt2000);
+        if (index.getNSegments () != expected_segments)
+            failures.add (name + ": " + index.getNSegments () + " segments, expected " + expected_segments);
+        if (index.isRegular () != (expected_segments <= 1))
+            failures.add (name + ": isRegular() is " + index.isRegular ());
+        gaps = index.getGaps ();
+        if (gaps.size () != expected_gaps.length)
+        {
+            failures.add (name + ": " + gaps.size () + " gaps, expected " + expected_gaps.length);
+            return;
+        }
+        for (int count=0; count<expected_gaps.length; count++)
+        {
+            if (gaps.get (count).getIndexAfter () != expected_gaps [count][0] || gaps.get (count).getNMissing () != expected_gaps [count][1])
+                failures.add (name + ": gap " + count + " is before sample " + gaps.get (count).getIndexAfter () + " with " +
+                              gaps.get (count).getNMissing () + " missing, expected sample " + expected_gaps [count][0] +
+                              " with " + expected_gaps [count][1] + " missing");
+            if (gaps.get (count).getLastTT2000Before () != tt2000 [(int) expected_gaps [count][0] -1] ||
+                gaps.get (count).getFirstTT2000After () != tt2000 [(int) expected_gaps [count][0]])
+                failures.add (name + ": gap " + count + " has the wrong time stamps either side of it");
+        }
+    }
+
+    /** check every search against a linear scan of the time stamps */
+    private static void checkSearches (String name, long tt2000 [])
+    throws IMCDFException
+    {
+        int count, n_segment_samples;
+        List<Long> queries;
+        ImagCDFTimeStampIndex index;
+
+        n_tests ++;
+        index = new ImagCDFTimeStampIndex (tt2000);
+        if (index.getNSamples () != tt2000.length)
+        {
+            failures.add (name + ": " + index.getNSamples () + " samples, expected " + tt2000.length);
+            return;
+        }
+
+        // the segments must cover the samples, in order, with the right time stamps
+        n_segment_samples = 0;
+        for (ImagCDFTimeStampIndex.Segment segment : index.getSegments ())
+        {
+            if (segment.getFirstIndex () != n_segment_samples || segment.getStartTT2000 () != tt2000 [segment.getFirstIndex ()] ||
+                segment.getEndTT2000 () != tt2000 [segment.getFirstIndex () + segment.getNSamples () -1])
+            {
+                failures.add (name + ": segment starting at sample " + segment.getFirstIndex () + " doesn't match the time stamps");
+                return;
+            }
+            n_segment_samples += segment.getNSamples ();
+        }
+        if (n_segment_samples != tt2000.length)
+            failures.add (name + ": the segments hold " + n_segment_samples + " samples, expected " + tt2000.length);
+        for (count=0; count<tt2000.length; count++)
+        {
+            if (index.getTT2000 (count) != tt2000 [count])
+            {
+                failures.add (name + ": getTT2000(" + count + ") returned " + index.getTT2000 (count) + ", expected " + tt2000 [count]);
+                return;
+            }
+        }
+        if (! outOfBoundsRejected (index, -1) || ! outOfBoundsRejected (index, tt2000.length))
+            failures.add (name + ": getTT2000() accepted an index outside the series");
+
+        // query on each sample, either side of it, half way to the next, and at the extremes
+        queries = new ArrayList<> ();
+        queries.add (Long.MIN_VALUE);
+        queries.add (Long.MAX_VALUE);
+        for (count=0; count<tt2000.length; count++)
+        {
+            queries.add (tt2000 [count]);
+            queries.add (tt2000 [count] -1);
+            queries.add (tt2000 [count] +1);
+            if (count +1 < tt2000.length) queries.add (tt2000 [count] + ((tt2000 [count +1] - tt2000 [count]) / 2));
+        }
+        if (tt2000.length > 0)
+        {
+            queries.add (tt2000 [0] - SECOND);
+            queries.add (tt2000 [tt2000.length -1] + SECOND);
+        }
+        for (long query : queries)
+        {
+            if (index.floor (query) != scanFloor (tt2000, query))
+                failures.add (name + ": floor(" + query + ") returned " + index.floor (query) + ", expected " + scanFloor (tt2000, query));
+            else if (index.ceiling (query) != scanCeiling (tt2000, query))
+                failures.add (name + ": ceiling(" + query + ") returned " + index.ceiling (query) + ", expected " + scanCeiling (tt2000, query));
+            else if (index.nearest (query) != scanNearest (tt2000, query))
+                failures.add (name + ": nearest(" + query + ") returned " + index.nearest (query) + ", expected " + scanNearest (tt2000, query));
+            else if (index.indexOf (query) != scanIndexOf (tt2000, query))
+                failures.add (name + ": indexOf(" + query + ") returned " + index.indexOf (query) + ", expected " + scanIndexOf (tt2000, query));
+            else
+                continue;
+            return;
+        }
+    }
+
+    /** check an index built from part of an array, which uses indexes relative to the part */
+    private static void checkRange (String name, long tt2000 [], int from, int len)
+    throws IMCDFException
+    {
+        ImagCDFTimeStampIndex index;
+
+        n_tests ++;
+        index = new ImagCDFTimeStampIndex (tt2000, from, len);
+        if (index.getNSamples () != len || index.getTT2000 (0) != tt2000 [from] || index.getTT2000 (len -1) != tt2000 [from + len -1] ||
+            index.indexOf (tt2000 [from + 10]) != 10 || index.floor (tt2000 [from -1]) != -1 || index.ceiling (tt2000 [from + len]) != -1)
+            failures.add (name + ": indexes are not relative to the start of the part");
+    }
+
+    private static void checkRejected (String name, long tt2000 [])
+    {
+        n_tests ++;
+        try
+        {
+            new ImagCDFTimeStampIndex (tt2000);
+            failures.add (name + ": time stamps were not rejected");
+        }
+        catch (IMCDFException e) { }
+    }
+
+    private static boolean outOfBoundsRejected (ImagCDFTimeStampIndex index, int sample)
+    {
+        try
+        {
+            index.getTT2000 (sample);
+        }
+        catch (IndexOutOfBoundsException e)
+        {
+            return true;
+        }
+        return false;
+    }
+
+    private static int scanFloor (long tt2000 [], long query)
+    {
+        int count, found;
+
+        found = -1;
+        for (count=0; count<tt2000.length && tt2000 [count] <= query; count++) found = count;
+        return found;
+    }
+
+    private static int scanCeiling (long tt2000 [], long query)
+    {
+        for (int count=0; count<tt2000.length; count++)
+            if (tt2000 [count] >= query) return count;
+        return -1;
+    }
+
+    private static int scanNearest (long tt2000 [], long query)
+    {
+        int before, after;
+
+        before = scanFloor (tt2000, query);
+        after = scanCeiling (tt2000, query);
+        if (before < 0) return after;
+        if (after < 0) return before;
+        return query - tt2000 [before] <= tt2000 [after] - query ? before : after;
+    }
+
+    private static int scanIndexOf (long tt2000 [], long query)
+    {
+        for (int count=0; count<tt2000.length; count++)
+            if (tt2000 [count] == query) return count;
+        return -1;
+    }
+
+    private static long [] regular (int n, long start, long interval)
+    {
+        long series [] = new long [n];
+        for (int count=0; count<n; count++) series [count] = start + (count * interval);
+        return series;
+    }
+
+}